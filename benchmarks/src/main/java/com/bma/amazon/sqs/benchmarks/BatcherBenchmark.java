@@ -0,0 +1,102 @@
+package com.bma.amazon.sqs.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.transport.SendBatcher;
+
+/**
+ * Sending a burst of messages through the batcher compared to one
+ * SendMessage call per message, against the local SQS.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatcherBenchmark {
+
+	@Param({ "1024", "16384" })
+	public int payloadSize;
+
+	@Param({ "10", "100" })
+	public int concurrency;
+
+	@Param({ "0", "5" })
+	public long latencyMillis;
+
+	private LocalAmazonSQS sqs;
+	private String queueUrl;
+	private ScheduledExecutorService scheduler;
+	private ExecutorService executor;
+	private SendBatcher batcher;
+	private String payload;
+
+	@Setup
+	public void setUp() {
+		sqs = new LocalAmazonSQS();
+		sqs.setLatency(latencyMillis, 0);
+		queueUrl = sqs.createQueue(new CreateQueueRequest("benchmark")).getQueueUrl();
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		executor = Executors.newCachedThreadPool();
+		batcher = new SendBatcher(sqs, queueUrl, scheduler, executor);
+		batcher.setLingerMillis(1);
+		payload = Payloads.text(payloadSize);
+	}
+
+	@TearDown(Level.Iteration)
+	public void purge() {
+		sqs.deleteQueue(new DeleteQueueRequest(queueUrl));
+		sqs.createQueue(new CreateQueueRequest("benchmark"));
+	}
+
+	@TearDown
+	public void tearDown() {
+		scheduler.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	@Benchmark
+	public void batched() throws Exception {
+		CompletableFuture<?>[] sent = new CompletableFuture<?>[concurrency];
+		for (int i = 0; i < concurrency; i++) {
+			sent[i] = batcher.add(payload);
+		}
+		CompletableFuture.allOf(sent).get();
+	}
+
+	@Benchmark
+	public void single() throws Exception {
+		CompletableFuture<?>[] sent = new CompletableFuture<?>[concurrency];
+		for (int i = 0; i < concurrency; i++) {
+			sent[i] = CompletableFuture.runAsync(new Runnable() {
+				public void run() {
+					sqs.sendMessage(new SendMessageRequest(queueUrl, payload));
+				}
+			}, executor);
+		}
+		CompletableFuture.allOf(sent).get();
+	}
+}
@@ -0,0 +1,94 @@
+package com.bma.amazon.sqs.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.TextNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bma.amazon.sqs.codec.GzipCodec;
+import com.bma.amazon.sqs.codec.JsonCodec;
+import com.bma.amazon.sqs.codec.MessageCodec;
+import com.bma.amazon.sqs.codec.SmileCodec;
+import com.bma.amazon.sqs.rpc.JsonRpcMapper;
+import com.bma.amazon.sqs.rpc.JsonRpcRequest;
+
+/**
+ * Encode and decode cost of the message codecs. The bytes on the wire and
+ * the 64 KB chunks SQS bills for are printed at the end of each trial, they
+ * do not change between iterations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	private static final int BILLING_CHUNK = 64 * 1024;
+
+	@Param({ "json", "gzip", "smile" })
+	public String codec;
+
+	@Param({ "records", "text" })
+	public String payload;
+
+	@Param({ "1024", "16384", "131072" })
+	public int payloadSize;
+
+	private MessageCodec messageCodec;
+	private JsonNode envelope;
+	private String body;
+	private int jsonBytes;
+
+	@Setup
+	public void setUp() throws IOException {
+		messageCodec = codecOf(codec);
+		JsonNode params = "text".equals(payload) ? TextNode.valueOf(Payloads.text(payloadSize))
+				: Payloads.records(payloadSize);
+		JsonRpcMapper mapper = new JsonRpcMapper();
+		envelope = mapper.getObjectMapper().readTree(mapper.writeRequest(
+				new JsonRpcRequest("client-1", "store", params, "https://sqs.local/000000000000/reply")));
+		body = messageCodec.encode(envelope);
+		jsonBytes = new JsonCodec().encode(envelope).getBytes("UTF-8").length;
+	}
+
+	@TearDown
+	public void report() throws IOException {
+		int bytes = body.getBytes("UTF-8").length;
+		System.out.printf("%n%s/%s/%d: %d bytes on wire, %.2f of JSON, %d billed chunks%n", codec, payload,
+				payloadSize, bytes, (double) bytes / jsonBytes, (bytes + BILLING_CHUNK - 1) / BILLING_CHUNK);
+	}
+
+	@Benchmark
+	public String encode() throws IOException {
+		return messageCodec.encode(envelope);
+	}
+
+	@Benchmark
+	public JsonNode decode() throws IOException {
+		return messageCodec.decode(body);
+	}
+
+	private static MessageCodec codecOf(String id) {
+		if (GzipCodec.ID.equals(id)) {
+			return new GzipCodec();
+		}
+		if (SmileCodec.ID.equals(id)) {
+			return new SmileCodec();
+		}
+		return new JsonCodec();
+	}
+}
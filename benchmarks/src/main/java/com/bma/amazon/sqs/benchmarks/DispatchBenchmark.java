@@ -0,0 +1,61 @@
+package com.bma.amazon.sqs.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.rpc.JsonRpcMapper;
+import com.bma.amazon.sqs.rpc.JsonRpcRequest;
+import com.bma.amazon.sqs.rpc.JsonRpcResponse;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsServer;
+import com.bma.amazon.sqs.rpc.MethodHandler;
+
+/**
+ * Server side method lookup and invocation, without the transport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	@Param({ "1", "100" })
+	public int registeredMethods;
+
+	private JsonRpcSqsServer server;
+	private JsonRpcRequest request;
+
+	@Setup
+	public void setUp() {
+		server = new JsonRpcSqsServer(new LocalAmazonSQS(), "https://sqs.local/000000000000/requests");
+		MethodHandler echo = new MethodHandler() {
+			public Object handle(JsonNode params) {
+				return params;
+			}
+		};
+		for (int i = 0; i < registeredMethods; i++) {
+			server.register("echo" + i, echo);
+		}
+		JsonRpcMapper mapper = new JsonRpcMapper();
+		request = new JsonRpcRequest("client-1", "echo0", mapper.toTree(new int[] { 1, 2 }), null);
+	}
+
+	@Benchmark
+	public JsonRpcResponse invoke() {
+		return server.invoke(request);
+	}
+}
@@ -0,0 +1,96 @@
+package com.bma.amazon.sqs.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bma.amazon.sqs.rpc.JsonRpcMapper;
+import com.bma.amazon.sqs.rpc.JsonRpcRequest;
+
+/**
+ * Reading a request and its params the way a handler gets them: through a
+ * tree, as before the streaming reader, or streamed and bound to the params
+ * class straight from the body. Run with -prof gc for the bytes allocated
+ * per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvelopeBenchmark {
+
+	@Param({ "1024", "16384", "131072" })
+	public int payloadSize;
+
+	private JsonRpcMapper mapper;
+	private ObjectMapper objectMapper;
+	private String body;
+
+	@Setup
+	public void setUp() {
+		mapper = new JsonRpcMapper();
+		objectMapper = mapper.getObjectMapper();
+		body = mapper.writeRequest(new JsonRpcRequest("client-1", "store", Payloads.records(payloadSize),
+				"https://sqs.local/000000000000/reply"));
+	}
+
+	/**
+	 * The envelope and the params parsed into a tree, the params converted
+	 * from it.
+	 */
+	@Benchmark
+	public Record[] tree() throws IOException {
+		JsonNode envelope = mapper.getCodecs().decode(body);
+		if (!"store".equals(envelope.get("method").getTextValue())) {
+			throw new IllegalStateException();
+		}
+		return objectMapper.readValue(envelope.get("params"), Record[].class);
+	}
+
+	/**
+	 * The envelope streamed, the params bound from the body.
+	 */
+	@Benchmark
+	public Record[] streamed() {
+		JsonRpcRequest request = mapper.readRequest(body);
+		if (!"store".equals(request.getMethod())) {
+			throw new IllegalStateException();
+		}
+		return mapper.readParams(request, Record[].class);
+	}
+
+	/**
+	 * The envelope streamed only, e.g. for a request which is answered from
+	 * the dedup cache or rejected.
+	 */
+	@Benchmark
+	public JsonRpcRequest envelopeOnly() {
+		return mapper.readRequest(body);
+	}
+
+	public static class Record {
+		public long id;
+		public String name;
+		public String email;
+		public String country;
+		public String state;
+		public double balance;
+		public long created;
+		public boolean verified;
+	}
+}
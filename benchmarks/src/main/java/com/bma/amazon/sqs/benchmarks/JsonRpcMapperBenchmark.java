@@ -0,0 +1,71 @@
+package com.bma.amazon.sqs.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.node.TextNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bma.amazon.sqs.rpc.JsonRpcMapper;
+import com.bma.amazon.sqs.rpc.JsonRpcRequest;
+import com.bma.amazon.sqs.rpc.JsonRpcResponse;
+
+/**
+ * Encoding and decoding of JSON-RPC envelopes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonRpcMapperBenchmark {
+
+	@Param({ "1024", "16384", "131072" })
+	public int payloadSize;
+
+	private JsonRpcMapper mapper;
+	private JsonRpcRequest request;
+	private JsonRpcResponse response;
+	private String requestBody;
+	private String responseBody;
+
+	@Setup
+	public void setUp() {
+		mapper = new JsonRpcMapper();
+		TextNode payload = TextNode.valueOf(Payloads.text(payloadSize));
+		request = new JsonRpcRequest("client-1", "echo", payload, "https://sqs.local/000000000000/reply");
+		response = JsonRpcResponse.success("client-1", payload);
+		requestBody = mapper.writeRequest(request);
+		responseBody = mapper.writeResponse(response);
+	}
+
+	@Benchmark
+	public String writeRequest() {
+		return mapper.writeRequest(request);
+	}
+
+	@Benchmark
+	public JsonRpcRequest readRequest() {
+		return mapper.readRequest(requestBody);
+	}
+
+	@Benchmark
+	public String writeResponse() {
+		return mapper.writeResponse(response);
+	}
+
+	@Benchmark
+	public JsonRpcResponse readResponse() {
+		return mapper.readResponse(responseBody);
+	}
+}
@@ -0,0 +1,107 @@
+package com.bma.amazon.sqs.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.rpc.JsonRpcMapper;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsClient;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsServer;
+import com.bma.amazon.sqs.rpc.MethodHandler;
+import com.bma.amazon.sqs.transport.QueueUrlCache;
+import com.bma.amazon.sqs.transport.ThreadMode;
+
+/**
+ * Calls per second to a slow method in standard mode, where any request may
+ * be handled by any handler at any time, compared to ordered mode, where the
+ * requests of a group are handled one after the other. Ordered throughput
+ * grows with the number of groups up to the server's parallelism.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderedDispatchBenchmark {
+	private static final int CALLS = 256;
+
+	@Param({ "standard", "ordered" })
+	public String mode;
+
+	@Param({ "1", "8", "64" })
+	public int groups;
+
+	@Param({ "2" })
+	public long handlerMillis;
+
+	@Param({ "5" })
+	public long latencyMillis;
+
+	private JsonRpcSqsServer server;
+	private JsonRpcSqsClient client;
+	private LocalAmazonSQS sqs;
+	private ObjectNode[] params;
+
+	@Setup
+	public void setUp() {
+		sqs = new LocalAmazonSQS("benchmark.local");
+		sqs.setLatency(latencyMillis, 0);
+		String queueUrl = sqs.createQueue(new CreateQueueRequest("benchmark")).getQueueUrl();
+		server = new JsonRpcSqsServer(sqs, queueUrl, new JsonRpcMapper(), 64, ThreadMode.PLATFORM);
+		server.getReceiver().setPollers(1, 16);
+		server.register("work", new MethodHandler() {
+			public Object handle(JsonNode params) throws Exception {
+				Thread.sleep(handlerMillis);
+				return null;
+			}
+		});
+		client = JsonRpcSqsClient.create(new QueueUrlCache(sqs), "benchmark", new JsonRpcMapper(), ThreadMode.PLATFORM);
+		client.setLingerMillis(1);
+		if ("ordered".equals(mode)) {
+			server.setOrderedDispatch(CALLS, 1000);
+			client.setMessageGroups(request -> request.getParams().get("group").getTextValue());
+		}
+		server.start();
+		params = new ObjectNode[groups];
+		for (int i = 0; i < groups; i++) {
+			params[i] = new ObjectMapper().createObjectNode();
+			params[i].put("group", "group" + i);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+		server.stop();
+		sqs.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CALLS)
+	public void calls() throws Exception {
+		CompletableFuture<?>[] calls = new CompletableFuture<?>[CALLS];
+		for (int i = 0; i < CALLS; i++) {
+			calls[i] = client.call("work", params[i % groups]);
+		}
+		CompletableFuture.allOf(calls).get();
+	}
+}
@@ -0,0 +1,49 @@
+package com.bma.amazon.sqs.benchmarks;
+
+import java.util.Random;
+
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Test payloads: printable ASCII like the messages of the performance tests,
+ * and structured records closer to real RPC parameters.
+ */
+final class Payloads {
+	private static final Random rnd = new Random(42);
+	private static final String[] COUNTRIES = { "DE", "US", "GB", "FR", "JP", "BR" };
+	private static final String[] STATES = { "active", "suspended", "closed" };
+
+	private Payloads() {
+	}
+
+	static String text(int size) {
+		char[] message = new char[size];
+		for (int i = 0; i < size; i++) {
+			message[i] = (char) Math.max(33, rnd.nextInt(127));
+		}
+		return new String(message);
+	}
+
+	/**
+	 * An array of records of about the given size in bytes of JSON.
+	 */
+	static ArrayNode records(int size) {
+		ArrayNode records = JsonNodeFactory.instance.arrayNode();
+		int approximate = 0;
+		for (int i = 0; approximate < size; i++) {
+			ObjectNode record = records.addObject();
+			record.put("id", 100000 + i);
+			record.put("name", "customer-" + rnd.nextInt(1000000));
+			record.put("email", "user" + rnd.nextInt(1000000) + "@example.com");
+			record.put("country", COUNTRIES[rnd.nextInt(COUNTRIES.length)]);
+			record.put("state", STATES[rnd.nextInt(STATES.length)]);
+			record.put("balance", rnd.nextInt(10000000) / 100.0);
+			record.put("created", 1350000000000L + rnd.nextInt(1000000000));
+			record.put("verified", rnd.nextBoolean());
+			approximate = records.toString().length();
+		}
+		return records;
+	}
+}
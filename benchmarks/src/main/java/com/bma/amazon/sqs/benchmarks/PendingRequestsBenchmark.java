@@ -0,0 +1,61 @@
+package com.bma.amazon.sqs.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.node.IntNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bma.amazon.sqs.rpc.JsonRpcResponse;
+import com.bma.amazon.sqs.rpc.PendingRequests;
+
+/**
+ * Registering and completing a call in the correlation map while many other
+ * calls are in flight. Run with -t to change the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class PendingRequestsBenchmark {
+
+	@Param({ "0", "10000" })
+	public int inFlight;
+
+	private PendingRequests pending;
+	private AtomicLong ids;
+	private JsonRpcResponse result;
+
+	@Setup
+	public void setUp() {
+		pending = new PendingRequests();
+		for (int i = 0; i < inFlight; i++) {
+			pending.register("in-flight-" + i);
+		}
+		ids = new AtomicLong();
+		result = JsonRpcResponse.success(null, IntNode.valueOf(1));
+	}
+
+	@Benchmark
+	public CompletableFuture<JsonRpcResponse> registerAndComplete() {
+		String id = "call-" + ids.incrementAndGet();
+		CompletableFuture<JsonRpcResponse> future = pending.register(id);
+		pending.complete(JsonRpcResponse.success(id, result.getResult()));
+		return future;
+	}
+}
@@ -0,0 +1,82 @@
+package com.bma.amazon.sqs.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsClient;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsServer;
+import com.bma.amazon.sqs.rpc.MethodHandler;
+
+/**
+ * End-to-end calls through client, local SQS and server. One operation is
+ * a burst of concurrent calls which all have to complete.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+	@Param({ "1024", "65536" })
+	public int payloadSize;
+
+	@Param({ "1", "100" })
+	public int concurrency;
+
+	@Param({ "0", "5" })
+	public long latencyMillis;
+
+	private JsonRpcSqsServer server;
+	private JsonRpcSqsClient client;
+	private String payload;
+
+	@Setup
+	public void setUp() {
+		LocalAmazonSQS sqs = new LocalAmazonSQS();
+		sqs.setLatency(latencyMillis, 0);
+		String queueUrl = sqs.createQueue(new CreateQueueRequest("benchmark")).getQueueUrl();
+		server = new JsonRpcSqsServer(sqs, queueUrl);
+		server.register("echo", new MethodHandler() {
+			public Object handle(JsonNode params) {
+				return params;
+			}
+		});
+		server.start();
+		client = JsonRpcSqsClient.create(sqs, "benchmark");
+		client.setLingerMillis(1);
+		payload = Payloads.text(payloadSize);
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+		server.stop();
+	}
+
+	@Benchmark
+	public void calls() throws Exception {
+		CompletableFuture<?>[] calls = new CompletableFuture<?>[concurrency];
+		for (int i = 0; i < concurrency; i++) {
+			calls[i] = client.call("echo", payload);
+		}
+		CompletableFuture.allOf(calls).get();
+	}
+}
@@ -0,0 +1,102 @@
+package com.bma.amazon.sqs.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.rpc.JsonRpcMapper;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsClient;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsServer;
+import com.bma.amazon.sqs.rpc.MethodHandler;
+import com.bma.amazon.sqs.transport.QueueUrlCache;
+import com.bma.amazon.sqs.transport.ThreadMode;
+
+/**
+ * Round trips to a slow method with pollers, handlers and blocking SQS calls
+ * on platform threads compared to virtual ones, at a simulated SQS latency.
+ * The server may handle as many requests at the same time as there are calls.
+ * The peak number of live platform threads is printed at the end of each
+ * trial. The virtual mode needs a Java 21 runtime.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThreadModeBenchmark {
+
+	@Param({ "platform", "virtual" })
+	public String threads;
+
+	@Param({ "100", "1000" })
+	public int concurrency;
+
+	@Param({ "50" })
+	public long handlerMillis;
+
+	@Param({ "20" })
+	public long latencyMillis;
+
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private JsonRpcSqsServer server;
+	private JsonRpcSqsClient client;
+	private LocalAmazonSQS sqs;
+	private String payload;
+
+	@Setup
+	public void setUp() {
+		ThreadMode threadMode = ThreadMode.valueOf(threads.toUpperCase());
+		sqs = new LocalAmazonSQS("benchmark.local");
+		sqs.setLatency(latencyMillis, 0);
+		String queueUrl = sqs.createQueue(new CreateQueueRequest("benchmark")).getQueueUrl();
+		server = new JsonRpcSqsServer(sqs, queueUrl, new JsonRpcMapper(), concurrency, threadMode);
+		server.getReceiver().setPollers(1, 32);
+		server.getReceiver().setPrefetchCapacity(concurrency);
+		server.register("sleep", new MethodHandler() {
+			public Object handle(JsonNode params) throws Exception {
+				Thread.sleep(handlerMillis);
+				return params;
+			}
+		});
+		server.start();
+		client = JsonRpcSqsClient.create(new QueueUrlCache(sqs), "benchmark", new JsonRpcMapper(), threadMode);
+		client.setLingerMillis(1);
+		payload = Payloads.text(256);
+		threadBean.resetPeakThreadCount();
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.out.printf("%n%s/%d: peak platform threads %d%n", threads, concurrency, threadBean.getPeakThreadCount());
+		client.close();
+		server.stop();
+		sqs.shutdown();
+	}
+
+	@Benchmark
+	public void calls() throws Exception {
+		CompletableFuture<?>[] calls = new CompletableFuture<?>[concurrency];
+		for (int i = 0; i < concurrency; i++) {
+			calls[i] = client.call("sleep", payload);
+		}
+		CompletableFuture.allOf(calls).get();
+	}
+}
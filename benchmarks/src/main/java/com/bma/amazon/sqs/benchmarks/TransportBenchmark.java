@@ -0,0 +1,91 @@
+package com.bma.amazon.sqs.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.local.LocalAmazonSQSAsync;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsClient;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsServer;
+import com.bma.amazon.sqs.rpc.MethodHandler;
+
+/**
+ * Round trips with blocking batch calls on a cached thread pool compared to
+ * non-blocking ones completed by two threads, at a simulated SQS latency.
+ * The peak number of live threads is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+
+	@Param({ "blocking", "async" })
+	public String transport;
+
+	@Param({ "100", "1000" })
+	public int concurrency;
+
+	@Param({ "20" })
+	public long latencyMillis;
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private JsonRpcSqsServer server;
+	private JsonRpcSqsClient client;
+	private LocalAmazonSQS sqs;
+	private String payload;
+
+	@Setup
+	public void setUp() {
+		sqs = "async".equals(transport) ? new LocalAmazonSQSAsync("benchmark.local") : new LocalAmazonSQS("benchmark.local");
+		sqs.setLatency(latencyMillis, 0);
+		String queueUrl = sqs.createQueue(new CreateQueueRequest("benchmark")).getQueueUrl();
+		server = new JsonRpcSqsServer(sqs, queueUrl);
+		server.register("echo", new MethodHandler() {
+			public Object handle(JsonNode params) {
+				return params;
+			}
+		});
+		server.start();
+		client = JsonRpcSqsClient.create(sqs, "benchmark");
+		client.setLingerMillis(1);
+		payload = Payloads.text(1024);
+		threads.resetPeakThreadCount();
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.out.printf("%n%s/%d: peak threads %d%n", transport, concurrency, threads.getPeakThreadCount());
+		client.close();
+		server.stop();
+		sqs.shutdown();
+	}
+
+	@Benchmark
+	public void calls() throws Exception {
+		CompletableFuture<?>[] calls = new CompletableFuture<?>[concurrency];
+		for (int i = 0; i < concurrency; i++) {
+			calls[i] = client.call("echo", payload);
+		}
+		CompletableFuture.allOf(calls).get();
+	}
+}
@@ -0,0 +1,79 @@
+package com.bma.amazon.sqs.loadgen;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latencies of one kind, recorded by many threads in microseconds and
+ * written as an HdrHistogram interval log, which HistogramLogProcessor
+ * (-outputValueUnitRatio 1000 for milliseconds) or HdrHistogram's plotters
+ * read. Intervals of the
+ * warmup are not logged.
+ */
+class LatencyLog {
+	private static final long HIGHEST_MICROS = TimeUnit.HOURS.toMicros(1);
+
+	private final String name;
+	private final Recorder recorder = new Recorder(HIGHEST_MICROS, 3);
+	private final HistogramLogWriter writer;
+	private final long baseMillis;
+	private final Histogram total = new Histogram(HIGHEST_MICROS, 3);
+	private Histogram interval;
+
+	LatencyLog(String name, File dir, long baseMillis) throws FileNotFoundException {
+		this.name = name;
+		this.baseMillis = baseMillis;
+		this.writer = new HistogramLogWriter(new File(dir, name + ".hlog"));
+		writer.outputComment("[" + name + " latency in us, from the intended send time]");
+		writer.outputLogFormatVersion();
+		writer.outputStartTime(baseMillis);
+		writer.setBaseTime(baseMillis);
+		writer.outputLegend();
+	}
+
+	void record(long nanos) {
+		recorder.recordValue(Math.min(HIGHEST_MICROS, Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos))));
+	}
+
+	/**
+	 * Ends the current interval.
+	 *
+	 * @return the latencies of the interval
+	 */
+	synchronized Histogram roll(boolean measured) {
+		interval = recorder.getIntervalHistogram(interval);
+		if (measured) {
+			writer.outputIntervalHistogram((interval.getStartTimeStamp() - baseMillis) / 1000.0,
+					(interval.getEndTimeStamp() - baseMillis) / 1000.0, interval, 1000.0);
+			total.add(interval);
+		}
+		return interval;
+	}
+
+	/**
+	 * @return the latencies of all measured intervals
+	 */
+	Histogram getTotal() {
+		return total;
+	}
+
+	void close() {
+		writer.close();
+	}
+
+	String summary() {
+		return String.format("%s latency ms: p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f (%d)", name,
+				millis(total.getValueAtPercentile(50)), millis(total.getValueAtPercentile(90)),
+				millis(total.getValueAtPercentile(99)), millis(total.getValueAtPercentile(99.9)),
+				millis(total.getMaxValue()), total.getTotalCount());
+	}
+
+	static double millis(long micros) {
+		return micros / 1000.0;
+	}
+}
@@ -0,0 +1,307 @@
+package com.bma.amazon.sqs.loadgen;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.auth.PropertiesCredentials;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.transport.DaemonThreadFactory;
+import com.bma.amazon.sqs.transport.DeleteBatcher;
+import com.bma.amazon.sqs.transport.QueueUrlCache;
+import com.bma.amazon.sqs.transport.ReceiveEngine;
+import com.bma.amazon.sqs.transport.SendBatcher;
+import com.bma.amazon.sqs.transport.SqsClientFactory;
+
+/**
+ * Sends messages to a queue at a fixed rate and receives them again, to find
+ * the rate at which a deployment configuration saturates.
+ * <p>
+ * The load is open loop: message n of a sender is due at start + n / rate,
+ * whether or not earlier sends returned, and latencies are measured from that
+ * intended time. A sender falling behind therefore shows up as latency
+ * instead of quietly lowering the rate (coordinated omission). Senders and
+ * receivers run in the same process, so the end-to-end latency is measured
+ * on one clock.
+ * <p>
+ * Writes to the output directory:
+ * <ul>
+ * <li>send.hlog: intended send time to the send being acknowledged</li>
+ * <li>end-to-end.hlog: intended send time to the message being received</li>
+ * <li>timeline.csv: per second the messages due, sent and received, the
+ * backlog in the queue and the latency percentiles of the second</li>
+ * </ul>
+ * Usage: {@code java -jar loadgen.jar --rate=500 --senders=2 --receivers=4
+ * --payload=lognormal:2048,1.0 --duration=60 --warmup=10}, see
+ * {@link LoadProfile} for all settings.
+ */
+public class LoadGenerator {
+	private static final long DRAIN_SECONDS = 30;
+
+	private final LoadProfile profile;
+	private final AtomicLong due = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong sendErrors = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong receiveErrors = new AtomicLong();
+	private final String filler;
+	private volatile boolean sending = true;
+	private volatile boolean receiving = true;
+	private long origin;
+	private long lastDue;
+	private long lastSent;
+	private long lastReceived;
+	private long lastReport;
+	private int intervals;
+	private long measuredNanos;
+	private long measuredSent;
+	private long measuredReceived;
+
+	public LoadGenerator(LoadProfile profile) {
+		this.profile = profile;
+		char[] chars = new char[SendBatcher.MAX_BATCH_BYTES];
+		Random rnd = new Random(42);
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) Math.max(33, rnd.nextInt(127));
+		}
+		this.filler = new String(chars);
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadProfile profile = LoadProfile.parse(args);
+		System.out.println("Load profile: " + profile);
+		new LoadGenerator(profile).run();
+	}
+
+	public void run() throws Exception {
+		File dir = new File(profile.getOutputDir());
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can not create " + dir);
+		}
+		SqsClientFactory factory = null;
+		QueueUrlCache queueUrls;
+		if (profile.isLocal()) {
+			LocalAmazonSQS local = new LocalAmazonSQS(profile.getEndpoint());
+			local.setLatency(profile.getLocalLatencyMillis(), profile.getLocalJitterMillis());
+			queueUrls = new QueueUrlCache(local);
+		} else {
+			factory = new SqsClientFactory(credentials());
+			factory.setMaxConnections(SqsClientFactory.connectionsFor(profile.getReceivers(), profile.getSenders()));
+			queueUrls = factory.getQueueUrls(profile.getEndpoint());
+		}
+		AmazonSQS sqs = queueUrls.getSqs();
+		String queueUrl = queueUrls.createQueue(profile.getQueueName());
+
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2,
+				new DaemonThreadFactory("loadgen-timer"));
+		ExecutorService sqsExecutor = profile.getThreadMode().newExecutor("loadgen-sqs");
+		ExecutorService workers = profile.getThreadMode().newExecutor("loadgen-worker");
+		DeleteBatcher deleter = DeleteBatcher.create(sqs, queueUrl, scheduler, sqsExecutor);
+		List<SendBatcher> senders = new ArrayList<SendBatcher>();
+		long startMillis = System.currentTimeMillis();
+		origin = System.nanoTime();
+		lastReport = origin;
+		long measureStart = origin + TimeUnit.SECONDS.toNanos(profile.getWarmupSeconds());
+		long end = measureStart + TimeUnit.SECONDS.toNanos(profile.getDurationSeconds());
+		LatencyLog sendLatency = new LatencyLog("send", dir, startMillis);
+		LatencyLog endToEndLatency = new LatencyLog("end-to-end", dir, startMillis);
+		PrintWriter timeline = new PrintWriter(new FileWriter(new File(dir, "timeline.csv")));
+		try {
+			timeline.println("second,phase,due,sent,send_errors,received,receive_errors,backlog,"
+					+ "send_p50_ms,send_p99_ms,e2e_p50_ms,e2e_p99_ms,e2e_max_ms");
+			scheduler.scheduleAtFixedRate(() -> report(timeline, sendLatency, endToEndLatency), 1, 1,
+					TimeUnit.SECONDS);
+			for (int i = 0; i < profile.getReceivers(); i++) {
+				workers.execute(() -> receive(sqs, queueUrl, deleter, endToEndLatency));
+			}
+			List<CompletableFuture<Void>> sendersDone = new ArrayList<CompletableFuture<Void>>();
+			for (int i = 0; i < profile.getSenders(); i++) {
+				SendBatcher batcher = SendBatcher.create(sqs, queueUrl, scheduler, sqsExecutor);
+				senders.add(batcher);
+				int index = i;
+				sendersDone.add(CompletableFuture.runAsync(() -> send(batcher, index, end, sendLatency), workers));
+			}
+			CompletableFuture.allOf(sendersDone.toArray(new CompletableFuture<?>[0])).join();
+			sending = false;
+			long drainEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+			while ((sent.get() + sendErrors.get() < due.get() || received.get() < sent.get())
+					&& System.nanoTime() < drainEnd) {
+				Thread.sleep(100);
+			}
+			receiving = false;
+			report(timeline, sendLatency, endToEndLatency);
+			printSummary(sendLatency, endToEndLatency);
+		} finally {
+			sending = false;
+			receiving = false;
+			scheduler.shutdownNow();
+			for (SendBatcher batcher : senders) {
+				batcher.close();
+			}
+			deleter.close();
+			workers.shutdownNow();
+			sqsExecutor.shutdown();
+			sendLatency.close();
+			endToEndLatency.close();
+			timeline.close();
+			if (profile.isTemporaryQueue()) {
+				sqs.deleteQueue(new DeleteQueueRequest(queueUrl));
+			}
+			if (factory != null) {
+				factory.shutdown();
+			}
+		}
+		System.out.println("Results in " + dir.getAbsolutePath());
+	}
+
+	/**
+	 * Sends this sender's share of the rate until the end, each message at its
+	 * intended time or, if behind, right away.
+	 */
+	private void send(SendBatcher batcher, int index, long end, LatencyLog latency) {
+		Random rnd = new Random(index);
+		double interval = (double) TimeUnit.SECONDS.toNanos(1) * profile.getSenders() / profile.getRate();
+		long first = origin + (long) (interval * index / profile.getSenders());
+		for (long n = 0; sending; n++) {
+			final long intended = first + (long) (interval * n);
+			if (intended >= end) {
+				break;
+			}
+			for (long wait; (wait = intended - System.nanoTime()) > 0;) {
+				LockSupport.parkNanos(wait);
+			}
+			due.incrementAndGet();
+			batcher.add(body(intended, profile.getPayload().next(rnd))).whenComplete((id, e) -> {
+				if (e != null) {
+					sendErrors.incrementAndGet();
+				} else {
+					sent.incrementAndGet();
+					latency.record(System.nanoTime() - intended);
+				}
+			});
+		}
+		batcher.flush();
+	}
+
+	private void receive(AmazonSQS sqs, String queueUrl, DeleteBatcher deleter, LatencyLog latency) {
+		ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+				.withMaxNumberOfMessages(ReceiveEngine.MAX_NUMBER_OF_MESSAGES)
+				.withWaitTimeSeconds(ReceiveEngine.WAIT_TIME_SECONDS);
+		while (receiving) {
+			List<Message> messages;
+			try {
+				messages = sqs.receiveMessage(request).getMessages();
+			} catch (AmazonClientException e) {
+				receiveErrors.incrementAndGet();
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+				continue;
+			}
+			long now = System.nanoTime();
+			for (Message message : messages) {
+				latency.record(now - intendedOf(message.getBody()));
+				received.incrementAndGet();
+				deleter.add(message.getReceiptHandle());
+			}
+		}
+	}
+
+	/**
+	 * @return a body of the size starting with the intended send time
+	 */
+	private String body(long intended, int size) {
+		String time = Long.toString(intended - origin) + ';';
+		return time + filler.substring(0, Math.max(0, size - time.length()));
+	}
+
+	private long intendedOf(String body) {
+		long offset = 0;
+		for (int i = 0; i < body.length() && body.charAt(i) != ';'; i++) {
+			offset = offset * 10 + body.charAt(i) - '0';
+		}
+		return origin + offset;
+	}
+
+	private synchronized void report(PrintWriter timeline, LatencyLog sendLatency, LatencyLog endToEndLatency) {
+		long now = System.nanoTime();
+		// an interval is measured if it started after the warmup
+		boolean measured = ++intervals > profile.getWarmupSeconds();
+		Histogram send = sendLatency.roll(measured);
+		Histogram endToEnd = endToEndLatency.roll(measured);
+		long dueNow = due.get();
+		long sentNow = sent.get();
+		long receivedNow = received.get();
+		boolean sendPhase = intervals <= profile.getWarmupSeconds() + profile.getDurationSeconds();
+		String phase = !measured ? "warmup" : sendPhase ? "measure" : "drain";
+		timeline.printf("%d,%s,%d,%d,%d,%d,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f%n",
+				TimeUnit.NANOSECONDS.toSeconds(now - origin), phase, dueNow - lastDue, sentNow - lastSent,
+				sendErrors.get(), receivedNow - lastReceived, receiveErrors.get(), sentNow - receivedNow,
+				LatencyLog.millis(send.getValueAtPercentile(50)), LatencyLog.millis(send.getValueAtPercentile(99)),
+				LatencyLog.millis(endToEnd.getValueAtPercentile(50)),
+				LatencyLog.millis(endToEnd.getValueAtPercentile(99)), LatencyLog.millis(endToEnd.getMaxValue()));
+		timeline.flush();
+		if (measured && sendPhase) {
+			measuredNanos += now - lastReport;
+			measuredSent += sentNow - lastSent;
+			measuredReceived += receivedNow - lastReceived;
+		}
+		lastReport = now;
+		lastDue = dueNow;
+		lastSent = sentNow;
+		lastReceived = receivedNow;
+	}
+
+	private void printSummary(LatencyLog sendLatency, LatencyLog endToEndLatency) {
+		double seconds = Math.max(1, measuredNanos) / 1e9;
+		System.out.printf("Target %d msg/s; sent %d (%d errors), received %d (%d errors), %d left in the queue%n",
+				profile.getRate(), sent.get(), sendErrors.get(), received.get(), receiveErrors.get(),
+				Math.max(0, sent.get() - received.get()));
+		System.out.printf("Measured %.1f s: %.0f msg/s sent, %.0f msg/s received%n", seconds,
+				measuredSent / seconds, measuredReceived / seconds);
+		System.out.println(sendLatency.summary());
+		System.out.println(endToEndLatency.summary());
+	}
+
+	private AWSCredentialsProvider credentials() throws IOException {
+		if (profile.getCredentials() == null) {
+			return new DefaultAWSCredentialsProviderChain();
+		}
+		InputStream in = new FileInputStream(profile.getCredentials());
+		final AWSCredentials credentials;
+		try {
+			credentials = new PropertiesCredentials(in);
+		} finally {
+			in.close();
+		}
+		return new AWSCredentialsProvider() {
+			public AWSCredentials getCredentials() {
+				return credentials;
+			}
+
+			public void refresh() {
+			}
+		};
+	}
+}
@@ -0,0 +1,254 @@
+package com.bma.amazon.sqs.loadgen;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.transport.ThreadMode;
+
+/**
+ * Settings of a load generator run. They are read from a properties file
+ * ({@code --profile=<file>}) and command line options ({@code --<name>=<value>}),
+ * the options win:
+ * <dl>
+ * <dt>rate</dt>
+ * <dd>messages per second sent, whether or not SQS keeps up</dd>
+ * <dt>senders, receivers</dt>
+ * <dd>sending threads sharing the rate, long polling threads</dd>
+ * <dt>payload</dt>
+ * <dd>message sizes, see {@link PayloadSizes}</dd>
+ * <dt>duration, warmup</dt>
+ * <dd>seconds measured, seconds run before without being measured</dd>
+ * <dt>target</dt>
+ * <dd>{@code local} for the in-memory SQS or {@code aws}</dd>
+ * <dt>endpoint, credentials</dt>
+ * <dd>SQS endpoint and, for aws, a properties file with accessKey and
+ * secretKey; without one the default credentials chain is used</dd>
+ * <dt>localLatency, localJitter</dt>
+ * <dd>milliseconds the local SQS takes per call</dd>
+ * <dt>threads</dt>
+ * <dd>{@code platform} or {@code virtual}, see {@link ThreadMode}</dd>
+ * <dt>queue</dt>
+ * <dd>name of the queue, created if missing; by default a new one per run,
+ * deleted at the end</dd>
+ * <dt>out</dt>
+ * <dd>directory of the latency logs and the throughput timeline</dd>
+ * </dl>
+ */
+public class LoadProfile {
+	private int rate = 100;
+	private int senders = 1;
+	private int receivers = 1;
+	private PayloadSizes payload = PayloadSizes.parse("fixed:1024");
+	private int durationSeconds = 60;
+	private int warmupSeconds = 10;
+	private String target = "local";
+	private String endpoint = LocalAmazonSQS.DEFAULT_ENDPOINT;
+	private String credentials;
+	private long localLatencyMillis;
+	private long localJitterMillis;
+	private ThreadMode threadMode = ThreadMode.PLATFORM;
+	private String queueName = "loadgen_" + System.currentTimeMillis();
+	private boolean temporaryQueue = true;
+	private String outputDir = "loadgen-results";
+
+	public static LoadProfile parse(String[] args) throws IOException {
+		Properties properties = new Properties();
+		for (String arg : args) {
+			if (arg.startsWith("--profile=")) {
+				InputStream in = new FileInputStream(arg.substring("--profile=".length()));
+				try {
+					properties.load(in);
+				} finally {
+					in.close();
+				}
+			}
+		}
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (!arg.startsWith("--") || equals < 0) {
+				throw new IllegalArgumentException("Expected --<name>=<value>: " + arg);
+			}
+			properties.setProperty(arg.substring(2, equals), arg.substring(equals + 1));
+		}
+		LoadProfile profile = new LoadProfile();
+		profile.apply(properties);
+		return profile;
+	}
+
+	private void apply(Properties properties) {
+		for (String name : properties.stringPropertyNames()) {
+			String value = properties.getProperty(name).trim();
+			if ("profile".equals(name)) {
+				continue;
+			} else if ("rate".equals(name)) {
+				setRate(Integer.parseInt(value));
+			} else if ("senders".equals(name)) {
+				setSenders(Integer.parseInt(value));
+			} else if ("receivers".equals(name)) {
+				setReceivers(Integer.parseInt(value));
+			} else if ("payload".equals(name)) {
+				setPayload(PayloadSizes.parse(value));
+			} else if ("duration".equals(name)) {
+				setDurationSeconds(Integer.parseInt(value));
+			} else if ("warmup".equals(name)) {
+				setWarmupSeconds(Integer.parseInt(value));
+			} else if ("target".equals(name)) {
+				setTarget(value);
+			} else if ("endpoint".equals(name)) {
+				setEndpoint(value);
+			} else if ("credentials".equals(name)) {
+				setCredentials(value);
+			} else if ("localLatency".equals(name)) {
+				setLocalLatency(Long.parseLong(value), localJitterMillis);
+			} else if ("localJitter".equals(name)) {
+				setLocalLatency(localLatencyMillis, Long.parseLong(value));
+			} else if ("threads".equals(name)) {
+				setThreadMode(ThreadMode.valueOf(value.toUpperCase()));
+			} else if ("queue".equals(name)) {
+				setQueueName(value);
+			} else if ("out".equals(name)) {
+				setOutputDir(value);
+			} else {
+				throw new IllegalArgumentException("Unknown setting " + name);
+			}
+		}
+	}
+
+	public boolean isLocal() {
+		return "local".equals(target);
+	}
+
+	public int getRate() {
+		return rate;
+	}
+
+	public void setRate(int rate) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("Rate must be positive: " + rate);
+		}
+		this.rate = rate;
+	}
+
+	public int getSenders() {
+		return senders;
+	}
+
+	public void setSenders(int senders) {
+		this.senders = senders;
+	}
+
+	public int getReceivers() {
+		return receivers;
+	}
+
+	public void setReceivers(int receivers) {
+		this.receivers = receivers;
+	}
+
+	public PayloadSizes getPayload() {
+		return payload;
+	}
+
+	public void setPayload(PayloadSizes payload) {
+		this.payload = payload;
+	}
+
+	public int getDurationSeconds() {
+		return durationSeconds;
+	}
+
+	public void setDurationSeconds(int durationSeconds) {
+		this.durationSeconds = durationSeconds;
+	}
+
+	public int getWarmupSeconds() {
+		return warmupSeconds;
+	}
+
+	public void setWarmupSeconds(int warmupSeconds) {
+		this.warmupSeconds = warmupSeconds;
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public void setTarget(String target) {
+		if (!"local".equals(target) && !"aws".equals(target)) {
+			throw new IllegalArgumentException("Target must be local or aws: " + target);
+		}
+		this.target = target;
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	public void setEndpoint(String endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	public String getCredentials() {
+		return credentials;
+	}
+
+	public void setCredentials(String credentials) {
+		this.credentials = credentials;
+	}
+
+	public long getLocalLatencyMillis() {
+		return localLatencyMillis;
+	}
+
+	public long getLocalJitterMillis() {
+		return localJitterMillis;
+	}
+
+	public void setLocalLatency(long latencyMillis, long jitterMillis) {
+		this.localLatencyMillis = latencyMillis;
+		this.localJitterMillis = jitterMillis;
+	}
+
+	public ThreadMode getThreadMode() {
+		return threadMode;
+	}
+
+	public void setThreadMode(ThreadMode threadMode) {
+		this.threadMode = threadMode;
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	public void setQueueName(String queueName) {
+		this.queueName = queueName;
+		this.temporaryQueue = false;
+	}
+
+	/**
+	 * @return true if the queue is created for this run only
+	 */
+	public boolean isTemporaryQueue() {
+		return temporaryQueue;
+	}
+
+	public String getOutputDir() {
+		return outputDir;
+	}
+
+	public void setOutputDir(String outputDir) {
+		this.outputDir = outputDir;
+	}
+
+	@Override
+	public String toString() {
+		return "rate=" + rate + "/s, senders=" + senders + ", receivers=" + receivers + ", payload=" + payload
+				+ ", duration=" + durationSeconds + "s, warmup=" + warmupSeconds + "s, target=" + target + " ("
+				+ endpoint + (isLocal() ? ", latency " + localLatencyMillis + "+-" + localJitterMillis + " ms" : "")
+				+ "), threads=" + threadMode + ", queue=" + queueName;
+	}
+}
@@ -0,0 +1,78 @@
+package com.bma.amazon.sqs.loadgen;
+
+import java.util.Random;
+
+import com.bma.amazon.sqs.transport.SendBatcher;
+
+/**
+ * Distribution of message sizes in bytes, given as
+ * <ul>
+ * <li>{@code fixed:<size>}, e.g. {@code fixed:1024}</li>
+ * <li>{@code uniform:<min>-<max>}, e.g. {@code uniform:256-8192}</li>
+ * <li>{@code lognormal:<median>,<sigma>}, e.g. {@code lognormal:2048,1.0}, a
+ * long tail of large messages like most real traffic</li>
+ * </ul>
+ * Sizes are capped at the SQS limit of 256 KB.
+ */
+public abstract class PayloadSizes {
+	private static final int MIN_SIZE = 32;
+
+	private final String spec;
+
+	private PayloadSizes(String spec) {
+		this.spec = spec;
+	}
+
+	public static PayloadSizes parse(String spec) {
+		int colon = spec.indexOf(':');
+		String kind = colon < 0 ? "fixed" : spec.substring(0, colon);
+		String args = spec.substring(colon + 1);
+		try {
+			if ("fixed".equals(kind)) {
+				final int size = cap(Integer.parseInt(args));
+				return new PayloadSizes(spec) {
+					public int next(Random rnd) {
+						return size;
+					}
+				};
+			}
+			if ("uniform".equals(kind)) {
+				String[] range = args.split("-");
+				final int min = cap(Integer.parseInt(range[0]));
+				final int max = cap(Integer.parseInt(range[1]));
+				return new PayloadSizes(spec) {
+					public int next(Random rnd) {
+						return min + rnd.nextInt(max - min + 1);
+					}
+				};
+			}
+			if ("lognormal".equals(kind)) {
+				String[] params = args.split(",");
+				final double mu = Math.log(Integer.parseInt(params[0]));
+				final double sigma = Double.parseDouble(params[1]);
+				return new PayloadSizes(spec) {
+					public int next(Random rnd) {
+						return cap((int) Math.min(Integer.MAX_VALUE, Math.exp(mu + sigma * rnd.nextGaussian())));
+					}
+				};
+			}
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Invalid payload sizes " + spec, e);
+		}
+		throw new IllegalArgumentException("Unknown payload sizes " + spec);
+	}
+
+	/**
+	 * @return the size of the next message
+	 */
+	public abstract int next(Random rnd);
+
+	private static int cap(int size) {
+		return Math.max(MIN_SIZE, Math.min(SendBatcher.MAX_BATCH_BYTES, size));
+	}
+
+	@Override
+	public String toString() {
+		return spec;
+	}
+}
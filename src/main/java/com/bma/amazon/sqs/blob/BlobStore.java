@@ -0,0 +1,22 @@
+package com.bma.amazon.sqs.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Storage for message bodies too large for SQS, see {@link ClaimCheck}.
+ * Implementations must be thread safe.
+ */
+public interface BlobStore {
+	void put(String key, byte[] data) throws IOException;
+
+	/**
+	 * @throws IOException also when there is no blob with the key
+	 */
+	InputStream open(String key) throws IOException;
+
+	/**
+	 * Deleting a missing blob is not an error.
+	 */
+	void delete(String key) throws IOException;
+}
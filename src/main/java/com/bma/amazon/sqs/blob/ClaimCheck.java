@@ -0,0 +1,97 @@
+package com.bma.amazon.sqs.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.bma.amazon.sqs.transport.SendBatcher;
+
+/**
+ * Sends bodies over the size threshold through a {@link BlobStore}: the
+ * body is uploaded and only a reference "blob:&lt;key&gt;" goes through SQS.
+ * The receiver streams the body from the store when it handles the message
+ * and deletes the blob after it deleted the message.
+ */
+public class ClaimCheck {
+	private static final Log log = LogFactory.getLog(ClaimCheck.class);
+
+	public static final String REFERENCE_PREFIX = "blob:";
+	/** bodies up to the SQS message size limit are sent inline */
+	public static final int DEFAULT_THRESHOLD = SendBatcher.MAX_BATCH_BYTES;
+
+	private final BlobStore store;
+	private final Executor executor;
+	private volatile int threshold = DEFAULT_THRESHOLD;
+
+	/**
+	 * @param executor runs uploads, they run in parallel when it has the threads
+	 */
+	public ClaimCheck(BlobStore store, Executor executor) {
+		this.store = store;
+		this.executor = executor;
+	}
+
+	/**
+	 * @param threshold size of a body in bytes above which it goes to the store
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @return the body itself or, once the upload finished, its reference
+	 */
+	public CompletableFuture<String> checkIn(String body) {
+		if (SendBatcher.utf8Length(body) <= threshold) {
+			return CompletableFuture.completedFuture(body);
+		}
+		final String key = UUID.randomUUID().toString();
+		final byte[] data = body.getBytes(StandardCharsets.UTF_8);
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				store.put(key, data);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+			return REFERENCE_PREFIX + key;
+		}, executor);
+	}
+
+	public boolean isReference(String body) {
+		return body.startsWith(REFERENCE_PREFIX);
+	}
+
+	/**
+	 * Opens the body a reference points to.
+	 */
+	public InputStream open(String reference) throws IOException {
+		return store.open(keyOf(reference));
+	}
+
+	/**
+	 * Deletes the blob behind a body if it is a reference, failures are
+	 * logged only.
+	 */
+	public void release(String body) {
+		if (!isReference(body)) {
+			return;
+		}
+		String key = keyOf(body);
+		try {
+			store.delete(key);
+		} catch (Exception e) {
+			log.warn("Failed to delete blob " + key, e);
+		}
+	}
+
+	private static String keyOf(String reference) {
+		return reference.substring(REFERENCE_PREFIX.length());
+	}
+}
@@ -0,0 +1,46 @@
+package com.bma.amazon.sqs.blob;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * One file per blob in a directory, e.g. on a shared file system or for
+ * local tests. A blob becomes visible only when it is written completely.
+ */
+public class FileBlobStore implements BlobStore {
+	private final Path directory;
+
+	public FileBlobStore(File directory) throws IOException {
+		this.directory = Files.createDirectories(directory.toPath());
+	}
+
+	public void put(String key, byte[] data) throws IOException {
+		Path temp = Files.createTempFile(directory, key, ".tmp");
+		try {
+			Files.write(temp, data);
+			Files.move(temp, file(key), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	public InputStream open(String key) throws IOException {
+		return new BufferedInputStream(Files.newInputStream(file(key)));
+	}
+
+	public void delete(String key) throws IOException {
+		Files.deleteIfExists(file(key));
+	}
+
+	private Path file(String key) {
+		if (key.indexOf('/') >= 0 || key.indexOf('\\') >= 0 || key.startsWith(".")) {
+			throw new IllegalArgumentException("Invalid blob key " + key);
+		}
+		return directory.resolve(key);
+	}
+}
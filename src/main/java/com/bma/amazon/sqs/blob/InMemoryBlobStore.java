@@ -0,0 +1,34 @@
+package com.bma.amazon.sqs.blob;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps blobs on the heap, for tests and clients and servers in one JVM.
+ */
+public class InMemoryBlobStore implements BlobStore {
+	private final ConcurrentMap<String, byte[]> blobs = new ConcurrentHashMap<String, byte[]>();
+
+	public void put(String key, byte[] data) {
+		blobs.put(key, data.clone());
+	}
+
+	public InputStream open(String key) throws FileNotFoundException {
+		byte[] data = blobs.get(key);
+		if (data == null) {
+			throw new FileNotFoundException("No blob " + key);
+		}
+		return new ByteArrayInputStream(data);
+	}
+
+	public void delete(String key) {
+		blobs.remove(key);
+	}
+
+	public int size() {
+		return blobs.size();
+	}
+}
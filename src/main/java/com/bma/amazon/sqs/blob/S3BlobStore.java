@@ -0,0 +1,100 @@
+package com.bma.amazon.sqs.blob;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Keeps blobs as objects in an S3 bucket. Blobs larger than the part size
+ * are uploaded as multipart uploads with the parts sent in parallel on the
+ * given executor. A lifecycle rule on the bucket should expire objects that
+ * were left behind, e.g. by messages that expired in their queue.
+ */
+public class S3BlobStore implements BlobStore {
+	/** smallest part S3 accepts */
+	public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+	private final AmazonS3 s3;
+	private final String bucket;
+	private final String prefix;
+	private final Executor executor;
+	private volatile int partSize = MIN_PART_SIZE;
+
+	/**
+	 * @param prefix prepended to the keys of the objects, e.g. "rpc/"
+	 */
+	public S3BlobStore(AmazonS3 s3, String bucket, String prefix, Executor executor) {
+		this.s3 = s3;
+		this.bucket = bucket;
+		this.prefix = prefix;
+		this.executor = executor;
+	}
+
+	public void setPartSize(int partSize) {
+		if (partSize < MIN_PART_SIZE) {
+			throw new IllegalArgumentException("Parts must have at least " + MIN_PART_SIZE + " bytes");
+		}
+		this.partSize = partSize;
+	}
+
+	public void put(String key, byte[] data) throws IOException {
+		if (data.length <= partSize) {
+			s3.putObject(bucket, prefix + key, new ByteArrayInputStream(data), metadata(data.length));
+			return;
+		}
+		final String objectKey = prefix + key;
+		final String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, objectKey,
+				metadata(data.length))).getUploadId();
+		try {
+			List<CompletableFuture<PartETag>> parts = new ArrayList<CompletableFuture<PartETag>>();
+			for (int offset = 0, part = 1; offset < data.length; offset += partSize, part++) {
+				final UploadPartRequest request = new UploadPartRequest().withBucketName(bucket).withKey(objectKey)
+						.withUploadId(uploadId).withPartNumber(part)
+						.withInputStream(new ByteArrayInputStream(data, offset, Math.min(partSize, data.length - offset)))
+						.withPartSize(Math.min(partSize, data.length - offset));
+				parts.add(CompletableFuture.supplyAsync(() -> s3.uploadPart(request).getPartETag(), executor));
+			}
+			List<PartETag> etags = new ArrayList<PartETag>();
+			for (CompletableFuture<PartETag> part : parts) {
+				etags.add(part.join());
+			}
+			s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, objectKey, uploadId, etags));
+		} catch (RuntimeException e) {
+			s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, objectKey, uploadId));
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			throw new IOException("Upload of " + objectKey + " failed: " + cause.getMessage(), cause);
+		}
+	}
+
+	public InputStream open(String key) throws IOException {
+		try {
+			return s3.getObject(bucket, prefix + key).getObjectContent();
+		} catch (AmazonServiceException e) {
+			throw new IOException("Can not read " + prefix + key + ": " + e.getMessage(), e);
+		}
+	}
+
+	public void delete(String key) {
+		s3.deleteObject(bucket, prefix + key);
+	}
+
+	private static ObjectMetadata metadata(long length) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(length);
+		return metadata;
+	}
+}
@@ -0,0 +1,67 @@
+package com.bma.amazon.sqs.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Gzipped JSON. Envelopes whose JSON is smaller than the threshold are sent
+ * as plain JSON, small messages do not get smaller by compressing and Base64
+ * encoding them.
+ */
+public class GzipCodec extends BinaryCodec {
+	public static final String ID = "gzip";
+	public static final int DEFAULT_THRESHOLD = 1024;
+
+	private final ObjectMapper mapper;
+	private final int threshold;
+
+	public GzipCodec() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param threshold size of the JSON in bytes from which on it is compressed
+	 */
+	public GzipCodec(int threshold) {
+		this(new ObjectMapper(), threshold);
+	}
+
+	public GzipCodec(ObjectMapper mapper, int threshold) {
+		super(ID);
+		this.mapper = mapper;
+		this.threshold = threshold;
+	}
+
+	@Override
+	public String encode(JsonNode envelope) throws IOException {
+		byte[] json = mapper.writeValueAsBytes(envelope);
+		if (json.length < threshold) {
+			return new String(json, "UTF-8");
+		}
+		return prefixed(gzip(json));
+	}
+
+	@Override
+	protected byte[] encodeBytes(JsonNode envelope) throws IOException {
+		return gzip(mapper.writeValueAsBytes(envelope));
+	}
+
+	@Override
+	protected JsonNode decodeStream(InputStream in) throws IOException {
+		return mapper.readTree(new GZIPInputStream(in));
+	}
+
+	private static byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 4 + 32);
+		GZIPOutputStream out = new GZIPOutputStream(buffer);
+		out.write(bytes);
+		out.close();
+		return buffer.toByteArray();
+	}
+}
@@ -0,0 +1,41 @@
+package com.bma.amazon.sqs.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Plain JSON text, the body has no prefix. This is what every receiver
+ * understands and the default.
+ */
+public class JsonCodec implements MessageCodec {
+	public static final String ID = "json";
+
+	private final ObjectMapper mapper;
+
+	public JsonCodec() {
+		this(new ObjectMapper());
+	}
+
+	public JsonCodec(ObjectMapper mapper) {
+		this.mapper = mapper;
+	}
+
+	public String getId() {
+		return ID;
+	}
+
+	public String encode(JsonNode envelope) throws IOException {
+		return mapper.writeValueAsString(envelope);
+	}
+
+	public JsonNode decode(String body) throws IOException {
+		return mapper.readTree(body);
+	}
+
+	public JsonNode decode(InputStream body) throws IOException {
+		return mapper.readTree(body);
+	}
+}
@@ -0,0 +1,40 @@
+package com.bma.amazon.sqs.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * Turns a JSON-RPC envelope into an SQS message body and back. Bodies of
+ * codecs other than plain JSON start with "&lt;id&gt;:", so the receiver can
+ * pick the codec without knowing how the sender was configured, see
+ * {@link MessageCodecs}. Implementations must be thread safe.
+ */
+public interface MessageCodec {
+	/**
+	 * @return short name of the codec, written in front of encoded bodies
+	 */
+	String getId();
+
+	String encode(JsonNode envelope) throws IOException;
+
+	/**
+	 * @param body the whole message body, including the "&lt;id&gt;:" prefix
+	 */
+	JsonNode decode(String body) throws IOException;
+
+	/**
+	 * Decodes a body as it is read, e.g. from a blob store. Reads the whole
+	 * body into memory unless overridden.
+	 */
+	default JsonNode decode(InputStream body) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		for (int read; (read = body.read(chunk)) != -1;) {
+			buffer.write(chunk, 0, read);
+		}
+		return decode(new String(buffer.toByteArray(), "UTF-8"));
+	}
+}
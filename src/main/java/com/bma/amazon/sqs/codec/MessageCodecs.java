@@ -0,0 +1,94 @@
+package com.bma.amazon.sqs.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * Codecs known to a receiver. A body is decoded with the codec named by its
+ * "&lt;id&gt;:" prefix, or as plain JSON when it has none, so senders can
+ * switch codecs without coordinating with their receivers. JSON, gzip and
+ * Smile are known by default.
+ */
+public class MessageCodecs {
+	static final char SEPARATOR = ':';
+	private static final int MAX_ID_LENGTH = 16;
+
+	private final ConcurrentMap<String, MessageCodec> codecs = new ConcurrentHashMap<String, MessageCodec>();
+
+	public MessageCodecs() {
+		register(new JsonCodec());
+		register(new GzipCodec());
+		register(new SmileCodec());
+	}
+
+	/**
+	 * Adds a codec or replaces the one with the same id. The codec with id
+	 * {@link JsonCodec#ID} reads bodies without prefix.
+	 */
+	public void register(MessageCodec codec) {
+		codecs.put(codec.getId(), codec);
+	}
+
+	public MessageCodec get(String id) {
+		return codecs.get(id);
+	}
+
+	public JsonNode decode(String body) throws IOException {
+		String id = idOf(body);
+		MessageCodec codec = codecs.get(id == null ? JsonCodec.ID : id);
+		if (codec == null) {
+			throw new IOException("Unknown codec " + id);
+		}
+		return codec.decode(body);
+	}
+
+	/**
+	 * Same as {@link #decode(String)} for a body read from a stream.
+	 */
+	public JsonNode decode(InputStream body) throws IOException {
+		PushbackInputStream in = new PushbackInputStream(body, MAX_ID_LENGTH + 1);
+		byte[] head = new byte[MAX_ID_LENGTH + 1];
+		int length = 0;
+		for (int read; length < head.length && (read = in.read(head, length, head.length - length)) != -1;) {
+			length += read;
+		}
+		in.unread(head, 0, length);
+		String id = idOf(new String(head, 0, length, "ISO-8859-1"));
+		MessageCodec codec = codecs.get(id == null ? JsonCodec.ID : id);
+		if (codec == null) {
+			throw new IOException("Unknown codec " + id);
+		}
+		return codec.decode(in);
+	}
+
+	/**
+	 * @return true if the body has no prefix and is read by the standard
+	 *         {@link JsonCodec}, so a reader may parse it as JSON itself
+	 */
+	public boolean isPlainJson(String body) {
+		MessageCodec codec = codecs.get(JsonCodec.ID);
+		return idOf(body) == null && codec != null && codec.getClass() == JsonCodec.class;
+	}
+
+	/**
+	 * @return the codec prefix of the body, null for plain JSON
+	 */
+	static String idOf(String body) {
+		int end = Math.min(body.length(), MAX_ID_LENGTH + 1);
+		for (int i = 0; i < end; i++) {
+			char c = body.charAt(i);
+			if (c == SEPARATOR) {
+				return i == 0 ? null : body.substring(0, i);
+			}
+			if (!Character.isLetterOrDigit(c) && c != '-' && c != '+') {
+				return null;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,37 @@
+package com.bma.amazon.sqs.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.codehaus.jackson.smile.SmileGenerator;
+
+/**
+ * Smile, Jackson's binary JSON. Field names and repeated short strings are
+ * written once and referenced afterwards, which pays off for arrays of
+ * records; numbers are stored in binary.
+ */
+public class SmileCodec extends BinaryCodec {
+	public static final String ID = "smile";
+
+	private final ObjectMapper mapper;
+
+	public SmileCodec() {
+		super(ID);
+		SmileFactory factory = new SmileFactory();
+		factory.configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true);
+		this.mapper = new ObjectMapper(factory);
+	}
+
+	@Override
+	protected byte[] encodeBytes(JsonNode envelope) throws IOException {
+		return mapper.writeValueAsBytes(envelope);
+	}
+
+	@Override
+	protected JsonNode decodeStream(InputStream in) throws IOException {
+		return mapper.readTree(in);
+	}
+}
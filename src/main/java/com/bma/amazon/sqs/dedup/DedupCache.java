@@ -0,0 +1,320 @@
+package com.bma.amazon.sqs.dedup;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which requests were seen, so an at-least-once redelivery is not
+ * handled again, and optionally their responses, so it can be answered from
+ * the cache.
+ * <p>
+ * Keys are kept as 63 bit fingerprints in open addressing tables of primitive
+ * longs, 16 to 32 bytes per key remembered. Two keys with the same fingerprint
+ * are taken for the same, with a probability of about n&sup2; / 2<sup>64</sup>
+ * among n keys, e.g. 5e-8 for a million.
+ * <p>
+ * Every lock stripe keeps its keys in {@value #GENERATIONS} generations. A new
+ * generation is started when the current one is full or a slice of the TTL
+ * old, discarding the oldest one. A key is therefore remembered for about the
+ * TTL, or until capacity newer keys pushed it out.
+ */
+public class DedupCache {
+	public static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+	public static final int DEFAULT_CAPACITY = 256 * 1024;
+	static final int GENERATIONS = 4;
+	private static final int STRIPES = 16;
+	private static final long EMPTY = 0;
+	private static final long REMOVED = 1;
+	private static final long DONE = 1;
+
+	public enum State {
+		/** not seen before, it is in progress now */
+		NEW,
+		/** an earlier delivery is still being handled */
+		IN_PROGRESS,
+		/** handled before */
+		DONE
+	}
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final long sliceMillis;
+
+	public DedupCache() {
+		this(DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS, 0);
+	}
+
+	/**
+	 * The key tables are allocated here, 16 to 32 bytes per key of capacity:
+	 * 4 MB for {@link #DEFAULT_CAPACITY}, 64 MB for four million keys.
+	 *
+	 * @param capacity keys remembered at least, unless older than the TTL
+	 * @param ttlMillis how long a key is remembered at least, unless pushed
+	 *        out by capacity newer ones
+	 * @param maxResponses responses cached at most, 0 to cache none
+	 */
+	public DedupCache(int capacity, long ttlMillis, int maxResponses) {
+		this.sliceMillis = Math.max(1, ttlMillis / (GENERATIONS - 1));
+		int keysPerGeneration = Math.max(16, capacity / (STRIPES * (GENERATIONS - 1)) + 1);
+		int responsesPerGeneration = maxResponses == 0 ? 0 : Math.max(1, maxResponses / (STRIPES * (GENERATIONS - 1)));
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(keysPerGeneration, responsesPerGeneration, now);
+		}
+	}
+
+	/**
+	 * Marks the key in progress if it was not seen before.
+	 */
+	public State begin(String key) {
+		long fingerprint = fingerprint(key);
+		return stripe(fingerprint).begin(fingerprint, System.currentTimeMillis());
+	}
+
+	/**
+	 * Marks the key done, a later {@link #begin(String)} returns
+	 * {@link State#DONE}.
+	 *
+	 * @param response kept for {@link #getResponse(String)} if responses are
+	 *        cached, may be null
+	 */
+	public void complete(String key, String response) {
+		long fingerprint = fingerprint(key);
+		stripe(fingerprint).complete(fingerprint, response, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return the response of a done key, null if it was not cached (any more)
+	 */
+	public String getResponse(String key) {
+		long fingerprint = fingerprint(key);
+		return stripe(fingerprint).getResponse(fingerprint, System.currentTimeMillis());
+	}
+
+	/**
+	 * Forgets the key, e.g. because its response could not be sent and the
+	 * redelivery has to be handled again.
+	 */
+	public void remove(String key) {
+		long fingerprint = fingerprint(key);
+		stripe(fingerprint).remove(fingerprint, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return keys remembered
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size(System.currentTimeMillis());
+		}
+		return size;
+	}
+
+	/**
+	 * @return bytes of the key tables, cached responses not included
+	 */
+	public long getTableBytes() {
+		long bytes = 0;
+		for (Stripe stripe : stripes) {
+			bytes += stripe.tableBytes();
+		}
+		return bytes;
+	}
+
+	private Stripe stripe(long fingerprint) {
+		return stripes[(int) (fingerprint >>> 60)];
+	}
+
+	/**
+	 * @return a fingerprint with the lowest bit clear, which is neither
+	 *         {@link #EMPTY} nor {@link #REMOVED}
+	 */
+	static long fingerprint(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		h &= ~DONE;
+		return h == EMPTY ? 2 : h;
+	}
+
+	private class Stripe {
+		private final Generation[] generations = new Generation[GENERATIONS];
+		private int current;
+
+		Stripe(int keysPerGeneration, int responsesPerGeneration, long now) {
+			for (int i = 0; i < GENERATIONS; i++) {
+				generations[i] = new Generation(keysPerGeneration, responsesPerGeneration, now);
+			}
+		}
+
+		synchronized State begin(long fingerprint, long now) {
+			rotate(now);
+			for (int i = 0; i < GENERATIONS; i++) {
+				Generation generation = generations[(current - i + GENERATIONS) % GENERATIONS];
+				int slot = generation.find(fingerprint);
+				if (slot >= 0) {
+					return (generation.slots[slot] & DONE) != 0 ? State.DONE : State.IN_PROGRESS;
+				}
+			}
+			if (generations[current].isFull()) {
+				next(now);
+			}
+			generations[current].insert(fingerprint);
+			return State.NEW;
+		}
+
+		synchronized void complete(long fingerprint, String response, long now) {
+			rotate(now);
+			for (int i = 0; i < GENERATIONS; i++) {
+				Generation generation = generations[(current - i + GENERATIONS) % GENERATIONS];
+				int slot = generation.find(fingerprint);
+				if (slot >= 0) {
+					generation.slots[slot] |= DONE;
+					if (response != null) {
+						generation.putResponse(fingerprint, response);
+					}
+					return;
+				}
+			}
+		}
+
+		synchronized String getResponse(long fingerprint, long now) {
+			rotate(now);
+			for (Generation generation : generations) {
+				if (generation.responses != null) {
+					String response = generation.responses.get(fingerprint);
+					if (response != null) {
+						return response;
+					}
+				}
+			}
+			return null;
+		}
+
+		synchronized void remove(long fingerprint, long now) {
+			rotate(now);
+			for (Generation generation : generations) {
+				generation.remove(fingerprint);
+			}
+		}
+
+		synchronized int size(long now) {
+			rotate(now);
+			int size = 0;
+			for (Generation generation : generations) {
+				size += generation.keys;
+			}
+			return size;
+		}
+
+		long tableBytes() {
+			return GENERATIONS * 8L * generations[0].slots.length;
+		}
+
+		/**
+		 * Starts the generations due by now, all of them after a long pause.
+		 */
+		private void rotate(long now) {
+			long due = Math.min(GENERATIONS, (now - generations[current].startMillis) / sliceMillis);
+			for (int i = 0; i < due; i++) {
+				next(now);
+			}
+		}
+
+		private void next(long now) {
+			current = (current + 1) % GENERATIONS;
+			generations[current].clear(now);
+		}
+	}
+
+	private static class Generation {
+		final long[] slots;
+		final int maxKeys;
+		final int maxResponses;
+		final int mask;
+		HashMap<Long, String> responses;
+		long startMillis;
+		/** slots in use, removed ones included */
+		int used;
+		int keys;
+
+		Generation(int maxKeys, int maxResponses, long now) {
+			// a load factor of 3/4 at most
+			int length = Integer.highestOneBit(maxKeys * 4 / 3) << 1;
+			this.slots = new long[length];
+			this.mask = length - 1;
+			this.maxKeys = maxKeys;
+			this.maxResponses = maxResponses;
+			this.startMillis = now;
+		}
+
+		boolean isFull() {
+			return used >= maxKeys;
+		}
+
+		int find(long fingerprint) {
+			for (int i = index(fingerprint);; i = (i + 1) & mask) {
+				long slot = slots[i];
+				if (slot == EMPTY) {
+					return -1;
+				}
+				if ((slot & ~DONE) == fingerprint) {
+					return i;
+				}
+			}
+		}
+
+		void insert(long fingerprint) {
+			int i = index(fingerprint);
+			while (slots[i] != EMPTY) {
+				i = (i + 1) & mask;
+			}
+			slots[i] = fingerprint;
+			used++;
+			keys++;
+		}
+
+		void remove(long fingerprint) {
+			int slot = find(fingerprint);
+			if (slot >= 0) {
+				slots[slot] = REMOVED;
+				keys--;
+				if (responses != null) {
+					responses.remove(fingerprint);
+				}
+			}
+		}
+
+		void putResponse(long fingerprint, String response) {
+			if (maxResponses == 0) {
+				return;
+			}
+			if (responses == null) {
+				responses = new HashMap<Long, String>();
+			}
+			if (responses.size() < maxResponses) {
+				responses.put(fingerprint, response);
+			}
+		}
+
+		void clear(long now) {
+			Arrays.fill(slots, EMPTY);
+			responses = null;
+			used = 0;
+			keys = 0;
+			startMillis = now;
+		}
+
+		private int index(long fingerprint) {
+			return (int) (fingerprint >>> 1) & mask;
+		}
+	}
+}
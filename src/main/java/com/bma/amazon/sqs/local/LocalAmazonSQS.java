@@ -0,0 +1,429 @@
+package com.bma.amazon.sqs.local;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ResponseMetadata;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AddPermissionRequest;
+import com.amazonaws.services.sqs.model.BatchEntryIdsNotDistinctException;
+import com.amazonaws.services.sqs.model.BatchRequestTooLongException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.EmptyBatchRequestException;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.ListQueuesRequest;
+import com.amazonaws.services.sqs.model.ListQueuesResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.RemovePermissionRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.TooManyEntriesInBatchRequestException;
+
+/**
+ * In-memory {@link AmazonSQS} for tests and benchmarks which have to run
+ * without AWS. Supports queue management, single and batched send, receive
+ * with long polling, visibility timeouts and single and batched delete.
+ * <p>
+ * Latency and failures of the real service can be simulated: every call is
+ * delayed by {@link #setLatency(long, long)}, and with
+ * {@link #setErrorRate(double)} / {@link #setThrottleRate(double)} calls fail
+ * with a 500 or a throttling error. Batch calls fail per entry instead.
+ */
+public class LocalAmazonSQS implements AmazonSQS {
+	public static final String DEFAULT_ENDPOINT = "sqs.local";
+	private static final String ACCOUNT = "000000000000";
+	private static final int MAX_BATCH_ENTRIES = 10;
+
+	private final ConcurrentMap<String, LocalQueue> queues = new ConcurrentHashMap<String, LocalQueue>();
+	private final ConcurrentMap<String, AtomicLong> apiCalls = new ConcurrentHashMap<String, AtomicLong>();
+	private final Random random = new Random();
+	private volatile String endpoint = DEFAULT_ENDPOINT;
+	private volatile long latencyMillis;
+	private volatile long latencyJitterMillis;
+	private volatile double errorRate;
+	private volatile double throttleRate;
+
+	public LocalAmazonSQS() {
+	}
+
+	public LocalAmazonSQS(String endpoint) {
+		setEndpoint(endpoint);
+	}
+
+	/**
+	 * Every call sleeps for latency plus a random part of up to jitter.
+	 */
+	public void setLatency(long latencyMillis, long jitterMillis) {
+		this.latencyMillis = latencyMillis;
+		this.latencyJitterMillis = jitterMillis;
+	}
+
+	/**
+	 * Share of calls (or batch entries) failing with an internal error, 0..1.
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * Share of calls rejected with a throttling error, 0..1.
+	 */
+	public void setThrottleRate(double throttleRate) {
+		this.throttleRate = throttleRate;
+	}
+
+	/**
+	 * @return number of calls of the given operation, e.g. "SendMessageBatch"
+	 */
+	public long getApiCallCount(String operation) {
+		AtomicLong count = apiCalls.get(operation);
+		return count == null ? 0 : count.get();
+	}
+
+	public long getApiCallCount() {
+		long sum = 0;
+		for (AtomicLong count : apiCalls.values()) {
+			sum += count.get();
+		}
+		return sum;
+	}
+
+	/**
+	 * @return number of messages in the queue, visible or not
+	 */
+	public int getQueueSize(String queueUrl) {
+		return queue(queueUrl).size();
+	}
+
+	public void setEndpoint(String endpoint) throws IllegalArgumentException {
+		this.endpoint = endpoint.replaceFirst("^https?://", "");
+	}
+
+	public CreateQueueResult createQueue(CreateQueueRequest request) {
+		call("CreateQueue");
+		String url = urlOf(request.getQueueName());
+		LocalQueue queue = new LocalQueue(request.getQueueName(), url);
+		LocalQueue existing = queues.putIfAbsent(url, queue);
+		(existing != null ? existing : queue).setAttributes(request.getAttributes());
+		return new CreateQueueResult().withQueueUrl(url);
+	}
+
+	public GetQueueUrlResult getQueueUrl(GetQueueUrlRequest request) {
+		call("GetQueueUrl");
+		return new GetQueueUrlResult().withQueueUrl(queue(urlOf(request.getQueueName())).getUrl());
+	}
+
+	public ListQueuesResult listQueues() {
+		return listQueues(new ListQueuesRequest());
+	}
+
+	public ListQueuesResult listQueues(ListQueuesRequest request) {
+		call("ListQueues");
+		List<String> urls = new ArrayList<String>();
+		for (LocalQueue queue : queues.values()) {
+			if (request.getQueueNamePrefix() == null || queue.getName().startsWith(request.getQueueNamePrefix())) {
+				urls.add(queue.getUrl());
+			}
+		}
+		return new ListQueuesResult().withQueueUrls(urls);
+	}
+
+	public void deleteQueue(DeleteQueueRequest request) {
+		call("DeleteQueue");
+		LocalQueue queue = queues.remove(request.getQueueUrl());
+		if (queue == null) {
+			throw queueDoesNotExist(request.getQueueUrl());
+		}
+		queue.close();
+	}
+
+	public GetQueueAttributesResult getQueueAttributes(GetQueueAttributesRequest request) {
+		call("GetQueueAttributes");
+		Map<String, String> attributes = queue(request.getQueueUrl()).getAttributes();
+		List<String> names = request.getAttributeNames();
+		if (names != null && !names.isEmpty() && !names.contains(LocalMessage.ALL)) {
+			attributes.keySet().retainAll(names);
+		}
+		return new GetQueueAttributesResult().withAttributes(attributes);
+	}
+
+	public void setQueueAttributes(SetQueueAttributesRequest request) {
+		call("SetQueueAttributes");
+		queue(request.getQueueUrl()).setAttributes(request.getAttributes());
+	}
+
+	public SendMessageResult sendMessage(SendMessageRequest request) {
+		call("SendMessage");
+		LocalQueue queue = queue(request.getQueueUrl());
+		checkMessageSize(queue, request.getMessageBody());
+		LocalMessage message = queue.send(request.getMessageBody(), request.getDelaySeconds());
+		return new SendMessageResult().withMessageId(message.messageId);
+	}
+
+	public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+		call("SendMessageBatch");
+		LocalQueue queue = queue(request.getQueueUrl());
+		List<SendMessageBatchRequestEntry> entries = request.getEntries();
+		Set<String> ids = new HashSet<String>();
+		long batchSize = 0;
+		for (SendMessageBatchRequestEntry entry : entries) {
+			ids.add(entry.getId());
+			batchSize += entry.getMessageBody().length();
+		}
+		checkBatch(entries.size(), ids.size());
+		if (batchSize > queue.getMaximumMessageSize()) {
+			throw serviceException(new BatchRequestTooLongException("Batch requests cannot be longer than "
+					+ queue.getMaximumMessageSize() + " bytes"), "AWS.SimpleQueueService.BatchRequestTooLong", 400);
+		}
+
+		List<SendMessageBatchResultEntry> successful = new ArrayList<SendMessageBatchResultEntry>();
+		List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+		for (SendMessageBatchRequestEntry entry : entries) {
+			if (failEntry()) {
+				failed.add(internalError(entry.getId()));
+				continue;
+			}
+			LocalMessage message = queue.send(entry.getMessageBody(), entry.getDelaySeconds());
+			successful.add(new SendMessageBatchResultEntry().withId(entry.getId()).withMessageId(message.messageId));
+		}
+		return new SendMessageBatchResult().withSuccessful(successful).withFailed(failed);
+	}
+
+	public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+		call("ReceiveMessage");
+		LocalQueue queue = queue(request.getQueueUrl());
+		int maxMessages = request.getMaxNumberOfMessages() != null ? request.getMaxNumberOfMessages() : 1;
+		int waitSeconds = request.getWaitTimeSeconds() != null ? request.getWaitTimeSeconds()
+				: queue.getReceiveMessageWaitTimeSeconds();
+		try {
+			List<Message> messages = queue.receive(maxMessages, TimeUnit.SECONDS.toMillis(waitSeconds),
+					request.getVisibilityTimeout(), request.getAttributeNames());
+			return new ReceiveMessageResult().withMessages(messages);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Receive was interrupted", e);
+		}
+	}
+
+	public void deleteMessage(DeleteMessageRequest request) {
+		call("DeleteMessage");
+		queue(request.getQueueUrl()).delete(request.getReceiptHandle());
+	}
+
+	public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+		call("DeleteMessageBatch");
+		LocalQueue queue = queue(request.getQueueUrl());
+		List<DeleteMessageBatchRequestEntry> entries = request.getEntries();
+		Set<String> ids = new HashSet<String>();
+		for (DeleteMessageBatchRequestEntry entry : entries) {
+			ids.add(entry.getId());
+		}
+		checkBatch(entries.size(), ids.size());
+
+		List<DeleteMessageBatchResultEntry> successful = new ArrayList<DeleteMessageBatchResultEntry>();
+		List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+		for (DeleteMessageBatchRequestEntry entry : entries) {
+			if (failEntry()) {
+				failed.add(internalError(entry.getId()));
+				continue;
+			}
+			queue.delete(entry.getReceiptHandle());
+			successful.add(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+		}
+		return new DeleteMessageBatchResult().withSuccessful(successful).withFailed(failed);
+	}
+
+	public void changeMessageVisibility(ChangeMessageVisibilityRequest request) {
+		call("ChangeMessageVisibility");
+		if (!queue(request.getQueueUrl()).changeVisibility(request.getReceiptHandle(), request.getVisibilityTimeout())) {
+			throw serviceException(new ReceiptHandleIsInvalidException("Message is not in flight: "
+					+ request.getReceiptHandle()), "MessageNotInflight", 400);
+		}
+	}
+
+	public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(ChangeMessageVisibilityBatchRequest request) {
+		call("ChangeMessageVisibilityBatch");
+		LocalQueue queue = queue(request.getQueueUrl());
+		List<ChangeMessageVisibilityBatchRequestEntry> entries = request.getEntries();
+		Set<String> ids = new HashSet<String>();
+		for (ChangeMessageVisibilityBatchRequestEntry entry : entries) {
+			ids.add(entry.getId());
+		}
+		checkBatch(entries.size(), ids.size());
+
+		List<ChangeMessageVisibilityBatchResultEntry> successful = new ArrayList<ChangeMessageVisibilityBatchResultEntry>();
+		List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+		for (ChangeMessageVisibilityBatchRequestEntry entry : entries) {
+			if (failEntry()) {
+				failed.add(internalError(entry.getId()));
+			} else if (queue.changeVisibility(entry.getReceiptHandle(), entry.getVisibilityTimeout())) {
+				successful.add(new ChangeMessageVisibilityBatchResultEntry().withId(entry.getId()));
+			} else {
+				failed.add(new BatchResultErrorEntry().withId(entry.getId()).withSenderFault(true)
+						.withCode("MessageNotInflight").withMessage("Message is not in flight"));
+			}
+		}
+		return new ChangeMessageVisibilityBatchResult().withSuccessful(successful).withFailed(failed);
+	}
+
+	public void addPermission(AddPermissionRequest request) {
+		call("AddPermission");
+	}
+
+	public void removePermission(RemovePermissionRequest request) {
+		call("RemovePermission");
+	}
+
+	public void shutdown() {
+	}
+
+	public ResponseMetadata getCachedResponseMetadata(AmazonWebServiceRequest request) {
+		return null;
+	}
+
+	private String urlOf(String queueName) {
+		return "https://" + endpoint + "/" + ACCOUNT + "/" + queueName;
+	}
+
+	private LocalQueue queue(String url) {
+		LocalQueue queue = url == null ? null : queues.get(url);
+		if (queue == null) {
+			throw queueDoesNotExist(url);
+		}
+		return queue;
+	}
+
+	private void call(String operation) {
+		AtomicLong count = apiCalls.get(operation);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = apiCalls.putIfAbsent(operation, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+		simulateLatency();
+		if (throttleRate > 0 && nextDouble() < throttleRate) {
+			throw serviceException(new AmazonServiceException("Rate exceeded for " + operation), "RequestThrottled", 400);
+		}
+		if (errorRate > 0 && nextDouble() < errorRate) {
+			throw serviceException(new AmazonServiceException("We encountered an internal error. Please try again."),
+					"InternalError", 500);
+		}
+	}
+
+	/**
+	 * Sleeps for the simulated latency of a call.
+	 */
+	protected void simulateLatency() {
+		long delay = nextLatency();
+		if (delay <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Call was interrupted", e);
+		}
+	}
+
+	/**
+	 * @return latency of the next call in milliseconds
+	 */
+	protected long nextLatency() {
+		long delay = latencyMillis;
+		if (latencyJitterMillis > 0) {
+			delay += (long) (nextDouble() * latencyJitterMillis);
+		}
+		return delay;
+	}
+
+	private boolean failEntry() {
+		return errorRate > 0 && nextDouble() < errorRate;
+	}
+
+	private double nextDouble() {
+		synchronized (random) {
+			return random.nextDouble();
+		}
+	}
+
+	private void checkMessageSize(LocalQueue queue, String body) {
+		if (body.length() > queue.getMaximumMessageSize()) {
+			throw serviceException(new AmazonServiceException("Message must be shorter than "
+					+ queue.getMaximumMessageSize() + " bytes"), "InvalidParameterValue", 400);
+		}
+	}
+
+	private static void checkBatch(int entries, int distinctIds) {
+		if (entries == 0) {
+			throw serviceException(new EmptyBatchRequestException("There should be at least one entry in the request"),
+					"AWS.SimpleQueueService.EmptyBatchRequest", 400);
+		}
+		if (entries > MAX_BATCH_ENTRIES) {
+			throw serviceException(new TooManyEntriesInBatchRequestException("Maximum number of entries per request are "
+					+ MAX_BATCH_ENTRIES), "AWS.SimpleQueueService.TooManyEntriesInBatchRequest", 400);
+		}
+		if (distinctIds != entries) {
+			throw serviceException(new BatchEntryIdsNotDistinctException("Batch entry ids must be distinct"),
+					"AWS.SimpleQueueService.BatchEntryIdsNotDistinct", 400);
+		}
+	}
+
+	private static BatchResultErrorEntry internalError(String id) {
+		return new BatchResultErrorEntry().withId(id).withSenderFault(false).withCode("InternalError")
+				.withMessage("We encountered an internal error. Please try again.");
+	}
+
+	private static AmazonServiceException queueDoesNotExist(String url) {
+		return serviceException(new QueueDoesNotExistException("The specified queue does not exist: " + url),
+				"AWS.SimpleQueueService.NonExistentQueue", 400);
+	}
+
+	private static AmazonServiceException serviceException(AmazonServiceException e, String code, int status) {
+		e.setServiceName("AmazonSQS");
+		e.setErrorCode(code);
+		e.setStatusCode(status);
+		e.setErrorType(status >= 500 ? ErrorType.Service : ErrorType.Client);
+		return e;
+	}
+}
@@ -0,0 +1,85 @@
+package com.bma.amazon.sqs.local;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.bma.amazon.sqs.transport.AsyncSqs;
+import com.bma.amazon.sqs.transport.DaemonThreadFactory;
+
+/**
+ * {@link LocalAmazonSQS} with non-blocking batch calls. The simulated
+ * latency of an async call is a timer instead of a sleeping thread, which
+ * is how a non-blocking HTTP client behaves: a few threads serve any number
+ * of calls in flight. Blocking calls still sleep.
+ */
+public class LocalAmazonSQSAsync extends LocalAmazonSQS implements AsyncSqs {
+	public static final int DEFAULT_THREADS = 2;
+
+	private final ScheduledExecutorService timer;
+	private final ThreadLocal<Boolean> completing = new ThreadLocal<Boolean>();
+
+	public LocalAmazonSQSAsync(String endpoint) {
+		this(endpoint, DEFAULT_THREADS);
+	}
+
+	/**
+	 * @param threads run the completions of all calls
+	 */
+	public LocalAmazonSQSAsync(String endpoint, int threads) {
+		super(endpoint);
+		this.timer = new ScheduledThreadPoolExecutor(threads, new DaemonThreadFactory("local-sqs-async"));
+	}
+
+	public CompletableFuture<SendMessageBatchResult> sendMessageBatchAsync(final SendMessageBatchRequest request) {
+		return later(() -> sendMessageBatch(request));
+	}
+
+	public CompletableFuture<DeleteMessageBatchResult> deleteMessageBatchAsync(final DeleteMessageBatchRequest request) {
+		return later(() -> deleteMessageBatch(request));
+	}
+
+	public CompletableFuture<ChangeMessageVisibilityBatchResult> changeMessageVisibilityBatchAsync(
+			final ChangeMessageVisibilityBatchRequest request) {
+		return later(() -> changeMessageVisibilityBatch(request));
+	}
+
+	@Override
+	protected void simulateLatency() {
+		if (completing.get() == null) {
+			super.simulateLatency();
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		timer.shutdownNow();
+		super.shutdown();
+	}
+
+	private <R> CompletableFuture<R> later(final Supplier<R> call) {
+		final CompletableFuture<R> result = new CompletableFuture<R>();
+		timer.schedule(() -> {
+			R value;
+			completing.set(Boolean.TRUE);
+			try {
+				value = call.get();
+			} catch (RuntimeException e) {
+				result.completeExceptionally(e);
+				return;
+			} finally {
+				completing.remove();
+			}
+			result.complete(value);
+		}, Math.max(0, nextLatency()), TimeUnit.MILLISECONDS);
+		return result;
+	}
+}
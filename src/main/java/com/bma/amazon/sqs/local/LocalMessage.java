@@ -0,0 +1,58 @@
+package com.bma.amazon.sqs.local;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * A message stored in a {@link LocalQueue}. Guarded by the queue lock.
+ */
+class LocalMessage {
+	static final String ALL = "All";
+	static final String SENDER_ID = "SenderId";
+	static final String SENT_TIMESTAMP = "SentTimestamp";
+	static final String APPROXIMATE_RECEIVE_COUNT = "ApproximateReceiveCount";
+	static final String APPROXIMATE_FIRST_RECEIVE_TIMESTAMP = "ApproximateFirstReceiveTimestamp";
+
+	final String messageId;
+	final String body;
+	final long sentTimestamp = System.currentTimeMillis();
+	String receiptHandle;
+	int receiveCount;
+	long firstReceived;
+	int generation;
+	boolean delayed;
+	boolean deleted;
+
+	LocalMessage(String messageId, String body) {
+		this.messageId = messageId;
+		this.body = body;
+	}
+
+	Message toMessage(List<String> attributeNames) {
+		Message message = new Message();
+		message.setMessageId(messageId);
+		message.setReceiptHandle(receiptHandle);
+		message.setBody(body);
+		if (attributeNames != null && !attributeNames.isEmpty()) {
+			Map<String, String> attributes = new HashMap<String, String>();
+			boolean all = attributeNames.contains(ALL);
+			if (all || attributeNames.contains(SENDER_ID)) {
+				attributes.put(SENDER_ID, "000000000000");
+			}
+			if (all || attributeNames.contains(SENT_TIMESTAMP)) {
+				attributes.put(SENT_TIMESTAMP, String.valueOf(sentTimestamp));
+			}
+			if (all || attributeNames.contains(APPROXIMATE_RECEIVE_COUNT)) {
+				attributes.put(APPROXIMATE_RECEIVE_COUNT, String.valueOf(receiveCount));
+			}
+			if (all || attributeNames.contains(APPROXIMATE_FIRST_RECEIVE_TIMESTAMP)) {
+				attributes.put(APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, String.valueOf(firstReceived));
+			}
+			message.setAttributes(attributes);
+		}
+		return message;
+	}
+}
@@ -0,0 +1,283 @@
+package com.bma.amazon.sqs.local;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+
+/**
+ * State of a single in-memory queue. Messages which are delayed or in flight
+ * wait in a schedule ordered by the time they become visible again, so
+ * visibility timeouts expire without a background thread.
+ */
+class LocalQueue {
+	static final int DEFAULT_VISIBILITY_TIMEOUT = 30;
+	static final int DEFAULT_MAXIMUM_MESSAGE_SIZE = 262144;
+	static final int DEFAULT_MESSAGE_RETENTION_PERIOD = 345600;
+
+	private final String name;
+	private final String url;
+	private final long createdTimestamp = System.currentTimeMillis();
+	private volatile long lastModifiedTimestamp = createdTimestamp;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition visibleAvailable = lock.newCondition();
+	private final ArrayDeque<LocalMessage> visible = new ArrayDeque<LocalMessage>();
+	private final PriorityQueue<Schedule> invisible = new PriorityQueue<Schedule>();
+	private final HashMap<String, LocalMessage> inFlight = new HashMap<String, LocalMessage>();
+	private int delayed;
+
+	private volatile int visibilityTimeout = DEFAULT_VISIBILITY_TIMEOUT;
+	private volatile int delaySeconds;
+	private volatile int maximumMessageSize = DEFAULT_MAXIMUM_MESSAGE_SIZE;
+	private volatile int receiveMessageWaitTimeSeconds;
+	private volatile int messageRetentionPeriod = DEFAULT_MESSAGE_RETENTION_PERIOD;
+
+	LocalQueue(String name, String url) {
+		this.name = name;
+		this.url = url;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	String getUrl() {
+		return url;
+	}
+
+	int getMaximumMessageSize() {
+		return maximumMessageSize;
+	}
+
+	int getReceiveMessageWaitTimeSeconds() {
+		return receiveMessageWaitTimeSeconds;
+	}
+
+	void setAttributes(Map<String, String> attributes) {
+		if (attributes == null) {
+			return;
+		}
+		for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+			int value = Integer.parseInt(attribute.getValue());
+			switch (QueueAttributeName.fromValue(attribute.getKey())) {
+			case VisibilityTimeout:
+				visibilityTimeout = value;
+				break;
+			case DelaySeconds:
+				delaySeconds = value;
+				break;
+			case MaximumMessageSize:
+				maximumMessageSize = value;
+				break;
+			case ReceiveMessageWaitTimeSeconds:
+				receiveMessageWaitTimeSeconds = value;
+				break;
+			case MessageRetentionPeriod:
+				// messages are not expired, only reported
+				messageRetentionPeriod = value;
+				break;
+			default:
+				// the rest is accepted but has no effect on the local queue
+			}
+		}
+		lastModifiedTimestamp = System.currentTimeMillis();
+	}
+
+	Map<String, String> getAttributes() {
+		Map<String, String> attributes = new HashMap<String, String>();
+		lock.lock();
+		try {
+			promote(now());
+			attributes.put(QueueAttributeName.ApproximateNumberOfMessages.toString(), String.valueOf(visible.size()));
+			attributes.put(QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString(),
+					String.valueOf(inFlight.size()));
+			attributes.put(QueueAttributeName.ApproximateNumberOfMessagesDelayed.toString(), String.valueOf(delayed));
+		} finally {
+			lock.unlock();
+		}
+		attributes.put(QueueAttributeName.VisibilityTimeout.toString(), String.valueOf(visibilityTimeout));
+		attributes.put(QueueAttributeName.DelaySeconds.toString(), String.valueOf(delaySeconds));
+		attributes.put(QueueAttributeName.MaximumMessageSize.toString(), String.valueOf(maximumMessageSize));
+		attributes.put(QueueAttributeName.ReceiveMessageWaitTimeSeconds.toString(),
+				String.valueOf(receiveMessageWaitTimeSeconds));
+		attributes.put(QueueAttributeName.MessageRetentionPeriod.toString(), String.valueOf(messageRetentionPeriod));
+		attributes.put(QueueAttributeName.CreatedTimestamp.toString(), String.valueOf(createdTimestamp / 1000));
+		attributes.put(QueueAttributeName.LastModifiedTimestamp.toString(),
+				String.valueOf(lastModifiedTimestamp / 1000));
+		attributes.put(QueueAttributeName.QueueArn.toString(), "arn:aws:sqs:local:000000000000:" + name);
+		return attributes;
+	}
+
+	LocalMessage send(String body, Integer delay) {
+		LocalMessage message = new LocalMessage(UUID.randomUUID().toString(), body);
+		int delayMillis = (delay != null ? delay : delaySeconds) * 1000;
+		lock.lock();
+		try {
+			if (delayMillis > 0) {
+				delayed++;
+				message.delayed = true;
+				invisible.add(new Schedule(message, now() + delayMillis));
+			} else {
+				visible.add(message);
+				visibleAvailable.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return message;
+	}
+
+	List<Message> receive(int maxMessages, long waitMillis, Integer visibility, List<String> attributeNames)
+			throws InterruptedException {
+		long visibilityMillis = (visibility != null ? visibility : visibilityTimeout) * 1000L;
+		List<Message> received = new ArrayList<Message>(maxMessages);
+		lock.lockInterruptibly();
+		try {
+			long now = now();
+			long deadline = now + waitMillis;
+			promote(now);
+			while (visible.isEmpty() && now < deadline) {
+				long waitFor = deadline - now;
+				Schedule next = invisible.peek();
+				if (next != null) {
+					waitFor = Math.max(1, Math.min(waitFor, next.visibleAt - now));
+				}
+				visibleAvailable.await(waitFor, TimeUnit.MILLISECONDS);
+				now = now();
+				promote(now);
+			}
+			while (received.size() < maxMessages && !visible.isEmpty()) {
+				LocalMessage message = visible.poll();
+				message.receiptHandle = UUID.randomUUID().toString();
+				message.receiveCount++;
+				if (message.firstReceived == 0) {
+					message.firstReceived = System.currentTimeMillis();
+				}
+				inFlight.put(message.receiptHandle, message);
+				schedule(message, now + visibilityMillis);
+				received.add(message.toMessage(attributeNames));
+			}
+			if (!visible.isEmpty()) {
+				visibleAvailable.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return received;
+	}
+
+	/**
+	 * @return false if the receipt handle does not belong to an in-flight
+	 *         message
+	 */
+	boolean delete(String receiptHandle) {
+		lock.lock();
+		try {
+			LocalMessage message = inFlight.remove(receiptHandle);
+			if (message == null) {
+				return false;
+			}
+			message.deleted = true;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean changeVisibility(String receiptHandle, int visibilityTimeoutSeconds) {
+		lock.lock();
+		try {
+			LocalMessage message = inFlight.get(receiptHandle);
+			if (message == null) {
+				return false;
+			}
+			long now = now();
+			schedule(message, now + visibilityTimeoutSeconds * 1000L);
+			if (visibilityTimeoutSeconds == 0) {
+				promote(now);
+				visibleAvailable.signal();
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int size() {
+		lock.lock();
+		try {
+			return visible.size() + inFlight.size() + delayed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes up pollers waiting on a queue which is being deleted.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			visible.clear();
+			invisible.clear();
+			inFlight.clear();
+			visibleAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void schedule(LocalMessage message, long visibleAt) {
+		message.generation++;
+		invisible.add(new Schedule(message, visibleAt));
+	}
+
+	private void promote(long now) {
+		Schedule next;
+		while ((next = invisible.peek()) != null && next.visibleAt <= now) {
+			invisible.poll();
+			LocalMessage message = next.message;
+			if (message.deleted || next.generation != message.generation) {
+				continue;
+			}
+			if (message.delayed) {
+				message.delayed = false;
+				delayed--;
+			} else {
+				inFlight.remove(message.receiptHandle);
+				message.receiptHandle = null;
+			}
+			visible.add(message);
+		}
+	}
+
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	private static class Schedule implements Comparable<Schedule> {
+		final LocalMessage message;
+		final long visibleAt;
+		final int generation;
+
+		Schedule(LocalMessage message, long visibleAt) {
+			this.message = message;
+			this.visibleAt = visibleAt;
+			this.generation = message.generation;
+		}
+
+		public int compareTo(Schedule o) {
+			return visibleAt < o.visibleAt ? -1 : (visibleAt == o.visibleAt ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package com.bma.amazon.sqs.metrics;
+
+/**
+ * Monotonic event counter.
+ */
+public interface Counter {
+
+	void increment();
+
+	void add(long delta);
+
+	long count();
+}
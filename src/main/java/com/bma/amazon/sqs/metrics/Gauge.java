@@ -0,0 +1,10 @@
+package com.bma.amazon.sqs.metrics;
+
+/**
+ * Current value of something, e.g. calls in flight, read when the metrics
+ * are reported.
+ */
+public interface Gauge {
+
+	long value();
+}
@@ -0,0 +1,125 @@
+package com.bma.amazon.sqs.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps timers as HdrHistograms and counters as {@link LongAdder}s in
+ * memory.
+ */
+public class HdrMetricsRegistry implements MetricsRegistry {
+	private final ConcurrentMap<String, HdrTimer> timers = new ConcurrentHashMap<String, HdrTimer>();
+	private final ConcurrentMap<String, AdderCounter> counters = new ConcurrentHashMap<String, AdderCounter>();
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+	public HdrTimer timer(String name) {
+		HdrTimer timer = timers.get(name);
+		if (timer == null) {
+			HdrTimer created = new HdrTimer(name);
+			timer = timers.putIfAbsent(name, created);
+			if (timer == null) {
+				timer = created;
+				registered(name, created);
+			}
+		}
+		return timer;
+	}
+
+	public Counter counter(String name) {
+		AdderCounter counter = counters.get(name);
+		if (counter == null) {
+			AdderCounter created = new AdderCounter();
+			counter = counters.putIfAbsent(name, created);
+			if (counter == null) {
+				counter = created;
+				registered(name, created);
+			}
+		}
+		return counter;
+	}
+
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+		registered(name, gauge);
+	}
+
+	/**
+	 * Called once for every new metric.
+	 *
+	 * @param metric {@link HdrTimer}, {@link Counter} or {@link Gauge}
+	 */
+	protected void registered(String name, Object metric) {
+	}
+
+	public Map<String, TimerSnapshot> timers() {
+		Map<String, TimerSnapshot> snapshots = new TreeMap<String, TimerSnapshot>();
+		for (HdrTimer timer : timers.values()) {
+			snapshots.put(timer.getName(), timer.snapshot());
+		}
+		return snapshots;
+	}
+
+	/**
+	 * @return counters and current gauge values
+	 */
+	public Map<String, Long> values() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, AdderCounter> counter : counters.entrySet()) {
+			values.put(counter.getKey(), counter.getValue().count());
+		}
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+			values.put(gauge.getKey(), gauge.getValue().value());
+		}
+		return values;
+	}
+
+	public void reset() {
+		for (HdrTimer timer : timers.values()) {
+			timer.reset();
+		}
+		for (AdderCounter counter : counters.values()) {
+			counter.reset();
+		}
+	}
+
+	/**
+	 * One line per metric, handy for tests and benchmarks.
+	 */
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		for (Map.Entry<String, TimerSnapshot> timer : timers().entrySet()) {
+			report.append(timer.getKey()).append(": ").append(timer.getValue()).append('\n');
+		}
+		for (Map.Entry<String, Long> value : values().entrySet()) {
+			report.append(value.getKey()).append(": ").append(value.getValue()).append('\n');
+		}
+		return report.toString();
+	}
+
+	static class AdderCounter implements Counter, ValueMXBean {
+		private final LongAdder adder = new LongAdder();
+
+		public void increment() {
+			adder.increment();
+		}
+
+		public void add(long delta) {
+			adder.add(delta);
+		}
+
+		public long count() {
+			return adder.sum();
+		}
+
+		public long getValue() {
+			return adder.sum();
+		}
+
+		void reset() {
+			adder.reset();
+		}
+	}
+}
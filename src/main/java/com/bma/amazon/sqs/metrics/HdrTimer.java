@@ -0,0 +1,74 @@
+package com.bma.amazon.sqs.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Timer backed by an HdrHistogram {@link Recorder}: recording is wait-free,
+ * snapshots fold the recorded interval into a cumulative histogram.
+ */
+public class HdrTimer implements Timer, TimerMXBean {
+	private static final int SIGNIFICANT_DIGITS = 3;
+
+	private final String name;
+	private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+	private final Histogram total = new Histogram(SIGNIFICANT_DIGITS);
+	private Histogram interval;
+
+	public HdrTimer(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void record(long nanos) {
+		recorder.recordValue(Math.max(0, nanos));
+	}
+
+	public synchronized TimerSnapshot snapshot() {
+		interval = recorder.getIntervalHistogram(interval);
+		total.add(interval);
+		return new TimerSnapshot(total);
+	}
+
+	/**
+	 * @return copy of all values recorded so far, e.g. to write an HDR log
+	 */
+	public synchronized Histogram histogram() {
+		interval = recorder.getIntervalHistogram(interval);
+		total.add(interval);
+		return total.copy();
+	}
+
+	public synchronized void reset() {
+		recorder.reset();
+		total.reset();
+	}
+
+	public long getCount() {
+		return snapshot().getCount();
+	}
+
+	public long getP50Micros() {
+		return snapshot().getP50() / 1000;
+	}
+
+	public long getP99Micros() {
+		return snapshot().getP99() / 1000;
+	}
+
+	public long getP999Micros() {
+		return snapshot().getP999() / 1000;
+	}
+
+	public long getMaxMicros() {
+		return snapshot().getMax() / 1000;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + snapshot();
+	}
+}
@@ -0,0 +1,54 @@
+package com.bma.amazon.sqs.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Publishes every metric as an MBean in the domain given to the
+ * constructor, e.g. com.bma.amazon.sqs:type=Timer,name=rpc.client.roundtrip.
+ */
+public class JmxMetricsRegistry extends HdrMetricsRegistry {
+	private final MBeanServer server;
+	private final String domain;
+
+	public JmxMetricsRegistry(String domain) {
+		this(ManagementFactory.getPlatformMBeanServer(), domain);
+	}
+
+	public JmxMetricsRegistry(MBeanServer server, String domain) {
+		this.server = server;
+		this.domain = domain;
+	}
+
+	@Override
+	protected void registered(String name, Object metric) {
+		try {
+			if (metric instanceof TimerMXBean) {
+				register("Timer", name, new StandardMBean((TimerMXBean) metric, TimerMXBean.class, true));
+			} else if (metric instanceof ValueMXBean) {
+				register("Counter", name, new StandardMBean((ValueMXBean) metric, ValueMXBean.class, true));
+			} else if (metric instanceof Gauge) {
+				final Gauge gauge = (Gauge) metric;
+				register("Gauge", name, new StandardMBean(new ValueMXBean() {
+					public long getValue() {
+						return gauge.value();
+					}
+				}, ValueMXBean.class, true));
+			}
+		} catch (JMException e) {
+			throw new IllegalStateException("Can not register metric " + name, e);
+		}
+	}
+
+	private void register(String type, String name, StandardMBean mbean) throws JMException {
+		ObjectName objectName = new ObjectName(domain + ":type=" + type + ",name=" + ObjectName.quote(name));
+		if (server.isRegistered(objectName)) {
+			server.unregisterMBean(objectName);
+		}
+		server.registerMBean(mbean, objectName);
+	}
+}
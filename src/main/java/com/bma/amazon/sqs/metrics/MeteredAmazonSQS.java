@@ -0,0 +1,222 @@
+package com.bma.amazon.sqs.metrics;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ResponseMetadata;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AddPermissionRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.ListQueuesRequest;
+import com.amazonaws.services.sqs.model.ListQueuesResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.RemovePermissionRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+
+/**
+ * Counts and times every call made through the wrapped client. Each
+ * operation gets a timer named sqs.&lt;Operation&gt;, whose count is the number
+ * of API calls, failed ones included.
+ */
+public class MeteredAmazonSQS implements AmazonSQS {
+	private final AmazonSQS sqs;
+	private final Timer sendMessage;
+	private final Timer sendMessageBatch;
+	private final Timer receiveMessage;
+	private final Timer deleteMessage;
+	private final Timer deleteMessageBatch;
+	private final Timer changeMessageVisibility;
+	private final Timer changeMessageVisibilityBatch;
+	private final Timer createQueue;
+	private final Timer getQueueUrl;
+	private final Timer other;
+
+	public MeteredAmazonSQS(AmazonSQS sqs, MetricsRegistry metrics) {
+		this.sqs = sqs;
+		this.sendMessage = metrics.timer(MetricNames.SQS_PREFIX + "SendMessage");
+		this.sendMessageBatch = metrics.timer(MetricNames.SQS_PREFIX + "SendMessageBatch");
+		this.receiveMessage = metrics.timer(MetricNames.SQS_PREFIX + "ReceiveMessage");
+		this.deleteMessage = metrics.timer(MetricNames.SQS_PREFIX + "DeleteMessage");
+		this.deleteMessageBatch = metrics.timer(MetricNames.SQS_PREFIX + "DeleteMessageBatch");
+		this.changeMessageVisibility = metrics.timer(MetricNames.SQS_PREFIX + "ChangeMessageVisibility");
+		this.changeMessageVisibilityBatch = metrics.timer(MetricNames.SQS_PREFIX + "ChangeMessageVisibilityBatch");
+		this.createQueue = metrics.timer(MetricNames.SQS_PREFIX + "CreateQueue");
+		this.getQueueUrl = metrics.timer(MetricNames.SQS_PREFIX + "GetQueueUrl");
+		this.other = metrics.timer(MetricNames.SQS_PREFIX + "Other");
+	}
+
+	public AmazonSQS getDelegate() {
+		return sqs;
+	}
+
+	public SendMessageResult sendMessage(SendMessageRequest request) {
+		long start = System.nanoTime();
+		try {
+			return sqs.sendMessage(request);
+		} finally {
+			sendMessage.recordSince(start);
+		}
+	}
+
+	public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+		long start = System.nanoTime();
+		try {
+			return sqs.sendMessageBatch(request);
+		} finally {
+			sendMessageBatch.recordSince(start);
+		}
+	}
+
+	public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+		long start = System.nanoTime();
+		try {
+			return sqs.receiveMessage(request);
+		} finally {
+			receiveMessage.recordSince(start);
+		}
+	}
+
+	public void deleteMessage(DeleteMessageRequest request) {
+		long start = System.nanoTime();
+		try {
+			sqs.deleteMessage(request);
+		} finally {
+			deleteMessage.recordSince(start);
+		}
+	}
+
+	public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+		long start = System.nanoTime();
+		try {
+			return sqs.deleteMessageBatch(request);
+		} finally {
+			deleteMessageBatch.recordSince(start);
+		}
+	}
+
+	public void changeMessageVisibility(ChangeMessageVisibilityRequest request) {
+		long start = System.nanoTime();
+		try {
+			sqs.changeMessageVisibility(request);
+		} finally {
+			changeMessageVisibility.recordSince(start);
+		}
+	}
+
+	public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(ChangeMessageVisibilityBatchRequest request) {
+		long start = System.nanoTime();
+		try {
+			return sqs.changeMessageVisibilityBatch(request);
+		} finally {
+			changeMessageVisibilityBatch.recordSince(start);
+		}
+	}
+
+	public CreateQueueResult createQueue(CreateQueueRequest request) {
+		long start = System.nanoTime();
+		try {
+			return sqs.createQueue(request);
+		} finally {
+			createQueue.recordSince(start);
+		}
+	}
+
+	public GetQueueUrlResult getQueueUrl(GetQueueUrlRequest request) {
+		long start = System.nanoTime();
+		try {
+			return sqs.getQueueUrl(request);
+		} finally {
+			getQueueUrl.recordSince(start);
+		}
+	}
+
+	public void setEndpoint(String endpoint) {
+		sqs.setEndpoint(endpoint);
+	}
+
+	public void setQueueAttributes(SetQueueAttributesRequest request) {
+		long start = System.nanoTime();
+		try {
+			sqs.setQueueAttributes(request);
+		} finally {
+			other.recordSince(start);
+		}
+	}
+
+	public GetQueueAttributesResult getQueueAttributes(GetQueueAttributesRequest request) {
+		long start = System.nanoTime();
+		try {
+			return sqs.getQueueAttributes(request);
+		} finally {
+			other.recordSince(start);
+		}
+	}
+
+	public void deleteQueue(DeleteQueueRequest request) {
+		long start = System.nanoTime();
+		try {
+			sqs.deleteQueue(request);
+		} finally {
+			other.recordSince(start);
+		}
+	}
+
+	public ListQueuesResult listQueues(ListQueuesRequest request) {
+		long start = System.nanoTime();
+		try {
+			return sqs.listQueues(request);
+		} finally {
+			other.recordSince(start);
+		}
+	}
+
+	public ListQueuesResult listQueues() {
+		long start = System.nanoTime();
+		try {
+			return sqs.listQueues();
+		} finally {
+			other.recordSince(start);
+		}
+	}
+
+	public void addPermission(AddPermissionRequest request) {
+		long start = System.nanoTime();
+		try {
+			sqs.addPermission(request);
+		} finally {
+			other.recordSince(start);
+		}
+	}
+
+	public void removePermission(RemovePermissionRequest request) {
+		long start = System.nanoTime();
+		try {
+			sqs.removePermission(request);
+		} finally {
+			other.recordSince(start);
+		}
+	}
+
+	public void shutdown() {
+		sqs.shutdown();
+	}
+
+	public ResponseMetadata getCachedResponseMetadata(AmazonWebServiceRequest request) {
+		return sqs.getCachedResponseMetadata(request);
+	}
+}
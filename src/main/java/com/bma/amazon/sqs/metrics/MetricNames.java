@@ -0,0 +1,110 @@
+package com.bma.amazon.sqs.metrics;
+
+/**
+ * Names of the metrics reported by the runtime. The stage timers follow a
+ * call: client send, request queue, prefetch buffer, handler, response send,
+ * request delete, reply queue and finally the whole round trip.
+ */
+public final class MetricNames {
+	/** call() until the request batch was accepted by SQS */
+	public static final String CLIENT_SEND = "rpc.client.send";
+	/** call() until the response completed the future */
+	public static final String CLIENT_ROUND_TRIP = "rpc.client.roundtrip";
+	public static final String CLIENT_CALLS = "rpc.client.calls";
+	public static final String CLIENT_ERRORS = "rpc.client.errors";
+	public static final String CLIENT_TIMEOUTS = "rpc.client.timeouts";
+	public static final String CLIENT_IN_FLIGHT = "rpc.client.inflight";
+	/** calls sent to a second shard because the first one did not answer in time */
+	public static final String CLIENT_HEDGES = "rpc.client.hedges";
+	/** calls handed to a server in the same JVM instead of SQS */
+	public static final String CLIENT_LOCAL_CALLS = "rpc.client.localcalls";
+	/** calls answered from the result cache */
+	public static final String CLIENT_CACHE_HITS = "rpc.client.cache.hits";
+	/** calls of cached methods sent because no result was cached */
+	public static final String CLIENT_CACHE_MISSES = "rpc.client.cache.misses";
+	/** calls of cached methods which waited for an equal call in flight */
+	public static final String CLIENT_CACHE_COALESCED = "rpc.client.cache.coalesced";
+	/** round trips saved by cache hits, the one of the call which loaded the result */
+	public static final String CLIENT_CACHE_SAVED = "rpc.client.cache.saved";
+	/** gauge of the estimated bytes of the cached results */
+	public static final String CLIENT_CACHE_WEIGHT = "rpc.client.cache.weight";
+	/** receiver metrics of the client's reply queue */
+	public static final String CLIENT_REPLY = "rpc.client.reply";
+	/** gauge of shared reply queues open */
+	public static final String CLIENT_REPLY_CHANNELS = "rpc.client.reply.channels";
+
+	/** receiver metrics of the server's request queue */
+	public static final String SERVER = "rpc.server";
+	/** method execution */
+	public static final String SERVER_HANDLE = "rpc.server.handle";
+	/** handler finished until the response batch was accepted by SQS */
+	public static final String SERVER_RESPOND = "rpc.server.respond";
+	/** response sent until the request was deleted */
+	public static final String SERVER_DELETE = "rpc.server.delete";
+	public static final String SERVER_REQUESTS = "rpc.server.requests";
+	public static final String SERVER_ERRORS = "rpc.server.errors";
+	/** redelivered requests which were not handled again */
+	public static final String SERVER_DUPLICATES = "rpc.server.duplicates";
+	/** gauge of message groups with requests waiting or being handled */
+	public static final String SERVER_GROUPS = "rpc.server.groups";
+	/** messages returned to the queue because a bulkhead was full */
+	public static final String SERVER_SHED = "rpc.server.shed";
+	/** responses handed to a reply channel of the same JVM instead of SQS */
+	public static final String SERVER_LOCAL_REPLIES = "rpc.server.localreplies";
+	/** requests of clients in the same JVM handled in process */
+	public static final String SERVER_LOCAL_REQUESTS = "rpc.server.localrequests";
+	/** gauge of calls of clients in the same JVM waiting for a drainer */
+	public static final String SERVER_LOCAL_QUEUED = "rpc.server.localqueued";
+	/** per method metrics, followed by the method name and a method suffix */
+	public static final String SERVER_METHOD = "rpc.server.method.";
+
+	/** receiver suffix: sent to SQS until received by a poller, millisecond resolution */
+	public static final String QUEUE = ".queue";
+	/** receiver suffix: received until a handler took the message from the prefetch buffer */
+	public static final String BUFFER = ".buffer";
+	/** receiver suffix: gauge of prefetched messages */
+	public static final String BUFFERED = ".buffered";
+	/** receiver suffix: gauge of active pollers */
+	public static final String POLLERS = ".pollers";
+	/** receiver suffix: gauge of messages being handled */
+	public static final String HANDLERS = ".handlers";
+	/** receiver suffix: messages moved to the dead-letter queue */
+	public static final String DEAD_LETTERS = ".deadletters";
+
+	/** method suffix: method execution */
+	public static final String HANDLE = ".handle";
+	/** method and bulkhead suffix: requests shed because the bulkhead was full */
+	public static final String REJECTED = ".rejected";
+	/** method and bulkhead suffix: gauge of requests being handled */
+	public static final String RUNNING = ".running";
+	/** method and bulkhead suffix: gauge of requests waiting for a thread */
+	public static final String QUEUED = ".queued";
+
+	/** received until the lease of the message ended */
+	public static final String LEASE_AGE = "rpc.lease.age";
+	/** gauge of leased messages */
+	public static final String LEASE_ACTIVE = "rpc.lease.active";
+	/** gauge of the age of the oldest lease in milliseconds */
+	public static final String LEASE_OLDEST = "rpc.lease.oldest";
+	/** visibility timeouts extended */
+	public static final String LEASE_EXTENSIONS = "rpc.lease.extensions";
+	/** leases which could not be extended, their messages may be redelivered */
+	public static final String LEASE_LOST = "rpc.lease.lost";
+
+	/** SQS call latency and count, followed by the operation name */
+	public static final String SQS_PREFIX = "sqs.";
+	/** rate limiter of a batcher, followed by the operation, the queue name and a limiter suffix */
+	public static final String SQS_LIMIT = "sqs.limit.";
+
+	/** limiter suffix: gauge of calls per second allowed */
+	public static final String RATE = ".rate";
+	/** limiter suffix: calls throttled or failed on the server side */
+	public static final String THROTTLED = ".throttled";
+	/** limiter suffix: retries granted by the retry budget */
+	public static final String RETRIES = ".retries";
+	/** limiter suffix: retries denied because the retry budget was spent */
+	public static final String RETRIES_DENIED = ".retriesdenied";
+
+	private MetricNames() {
+	}
+}
@@ -0,0 +1,51 @@
+package com.bma.amazon.sqs.metrics;
+
+/**
+ * Where the runtime reports its metrics. Asking twice for a metric with the
+ * same name returns the same instance.
+ * <p>
+ * Implementations: {@link HdrMetricsRegistry} keeps latency histograms in
+ * memory, {@link JmxMetricsRegistry} publishes them as MBeans as well.
+ * Other monitoring systems can be plugged in by implementing this
+ * interface.
+ */
+public interface MetricsRegistry {
+
+	/**
+	 * Does nothing, used when no registry is configured.
+	 */
+	MetricsRegistry NOOP = new MetricsRegistry() {
+		private final Timer timer = new Timer() {
+			public void record(long nanos) {
+			}
+		};
+		private final Counter counter = new Counter() {
+			public void increment() {
+			}
+
+			public void add(long delta) {
+			}
+
+			public long count() {
+				return 0;
+			}
+		};
+
+		public Timer timer(String name) {
+			return timer;
+		}
+
+		public Counter counter(String name) {
+			return counter;
+		}
+
+		public void gauge(String name, Gauge gauge) {
+		}
+	};
+
+	Timer timer(String name);
+
+	Counter counter(String name);
+
+	void gauge(String name, Gauge gauge);
+}
@@ -0,0 +1,17 @@
+package com.bma.amazon.sqs.metrics;
+
+/**
+ * Records durations in nanoseconds. Must be safe to call from any thread
+ * without blocking.
+ */
+public interface Timer {
+
+	void record(long nanos);
+
+	/**
+	 * Records the time elapsed since a {@link System#nanoTime()} value.
+	 */
+	default void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+}
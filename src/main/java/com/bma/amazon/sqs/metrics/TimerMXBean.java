@@ -0,0 +1,17 @@
+package com.bma.amazon.sqs.metrics;
+
+/**
+ * JMX view of a timer, percentiles in microseconds.
+ */
+public interface TimerMXBean {
+
+	long getCount();
+
+	long getP50Micros();
+
+	long getP99Micros();
+
+	long getP999Micros();
+
+	long getMaxMicros();
+}
@@ -0,0 +1,60 @@
+package com.bma.amazon.sqs.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Percentiles of a timer at the time of the snapshot, in nanoseconds.
+ */
+public class TimerSnapshot {
+	private final long count;
+	private final long p50;
+	private final long p99;
+	private final long p999;
+	private final long max;
+	private final double mean;
+
+	TimerSnapshot(Histogram histogram) {
+		this.count = histogram.getTotalCount();
+		this.p50 = histogram.getValueAtPercentile(50);
+		this.p99 = histogram.getValueAtPercentile(99);
+		this.p999 = histogram.getValueAtPercentile(99.9);
+		this.max = histogram.getMaxValue();
+		this.mean = histogram.getMean();
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getP50() {
+		return p50;
+	}
+
+	public long getP99() {
+		return p99;
+	}
+
+	public long getP999() {
+		return p999;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + ", p50=" + micros(p50) + "us, p99=" + micros(p99) + "us, p999=" + micros(p999)
+				+ "us, max=" + micros(max) + "us";
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
@@ -0,0 +1,9 @@
+package com.bma.amazon.sqs.metrics;
+
+/**
+ * JMX view of a counter or a gauge.
+ */
+public interface ValueMXBean {
+
+	long getValue();
+}
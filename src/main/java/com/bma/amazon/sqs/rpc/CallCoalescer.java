@@ -0,0 +1,66 @@
+package com.bma.amazon.sqs.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+
+import org.codehaus.jackson.JsonNode;
+
+import com.bma.amazon.sqs.transport.Batcher;
+import com.bma.amazon.sqs.transport.SendBatcher;
+
+/**
+ * Coalesces requests made within the linger time into one message holding a
+ * JSON-RPC batch, up to a number of calls and bytes. The future of every
+ * request completes with the id of the message it was sent in.
+ * <p>
+ * The message is sent by the given function, which retries on its own, so a
+ * failed send fails its requests without another attempt.
+ */
+public class CallCoalescer extends Batcher<JsonNode, String> {
+	public static final int DEFAULT_MAX_CALLS = 100;
+	/** SQS bills requests in chunks of 64 KB */
+	public static final int DEFAULT_MAX_BYTES = 65536;
+
+	private final JsonRpcMapper mapper;
+	private final Function<String, CompletableFuture<String>> sender;
+
+	public CallCoalescer(JsonRpcMapper mapper, String queueUrl, ScheduledExecutorService scheduler,
+			Function<String, CompletableFuture<String>> sender) {
+		this(mapper, queueUrl, scheduler, sender, DEFAULT_MAX_CALLS, DEFAULT_MAX_BYTES);
+	}
+
+	public CallCoalescer(JsonRpcMapper mapper, String queueUrl, ScheduledExecutorService scheduler,
+			Function<String, CompletableFuture<String>> sender, int maxCalls, int maxBytes) {
+		super(queueUrl, scheduler, null, maxCalls, maxBytes);
+		this.mapper = mapper;
+		this.sender = sender;
+		setMaxAttempts(1);
+		setMaxInFlight(Integer.MAX_VALUE);
+	}
+
+	public CompletableFuture<String> add(JsonRpcRequest request) {
+		return add(mapper.toNode(request));
+	}
+
+	@Override
+	protected CompletableFuture<?> execute(final List<Entry<JsonNode, String>> batch) {
+		List<JsonNode> nodes = new ArrayList<JsonNode>(batch.size());
+		for (Entry<JsonNode, String> entry : batch) {
+			nodes.add(entry.value);
+		}
+		return sender.apply(mapper.writeBatch(nodes)).thenAccept(messageId -> {
+			for (Entry<JsonNode, String> entry : batch) {
+				succeeded(entry, messageId);
+			}
+		});
+	}
+
+	@Override
+	protected int sizeOf(JsonNode request) {
+		// the JSON text, other codecs write less; one more byte for the comma
+		return SendBatcher.utf8Length(request.toString()) + 1;
+	}
+}
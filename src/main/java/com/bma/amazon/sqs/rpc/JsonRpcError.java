@@ -0,0 +1,45 @@
+package com.bma.amazon.sqs.rpc;
+
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * JSON-RPC 2.0 error object.
+ */
+public class JsonRpcError {
+	public static final int PARSE_ERROR = -32700;
+	public static final int INVALID_REQUEST = -32600;
+	public static final int METHOD_NOT_FOUND = -32601;
+	public static final int INVALID_PARAMS = -32602;
+	public static final int INTERNAL_ERROR = -32603;
+
+	private final int code;
+	private final String message;
+	private final JsonNode data;
+
+	public JsonRpcError(int code, String message) {
+		this(code, message, null);
+	}
+
+	public JsonRpcError(int code, String message, JsonNode data) {
+		this.code = code;
+		this.message = message;
+		this.data = data;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public JsonNode getData() {
+		return data;
+	}
+
+	@Override
+	public String toString() {
+		return code + ": " + message;
+	}
+}
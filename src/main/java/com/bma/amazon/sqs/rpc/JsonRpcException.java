@@ -0,0 +1,25 @@
+package com.bma.amazon.sqs.rpc;
+
+/**
+ * Carries a JSON-RPC error. Thrown by method handlers to control the error
+ * returned to the caller, and used to fail client futures when the server
+ * replied with an error.
+ */
+public class JsonRpcException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final JsonRpcError error;
+
+	public JsonRpcException(JsonRpcError error) {
+		super(error.toString());
+		this.error = error;
+	}
+
+	public JsonRpcException(int code, String message) {
+		this(new JsonRpcError(code, message));
+	}
+
+	public JsonRpcError getError() {
+		return error;
+	}
+}
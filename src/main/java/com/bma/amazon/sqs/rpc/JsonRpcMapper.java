@@ -0,0 +1,435 @@
+package com.bma.amazon.sqs.rpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import com.bma.amazon.sqs.codec.JsonCodec;
+import com.bma.amazon.sqs.codec.MessageCodec;
+import com.bma.amazon.sqs.codec.MessageCodecs;
+
+/**
+ * Converts JSON-RPC envelopes to and from SQS message bodies. Envelopes are
+ * written with the configured {@link MessageCodec} and read with whichever
+ * codec the body was written with. Thread safe.
+ * <p>
+ * A body holds a single envelope or a JSON-RPC batch, an array of them. The
+ * readers of lists accept both, the readers of a single envelope reject
+ * batches.
+ * <p>
+ * Plain JSON requests are read with a streaming parser: only the envelope
+ * members are parsed, the params are skipped and kept as a span of the body
+ * until they are asked for, see {@link #readParams(JsonRpcRequest, Class)}.
+ */
+public class JsonRpcMapper {
+	private static final String VERSION = "2.0";
+
+	private final ObjectMapper mapper;
+	private final MessageCodec codec;
+	private final MessageCodecs codecs = new MessageCodecs();
+
+	public JsonRpcMapper() {
+		this(new ObjectMapper());
+	}
+
+	public JsonRpcMapper(ObjectMapper mapper) {
+		this(mapper, new JsonCodec(mapper));
+	}
+
+	public JsonRpcMapper(MessageCodec codec) {
+		this(new ObjectMapper(), codec);
+	}
+
+	public JsonRpcMapper(ObjectMapper mapper, MessageCodec codec) {
+		this.mapper = mapper;
+		this.codec = codec;
+		codecs.register(new JsonCodec(mapper));
+		codecs.register(codec);
+	}
+
+	public ObjectMapper getObjectMapper() {
+		return mapper;
+	}
+
+	public MessageCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Codecs bodies can be read with, register custom ones here.
+	 */
+	public MessageCodecs getCodecs() {
+		return codecs;
+	}
+
+	public JsonNode toTree(Object value) {
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof JsonNode) {
+			return (JsonNode) value;
+		}
+		return mapper.valueToTree(value);
+	}
+
+	public <T> T fromTree(JsonNode node, Class<T> type) {
+		if (node == null || node.isNull()) {
+			return null;
+		}
+		if (type.isInstance(node)) {
+			return type.cast(node);
+		}
+		try {
+			return mapper.readValue(node, type);
+		} catch (IOException e) {
+			throw new JsonRpcException(JsonRpcError.INVALID_PARAMS, e.getMessage());
+		}
+	}
+
+	/**
+	 * Binds the params of a request to the type, straight from the body if
+	 * they were not parsed into a tree yet.
+	 */
+	public <T> T readParams(JsonRpcRequest request, Class<T> type) {
+		return readParams(request, mapper.reader(type));
+	}
+
+	<T> T readParams(JsonRpcRequest request, ObjectReader reader) {
+		try {
+			RawJson raw = request.getRawParams();
+			if (raw != null) {
+				return raw.read(reader);
+			}
+			JsonNode params = request.getParams();
+			return params == null || params.isNull() ? null : reader.<T> readValue(params);
+		} catch (IOException e) {
+			throw new JsonRpcException(JsonRpcError.INVALID_PARAMS, e.getMessage());
+		}
+	}
+
+	/**
+	 * @return a reader of the type with its deserializer built, so the first
+	 *         request does not pay for it
+	 */
+	ObjectReader paramsReader(Class<?> type) {
+		mapper.canDeserialize(mapper.constructType(type));
+		return mapper.reader(type);
+	}
+
+	public String writeRequest(JsonRpcRequest request) {
+		return write(toNode(request));
+	}
+
+	/**
+	 * Writes a batch, or a single request if there is only one.
+	 */
+	public String writeRequests(List<JsonRpcRequest> requests) {
+		List<JsonNode> nodes = new ArrayList<JsonNode>(requests.size());
+		for (JsonRpcRequest request : requests) {
+			nodes.add(toNode(request));
+		}
+		return writeBatch(nodes);
+	}
+
+	ObjectNode toNode(JsonRpcRequest request) {
+		ObjectNode node = mapper.createObjectNode();
+		node.put("jsonrpc", VERSION);
+		node.put("method", request.getMethod());
+		if (request.getParams() != null) {
+			node.put("params", request.getParams());
+		}
+		if (request.getId() != null) {
+			node.put("id", request.getId());
+		}
+		if (request.getReplyTo() != null) {
+			node.put("replyTo", request.getReplyTo());
+		}
+		if (request.getGroup() != null) {
+			node.put("group", request.getGroup());
+			node.put("sender", request.getSender());
+			node.put("seq", request.getSequence());
+			if (request.getAcknowledged() > 0) {
+				node.put("acked", request.getAcknowledged());
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Writes envelopes as a batch, or a single one as it is.
+	 */
+	String writeBatch(List<JsonNode> nodes) {
+		if (nodes.size() == 1) {
+			return write(nodes.get(0));
+		}
+		ArrayNode array = mapper.createArrayNode();
+		array.addAll(nodes);
+		return write(array);
+	}
+
+	public JsonRpcRequest readRequest(String body) {
+		if (codecs.isPlainJson(body)) {
+			return stream(body, false).get(0);
+		}
+		return toRequest(read(body));
+	}
+
+	/**
+	 * Reads a request as it is streamed in, e.g. from a blob store.
+	 */
+	public JsonRpcRequest readRequest(InputStream body) {
+		return toRequest(read(body));
+	}
+
+	/**
+	 * Reads a batch or a single request.
+	 */
+	public List<JsonRpcRequest> readRequests(String body) {
+		if (codecs.isPlainJson(body)) {
+			return stream(body, true);
+		}
+		return toRequests(read(body));
+	}
+
+	public List<JsonRpcRequest> readRequests(InputStream body) {
+		return toRequests(read(body));
+	}
+
+	private List<JsonRpcRequest> toRequests(JsonNode node) {
+		if (!node.isArray()) {
+			return Collections.singletonList(toRequest(node));
+		}
+		if (node.size() == 0) {
+			throw new JsonRpcException(JsonRpcError.INVALID_REQUEST, "Batch is empty");
+		}
+		List<JsonRpcRequest> requests = new ArrayList<JsonRpcRequest>(node.size());
+		for (JsonNode entry : node) {
+			requests.add(toRequest(entry));
+		}
+		return requests;
+	}
+
+	private JsonRpcRequest toRequest(JsonNode node) {
+		JsonNode method = node.get("method");
+		if (!node.isObject() || method == null || !method.isTextual()) {
+			throw new JsonRpcException(JsonRpcError.INVALID_REQUEST, "Request has no method");
+		}
+		JsonNode sequence = node.get("seq");
+		JsonNode acknowledged = node.get("acked");
+		return new JsonRpcRequest(text(node.get("id")), method.getTextValue(), node.get("params"), null,
+				text(node.get("replyTo")), text(node.get("group")), text(node.get("sender")),
+				sequence == null ? 0 : sequence.getLongValue(),
+				acknowledged == null ? 0 : acknowledged.getLongValue());
+	}
+
+	/**
+	 * Reads the envelope members of plain JSON requests with a streaming
+	 * parser and keeps structured params unparsed.
+	 */
+	private List<JsonRpcRequest> stream(String body, boolean batch) {
+		try {
+			JsonParser parser = mapper.getJsonFactory().createJsonParser(body);
+			try {
+				JsonToken token = parser.nextToken();
+				if (token != JsonToken.START_ARRAY) {
+					return Collections.singletonList(streamRequest(parser, body));
+				}
+				if (!batch) {
+					throw new JsonRpcException(JsonRpcError.INVALID_REQUEST, "Request has no method");
+				}
+				List<JsonRpcRequest> requests = new ArrayList<JsonRpcRequest>();
+				while (parser.nextToken() != JsonToken.END_ARRAY) {
+					requests.add(streamRequest(parser, body));
+				}
+				if (requests.isEmpty()) {
+					throw new JsonRpcException(JsonRpcError.INVALID_REQUEST, "Batch is empty");
+				}
+				return requests;
+			} finally {
+				parser.close();
+			}
+		} catch (IOException e) {
+			throw new JsonRpcException(JsonRpcError.PARSE_ERROR, e.getMessage());
+		}
+	}
+
+	private JsonRpcRequest streamRequest(JsonParser parser, String body) throws IOException {
+		if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+			if (parser.getCurrentToken() == null) {
+				throw new JsonRpcException(JsonRpcError.PARSE_ERROR, "Unexpected end of input");
+			}
+			parser.skipChildren();
+			throw new JsonRpcException(JsonRpcError.INVALID_REQUEST, "Request has no method");
+		}
+		String id = null;
+		String method = null;
+		JsonNode params = null;
+		RawJson rawParams = null;
+		String replyTo = null;
+		String group = null;
+		String sender = null;
+		long sequence = 0;
+		long acknowledged = 0;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if ("method".equals(name)) {
+				method = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+			} else if ("id".equals(name)) {
+				id = text(parser, value);
+			} else if ("params".equals(name)) {
+				if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+					// the current location is that of the last bracket read
+					int start = (int) parser.getCurrentLocation().getCharOffset();
+					parser.skipChildren();
+					int end = (int) parser.getCurrentLocation().getCharOffset() + 1;
+					rawParams = new RawJson(mapper, body, start, end - start);
+				} else {
+					params = mapper.readTree(parser);
+				}
+			} else if ("replyTo".equals(name)) {
+				replyTo = text(parser, value);
+			} else if ("group".equals(name)) {
+				group = text(parser, value);
+			} else if ("sender".equals(name)) {
+				sender = text(parser, value);
+			} else if ("seq".equals(name)) {
+				sequence = value.isNumeric() ? parser.getLongValue() : 0;
+			} else if ("acked".equals(name)) {
+				acknowledged = value.isNumeric() ? parser.getLongValue() : 0;
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (method == null) {
+			throw new JsonRpcException(JsonRpcError.INVALID_REQUEST, "Request has no method");
+		}
+		return new JsonRpcRequest(id, method, params, rawParams, replyTo, group, sender, sequence, acknowledged);
+	}
+
+	public String writeResponse(JsonRpcResponse response) {
+		return write(toNode(response));
+	}
+
+	/**
+	 * Writes a batch, or a single response if there is only one.
+	 */
+	public String writeResponses(List<JsonRpcResponse> responses) {
+		List<JsonNode> nodes = new ArrayList<JsonNode>(responses.size());
+		for (JsonRpcResponse response : responses) {
+			nodes.add(toNode(response));
+		}
+		return writeBatch(nodes);
+	}
+
+	private ObjectNode toNode(JsonRpcResponse response) {
+		ObjectNode node = mapper.createObjectNode();
+		node.put("jsonrpc", VERSION);
+		if (response.isError()) {
+			JsonRpcError error = response.getError();
+			ObjectNode errorNode = node.putObject("error");
+			errorNode.put("code", error.getCode());
+			errorNode.put("message", error.getMessage());
+			if (error.getData() != null) {
+				errorNode.put("data", error.getData());
+			}
+		} else {
+			node.put("result", response.getResult());
+		}
+		node.put("id", response.getId());
+		return node;
+	}
+
+	public JsonRpcResponse readResponse(String body) {
+		return toResponse(read(body));
+	}
+
+	public JsonRpcResponse readResponse(InputStream body) {
+		return toResponse(read(body));
+	}
+
+	/**
+	 * Reads a batch or a single response.
+	 */
+	public List<JsonRpcResponse> readResponses(String body) {
+		return toResponses(read(body));
+	}
+
+	public List<JsonRpcResponse> readResponses(InputStream body) {
+		return toResponses(read(body));
+	}
+
+	private List<JsonRpcResponse> toResponses(JsonNode node) {
+		if (!node.isArray()) {
+			return Collections.singletonList(toResponse(node));
+		}
+		List<JsonRpcResponse> responses = new ArrayList<JsonRpcResponse>(node.size());
+		for (JsonNode entry : node) {
+			responses.add(toResponse(entry));
+		}
+		return responses;
+	}
+
+	private JsonRpcResponse toResponse(JsonNode node) {
+		if (!node.isObject()) {
+			throw new JsonRpcException(JsonRpcError.INVALID_REQUEST, "Response is not an object");
+		}
+		String id = text(node.get("id"));
+		JsonNode error = node.get("error");
+		if (error != null && !error.isNull()) {
+			return JsonRpcResponse.failure(id, new JsonRpcError(error.path("code").getIntValue(),
+					error.path("message").getTextValue(), error.get("data")));
+		}
+		return JsonRpcResponse.success(id, node.get("result"));
+	}
+
+	private JsonNode read(String body) {
+		try {
+			return codecs.decode(body);
+		} catch (IOException e) {
+			throw new JsonRpcException(JsonRpcError.PARSE_ERROR, e.getMessage());
+		}
+	}
+
+	private JsonNode read(InputStream body) {
+		try {
+			try {
+				return codecs.decode(body);
+			} finally {
+				body.close();
+			}
+		} catch (IOException e) {
+			throw new JsonRpcException(JsonRpcError.PARSE_ERROR, e.getMessage());
+		}
+	}
+
+	private String write(JsonNode node) {
+		try {
+			return codec.encode(node);
+		} catch (IOException e) {
+			throw new IllegalStateException("Can not serialize " + node, e);
+		}
+	}
+
+	private static String text(JsonParser parser, JsonToken value) throws IOException {
+		if (value == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		parser.skipChildren();
+		return value.isScalarValue() ? parser.getText() : null;
+	}
+
+	private static String text(JsonNode node) {
+		return node == null || node.isNull() ? null : node.asText();
+	}
+}
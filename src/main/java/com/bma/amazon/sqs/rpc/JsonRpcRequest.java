@@ -0,0 +1,147 @@
+package com.bma.amazon.sqs.rpc;
+
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * JSON-RPC 2.0 request envelope. Besides the standard members the request
+ * carries the URL of the queue the response has to be sent to and, in
+ * ordered mode, its message group with the sender's sequence number in the
+ * group and the sequence up to which the sender's requests were answered.
+ * <p>
+ * Requests read by {@link JsonRpcMapper} keep their params unparsed until
+ * they are asked for, and handlers registered with a params type bind them
+ * without a tree in between.
+ */
+public class JsonRpcRequest {
+	private final String id;
+	private final String method;
+	private volatile JsonNode params;
+	private final RawJson rawParams;
+	private final String replyTo;
+	private final String group;
+	private final String sender;
+	private final long sequence;
+	private final long acknowledged;
+
+	public JsonRpcRequest(String id, String method, JsonNode params, String replyTo) {
+		this(id, method, params, replyTo, null, null, 0);
+	}
+
+	public JsonRpcRequest(String id, String method, JsonNode params, String replyTo, String group, String sender,
+			long sequence) {
+		this(id, method, params, null, replyTo, group, sender, sequence, 0);
+	}
+
+	JsonRpcRequest(String id, String method, JsonNode params, RawJson rawParams, String replyTo, String group,
+			String sender, long sequence, long acknowledged) {
+		this.id = id;
+		this.method = method;
+		this.params = params;
+		this.rawParams = rawParams;
+		this.replyTo = replyTo;
+		this.group = group;
+		this.sender = sender;
+		this.sequence = sequence;
+		this.acknowledged = acknowledged;
+	}
+
+	public static JsonRpcRequest notification(String method, JsonNode params) {
+		return new JsonRpcRequest(null, method, params, null);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * Parses the params into a tree on the first call if they were read
+	 * unparsed.
+	 */
+	public JsonNode getParams() {
+		JsonNode params = this.params;
+		if (params == null && rawParams != null) {
+			try {
+				params = rawParams.toTree();
+			} catch (IOException e) {
+				throw new JsonRpcException(JsonRpcError.PARSE_ERROR, e.getMessage());
+			}
+			this.params = params;
+		}
+		return params;
+	}
+
+	/**
+	 * @return the unparsed params, null if there are none or they were parsed
+	 *         into a tree already
+	 */
+	RawJson getRawParams() {
+		return params == null ? rawParams : null;
+	}
+
+	public String getReplyTo() {
+		return replyTo;
+	}
+
+	/**
+	 * @return a copy in a message group, see
+	 *         {@link com.bma.amazon.sqs.transport.OrderedDispatcher}
+	 */
+	public JsonRpcRequest withGroup(String group, String sender, long sequence) {
+		return withGroup(group, sender, sequence, 0);
+	}
+
+	/**
+	 * @param acknowledged the sequence up to which the sender's requests of
+	 *        the group were answered
+	 * @return a copy in a message group
+	 */
+	public JsonRpcRequest withGroup(String group, String sender, long sequence, long acknowledged) {
+		return new JsonRpcRequest(id, method, params, rawParams, replyTo, group, sender, sequence, acknowledged);
+	}
+
+	/**
+	 * @return the message group, requests of a group are handled one after
+	 *         the other; null if the request is not ordered
+	 */
+	public String getGroup() {
+		return group;
+	}
+
+	public String getSender() {
+		return sender;
+	}
+
+	/**
+	 * @return the position among the sender's requests of the group, from 1
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the sequence up to which all the sender's requests of the group
+	 *         were answered, 0 if none was; the server need not wait for them
+	 */
+	public long getAcknowledged() {
+		return acknowledged;
+	}
+
+	/**
+	 * Notifications have no id and never get a response.
+	 */
+	public boolean isNotification() {
+		return id == null;
+	}
+
+	@Override
+	public String toString() {
+		return "JsonRpcRequest [id=" + id + ", method=" + method + ", replyTo=" + replyTo
+				+ (group != null ? ", group=" + group + ", sequence=" + sequence : "") + "]";
+	}
+}
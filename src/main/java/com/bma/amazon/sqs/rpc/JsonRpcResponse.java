@@ -0,0 +1,47 @@
+package com.bma.amazon.sqs.rpc;
+
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * JSON-RPC 2.0 response envelope. Exactly one of result and error is set.
+ */
+public class JsonRpcResponse {
+	private final String id;
+	private final JsonNode result;
+	private final JsonRpcError error;
+
+	private JsonRpcResponse(String id, JsonNode result, JsonRpcError error) {
+		this.id = id;
+		this.result = result;
+		this.error = error;
+	}
+
+	public static JsonRpcResponse success(String id, JsonNode result) {
+		return new JsonRpcResponse(id, result, null);
+	}
+
+	public static JsonRpcResponse failure(String id, JsonRpcError error) {
+		return new JsonRpcResponse(id, null, error);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public JsonNode getResult() {
+		return result;
+	}
+
+	public JsonRpcError getError() {
+		return error;
+	}
+
+	public boolean isError() {
+		return error != null;
+	}
+
+	@Override
+	public String toString() {
+		return "JsonRpcResponse [id=" + id + ", error=" + error + "]";
+	}
+}
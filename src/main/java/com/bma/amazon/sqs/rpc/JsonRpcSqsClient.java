@@ -0,0 +1,717 @@
+package com.bma.amazon.sqs.rpc;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.JsonNode;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.bma.amazon.sqs.blob.ClaimCheck;
+import com.bma.amazon.sqs.metrics.Counter;
+import com.bma.amazon.sqs.metrics.Gauge;
+import com.bma.amazon.sqs.metrics.MetricNames;
+import com.bma.amazon.sqs.metrics.MetricsRegistry;
+import com.bma.amazon.sqs.metrics.Timer;
+import com.bma.amazon.sqs.shard.LeastLatencyPartitioner;
+import com.bma.amazon.sqs.shard.Partitioner;
+import com.bma.amazon.sqs.shard.Shard;
+import com.bma.amazon.sqs.transport.DaemonThreadFactory;
+import com.bma.amazon.sqs.transport.QueueUrlCache;
+import com.bma.amazon.sqs.transport.ReceiveEngine;
+import com.bma.amazon.sqs.transport.SendBatcher;
+import com.bma.amazon.sqs.transport.ThreadMode;
+
+/**
+ * Sends JSON-RPC requests to a request queue and completes the returned
+ * futures when the responses arrive on the client's reply queue. Responses
+ * are matched to calls by JSON-RPC id, so any number of calls can be in
+ * flight at the same time.
+ * <p>
+ * Requests are sent with SendMessageBatch and responses are deleted with
+ * DeleteMessageBatch, see {@link SendBatcher} and
+ * {@link com.bma.amazon.sqs.transport.DeleteBatcher}.
+ * The batch calls are non-blocking if the SQS client implements
+ * {@link com.bma.amazon.sqs.transport.AsyncSqs}. With
+ * {@link #setCoalescing(int, long) coalescing} calls are sent as JSON-RPC
+ * batches, many calls per message.
+ * <p>
+ * With {@link #setShards(List, Partitioner) shards} the requests of one
+ * logical service are spread over several queues, possibly in several
+ * regions; responses still arrive on the one reply queue. With
+ * {@link #setHedging(long) hedging} a call which is not answered within a
+ * latency budget is sent to a second shard as well. With
+ * {@link #setMessageGroups(Function) message groups} the server handles the
+ * requests of a group in order.
+ * <p>
+ * A client has a reply queue of its own or shares one of
+ * {@link ReplyChannels} with other clients.
+ * <p>
+ * With {@link #setLocalCalls(boolean) local calls} a call to a server
+ * started in the same JVM is handed to it in process, see
+ * {@link JsonRpcSqsServer#setLocalCapacity(int)}.
+ * <p>
+ * The results of methods registered with
+ * {@link #cacheResults(String, long, TimeUnit)} are answered from a
+ * {@link ResultCache} while they are fresh.
+ */
+public class JsonRpcSqsClient implements Closeable {
+	private static final Log log = LogFactory.getLog(JsonRpcSqsClient.class);
+
+	public static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+	private final AmazonSQS sqs;
+	private final boolean ownsReplyQueue;
+	private final JsonRpcMapper mapper;
+	private final PendingRequests pending = new PendingRequests();
+	private final ScheduledThreadPoolExecutor scheduler;
+	private final ExecutorService sqsExecutor;
+	private volatile List<Route> routes;
+	private volatile Partitioner partitioner;
+	private final String clientId = UUID.randomUUID().toString();
+	private final ReplyChannel replies;
+	/** the pool of the shared reply channel, null if the client has its own */
+	private final ReplyChannels replyChannels;
+	private final AtomicLong sequence = new AtomicLong();
+	private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+	private volatile ClaimCheck claimCheck;
+	private volatile int coalescingMaxCalls = 1;
+	private volatile long coalescingLingerMillis;
+	private volatile long hedgeMillis;
+	private volatile Function<JsonRpcRequest, String> messageGroups;
+	private volatile boolean localCalls;
+	private volatile ResultCache resultCache;
+	/** TTL in millis of the methods whose results are cached */
+	private final ConcurrentHashMap<String, Long> cachedMethods = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentHashMap<String, GroupSequence> groupSequences =
+			new ConcurrentHashMap<String, GroupSequence>();
+	private volatile MetricsRegistry metrics = MetricsRegistry.NOOP;
+	private Timer sendTimer = MetricsRegistry.NOOP.timer(null);
+	private Timer roundTripTimer = MetricsRegistry.NOOP.timer(null);
+	private Counter callCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter errorCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter timeoutCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter hedgeCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter localCallCounter = MetricsRegistry.NOOP.counter(null);
+
+	public JsonRpcSqsClient(AmazonSQS sqs, String requestQueueUrl, String replyQueueUrl) {
+		this(sqs, requestQueueUrl, replyQueueUrl, false, new JsonRpcMapper(), ThreadMode.getDefault());
+	}
+
+	JsonRpcSqsClient(AmazonSQS sqs, String requestQueueUrl, String replyQueueUrl, boolean ownsReplyQueue,
+			JsonRpcMapper mapper, ThreadMode threadMode) {
+		this(sqs, requestQueueUrl, null, replyQueueUrl, ownsReplyQueue, mapper, threadMode);
+	}
+
+	/**
+	 * Creates a client sharing a reply queue of the pool, see
+	 * {@link #create(ReplyChannels, String)}.
+	 */
+	public JsonRpcSqsClient(String requestQueueUrl, ReplyChannels replyChannels) {
+		this(replyChannels.getQueueUrls().getSqs(), requestQueueUrl, replyChannels, null, false,
+				replyChannels.getMapper(), replyChannels.getThreadMode());
+	}
+
+	private JsonRpcSqsClient(AmazonSQS sqs, String requestQueueUrl, ReplyChannels replyChannels,
+			String replyQueueUrl, boolean ownsReplyQueue, JsonRpcMapper mapper, ThreadMode threadMode) {
+		this.sqs = sqs;
+		this.ownsReplyQueue = ownsReplyQueue;
+		this.mapper = mapper;
+		this.scheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("json-rpc-client-timer"));
+		this.scheduler.setRemoveOnCancelPolicy(true);
+		this.sqsExecutor = threadMode.newExecutor("json-rpc-client-sqs");
+		this.routes = Collections.singletonList(new Route(new Shard(sqs, requestQueueUrl)));
+		this.replyChannels = replyChannels;
+		if (replyChannels == null) {
+			this.replies = new ReplyChannel(sqs, replyQueueUrl, mapper, scheduler, sqsExecutor, threadMode);
+			this.replies.attach(clientId, pending);
+		} else {
+			this.replies = replyChannels.attach(clientId, pending);
+		}
+	}
+
+	/**
+	 * Creates a client with its own reply queue which is deleted on
+	 * {@link #close()}.
+	 */
+	public static JsonRpcSqsClient create(AmazonSQS sqs, String requestQueueName) {
+		return create(sqs, requestQueueName, new JsonRpcMapper());
+	}
+
+	/**
+	 * Same as {@link #create(AmazonSQS, String)}, writing requests with the
+	 * codec of the given mapper.
+	 */
+	public static JsonRpcSqsClient create(AmazonSQS sqs, String requestQueueName, JsonRpcMapper mapper) {
+		return create(new QueueUrlCache(sqs), requestQueueName, mapper);
+	}
+
+	/**
+	 * Same as {@link #create(AmazonSQS, String, JsonRpcMapper)}, resolving the
+	 * request queue through a shared cache, e.g. one of a
+	 * {@link com.bma.amazon.sqs.transport.SqsClientFactory}.
+	 */
+	public static JsonRpcSqsClient create(QueueUrlCache queueUrls, String requestQueueName, JsonRpcMapper mapper) {
+		return create(queueUrls, requestQueueName, mapper, ThreadMode.getDefault());
+	}
+
+	/**
+	 * Same as {@link #create(QueueUrlCache, String, JsonRpcMapper)}, running
+	 * the reply pollers and blocking SQS calls on the given kind of threads.
+	 */
+	public static JsonRpcSqsClient create(QueueUrlCache queueUrls, String requestQueueName, JsonRpcMapper mapper,
+			ThreadMode threadMode) {
+		AmazonSQS sqs = queueUrls.getSqs();
+		String requestQueueUrl = queueUrls.getQueueUrl(requestQueueName);
+		String replyQueueName = requestQueueName + "_reply_" + UUID.randomUUID();
+		String replyQueueUrl = sqs.createQueue(new CreateQueueRequest(replyQueueName)).getQueueUrl();
+		JsonRpcSqsClient client = new JsonRpcSqsClient(sqs, requestQueueUrl, replyQueueUrl, true, mapper, threadMode);
+		client.start();
+		return client;
+	}
+
+	/**
+	 * Creates a client which receives its responses on a reply queue shared
+	 * with the other clients of the pool, started at once.
+	 */
+	public static JsonRpcSqsClient create(ReplyChannels replyChannels, String requestQueueName) {
+		return new JsonRpcSqsClient(replyChannels.getQueueUrls().getQueueUrl(requestQueueName), replyChannels);
+	}
+
+	/**
+	 * Starts receiving responses; a client sharing a reply queue receives
+	 * them from the start.
+	 */
+	public void start() {
+		if (replyChannels == null) {
+			replies.start();
+		}
+	}
+
+	public void close() {
+		if (replyChannels == null) {
+			replies.close();
+		} else {
+			replyChannels.detach(replies, clientId);
+		}
+		for (Route route : routes) {
+			route.close();
+		}
+		scheduler.shutdownNow();
+		sqsExecutor.shutdown();
+		pending.failAll(new IllegalStateException("Client is closed"));
+		if (ownsReplyQueue) {
+			sqs.deleteQueue(new DeleteQueueRequest(replies.getQueueUrl()));
+		}
+	}
+
+	/**
+	 * Gives access to the poller, prefetch and lease settings of the reply
+	 * queue, change them before {@link #start()}. A shared reply queue's
+	 * receiver serves the other clients as well.
+	 */
+	public ReceiveEngine getReplyReceiver() {
+		return replies.getReceiver();
+	}
+
+	public void setTimeout(long timeout, TimeUnit unit) {
+		this.timeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Reports the client's stage timers, counters and in-flight gauge, see
+	 * {@link MetricNames}. Set it before {@link #start()}; wrap the SQS client
+	 * into a {@link com.bma.amazon.sqs.metrics.MeteredAmazonSQS} to count SQS
+	 * calls as well.
+	 */
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+		for (Route route : routes) {
+			route.batcher.setMetrics(metrics);
+		}
+		sendTimer = metrics.timer(MetricNames.CLIENT_SEND);
+		roundTripTimer = metrics.timer(MetricNames.CLIENT_ROUND_TRIP);
+		callCounter = metrics.counter(MetricNames.CLIENT_CALLS);
+		errorCounter = metrics.counter(MetricNames.CLIENT_ERRORS);
+		timeoutCounter = metrics.counter(MetricNames.CLIENT_TIMEOUTS);
+		hedgeCounter = metrics.counter(MetricNames.CLIENT_HEDGES);
+		localCallCounter = metrics.counter(MetricNames.CLIENT_LOCAL_CALLS);
+		metrics.gauge(MetricNames.CLIENT_IN_FLIGHT, new Gauge() {
+			public long value() {
+				return pending.size();
+			}
+		});
+		if (replyChannels == null) {
+			replies.setMetrics(metrics, MetricNames.CLIENT_REPLY);
+		}
+		ResultCache resultCache = this.resultCache;
+		if (resultCache != null) {
+			resultCache.setMetrics(metrics);
+		}
+	}
+
+	/**
+	 * Sends requests larger than its threshold through the claim check's
+	 * blob store and reads responses the server sent that way. The server
+	 * needs a claim check on the same store. Shared reply queues read
+	 * responses with the claim check of their {@link ReplyChannels}.
+	 */
+	public void setClaimCheck(ClaimCheck claimCheck) {
+		this.claimCheck = claimCheck;
+		if (replyChannels == null) {
+			replies.setClaimCheck(claimCheck);
+		}
+	}
+
+	/**
+	 * How long a request may wait for other requests to fill up a batch.
+	 */
+	public void setLingerMillis(long lingerMillis) {
+		for (Route route : routes) {
+			route.batcher.setLingerMillis(lingerMillis);
+		}
+	}
+
+	/**
+	 * Sends the calls and notifications made within the linger time in one
+	 * message as a JSON-RPC batch of up to maxCalls requests and
+	 * {@link CallCoalescer#DEFAULT_MAX_BYTES}. The server answers a batch with
+	 * one message as well. A maxCalls of 1 sends every call on its own again.
+	 */
+	public void setCoalescing(int maxCalls, long lingerMillis) {
+		this.coalescingMaxCalls = maxCalls;
+		this.coalescingLingerMillis = lingerMillis;
+		for (Route route : routes) {
+			route.setCoalescing(maxCalls, lingerMillis);
+		}
+	}
+
+	/**
+	 * Sends requests to the queues of the shards instead of the request
+	 * queue, each to the one the partitioner selects. Servers reply to this
+	 * client's reply queue, so those in other regions need a client of its
+	 * endpoint, see {@link JsonRpcSqsServer#setReplySqs}. Set them before
+	 * the first call.
+	 */
+	public void setShards(List<Shard> shards, Partitioner partitioner) {
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException("No shards");
+		}
+		List<Route> routes = new ArrayList<Route>(shards.size());
+		for (Shard shard : shards) {
+			Route route = new Route(shard);
+			route.setCoalescing(coalescingMaxCalls, coalescingLingerMillis);
+			routes.add(route);
+		}
+		List<Route> previous = this.routes;
+		this.partitioner = partitioner;
+		this.routes = Collections.unmodifiableList(routes);
+		for (Route route : previous) {
+			route.close();
+		}
+	}
+
+	/**
+	 * Puts requests into message groups, e.g. by an entity id of their
+	 * params, and numbers them per group. A server with
+	 * {@link JsonRpcSqsServer#setOrderedDispatch ordered dispatch} handles
+	 * the requests of a group one after the other in that order, different
+	 * groups in parallel. The key of a group should name the entity, a
+	 * sequence counter is kept per group.
+	 * <p>
+	 * Calls of a group should go to the same queue, e.g. with a
+	 * {@link com.bma.amazon.sqs.shard.KeyHashPartitioner} on the same key;
+	 * they are not hedged.
+	 *
+	 * @param groups the group of a request, null for none; null to turn
+	 *        grouping off
+	 */
+	public void setMessageGroups(Function<JsonRpcRequest, String> groups) {
+		this.messageGroups = groups;
+	}
+
+	/**
+	 * Sends a call which is not answered within the budget, e.g. the p99
+	 * round trip of the closest region, to the fastest healthy other shard as
+	 * well, with the same id; the first response completes the call. The
+	 * methods of hedged calls may run twice and should be idempotent.
+	 *
+	 * @param budgetMillis 0 to turn hedging off
+	 */
+	public void setHedging(long budgetMillis) {
+		this.hedgeMillis = budgetMillis;
+	}
+
+	/**
+	 * Hands calls to the server of their request queue if it was started in
+	 * this JVM: the request object is put into the server's ring buffer and
+	 * the response object completes the call, nothing is serialized and SQS
+	 * is not called. When the server is busy or stopped the call is sent
+	 * through SQS as usual. Grouped calls and notifications always go through
+	 * SQS, so they stay in order with those of other processes.
+	 */
+	public void setLocalCalls(boolean localCalls) {
+		this.localCalls = localCalls;
+	}
+
+	/**
+	 * Answers calls of the method with the result of an earlier call with
+	 * equal params for the TTL, and lets calls made while an equal one is in
+	 * flight wait for its result. The method should be an idempotent read.
+	 * Results are kept in the {@link #setResultCache(ResultCache) result
+	 * cache}, one of {@link ResultCache#DEFAULT_MAX_WEIGHT} unless set.
+	 */
+	public void cacheResults(String method, long ttl, TimeUnit unit) {
+		if (resultCache == null) {
+			synchronized (cachedMethods) {
+				if (resultCache == null) {
+					setResultCache(new ResultCache());
+				}
+			}
+		}
+		cachedMethods.put(method, unit.toMillis(ttl));
+	}
+
+	/**
+	 * Stops caching the results of the method; those cached stay until they
+	 * expire or are evicted.
+	 */
+	public void uncacheResults(String method) {
+		cachedMethods.remove(method);
+	}
+
+	/**
+	 * Keeps cached results in the given cache, e.g. one shared with other
+	 * clients of the service.
+	 */
+	public void setResultCache(ResultCache resultCache) {
+		resultCache.setMetrics(metrics);
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * @return the cache of the results, null if none is cached
+	 */
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * @return the request queue or the shards, with their measured round trips
+	 */
+	public List<Shard> getShards() {
+		return shardsOf(routes);
+	}
+
+	public CompletableFuture<JsonNode> call(String method, Object params) {
+		return call(method, params, JsonNode.class);
+	}
+
+	public <T> CompletableFuture<T> call(String method, Object params, final Class<T> resultType) {
+		Long ttlMillis = cachedMethods.get(method);
+		ResultCache resultCache = this.resultCache;
+		if (ttlMillis == null || resultCache == null) {
+			return call(null, method, params, resultType);
+		}
+		final JsonNode tree;
+		try {
+			tree = mapper.toTree(params);
+		} catch (RuntimeException e) {
+			CompletableFuture<T> failed = new CompletableFuture<T>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return resultCache.get(method, tree, ttlMillis, () -> call(null, method, tree))
+				.thenApply(result -> mapper.fromTree(result, resultType));
+	}
+
+	/**
+	 * Sends a call to the given shard, one of {@link #getShards()}, without
+	 * hedging; e.g. to probe it.
+	 */
+	public <T> CompletableFuture<T> call(Shard shard, String method, Object params, final Class<T> resultType) {
+		return call(shard, method, params).thenApply(result -> mapper.fromTree(result, resultType));
+	}
+
+	private CompletableFuture<JsonNode> call(Shard shard, String method, Object params) {
+		final long started = System.nanoTime();
+		final String id = clientId + "-" + sequence.incrementAndGet();
+		callCounter.increment();
+		CompletableFuture<JsonRpcResponse> response = pending.register(id);
+		final AtomicBoolean hedged = new AtomicBoolean();
+		Route route = null;
+		boolean local = false;
+		JsonRpcRequest request = null;
+		try {
+			request = group(new JsonRpcRequest(id, method, mapper.toTree(params), replies.getQueueUrl()));
+			route = shard == null ? route(request) : route(shard);
+			local = callLocally(route, request, started);
+			if (!local) {
+				send(route, request, started);
+				if (shard == null && request.getGroup() == null) {
+					scheduleHedge(request, route, response, hedged);
+				}
+			}
+		} catch (RuntimeException e) {
+			pending.fail(id, e);
+		}
+		// a local round trip says nothing about the shard's
+		final Shard target = route == null || local ? null : route.shard;
+		final JsonRpcRequest sent = request;
+		scheduleTimeout(id, response);
+		response.whenComplete((r, e) -> {
+			answered(sent);
+			roundTripTimer.recordSince(started);
+			if (e != null || r.isError()) {
+				errorCounter.increment();
+			}
+			if (e == null && target != null && !hedged.get()) {
+				target.recordRoundTrip(System.nanoTime() - started);
+			}
+		});
+		return response.thenApply(r -> {
+			if (r.isError()) {
+				throw new JsonRpcException(r.getError());
+			}
+			return r.getResult();
+		});
+	}
+
+	/**
+	 * Puts the call into the ring buffer of the route's server if it runs in
+	 * this JVM, to be sent through SQS if the server hands it back.
+	 *
+	 * @return false if the server can not take it
+	 */
+	private boolean callLocally(final Route route, final JsonRpcRequest request, final long started) {
+		if (!localCalls || request.getGroup() != null) {
+			return false;
+		}
+		LocalEndpoint endpoint = LocalEndpoint.of(route.shard.getQueueUrl());
+		if (endpoint == null || !endpoint.offer(new LocalEndpoint.Call(request, pending::complete,
+				() -> send(route, request, started)))) {
+			return false;
+		}
+		localCallCounter.increment();
+		return true;
+	}
+
+	private void send(Route route, final JsonRpcRequest request, final long started) {
+		final Shard sentTo = route.shard;
+		try {
+			route.send(request).whenComplete((messageId, e) -> {
+				if (e != null) {
+					pending.fail(request.getId(), e);
+				} else {
+					sendTimer.recordSince(started);
+					sentTo.recordSend(System.nanoTime() - started);
+				}
+			});
+		} catch (RuntimeException e) {
+			pending.fail(request.getId(), e);
+		}
+	}
+
+	/**
+	 * Sends a request which does not expect a response.
+	 *
+	 * @return future of the SQS message id
+	 */
+	public CompletableFuture<String> notify(String method, Object params) {
+		final JsonRpcRequest request = group(JsonRpcRequest.notification(method, mapper.toTree(params)));
+		// no response tells when it was handled, it counts as answered once it is in the queue
+		return route(request).send(request).whenComplete((messageId, e) -> answered(request));
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return SQS calls made to send requests and, unless the reply queue is
+	 *         shared, to delete responses
+	 */
+	public long getApiCallCount() {
+		long calls = replyChannels == null ? replies.getApiCallCount() : 0;
+		for (Route route : routes) {
+			calls += route.batcher.getApiCallCount();
+		}
+		return calls;
+	}
+
+	public String getReplyQueueUrl() {
+		return replies.getQueueUrl();
+	}
+
+	private JsonRpcRequest group(JsonRpcRequest request) {
+		Function<JsonRpcRequest, String> groups = this.messageGroups;
+		String group = groups == null ? null : groups.apply(request);
+		if (group == null) {
+			return request;
+		}
+		return groupSequences.computeIfAbsent(group, key -> new GroupSequence()).next(request, group, clientId);
+	}
+
+	private void answered(JsonRpcRequest request) {
+		GroupSequence sequence = request == null || request.getGroup() == null ? null
+				: groupSequences.get(request.getGroup());
+		if (sequence != null) {
+			sequence.answered(request.getSequence());
+		}
+	}
+
+	private Route route(Shard shard) {
+		for (Route route : routes) {
+			if (route.shard == shard) {
+				return route;
+			}
+		}
+		throw new IllegalArgumentException("Not a shard of this client: " + shard);
+	}
+
+	/**
+	 * Sends the request to the fastest healthy other shard as well if it is
+	 * not answered within the hedging budget. Only the first shard's round
+	 * trip is measured, and only if it was not hedged.
+	 */
+	private void scheduleHedge(final JsonRpcRequest request, final Route first,
+			CompletableFuture<JsonRpcResponse> response, final AtomicBoolean hedged) {
+		final long budget = hedgeMillis;
+		final List<Route> routes = this.routes;
+		if (budget <= 0 || routes.size() < 2) {
+			return;
+		}
+		final ScheduledFuture<?> task = scheduler.schedule(new Runnable() {
+			public void run() {
+				int second = LeastLatencyPartitioner.fastest(shardsOf(routes), routes.indexOf(first));
+				if (second < 0 || !hedged.compareAndSet(false, true)) {
+					return;
+				}
+				hedgeCounter.increment();
+				routes.get(second).send(request).whenComplete((messageId, e) -> {
+					if (e != null) {
+						log.debug("Failed to hedge " + request.getId(), e);
+					}
+				});
+			}
+		}, budget, TimeUnit.MILLISECONDS);
+		response.whenComplete((r, e) -> task.cancel(false));
+	}
+
+	private Route route(JsonRpcRequest request) {
+		List<Route> routes = this.routes;
+		return routes.size() == 1 ? routes.get(0) : routes.get(partitioner.select(request, shardsOf(routes)));
+	}
+
+	private static List<Shard> shardsOf(List<Route> routes) {
+		List<Shard> shards = new ArrayList<Shard>(routes.size());
+		for (Route route : routes) {
+			shards.add(route.shard);
+		}
+		return shards;
+	}
+
+	private void scheduleTimeout(final String id, CompletableFuture<JsonRpcResponse> response) {
+		final long timeout = timeoutMillis;
+		final ScheduledFuture<?> task = scheduler.schedule(new Runnable() {
+			public void run() {
+				if (pending.fail(id, new TimeoutException("No response for " + id + " in " + timeout + " ms"))) {
+					timeoutCounter.increment();
+				}
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		response.whenComplete((r, e) -> task.cancel(false));
+	}
+
+	/**
+	 * Numbers the requests of a group and tells the server up to which
+	 * sequence they were answered, so a server without a lane of the group,
+	 * e.g. one which just started, does not wait for requests it will never
+	 * get.
+	 */
+	private static class GroupSequence {
+		private long last;
+		private final TreeSet<Long> unanswered = new TreeSet<Long>();
+
+		synchronized JsonRpcRequest next(JsonRpcRequest request, String group, String sender) {
+			long sequence = ++last;
+			long acknowledged = unanswered.isEmpty() ? sequence - 1 : unanswered.first() - 1;
+			unanswered.add(sequence);
+			return request.withGroup(group, sender, sequence, acknowledged);
+		}
+
+		synchronized void answered(long sequence) {
+			unanswered.remove(sequence);
+		}
+	}
+
+	/**
+	 * The batchers sending to one request queue.
+	 */
+	private class Route {
+		final Shard shard;
+		final SendBatcher batcher;
+		volatile CallCoalescer coalescer;
+
+		Route(Shard shard) {
+			this.shard = shard;
+			this.batcher = SendBatcher.create(shard.getSqs(), shard.getQueueUrl(), scheduler, sqsExecutor);
+			this.batcher.setMetrics(metrics);
+		}
+
+		void setCoalescing(int maxCalls, long lingerMillis) {
+			CallCoalescer coalescer = null;
+			if (maxCalls > 1) {
+				coalescer = new CallCoalescer(mapper, shard.getQueueUrl(), scheduler, this::send, maxCalls,
+						CallCoalescer.DEFAULT_MAX_BYTES);
+				coalescer.setLingerMillis(lingerMillis);
+			}
+			CallCoalescer previous = this.coalescer;
+			this.coalescer = coalescer;
+			if (previous != null) {
+				previous.close();
+			}
+		}
+
+		CompletableFuture<String> send(JsonRpcRequest request) {
+			CallCoalescer coalescer = this.coalescer;
+			if (coalescer != null) {
+				return coalescer.add(request);
+			}
+			return send(mapper.writeRequest(request));
+		}
+
+		CompletableFuture<String> send(String body) {
+			ClaimCheck claimCheck = JsonRpcSqsClient.this.claimCheck;
+			if (claimCheck == null) {
+				return batcher.add(body);
+			}
+			return claimCheck.checkIn(body).thenCompose(batcher::add);
+		}
+
+		void close() {
+			CallCoalescer coalescer = this.coalescer;
+			if (coalescer != null) {
+				coalescer.close();
+			}
+			batcher.close();
+		}
+	}
+}
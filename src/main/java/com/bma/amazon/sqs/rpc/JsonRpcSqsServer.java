@@ -0,0 +1,784 @@
+package com.bma.amazon.sqs.rpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectReader;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+import com.bma.amazon.sqs.blob.ClaimCheck;
+import com.bma.amazon.sqs.dedup.DedupCache;
+import com.bma.amazon.sqs.metrics.Counter;
+import com.bma.amazon.sqs.metrics.Gauge;
+import com.bma.amazon.sqs.metrics.MetricNames;
+import com.bma.amazon.sqs.metrics.MetricsRegistry;
+import com.bma.amazon.sqs.metrics.Timer;
+import com.bma.amazon.sqs.transport.Bulkhead;
+import com.bma.amazon.sqs.transport.DaemonThreadFactory;
+import com.bma.amazon.sqs.transport.DeleteBatcher;
+import com.bma.amazon.sqs.transport.MessageListener;
+import com.bma.amazon.sqs.transport.OrderedDispatcher;
+import com.bma.amazon.sqs.transport.ReceiveEngine;
+import com.bma.amazon.sqs.transport.SendBatcher;
+import com.bma.amazon.sqs.transport.ThreadMode;
+
+/**
+ * Reads JSON-RPC requests from a request queue, dispatches them to the
+ * registered method handlers and sends the responses to the reply queue
+ * named in each request.
+ * <p>
+ * Responses are batched per reply queue. A request is deleted, in batches as
+ * well, only after its response was sent, so a failed send leads to a
+ * redelivery instead of a lost response. The batch calls are non-blocking if
+ * the SQS client implements {@link com.bma.amazon.sqs.transport.AsyncSqs}.
+ * <p>
+ * The entries of a JSON-RPC batch are handled in parallel and answered with
+ * one batch per reply queue.
+ * <p>
+ * With a {@link DedupCache} a redelivered request is not handled again: it is
+ * answered with the cached response or, if none was cached, deleted without
+ * an answer. Requests are told apart by JSON-RPC id and reply queue,
+ * notifications by SQS message id.
+ * <p>
+ * With {@link #setOrderedDispatch(int, long) ordered dispatch} the requests
+ * of a message group are handled one after the other, in the order their
+ * sender numbered them.
+ * <p>
+ * A method with a {@link #setBulkhead(String, int, int) bulkhead} runs on
+ * threads of its own, so a slow method can not starve the others. When its
+ * bulkhead is full the message is shed: it is returned to the queue to be
+ * received again after the {@link #setShedDelay(int) shed delay}.
+ * <p>
+ * A started server takes the calls of clients in the same JVM in process,
+ * see {@link JsonRpcSqsClient#setLocalCalls(boolean)}: they wait in a ring
+ * buffer of the {@link #setLocalCapacity(int) local capacity} for one of up
+ * to handlerThreads drainers. Calls it can not take, because the buffer or
+ * their method's bulkhead is full, are sent through SQS instead.
+ */
+public class JsonRpcSqsServer implements MessageListener {
+	private static final Log log = LogFactory.getLog(JsonRpcSqsServer.class);
+
+	private static final int DEFAULT_HANDLER_THREADS = 16;
+	public static final int DEFAULT_BATCH_PARALLELISM = 8;
+	/** built-in method answering with null, for health and latency probes */
+	public static final String PING = "rpc.ping";
+	public static final int DEFAULT_SHED_DELAY_SECONDS = 5;
+	public static final int DEFAULT_LOCAL_CAPACITY = 1024;
+
+	private final AmazonSQS sqs;
+	private final String requestQueueUrl;
+	private final JsonRpcMapper mapper;
+	private final ConcurrentHashMap<String, MethodEntry> methods = new ConcurrentHashMap<String, MethodEntry>();
+	private final ReceiveEngine receiver;
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService sqsExecutor;
+	private final ExecutorService batchExecutor;
+	private final ExecutorService localExecutor;
+	private final int handlerThreads;
+	private volatile int batchParallelism = DEFAULT_BATCH_PARALLELISM;
+	private final DeleteBatcher requestDeleter;
+	private final ConcurrentHashMap<String, SendBatcher> responseBatchers = new ConcurrentHashMap<String, SendBatcher>();
+	private volatile ClaimCheck claimCheck;
+	private volatile DedupCache dedupCache;
+	private volatile Function<String, AmazonSQS> replySqs;
+	private final ThreadMode threadMode;
+	private volatile OrderedDispatcher orderedDispatcher;
+	private volatile int shedDelaySeconds = DEFAULT_SHED_DELAY_SECONDS;
+	private volatile boolean localReplies;
+	private volatile int localCapacity = DEFAULT_LOCAL_CAPACITY;
+	private volatile LocalEndpoint localEndpoint;
+	private volatile MetricsRegistry metrics = MetricsRegistry.NOOP;
+	private Timer handleTimer = MetricsRegistry.NOOP.timer(null);
+	private Timer respondTimer = MetricsRegistry.NOOP.timer(null);
+	private Timer deleteTimer = MetricsRegistry.NOOP.timer(null);
+	private Counter requestCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter errorCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter duplicateCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter shedCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter localReplyCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter localRequestCounter = MetricsRegistry.NOOP.counter(null);
+
+	public JsonRpcSqsServer(AmazonSQS sqs, String requestQueueUrl) {
+		this(sqs, requestQueueUrl, new JsonRpcMapper(), DEFAULT_HANDLER_THREADS);
+	}
+
+	public JsonRpcSqsServer(AmazonSQS sqs, String requestQueueUrl, JsonRpcMapper mapper, int handlerThreads) {
+		this(sqs, requestQueueUrl, mapper, handlerThreads, ThreadMode.getDefault());
+	}
+
+	/**
+	 * @param handlerThreads
+	 *            requests handled at the same time; with virtual threads a
+	 *            limit rather than a pool size, see {@link ReceiveEngine}
+	 * @param threadMode
+	 *            threads of pollers, handlers and blocking SQS calls
+	 */
+	public JsonRpcSqsServer(AmazonSQS sqs, String requestQueueUrl, JsonRpcMapper mapper, int handlerThreads,
+			ThreadMode threadMode) {
+		this.sqs = sqs;
+		this.requestQueueUrl = requestQueueUrl;
+		this.mapper = mapper;
+		this.receiver = new ReceiveEngine(sqs, requestQueueUrl, this, handlerThreads);
+		this.receiver.setThreadMode(threadMode);
+		this.threadMode = threadMode;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("json-rpc-server-timer"));
+		this.sqsExecutor = threadMode.newExecutor("json-rpc-server-sqs");
+		this.batchExecutor = threadMode.newExecutor("json-rpc-server-batch");
+		this.localExecutor = threadMode.newExecutor("json-rpc-server-local");
+		this.handlerThreads = handlerThreads;
+		this.requestDeleter = DeleteBatcher.create(sqs, requestQueueUrl, scheduler, sqsExecutor);
+		this.receiver.setDeleter(requestDeleter);
+		register(PING, params -> null);
+	}
+
+	public JsonRpcSqsServer register(String method, MethodHandler handler) {
+		methods.compute(method, (name, old) -> new MethodEntry(name, handler, old == null ? null : old.bulkhead));
+		return this;
+	}
+
+	/**
+	 * Registers a handler which takes its params bound to the type. Requests
+	 * read from plain JSON bodies bind them straight from the body, without a
+	 * tree in between; the deserializer of the type is built here.
+	 */
+	public <P> JsonRpcSqsServer register(String method, Class<P> type, TypedMethodHandler<P> handler) {
+		return register(method, new TypedHandler<P>(mapper.paramsReader(type), handler));
+	}
+
+	/**
+	 * Runs a registered method on threads of its own, at most maxConcurrent
+	 * requests at the same time and maxQueued waiting for a thread. Messages
+	 * with requests beyond that are shed.
+	 */
+	public void setBulkhead(String method, int maxConcurrent, int maxQueued) {
+		MethodEntry entry = methods.get(method);
+		if (entry == null) {
+			throw new IllegalArgumentException("Method not registered: " + method);
+		}
+		Bulkhead bulkhead = new Bulkhead(method, threadMode.newExecutor("json-rpc-method-" + method), maxConcurrent,
+				maxQueued);
+		bulkhead.setMetrics(metrics, MetricNames.SERVER_METHOD + method);
+		Bulkhead old = entry.bulkhead;
+		entry.bulkhead = bulkhead;
+		if (old != null) {
+			old.close();
+		}
+	}
+
+	/**
+	 * @return the bulkhead of the method, null if it has none
+	 */
+	public Bulkhead getBulkhead(String method) {
+		MethodEntry entry = methods.get(method);
+		return entry == null ? null : entry.bulkhead;
+	}
+
+	/**
+	 * Seconds a shed message stays invisible before it is received again.
+	 */
+	public void setShedDelay(int shedDelaySeconds) {
+		this.shedDelaySeconds = shedDelaySeconds;
+	}
+
+	/**
+	 * Gives access to the poller, prefetch and lease settings, change them
+	 * before {@link #start()}.
+	 */
+	public ReceiveEngine getReceiver() {
+		return receiver;
+	}
+
+	/**
+	 * Reports the server's stage timers and counters, see
+	 * {@link MetricNames}. Set it before {@link #start()}.
+	 */
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+		for (MethodEntry entry : methods.values()) {
+			entry.timer = metrics.timer(MetricNames.SERVER_METHOD + entry.name + MetricNames.HANDLE);
+			Bulkhead bulkhead = entry.bulkhead;
+			if (bulkhead != null) {
+				bulkhead.setMetrics(metrics, MetricNames.SERVER_METHOD + entry.name);
+			}
+		}
+		handleTimer = metrics.timer(MetricNames.SERVER_HANDLE);
+		respondTimer = metrics.timer(MetricNames.SERVER_RESPOND);
+		deleteTimer = metrics.timer(MetricNames.SERVER_DELETE);
+		requestCounter = metrics.counter(MetricNames.SERVER_REQUESTS);
+		errorCounter = metrics.counter(MetricNames.SERVER_ERRORS);
+		duplicateCounter = metrics.counter(MetricNames.SERVER_DUPLICATES);
+		shedCounter = metrics.counter(MetricNames.SERVER_SHED);
+		localReplyCounter = metrics.counter(MetricNames.SERVER_LOCAL_REPLIES);
+		localRequestCounter = metrics.counter(MetricNames.SERVER_LOCAL_REQUESTS);
+		requestDeleter.setMetrics(metrics);
+		for (SendBatcher batcher : responseBatchers.values()) {
+			batcher.setMetrics(metrics);
+		}
+		receiver.setMetrics(metrics, MetricNames.SERVER);
+		metrics.gauge(MetricNames.SERVER_GROUPS, new Gauge() {
+			public long value() {
+				OrderedDispatcher dispatcher = orderedDispatcher;
+				return dispatcher == null ? 0 : dispatcher.getActiveGroups();
+			}
+		});
+		metrics.gauge(MetricNames.SERVER_LOCAL_QUEUED, new Gauge() {
+			public long value() {
+				LocalEndpoint endpoint = localEndpoint;
+				return endpoint == null ? 0 : endpoint.getQueued();
+			}
+		});
+	}
+
+	/**
+	 * Reads requests that were checked in with a {@link ClaimCheck} and sends
+	 * large responses through it. Without it such requests are dropped as
+	 * malformed.
+	 */
+	public void setClaimCheck(ClaimCheck claimCheck) {
+		this.claimCheck = claimCheck;
+	}
+
+	/**
+	 * Skips requests handled before, see {@link DedupCache}. Share one cache
+	 * between the servers of a request queue.
+	 */
+	public void setDedupCache(DedupCache dedupCache) {
+		this.dedupCache = dedupCache;
+	}
+
+	/**
+	 * Handles the requests of a message group one after the other in the
+	 * order they were sent, and different groups in parallel, see
+	 * {@link OrderedDispatcher}. Requests without a group are handled as
+	 * before. Set it before {@link #start()}.
+	 *
+	 * @param maxPending ordered requests waiting or being handled at most,
+	 *        the receiver does not take further messages meanwhile
+	 * @param reorderMillis how long a request waits for its predecessors
+	 */
+	public void setOrderedDispatch(int maxPending, long reorderMillis) {
+		orderedDispatcher = new OrderedDispatcher(threadMode.newExecutor("json-rpc-server-group"), scheduler,
+				maxPending, reorderMillis, OrderedDispatcher.DEFAULT_IDLE_MILLIS);
+	}
+
+	/**
+	 * Picks the client responses are sent with by reply queue URL, for
+	 * clients whose reply queues are in other regions than the request
+	 * queue. Without it they are sent with the server's client.
+	 */
+	public void setReplySqs(Function<String, AmazonSQS> replySqs) {
+		this.replySqs = replySqs;
+	}
+
+	/**
+	 * Hands responses to the {@link ReplyChannel} of their reply queue if it
+	 * is in the same JVM, skipping SQS. Their reply stage is then not timed.
+	 */
+	public void setLocalReplies(boolean localReplies) {
+		this.localReplies = localReplies;
+	}
+
+	/**
+	 * Calls of clients in the same JVM which may wait for a drainer, 0 to
+	 * take none in process. Set it before {@link #start()}.
+	 */
+	public void setLocalCapacity(int localCapacity) {
+		this.localCapacity = localCapacity;
+	}
+
+	/**
+	 * Threads handling the entries of one JSON-RPC batch, the receiving
+	 * handler thread included.
+	 */
+	public void setBatchParallelism(int batchParallelism) {
+		if (batchParallelism < 1) {
+			throw new IllegalArgumentException("Invalid batch parallelism " + batchParallelism);
+		}
+		this.batchParallelism = batchParallelism;
+	}
+
+	public void start() {
+		receiver.start();
+		if (localCapacity > 0) {
+			localEndpoint = new LocalEndpoint(requestQueueUrl, localCapacity, this::handleLocal, localExecutor,
+					handlerThreads);
+			localEndpoint.open();
+		}
+	}
+
+	public void stop() {
+		LocalEndpoint endpoint = this.localEndpoint;
+		if (endpoint != null) {
+			endpoint.close();
+		}
+		receiver.stop();
+		OrderedDispatcher dispatcher = this.orderedDispatcher;
+		if (dispatcher != null) {
+			dispatcher.close();
+		}
+		for (MethodEntry entry : methods.values()) {
+			Bulkhead bulkhead = entry.bulkhead;
+			if (bulkhead != null) {
+				bulkhead.close();
+			}
+		}
+		for (SendBatcher batcher : responseBatchers.values()) {
+			batcher.close();
+		}
+		requestDeleter.close();
+		scheduler.shutdownNow();
+		sqsExecutor.shutdown();
+		batchExecutor.shutdown();
+		localExecutor.shutdown();
+	}
+
+	public String getRequestQueueUrl() {
+		return requestQueueUrl;
+	}
+
+	/**
+	 * @return SQS calls made to send responses and delete requests
+	 */
+	public long getApiCallCount() {
+		long calls = requestDeleter.getApiCallCount();
+		for (SendBatcher batcher : responseBatchers.values()) {
+			calls += batcher.getApiCallCount();
+		}
+		return calls;
+	}
+
+	public void onMessage(final Message message) {
+		List<JsonRpcRequest> requests;
+		try {
+			requests = readRequests(message.getBody());
+		} catch (IOException e) {
+			log.warn("Can not fetch request " + message.getMessageId() + ", it will be redelivered: " + e.getMessage());
+			receiver.release(message, e);
+			return;
+		} catch (JsonRpcException e) {
+			// there is nobody to reply to, drop the message so it is not redelivered forever
+			log.warn("Dropping malformed request " + message.getMessageId() + ": " + e.getMessage());
+			requestCounter.increment();
+			errorCounter.increment();
+			delete(message);
+			return;
+		}
+		requestCounter.add(requests.size());
+
+		final DedupCache dedupCache = this.dedupCache;
+		final JsonRpcResponse[] responses = new JsonRpcResponse[requests.size()];
+		final List<String> handledKeys = new ArrayList<String>(requests.size());
+		final List<JsonRpcRequest> fresh;
+		final List<Integer> freshIndexes = new ArrayList<Integer>(requests.size());
+		boolean pending = false;
+		if (dedupCache == null) {
+			fresh = requests;
+			for (int i = 0; i < requests.size(); i++) {
+				freshIndexes.add(i);
+			}
+		} else {
+			fresh = new ArrayList<JsonRpcRequest>(requests.size());
+			for (int i = 0; i < requests.size(); i++) {
+				String key = dedupKey(message, i, requests.get(i));
+				DedupCache.State state = dedupCache.begin(key);
+				if (state == DedupCache.State.NEW) {
+					handledKeys.add(key);
+					fresh.add(requests.get(i));
+					freshIndexes.add(i);
+					continue;
+				}
+				duplicateCounter.increment();
+				if (state == DedupCache.State.IN_PROGRESS) {
+					pending = true;
+				} else {
+					String cached = dedupCache.getResponse(key);
+					if (cached != null) {
+						responses[i] = mapper.readResponse(cached);
+					}
+				}
+			}
+		}
+		final boolean inProgress = pending;
+		Bulkhead[] bulkheads = new Bulkhead[fresh.size()];
+		int admitted = admit(fresh, bulkheads);
+		if (admitted < 0) {
+			log.debug("Shedding request " + message.getMessageId() + ", a bulkhead is full");
+			shedCounter.increment();
+			forget(dedupCache, handledKeys);
+			receiver.release(message, shedDelaySeconds);
+			return;
+		}
+		handleAsync(fresh, admitted == 0 ? null : bulkheads).whenComplete((handled, e) -> {
+			if (e != null) {
+				log.warn("Failed to handle request " + message.getMessageId() + ", it will be redelivered", e);
+				forget(dedupCache, handledKeys);
+				receiver.release(message, e);
+				return;
+			}
+			for (int j = 0; j < handled.size(); j++) {
+				JsonRpcResponse response = handled.get(j);
+				responses[freshIndexes.get(j)] = response;
+				if (dedupCache != null) {
+					dedupCache.complete(handledKeys.get(j),
+							fresh.get(j).isNotification() ? null : mapper.writeResponse(response));
+				}
+			}
+			respond(message, requests, Arrays.asList(responses), handledKeys, inProgress);
+		});
+	}
+
+	private void respond(final Message message, List<JsonRpcRequest> requests, List<JsonRpcResponse> responses,
+			final List<String> handledKeys, final boolean inProgress) {
+		Map<String, List<JsonRpcResponse>> replies = new LinkedHashMap<String, List<JsonRpcResponse>>();
+		for (int i = 0; i < requests.size(); i++) {
+			JsonRpcRequest request = requests.get(i);
+			if (!request.isNotification() && request.getReplyTo() != null && responses.get(i) != null) {
+				replies.computeIfAbsent(request.getReplyTo(), replyTo -> new ArrayList<JsonRpcResponse>())
+						.add(responses.get(i));
+			}
+		}
+		if (replies.isEmpty()) {
+			deleteUnlessInProgress(message, inProgress);
+			return;
+		}
+		final long respondStarted = System.nanoTime();
+		List<CompletableFuture<String>> sent = new ArrayList<CompletableFuture<String>>(replies.size());
+		for (Map.Entry<String, List<JsonRpcResponse>> reply : replies.entrySet()) {
+			ReplyChannel channel = localReplies ? ReplyChannel.local(reply.getKey()) : null;
+			if (channel != null) {
+				channel.deliver(reply.getValue());
+				localReplyCounter.add(reply.getValue().size());
+			} else {
+				sent.add(sendResponse(reply.getKey(), mapper.writeResponses(reply.getValue())));
+			}
+		}
+		CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[sent.size()])).whenComplete((result, e) -> {
+			if (e == null) {
+				respondTimer.recordSince(respondStarted);
+				deleteUnlessInProgress(message, inProgress);
+			} else {
+				log.warn("Failed to send response to " + replies.keySet() + ", request will be redelivered", e);
+				forget(dedupCache, handledKeys);
+				receiver.release(message, e);
+			}
+		});
+	}
+
+	/**
+	 * Handles a call of a client in the same JVM on a drainer thread, in the
+	 * method's bulkhead if it has one. If that is full the call is sent
+	 * through SQS and shed there if need be.
+	 */
+	private void handleLocal(final LocalEndpoint.Call call) {
+		MethodEntry entry = methods.get(call.request.getMethod());
+		Bulkhead bulkhead = entry == null ? null : entry.bulkhead;
+		if (bulkhead == null) {
+			countLocal();
+			call.onResponse.accept(handle(call.request));
+		} else if (bulkhead.tryAcquire()) {
+			countLocal();
+			bulkhead.submit(() -> handle(call.request)).whenComplete((response, e) -> {
+				if (e == null) {
+					call.onResponse.accept(response);
+				} else {
+					call.fallBack.run();
+				}
+			});
+		} else {
+			call.fallBack.run();
+		}
+	}
+
+	private void countLocal() {
+		requestCounter.increment();
+		localRequestCounter.increment();
+	}
+
+	/**
+	 * The redelivery of requests which were not answered has to be handled
+	 * again.
+	 */
+	private static void forget(DedupCache dedupCache, List<String> handledKeys) {
+		if (dedupCache != null) {
+			for (String key : handledKeys) {
+				dedupCache.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * An earlier delivery of the message still being handled deletes it when
+	 * done, this one is not leased and becomes visible again after its
+	 * timeout.
+	 */
+	private void deleteUnlessInProgress(Message message, boolean inProgress) {
+		if (inProgress) {
+			log.debug("Request " + message.getMessageId() + " is still being handled, skipping its redelivery");
+			receiver.complete(message);
+		} else {
+			delete(message);
+		}
+	}
+
+	private static String dedupKey(Message message, int index, JsonRpcRequest request) {
+		if (request.isNotification()) {
+			return index == 0 ? message.getMessageId() : message.getMessageId() + "#" + index;
+		}
+		return request.getId() + "@" + request.getReplyTo();
+	}
+
+	/**
+	 * Takes a place in the bulkheads of the requests' methods, in all of them
+	 * or none. Ordered requests are isolated in their groups' lanes instead.
+	 *
+	 * @param bulkheads receives the bulkhead of each request, if any
+	 * @return places taken, -1 if a bulkhead is full
+	 */
+	private int admit(List<JsonRpcRequest> requests, Bulkhead[] bulkheads) {
+		boolean ordered = orderedDispatcher != null;
+		int admitted = 0;
+		for (int i = 0; i < requests.size(); i++) {
+			JsonRpcRequest request = requests.get(i);
+			MethodEntry entry = methods.get(request.getMethod());
+			Bulkhead bulkhead = entry == null ? null : entry.bulkhead;
+			if (bulkhead == null || ordered && request.getGroup() != null) {
+				continue;
+			}
+			if (!bulkhead.tryAcquire()) {
+				for (int j = 0; j < i; j++) {
+					if (bulkheads[j] != null) {
+						bulkheads[j].release();
+						bulkheads[j] = null;
+					}
+				}
+				return -1;
+			}
+			bulkheads[i] = bulkhead;
+			admitted++;
+		}
+		return admitted;
+	}
+
+	/**
+	 * Handles ordered requests in their groups' lanes, requests of methods
+	 * with a bulkhead in it and the others at once.
+	 *
+	 * @param bulkheads of the requests as admitted, null if none has one
+	 */
+	private CompletableFuture<List<JsonRpcResponse>> handleAsync(List<JsonRpcRequest> requests,
+			Bulkhead[] bulkheads) {
+		OrderedDispatcher dispatcher = this.orderedDispatcher;
+		if (bulkheads == null && (dispatcher == null || !hasGroup(requests))) {
+			return CompletableFuture.completedFuture(handle(requests));
+		}
+		List<CompletableFuture<JsonRpcResponse>> handled = new ArrayList<CompletableFuture<JsonRpcResponse>>();
+		for (int i = 0; i < requests.size(); i++) {
+			final JsonRpcRequest request = requests.get(i);
+			if (bulkheads != null && bulkheads[i] != null) {
+				handled.add(bulkheads[i].submit(() -> handle(request)));
+			} else if (dispatcher != null && request.getGroup() != null) {
+				handled.add(dispatcher.submit(request.getGroup(), request.getSender(), request.getSequence(),
+						request.getAcknowledged(), () -> handle(request)));
+			} else {
+				handled.add(CompletableFuture.completedFuture(handle(request)));
+			}
+		}
+		return CompletableFuture.allOf(handled.toArray(new CompletableFuture<?>[handled.size()])).thenApply(v -> {
+			List<JsonRpcResponse> responses = new ArrayList<JsonRpcResponse>(handled.size());
+			for (CompletableFuture<JsonRpcResponse> response : handled) {
+				responses.add(response.join());
+			}
+			return responses;
+		});
+	}
+
+	private static boolean hasGroup(List<JsonRpcRequest> requests) {
+		for (JsonRpcRequest request : requests) {
+			if (request.getGroup() != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private List<JsonRpcResponse> handle(List<JsonRpcRequest> requests) {
+		switch (requests.size()) {
+		case 0:
+			return Collections.emptyList();
+		case 1:
+			return Collections.singletonList(handle(requests.get(0)));
+		default:
+			return handleAll(requests);
+		}
+	}
+
+	private JsonRpcResponse handle(JsonRpcRequest request) {
+		long started = System.nanoTime();
+		MethodEntry entry = methods.get(request.getMethod());
+		JsonRpcResponse response = invoke(request, entry);
+		handleTimer.recordSince(started);
+		if (entry != null) {
+			entry.timer.recordSince(started);
+		}
+		if (response.isError()) {
+			errorCounter.increment();
+		}
+		return response;
+	}
+
+	/**
+	 * Handles the entries of a batch on the calling thread and up to
+	 * batchParallelism - 1 threads of the executor, each taking the next
+	 * entry until none is left.
+	 */
+	private List<JsonRpcResponse> handleAll(final List<JsonRpcRequest> requests) {
+		final JsonRpcResponse[] responses = new JsonRpcResponse[requests.size()];
+		final AtomicInteger next = new AtomicInteger();
+		Runnable worker = () -> {
+			int i;
+			while ((i = next.getAndIncrement()) < responses.length) {
+				responses[i] = handle(requests.get(i));
+			}
+		};
+		List<CompletableFuture<Void>> helpers = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 1; i < Math.min(batchParallelism, requests.size()); i++) {
+			try {
+				helpers.add(CompletableFuture.runAsync(worker, batchExecutor));
+			} catch (RejectedExecutionException e) {
+				// stopping, the calling thread handles the rest
+				break;
+			}
+		}
+		worker.run();
+		CompletableFuture.allOf(helpers.toArray(new CompletableFuture<?>[helpers.size()])).join();
+		return Arrays.asList(responses);
+	}
+
+	/**
+	 * Runs the method of a request in the calling thread.
+	 */
+	public JsonRpcResponse invoke(JsonRpcRequest request) {
+		return invoke(request, methods.get(request.getMethod()));
+	}
+
+	private JsonRpcResponse invoke(JsonRpcRequest request, MethodEntry entry) {
+		if (entry == null) {
+			return JsonRpcResponse.failure(request.getId(),
+					new JsonRpcError(JsonRpcError.METHOD_NOT_FOUND, "Method not found: " + request.getMethod()));
+		}
+		try {
+			MethodHandler handler = entry.handler;
+			Object result = handler instanceof TypedHandler ? ((TypedHandler<?>) handler).handle(request)
+					: handler.handle(request.getParams());
+			return JsonRpcResponse.success(request.getId(), mapper.toTree(result));
+		} catch (JsonRpcException e) {
+			return JsonRpcResponse.failure(request.getId(), e.getError());
+		} catch (Exception e) {
+			log.warn("Method " + request.getMethod() + " failed", e);
+			return JsonRpcResponse.failure(request.getId(),
+					new JsonRpcError(JsonRpcError.INTERNAL_ERROR, String.valueOf(e.getMessage())));
+		}
+	}
+
+	private List<JsonRpcRequest> readRequests(String body) throws IOException {
+		ClaimCheck claimCheck = this.claimCheck;
+		if (claimCheck != null && claimCheck.isReference(body)) {
+			return mapper.readRequests(claimCheck.open(body));
+		}
+		return mapper.readRequests(body);
+	}
+
+	private CompletableFuture<String> sendResponse(String replyTo, String body) {
+		ClaimCheck claimCheck = this.claimCheck;
+		if (claimCheck == null) {
+			return responseBatcher(replyTo).add(body);
+		}
+		return claimCheck.checkIn(body).thenCompose(responseBatcher(replyTo)::add);
+	}
+
+	private SendBatcher responseBatcher(String replyTo) {
+		SendBatcher batcher = responseBatchers.get(replyTo);
+		if (batcher == null) {
+			Function<String, AmazonSQS> replySqs = this.replySqs;
+			AmazonSQS replyClient = replySqs == null ? sqs : replySqs.apply(replyTo);
+			batcher = SendBatcher.create(replyClient, replyTo, scheduler, sqsExecutor);
+			batcher.setMetrics(metrics);
+			SendBatcher existing = responseBatchers.putIfAbsent(replyTo, batcher);
+			if (existing != null) {
+				batcher = existing;
+			}
+		}
+		return batcher;
+	}
+
+	private void delete(Message message) {
+		final long started = System.nanoTime();
+		requestDeleter.add(message.getReceiptHandle()).whenComplete((result, e) -> {
+			receiver.complete(message);
+			if (e == null) {
+				deleteTimer.recordSince(started);
+				ClaimCheck claimCheck = this.claimCheck;
+				if (claimCheck != null) {
+					claimCheck.release(message.getBody());
+				}
+			} else {
+				log.warn("Failed to delete request " + message.getMessageId() + ", it will be redelivered", e);
+			}
+		});
+	}
+
+	/**
+	 * A method of the dispatch table.
+	 */
+	private class MethodEntry {
+		final String name;
+		final MethodHandler handler;
+		volatile Bulkhead bulkhead;
+		volatile Timer timer;
+
+		MethodEntry(String name, MethodHandler handler, Bulkhead bulkhead) {
+			this.name = name;
+			this.handler = handler;
+			this.bulkhead = bulkhead;
+			this.timer = metrics.timer(MetricNames.SERVER_METHOD + name + MetricNames.HANDLE);
+		}
+	}
+
+	/**
+	 * Binds the params before calling a typed handler.
+	 */
+	private class TypedHandler<P> implements MethodHandler {
+		private final ObjectReader reader;
+		private final TypedMethodHandler<P> handler;
+
+		TypedHandler(ObjectReader reader, TypedMethodHandler<P> handler) {
+			this.reader = reader;
+			this.handler = handler;
+		}
+
+		Object handle(JsonRpcRequest request) throws Exception {
+			return handler.handle(mapper.<P> readParams(request, reader));
+		}
+
+		public Object handle(JsonNode params) throws Exception {
+			return handler.handle(params == null || params.isNull() ? null : reader.<P> readValue(params));
+		}
+	}
+}
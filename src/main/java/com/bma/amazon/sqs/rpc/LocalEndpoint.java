@@ -0,0 +1,152 @@
+package com.bma.amazon.sqs.rpc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.bma.amazon.sqs.transport.RingBuffer;
+
+/**
+ * The in-process entrance of a started {@link JsonRpcSqsServer}, known by
+ * its request queue URL to the clients of the same JVM. Clients put calls
+ * into a ring buffer, as request objects, and up to a number of drainers
+ * take them out and handle them on the server's threads; no message is
+ * written, sent or received.
+ * <p>
+ * A call the endpoint can not take, because its buffer is full or the
+ * server is stopping, is handed back to the client to be sent through SQS.
+ */
+class LocalEndpoint {
+	private static final ConcurrentHashMap<String, LocalEndpoint> local = new ConcurrentHashMap<String, LocalEndpoint>();
+
+	private final String queueUrl;
+	private final RingBuffer<Call> calls;
+	private final Consumer<Call> handler;
+	private final ExecutorService executor;
+	private final int maxDrainers;
+	private final AtomicInteger drainers = new AtomicInteger();
+	private volatile boolean open;
+
+	/**
+	 * @param handler handles a call on a drainer thread, completing or
+	 *        falling back with it
+	 */
+	LocalEndpoint(String queueUrl, int capacity, Consumer<Call> handler, ExecutorService executor, int maxDrainers) {
+		this.queueUrl = queueUrl;
+		this.calls = new RingBuffer<Call>(capacity);
+		this.handler = handler;
+		this.executor = executor;
+		this.maxDrainers = maxDrainers;
+	}
+
+	/**
+	 * @return the endpoint of the server of the request queue in this JVM,
+	 *         null if there is none
+	 */
+	static LocalEndpoint of(String queueUrl) {
+		return local.get(queueUrl);
+	}
+
+	/**
+	 * Makes the endpoint known, unless another server of the queue in this
+	 * JVM has one already.
+	 */
+	void open() {
+		open = true;
+		local.putIfAbsent(queueUrl, this);
+	}
+
+	/**
+	 * Takes no further calls and hands those not yet handled back to their
+	 * clients.
+	 */
+	void close() {
+		open = false;
+		local.remove(queueUrl, this);
+		fallBackAll();
+	}
+
+	/**
+	 * @return false if the call was not taken and should be sent through SQS
+	 */
+	boolean offer(Call call) {
+		if (!open || !calls.offer(call)) {
+			return false;
+		}
+		if (!open) {
+			// closed meanwhile, nobody may drain the buffer any more
+			fallBackAll();
+		} else {
+			schedule();
+		}
+		return true;
+	}
+
+	/**
+	 * @return calls waiting for a drainer
+	 */
+	int getQueued() {
+		return calls.size();
+	}
+
+	private void schedule() {
+		for (;;) {
+			int running = drainers.get();
+			if (running >= maxDrainers || calls.isEmpty()) {
+				return;
+			}
+			if (drainers.compareAndSet(running, running + 1)) {
+				break;
+			}
+		}
+		try {
+			executor.execute(this::drain);
+		} catch (RejectedExecutionException e) {
+			drainers.decrementAndGet();
+			fallBackAll();
+		}
+	}
+
+	private void drain() {
+		Call call;
+		while (open && (call = calls.poll()) != null) {
+			handler.accept(call);
+		}
+		drainers.decrementAndGet();
+		if (open) {
+			// a call offered after the last poll found all drainers busy
+			schedule();
+		} else {
+			fallBackAll();
+		}
+	}
+
+	private void fallBackAll() {
+		Call call;
+		while ((call = calls.poll()) != null) {
+			call.fallBack.run();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "LocalEndpoint " + queueUrl;
+	}
+
+	/**
+	 * A request with the client's callbacks.
+	 */
+	static final class Call {
+		final JsonRpcRequest request;
+		final Consumer<JsonRpcResponse> onResponse;
+		final Runnable fallBack;
+
+		Call(JsonRpcRequest request, Consumer<JsonRpcResponse> onResponse, Runnable fallBack) {
+			this.request = request;
+			this.onResponse = onResponse;
+			this.fallBack = fallBack;
+		}
+	}
+}
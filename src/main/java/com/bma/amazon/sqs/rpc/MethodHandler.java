@@ -0,0 +1,15 @@
+package com.bma.amazon.sqs.rpc;
+
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * Server side implementation of a single JSON-RPC method.
+ */
+public interface MethodHandler {
+
+	/**
+	 * @param params request params, may be null
+	 * @return result object, converted to JSON by the server
+	 */
+	Object handle(JsonNode params) throws Exception;
+}
@@ -0,0 +1,50 @@
+package com.bma.amazon.sqs.rpc;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Calls which are waiting for a response, keyed by JSON-RPC id. Responses
+ * can arrive in any order and from any thread.
+ */
+public class PendingRequests {
+	private final ConcurrentHashMap<String, CompletableFuture<JsonRpcResponse>> pending =
+			new ConcurrentHashMap<String, CompletableFuture<JsonRpcResponse>>();
+
+	public CompletableFuture<JsonRpcResponse> register(String id) {
+		CompletableFuture<JsonRpcResponse> future = new CompletableFuture<JsonRpcResponse>();
+		if (pending.putIfAbsent(id, future) != null) {
+			throw new IllegalStateException("Request " + id + " is already pending");
+		}
+		return future;
+	}
+
+	/**
+	 * @return false if nobody waits for the response any more, e.g. it is a
+	 *         redelivery or the call has timed out
+	 */
+	public boolean complete(JsonRpcResponse response) {
+		CompletableFuture<JsonRpcResponse> future = pending.remove(response.getId());
+		return future != null && future.complete(response);
+	}
+
+	public boolean fail(String id, Throwable cause) {
+		CompletableFuture<JsonRpcResponse> future = pending.remove(id);
+		return future != null && future.completeExceptionally(cause);
+	}
+
+	public void failAll(Throwable cause) {
+		Iterator<Map.Entry<String, CompletableFuture<JsonRpcResponse>>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			CompletableFuture<JsonRpcResponse> future = it.next().getValue();
+			it.remove();
+			future.completeExceptionally(cause);
+		}
+	}
+
+	public int size() {
+		return pending.size();
+	}
+}
@@ -0,0 +1,83 @@
+package com.bma.amazon.sqs.rpc;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+
+/**
+ * A JSON value left unparsed in the body it was read from. It is parsed only
+ * when asked for, straight from the body: the text is neither copied nor
+ * turned into a tree first, and the parser works in the buffers Jackson
+ * recycles per thread.
+ */
+final class RawJson {
+	private final ObjectMapper mapper;
+	private final String body;
+	private final int offset;
+	private final int length;
+
+	RawJson(ObjectMapper mapper, String body, int offset, int length) {
+		this.mapper = mapper;
+		this.body = body;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	JsonNode toTree() throws IOException {
+		JsonParser parser = parser();
+		try {
+			return mapper.readTree(parser);
+		} finally {
+			parser.close();
+		}
+	}
+
+	<T> T read(ObjectReader reader) throws IOException {
+		JsonParser parser = parser();
+		try {
+			return reader.<T> readValue(parser);
+		} finally {
+			parser.close();
+		}
+	}
+
+	int length() {
+		return length;
+	}
+
+	private JsonParser parser() throws IOException {
+		return mapper.getJsonFactory().createJsonParser(new Window());
+	}
+
+	@Override
+	public String toString() {
+		return body.substring(offset, offset + length);
+	}
+
+	/**
+	 * Reads the value's part of the body.
+	 */
+	private class Window extends Reader {
+		private int position = offset;
+		private final int end = offset + length;
+
+		@Override
+		public int read(char[] buffer, int off, int len) {
+			if (position >= end) {
+				return -1;
+			}
+			int count = Math.min(len, end - position);
+			body.getChars(position, position + count, buffer, off);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package com.bma.amazon.sqs.rpc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+import com.bma.amazon.sqs.blob.ClaimCheck;
+import com.bma.amazon.sqs.metrics.MetricsRegistry;
+import com.bma.amazon.sqs.transport.DeleteBatcher;
+import com.bma.amazon.sqs.transport.MessageListener;
+import com.bma.amazon.sqs.transport.ReceiveEngine;
+import com.bma.amazon.sqs.transport.ThreadMode;
+
+/**
+ * A reply queue with its pollers, serving the clients attached to it. The
+ * JSON-RPC id of a call starts with the id of the client which made it, so
+ * a response is routed to that client's pending calls by its id alone.
+ * <p>
+ * A started channel is known to the servers of the same JVM, which hand
+ * responses to it directly instead of sending them through SQS, see
+ * {@link JsonRpcSqsServer#setLocalReplies(boolean)}.
+ */
+public class ReplyChannel implements MessageListener, Closeable {
+	private static final Log log = LogFactory.getLog(ReplyChannel.class);
+
+	private static final int HANDLER_THREADS = 2;
+	private static final ConcurrentHashMap<String, ReplyChannel> local = new ConcurrentHashMap<String, ReplyChannel>();
+
+	private final String queueUrl;
+	private final JsonRpcMapper mapper;
+	private final ReceiveEngine receiver;
+	private final DeleteBatcher deleter;
+	private final ConcurrentHashMap<String, PendingRequests> clients = new ConcurrentHashMap<String, PendingRequests>();
+	private volatile ClaimCheck claimCheck;
+	private volatile long idleSince = System.nanoTime();
+
+	ReplyChannel(AmazonSQS sqs, String queueUrl, JsonRpcMapper mapper, ScheduledExecutorService scheduler,
+			ExecutorService executor, ThreadMode threadMode) {
+		this.queueUrl = queueUrl;
+		this.mapper = mapper;
+		this.receiver = new ReceiveEngine(sqs, queueUrl, this, HANDLER_THREADS);
+		this.receiver.setThreadMode(threadMode);
+		this.deleter = DeleteBatcher.create(sqs, queueUrl, scheduler, executor);
+		this.receiver.setDeleter(deleter);
+	}
+
+	/**
+	 * @return the started channel of the reply queue in this JVM, null if
+	 *         there is none
+	 */
+	static ReplyChannel local(String queueUrl) {
+		return local.get(queueUrl);
+	}
+
+	public void start() {
+		receiver.start();
+		local.put(queueUrl, this);
+	}
+
+	public void close() {
+		local.remove(queueUrl, this);
+		receiver.stop();
+		deleter.close();
+	}
+
+	void attach(String clientId, PendingRequests pending) {
+		clients.put(clientId, pending);
+	}
+
+	void detach(String clientId) {
+		if (clients.remove(clientId) != null && clients.isEmpty()) {
+			idleSince = System.nanoTime();
+		}
+	}
+
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * @return nanos since the last client detached, 0 while there are any
+	 */
+	long getIdleNanos() {
+		return clients.isEmpty() ? System.nanoTime() - idleSince : 0;
+	}
+
+	public String getQueueUrl() {
+		return queueUrl;
+	}
+
+	/**
+	 * Gives access to the poller, prefetch and lease settings of the reply
+	 * queue.
+	 */
+	public ReceiveEngine getReceiver() {
+		return receiver;
+	}
+
+	/**
+	 * Reads responses the server sent through the claim check's blob store.
+	 */
+	public void setClaimCheck(ClaimCheck claimCheck) {
+		this.claimCheck = claimCheck;
+	}
+
+	public void setMetrics(MetricsRegistry metrics, String prefix) {
+		receiver.setMetrics(metrics, prefix);
+		deleter.setMetrics(metrics);
+	}
+
+	/**
+	 * @return SQS calls made to delete responses
+	 */
+	long getApiCallCount() {
+		return deleter.getApiCallCount();
+	}
+
+	public void onMessage(final Message message) {
+		final ClaimCheck claimCheck = this.claimCheck;
+		try {
+			deliver(claimCheck != null && claimCheck.isReference(message.getBody())
+					? mapper.readResponses(claimCheck.open(message.getBody()))
+					: mapper.readResponses(message.getBody()));
+		} catch (IOException e) {
+			log.warn("Can not fetch response " + message.getMessageId() + ", it will be redelivered: " + e.getMessage());
+			receiver.release(message, e);
+			return;
+		} catch (JsonRpcException e) {
+			log.warn("Dropping malformed response " + message.getMessageId() + ": " + e.getMessage());
+		}
+		deleter.add(message.getReceiptHandle()).whenComplete((result, e) -> {
+			receiver.complete(message);
+			if (e == null && claimCheck != null) {
+				claimCheck.release(message.getBody());
+			}
+		});
+	}
+
+	/**
+	 * Completes the calls the responses answer.
+	 */
+	void deliver(List<JsonRpcResponse> responses) {
+		for (JsonRpcResponse response : responses) {
+			String clientId = clientIdOf(response.getId());
+			PendingRequests pending = clientId == null ? null : clients.get(clientId);
+			if (pending == null || !pending.complete(response)) {
+				log.debug("No pending call for response " + response.getId());
+			}
+		}
+	}
+
+	/**
+	 * @return the client part of a call id, see {@link JsonRpcSqsClient}
+	 */
+	private static String clientIdOf(String id) {
+		int dash = id == null ? -1 : id.lastIndexOf('-');
+		return dash < 0 ? null : id.substring(0, dash);
+	}
+
+	@Override
+	public String toString() {
+		return "ReplyChannel " + queueUrl;
+	}
+}
@@ -0,0 +1,317 @@
+package com.bma.amazon.sqs.rpc;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.ListQueuesRequest;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+import com.bma.amazon.sqs.blob.ClaimCheck;
+import com.bma.amazon.sqs.metrics.Gauge;
+import com.bma.amazon.sqs.metrics.MetricNames;
+import com.bma.amazon.sqs.metrics.MetricsRegistry;
+import com.bma.amazon.sqs.transport.DaemonThreadFactory;
+import com.bma.amazon.sqs.transport.QueueUrlCache;
+import com.bma.amazon.sqs.transport.ThreadMode;
+
+/**
+ * A small pool of long lived reply queues shared by many clients, so a
+ * client costs neither a CreateQueue and DeleteQueue nor pollers of its own.
+ * A client is attached to the channel with the fewest clients; a new one is
+ * opened while that one has clients and there are less than maxChannels.
+ * <p>
+ * Reply queues are temporary: a channel without clients for the idle time
+ * is closed and its queue deleted. The queues are named
+ * {@code <prefix>_replies_<random>} and touched every minute while in use;
+ * queues of the prefix which were not touched for the orphan time, left
+ * behind by a process which did not close its channels, are deleted too.
+ * This housekeeping makes blocking SQS calls, so it runs on a thread of its
+ * own rather than on the scheduler of the channels' batchers.
+ */
+public class ReplyChannels implements Closeable {
+	private static final Log log = LogFactory.getLog(ReplyChannels.class);
+
+	public static final int DEFAULT_MAX_CHANNELS = 2;
+	public static final long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	public static final long DEFAULT_ORPHAN_MILLIS = TimeUnit.MINUTES.toMillis(15);
+	static final long HEARTBEAT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final long TICK_MILLIS = 1000;
+	/** responses older than this are of no use to anybody */
+	private static final String RETENTION_SECONDS = "600";
+
+	private final QueueUrlCache queueUrls;
+	private final AmazonSQS sqs;
+	private final String queuePrefix;
+	private final int maxChannels;
+	private final JsonRpcMapper mapper;
+	private final ThreadMode threadMode;
+	private final ScheduledThreadPoolExecutor scheduler;
+	private final ScheduledExecutorService housekeeper;
+	private final ExecutorService sqsExecutor;
+	private final List<ReplyChannel> channels = new ArrayList<ReplyChannel>();
+	private volatile long idleMillis = DEFAULT_IDLE_MILLIS;
+	private volatile long orphanMillis = DEFAULT_ORPHAN_MILLIS;
+	private volatile ClaimCheck claimCheck;
+	private volatile MetricsRegistry metrics = MetricsRegistry.NOOP;
+	private long nextHeartbeat;
+	private boolean closed;
+
+	public ReplyChannels(QueueUrlCache queueUrls, String prefix) {
+		this(queueUrls, prefix, DEFAULT_MAX_CHANNELS, new JsonRpcMapper(), ThreadMode.getDefault());
+	}
+
+	/**
+	 * @param prefix of the reply queue names, e.g. the name of the service
+	 */
+	public ReplyChannels(QueueUrlCache queueUrls, String prefix, int maxChannels, JsonRpcMapper mapper,
+			ThreadMode threadMode) {
+		if (maxChannels < 1) {
+			throw new IllegalArgumentException("Invalid number of channels " + maxChannels);
+		}
+		this.queueUrls = queueUrls;
+		this.sqs = queueUrls.getSqs();
+		this.queuePrefix = prefix + "_replies_";
+		this.maxChannels = maxChannels;
+		this.mapper = mapper;
+		this.threadMode = threadMode;
+		this.scheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("json-rpc-reply-channels"));
+		this.sqsExecutor = threadMode.newExecutor("json-rpc-reply-sqs");
+		this.housekeeper = Executors.newSingleThreadScheduledExecutor(
+				new DaemonThreadFactory("json-rpc-reply-housekeeping"));
+		this.housekeeper.scheduleWithFixedDelay(this::maintain, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * How long a channel without clients is kept for the next one.
+	 */
+	public void setIdleMillis(long idleMillis) {
+		this.idleMillis = idleMillis;
+	}
+
+	/**
+	 * How long a reply queue of the prefix must not have been touched to be
+	 * deleted as an orphan; 0 to keep them. It must be well above a minute.
+	 */
+	public void setOrphanMillis(long orphanMillis) {
+		this.orphanMillis = orphanMillis;
+	}
+
+	/**
+	 * Reads responses the servers sent through the claim check's blob store.
+	 */
+	public synchronized void setClaimCheck(ClaimCheck claimCheck) {
+		this.claimCheck = claimCheck;
+		for (ReplyChannel channel : channels) {
+			channel.setClaimCheck(claimCheck);
+		}
+	}
+
+	/**
+	 * Reports the pollers of the channels and the number of channels, see
+	 * {@link MetricNames}.
+	 */
+	public synchronized void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+		for (ReplyChannel channel : channels) {
+			channel.setMetrics(metrics, MetricNames.CLIENT_REPLY);
+		}
+		metrics.gauge(MetricNames.CLIENT_REPLY_CHANNELS, new Gauge() {
+			public long value() {
+				return getChannelCount();
+			}
+		});
+	}
+
+	public QueueUrlCache getQueueUrls() {
+		return queueUrls;
+	}
+
+	JsonRpcMapper getMapper() {
+		return mapper;
+	}
+
+	ThreadMode getThreadMode() {
+		return threadMode;
+	}
+
+	public synchronized int getChannelCount() {
+		return channels.size();
+	}
+
+	public synchronized List<ReplyChannel> getChannels() {
+		return Collections.unmodifiableList(new ArrayList<ReplyChannel>(channels));
+	}
+
+	/**
+	 * Attaches a client to the least used channel, opening one if needed.
+	 */
+	synchronized ReplyChannel attach(String clientId, PendingRequests pending) {
+		if (closed) {
+			throw new IllegalStateException("Reply channels are closed");
+		}
+		ReplyChannel least = null;
+		for (ReplyChannel channel : channels) {
+			if (least == null || channel.getClientCount() < least.getClientCount()) {
+				least = channel;
+			}
+		}
+		if (least == null || least.getClientCount() > 0 && channels.size() < maxChannels) {
+			least = open();
+		}
+		least.attach(clientId, pending);
+		return least;
+	}
+
+	synchronized void detach(ReplyChannel channel, String clientId) {
+		channel.detach(clientId);
+	}
+
+	private ReplyChannel open() {
+		String queueName = queuePrefix + UUID.randomUUID().toString().replace("-", "");
+		String queueUrl = sqs.createQueue(new CreateQueueRequest(queueName)
+				.withAttributes(Collections.singletonMap(QueueAttributeName.MessageRetentionPeriod.toString(),
+						RETENTION_SECONDS)))
+				.getQueueUrl();
+		ReplyChannel channel = new ReplyChannel(sqs, queueUrl, mapper, scheduler, sqsExecutor, threadMode);
+		channel.setClaimCheck(claimCheck);
+		channel.setMetrics(metrics, MetricNames.CLIENT_REPLY);
+		channel.start();
+		channels.add(channel);
+		log.debug("Opened " + channel);
+		return channel;
+	}
+
+	private void maintain() {
+		try {
+			reclaimIdle();
+			long now = System.currentTimeMillis();
+			if (now < nextHeartbeat) {
+				return;
+			}
+			nextHeartbeat = now + HEARTBEAT_MILLIS;
+			for (ReplyChannel channel : getChannels()) {
+				touch(channel.getQueueUrl());
+			}
+			long orphanMillis = this.orphanMillis;
+			if (orphanMillis > 0) {
+				reclaimOrphans(orphanMillis);
+			}
+		} catch (RuntimeException e) {
+			log.warn("Failed to maintain reply queues " + queuePrefix + "*", e);
+		}
+	}
+
+	/**
+	 * Closes the channels without clients for the idle time and deletes
+	 * their queues.
+	 *
+	 * @return the number of channels closed
+	 */
+	public int reclaimIdle() {
+		long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+		List<ReplyChannel> idle = new ArrayList<ReplyChannel>();
+		synchronized (this) {
+			for (ReplyChannel channel : channels) {
+				if (channel.getIdleNanos() >= idleNanos) {
+					idle.add(channel);
+				}
+			}
+			channels.removeAll(idle);
+		}
+		for (ReplyChannel channel : idle) {
+			log.debug("Closing idle " + channel);
+			delete(channel);
+		}
+		return idle.size();
+	}
+
+	/**
+	 * Deletes reply queues of the prefix which are not in use by this pool
+	 * and were not touched for the given time.
+	 *
+	 * @return the number of queues deleted
+	 */
+	public int reclaimOrphans(long maxAgeMillis) {
+		List<String> own = new ArrayList<String>();
+		for (ReplyChannel channel : getChannels()) {
+			own.add(channel.getQueueUrl());
+		}
+		long oldest = System.currentTimeMillis() - maxAgeMillis;
+		int deleted = 0;
+		for (String queueUrl : sqs.listQueues(new ListQueuesRequest(queuePrefix)).getQueueUrls()) {
+			if (own.contains(queueUrl)) {
+				continue;
+			}
+			try {
+				String modified = sqs.getQueueAttributes(new GetQueueAttributesRequest(queueUrl)
+						.withAttributeNames(QueueAttributeName.LastModifiedTimestamp.toString())).getAttributes()
+						.get(QueueAttributeName.LastModifiedTimestamp.toString());
+				if (modified != null && TimeUnit.SECONDS.toMillis(Long.parseLong(modified)) < oldest) {
+					log.info("Deleting orphaned reply queue " + queueUrl);
+					sqs.deleteQueue(new DeleteQueueRequest(queueUrl));
+					deleted++;
+				}
+			} catch (AmazonServiceException e) {
+				log.debug("Can not reclaim " + queueUrl + ": " + e.getMessage());
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Updates the queue's LastModifiedTimestamp, so others do not take it
+	 * for an orphan.
+	 */
+	private void touch(String queueUrl) {
+		try {
+			sqs.setQueueAttributes(new SetQueueAttributesRequest(queueUrl, Collections.singletonMap(
+					QueueAttributeName.MessageRetentionPeriod.toString(), RETENTION_SECONDS)));
+		} catch (AmazonServiceException e) {
+			log.debug("Can not touch " + queueUrl + ": " + e.getMessage());
+		}
+	}
+
+	private void delete(ReplyChannel channel) {
+		channel.close();
+		try {
+			sqs.deleteQueue(new DeleteQueueRequest(channel.getQueueUrl()));
+		} catch (AmazonServiceException e) {
+			log.warn("Can not delete reply queue " + channel.getQueueUrl() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Closes the channels and deletes their queues; the clients attached
+	 * should be closed before.
+	 */
+	public void close() {
+		List<ReplyChannel> all;
+		synchronized (this) {
+			closed = true;
+			all = new ArrayList<ReplyChannel>(channels);
+			channels.clear();
+		}
+		housekeeper.shutdownNow();
+		for (ReplyChannel channel : all) {
+			delete(channel);
+		}
+		scheduler.shutdownNow();
+		sqsExecutor.shutdown();
+	}
+}
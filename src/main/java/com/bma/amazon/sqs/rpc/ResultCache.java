@@ -0,0 +1,290 @@
+package com.bma.amazon.sqs.rpc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.codehaus.jackson.JsonNode;
+
+import com.bma.amazon.sqs.metrics.Counter;
+import com.bma.amazon.sqs.metrics.Gauge;
+import com.bma.amazon.sqs.metrics.MetricNames;
+import com.bma.amazon.sqs.metrics.MetricsRegistry;
+import com.bma.amazon.sqs.metrics.Timer;
+
+/**
+ * Results of idempotent calls, keyed by method and params. A result is kept
+ * for the TTL of its method, or until results used more recently pushed it
+ * out: every lock stripe evicts its least recently used results when their
+ * weight, about the bytes of their trees, exceeds its share of the maximum.
+ * Errors are not cached.
+ * <p>
+ * Calls of a key made while the first one is in flight wait for its result
+ * instead of being sent as well. A call invalidated while it is in flight
+ * still answers those waiting for it, but its result is not cached.
+ * <p>
+ * Results are shared: a result read as a {@link JsonNode} is the cached tree
+ * and must not be modified. Share one cache between the clients of a
+ * service, see {@link JsonRpcSqsClient#setResultCache(ResultCache)}.
+ */
+public class ResultCache {
+	public static final long DEFAULT_MAX_WEIGHT = 16 * 1024 * 1024;
+	private static final int STRIPES = 16;
+	/** bytes of a node or a field, text not included */
+	private static final int NODE_WEIGHT = 16;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final ConcurrentHashMap<Key, CompletableFuture<JsonNode>> inFlight =
+			new ConcurrentHashMap<Key, CompletableFuture<JsonNode>>();
+	private Counter hitCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter missCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter coalescedCounter = MetricsRegistry.NOOP.counter(null);
+	private Timer savedTimer = MetricsRegistry.NOOP.timer(null);
+
+	public ResultCache() {
+		this(DEFAULT_MAX_WEIGHT);
+	}
+
+	/**
+	 * @param maxWeight bytes of the cached results at most, estimated from
+	 *        their trees
+	 */
+	public ResultCache(long maxWeight) {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(Math.max(1, maxWeight / STRIPES));
+		}
+	}
+
+	/**
+	 * Reports hits, misses, calls which waited for one in flight, the round
+	 * trips the hits saved and the weight cached, see {@link MetricNames}.
+	 */
+	public void setMetrics(MetricsRegistry metrics) {
+		hitCounter = metrics.counter(MetricNames.CLIENT_CACHE_HITS);
+		missCounter = metrics.counter(MetricNames.CLIENT_CACHE_MISSES);
+		coalescedCounter = metrics.counter(MetricNames.CLIENT_CACHE_COALESCED);
+		savedTimer = metrics.timer(MetricNames.CLIENT_CACHE_SAVED);
+		metrics.gauge(MetricNames.CLIENT_CACHE_WEIGHT, new Gauge() {
+			public long value() {
+				return getWeight();
+			}
+		});
+	}
+
+	/**
+	 * @param loader makes the call if the result is neither cached nor in
+	 *        flight
+	 * @return the cached result, the one of the call in flight or of a new
+	 *         call
+	 */
+	public CompletableFuture<JsonNode> get(String method, JsonNode params, long ttlMillis,
+			Supplier<CompletableFuture<JsonNode>> loader) {
+		final Key key = new Key(method, params);
+		final Stripe stripe = stripe(key);
+		Entry cached = stripe.get(key, System.nanoTime());
+		if (cached != null) {
+			hitCounter.increment();
+			savedTimer.record(cached.loadNanos);
+			return CompletableFuture.completedFuture(cached.result);
+		}
+		CompletableFuture<JsonNode> result = new CompletableFuture<JsonNode>();
+		CompletableFuture<JsonNode> loading = inFlight.putIfAbsent(key, result);
+		if (loading != null) {
+			coalescedCounter.increment();
+			return loading;
+		}
+		missCounter.increment();
+		final long started = System.nanoTime();
+		CompletableFuture<JsonNode> loaded;
+		try {
+			loaded = loader.get();
+		} catch (RuntimeException e) {
+			loaded = new CompletableFuture<JsonNode>();
+			loaded.completeExceptionally(e);
+		}
+		loaded.whenComplete((node, e) -> {
+			// atomic with invalidate(), which drops the call from the ones in flight
+			synchronized (stripe) {
+				if (inFlight.remove(key, result) && e == null) {
+					long now = System.nanoTime();
+					stripe.put(key, new Entry(node, now - started, now + TimeUnit.MILLISECONDS.toNanos(ttlMillis)));
+				}
+			}
+			if (e == null) {
+				result.complete(node);
+			} else {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Forgets the result of a call, e.g. after a call changed it. The result
+	 * of the call in flight, read before the change, is not cached either.
+	 */
+	public void invalidate(String method, JsonNode params) {
+		Key key = new Key(method, params);
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			inFlight.remove(key);
+			stripe.remove(key);
+		}
+	}
+
+	public void clear() {
+		inFlight.clear();
+		for (Stripe stripe : stripes) {
+			stripe.clear();
+		}
+	}
+
+	/**
+	 * @return results cached, expired ones not yet evicted included
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return estimated bytes of the results cached
+	 */
+	public long getWeight() {
+		long weight = 0;
+		for (Stripe stripe : stripes) {
+			weight += stripe.weight();
+		}
+		return weight;
+	}
+
+	private Stripe stripe(Key key) {
+		int h = key.hash * 0x9e3779b9;
+		return stripes[h >>> 28];
+	}
+
+	/**
+	 * @return about the bytes of the tree in memory
+	 */
+	static long weigh(JsonNode node) {
+		if (node == null) {
+			return NODE_WEIGHT;
+		}
+		long weight = NODE_WEIGHT;
+		if (node.isTextual()) {
+			weight += 2L * node.getTextValue().length();
+		} else if (node.isContainerNode()) {
+			for (Iterator<String> names = node.getFieldNames(); names.hasNext();) {
+				weight += NODE_WEIGHT + 2L * names.next().length();
+			}
+			for (JsonNode child : node) {
+				weight += weigh(child);
+			}
+		}
+		return weight;
+	}
+
+	private static class Stripe {
+		private final long maxWeight;
+		private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+		private long weight;
+
+		Stripe(long maxWeight) {
+			this.maxWeight = maxWeight;
+		}
+
+		synchronized Entry get(Key key, long now) {
+			Entry entry = entries.get(key);
+			if (entry != null && now - entry.expiresNanos >= 0) {
+				entries.remove(key);
+				weight -= entry.weight;
+				return null;
+			}
+			return entry;
+		}
+
+		synchronized void put(Key key, Entry entry) {
+			if (entry.weight > maxWeight) {
+				return;
+			}
+			Entry old = entries.put(key, entry);
+			weight += entry.weight - (old == null ? 0 : old.weight);
+			Iterator<Entry> eldest = entries.values().iterator();
+			while (weight > maxWeight) {
+				weight -= eldest.next().weight;
+				eldest.remove();
+			}
+		}
+
+		synchronized void remove(Key key) {
+			Entry entry = entries.remove(key);
+			if (entry != null) {
+				weight -= entry.weight;
+			}
+		}
+
+		synchronized void clear() {
+			entries.clear();
+			weight = 0;
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+
+		synchronized long weight() {
+			return weight;
+		}
+	}
+
+	private static class Entry {
+		final JsonNode result;
+		final long weight;
+		/** round trip of the call which loaded it */
+		final long loadNanos;
+		final long expiresNanos;
+
+		Entry(JsonNode result, long loadNanos, long expiresNanos) {
+			this.result = result;
+			this.weight = weigh(result);
+			this.loadNanos = loadNanos;
+			this.expiresNanos = expiresNanos;
+		}
+	}
+
+	/**
+	 * Method and params, the hash of the params tree computed once.
+	 */
+	private static final class Key {
+		final String method;
+		final JsonNode params;
+		final int hash;
+
+		Key(String method, JsonNode params) {
+			this.method = method;
+			this.params = params;
+			this.hash = 31 * method.hashCode() + (params == null ? 0 : params.hashCode());
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return hash == other.hash && method.equals(other.method)
+					&& (params == null ? other.params == null : params.equals(other.params));
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package com.bma.amazon.sqs.rpc;
+
+/**
+ * Server side implementation of a single JSON-RPC method which takes its
+ * params bound to a class, see
+ * {@link JsonRpcSqsServer#register(String, Class, TypedMethodHandler)}.
+ */
+public interface TypedMethodHandler<P> {
+
+	/**
+	 * @param params request params, may be null
+	 * @return result object, converted to JSON by the server
+	 */
+	Object handle(P params) throws Exception;
+}
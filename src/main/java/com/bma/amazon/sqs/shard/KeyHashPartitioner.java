@@ -0,0 +1,55 @@
+package com.bma.amazon.sqs.shard;
+
+import java.util.List;
+import java.util.function.Function;
+
+import com.bma.amazon.sqs.rpc.JsonRpcRequest;
+
+/**
+ * Sends all requests of a key to the same shard, so a single server polling
+ * it sees them in about the order they were sent (SQS standard queues do not
+ * guarantee the order). The shard of a key changes when shards are added or
+ * removed.
+ */
+public class KeyHashPartitioner implements Partitioner {
+	private final Function<JsonRpcRequest, String> key;
+
+	/**
+	 * @param key of a request, requests without a key go to the first shard
+	 */
+	public KeyHashPartitioner(Function<JsonRpcRequest, String> key) {
+		this.key = key;
+	}
+
+	/**
+	 * Partitions by method name.
+	 */
+	public static KeyHashPartitioner byMethod() {
+		return new KeyHashPartitioner(JsonRpcRequest::getMethod);
+	}
+
+	/**
+	 * Partitions by a named parameter, e.g. an account id.
+	 */
+	public static KeyHashPartitioner byParam(final String name) {
+		return new KeyHashPartitioner(request -> {
+			if (request.getParams() == null || request.getParams().get(name) == null) {
+				return null;
+			}
+			return request.getParams().get(name).asText();
+		});
+	}
+
+	public int select(JsonRpcRequest request, List<Shard> shards) {
+		String value = key.apply(request);
+		if (value == null) {
+			return 0;
+		}
+		int h = value.hashCode();
+		// spread the bits, String hashes of similar keys differ in the low ones only
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return Math.floorMod(h, shards.size());
+	}
+}
@@ -0,0 +1,110 @@
+package com.bma.amazon.sqs.shard;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.JsonNode;
+
+import com.bma.amazon.sqs.rpc.JsonRpcSqsClient;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsServer;
+import com.bma.amazon.sqs.transport.DaemonThreadFactory;
+
+/**
+ * Calls {@link JsonRpcSqsServer#PING} on every shard of a client at a fixed
+ * interval, so the send and round trip averages of the shards stay current
+ * while no calls go there, and marks shards unhealthy whose pings fail or go
+ * unanswered (the endpoint is down or no server polls the queue) until one is
+ * answered again.
+ * <p>
+ * A ping measures what a call pays: the send, the request and reply queue
+ * times and the server's polling. At most one ping per shard is outstanding.
+ */
+public class LatencyProber implements Closeable {
+	private static final Log log = LogFactory.getLog(LatencyProber.class);
+
+	public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+	public static final int DEFAULT_MAX_FAILURES = 2;
+
+	private final JsonRpcSqsClient client;
+	private final long timeoutMillis;
+	private final int maxFailures;
+	private final ScheduledExecutorService scheduler;
+	private final Set<Shard> outstanding = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<Shard, AtomicInteger> failures = new ConcurrentHashMap<Shard, AtomicInteger>();
+
+	public LatencyProber(JsonRpcSqsClient client) {
+		this(client, DEFAULT_INTERVAL_MILLIS, DEFAULT_INTERVAL_MILLIS, DEFAULT_MAX_FAILURES);
+	}
+
+	/**
+	 * @param timeoutMillis a ping not answered within it failed
+	 * @param maxFailures failed pings in a row after which a shard is unhealthy
+	 */
+	public LatencyProber(JsonRpcSqsClient client, long intervalMillis, long timeoutMillis, int maxFailures) {
+		this.client = client;
+		this.timeoutMillis = timeoutMillis;
+		this.maxFailures = maxFailures;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("sqs-latency-prober"));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				probe();
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	private void probe() {
+		for (final Shard shard : client.getShards()) {
+			if (!outstanding.add(shard)) {
+				continue;
+			}
+			try {
+				client.call(shard, JsonRpcSqsServer.PING, null, JsonNode.class)
+						.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+						.whenComplete((result, e) -> {
+							outstanding.remove(shard);
+							if (e == null) {
+								answered(shard);
+							} else {
+								failed(shard, e);
+							}
+						});
+			} catch (RuntimeException e) {
+				outstanding.remove(shard);
+				failed(shard, e);
+			}
+		}
+	}
+
+	/**
+	 * The client measured the round trip already.
+	 */
+	private void answered(Shard shard) {
+		failures(shard).set(0);
+		if (!shard.isHealthy()) {
+			log.info("Shard " + shard + " is healthy again");
+			shard.setHealthy(true);
+		}
+	}
+
+	private void failed(Shard shard, Throwable e) {
+		if (failures(shard).incrementAndGet() >= maxFailures && shard.isHealthy()) {
+			log.warn("Shard " + shard + " is unhealthy: " + e);
+			shard.setHealthy(false);
+		}
+	}
+
+	private AtomicInteger failures(Shard shard) {
+		return failures.computeIfAbsent(shard, s -> new AtomicInteger());
+	}
+}
@@ -0,0 +1,71 @@
+package com.bma.amazon.sqs.shard;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bma.amazon.sqs.rpc.JsonRpcRequest;
+
+/**
+ * Sends requests to the healthy shard with the lowest measured round trip,
+ * usually the one in the closest region. Shards without a measurement are
+ * tried first, and every n-th request goes round robin so the averages of the
+ * other shards stay current even without a {@link LatencyProber}. Unhealthy
+ * shards are only used when no shard is healthy.
+ */
+public class LeastLatencyPartitioner implements Partitioner {
+	public static final int DEFAULT_PROBE_INTERVAL = 50;
+
+	private final int probeInterval;
+	private final AtomicLong requests = new AtomicLong();
+
+	public LeastLatencyPartitioner() {
+		this(DEFAULT_PROBE_INTERVAL);
+	}
+
+	/**
+	 * @param probeInterval every probeInterval-th request goes round robin
+	 */
+	public LeastLatencyPartitioner(int probeInterval) {
+		if (probeInterval < 1) {
+			throw new IllegalArgumentException("Invalid probe interval " + probeInterval);
+		}
+		this.probeInterval = probeInterval;
+	}
+
+	public int select(JsonRpcRequest request, List<Shard> shards) {
+		long n = requests.getAndIncrement();
+		if (n % probeInterval == 0) {
+			int probe = (int) ((n / probeInterval) % shards.size());
+			if (shards.get(probe).isHealthy()) {
+				return probe;
+			}
+		}
+		int fastest = fastest(shards, -1);
+		return fastest < 0 ? 0 : fastest;
+	}
+
+	/**
+	 * @param excluded index of a shard not to pick, -1 for none
+	 * @return the healthy shard with the lowest round trip, an unmeasured one
+	 *         first; -1 if there is none other than excluded
+	 */
+	public static int fastest(List<Shard> shards, int excluded) {
+		int best = -1;
+		long bestNanos = Long.MAX_VALUE;
+		for (int i = 0; i < shards.size(); i++) {
+			Shard shard = shards.get(i);
+			if (i == excluded || !shard.isHealthy()) {
+				continue;
+			}
+			long nanos = shard.getRoundTripNanos();
+			if (nanos == 0) {
+				return i;
+			}
+			if (nanos < bestNanos) {
+				best = i;
+				bestNanos = nanos;
+			}
+		}
+		return best;
+	}
+}
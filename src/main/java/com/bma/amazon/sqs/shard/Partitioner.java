@@ -0,0 +1,16 @@
+package com.bma.amazon.sqs.shard;
+
+import java.util.List;
+
+import com.bma.amazon.sqs.rpc.JsonRpcRequest;
+
+/**
+ * Picks the shard a request is sent to.
+ */
+public interface Partitioner {
+
+	/**
+	 * @return index into shards, which is never empty
+	 */
+	int select(JsonRpcRequest request, List<Shard> shards);
+}
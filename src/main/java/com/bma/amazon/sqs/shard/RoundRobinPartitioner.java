@@ -0,0 +1,17 @@
+package com.bma.amazon.sqs.shard;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.bma.amazon.sqs.rpc.JsonRpcRequest;
+
+/**
+ * Spreads requests evenly over all shards.
+ */
+public class RoundRobinPartitioner implements Partitioner {
+	private final AtomicInteger next = new AtomicInteger();
+
+	public int select(JsonRpcRequest request, List<Shard> shards) {
+		return Math.floorMod(next.getAndIncrement(), shards.size());
+	}
+}
@@ -0,0 +1,94 @@
+package com.bma.amazon.sqs.shard;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+
+/**
+ * One of the physical queues behind a logical RPC service, with the client
+ * of its endpoint (region). Clients measure the send time and round trip of
+ * the calls sent through it as exponentially weighted moving averages, see
+ * {@link LeastLatencyPartitioner}, and a {@link LatencyProber} keeps them
+ * current and tells whether a server answers on the shard.
+ */
+public class Shard {
+	/** weight of a new round trip in the average, 1/8 */
+	private static final int EWMA_SHIFT = 3;
+
+	private final AmazonSQS sqs;
+	private final String queueUrl;
+	private final String endpoint;
+	/** 0 until the first round trip */
+	private volatile long roundTripNanos;
+	private volatile long sendNanos;
+	private volatile boolean healthy = true;
+
+	public Shard(AmazonSQS sqs, String queueUrl) {
+		this.sqs = sqs;
+		this.queueUrl = queueUrl;
+		this.endpoint = endpointOf(queueUrl);
+	}
+
+	/**
+	 * @return host of a queue URL, e.g. sqs.eu-west-1.amazonaws.com
+	 */
+	public static String endpointOf(String queueUrl) {
+		return URI.create(queueUrl).getHost();
+	}
+
+	public AmazonSQS getSqs() {
+		return sqs;
+	}
+
+	public String getQueueUrl() {
+		return queueUrl;
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	public void recordRoundTrip(long nanos) {
+		roundTripNanos = average(roundTripNanos, nanos);
+	}
+
+	/**
+	 * @param nanos until SQS accepted a request
+	 */
+	public void recordSend(long nanos) {
+		sendNanos = average(sendNanos, nanos);
+	}
+
+	/**
+	 * @return average send time, 0 if none was measured yet
+	 */
+	public long getSendNanos() {
+		return sendNanos;
+	}
+
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	public void setHealthy(boolean healthy) {
+		this.healthy = healthy;
+	}
+
+	private static long average(long average, long nanos) {
+		// lost updates of concurrent calls do not matter for an average
+		return average == 0 ? Math.max(1, nanos) : Math.max(1, average + ((nanos - average) >> EWMA_SHIFT));
+	}
+
+	/**
+	 * @return average round trip, 0 if none was measured yet
+	 */
+	public long getRoundTripNanos() {
+		return roundTripNanos;
+	}
+
+	@Override
+	public String toString() {
+		return queueUrl + " (" + TimeUnit.NANOSECONDS.toMillis(roundTripNanos) + " ms" + (healthy ? ")" : ", unhealthy)");
+	}
+}
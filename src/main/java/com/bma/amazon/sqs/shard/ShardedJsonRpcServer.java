@@ -0,0 +1,104 @@
+package com.bma.amazon.sqs.shard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.bma.amazon.sqs.rpc.JsonRpcMapper;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsServer;
+import com.bma.amazon.sqs.rpc.MethodHandler;
+import com.bma.amazon.sqs.transport.ThreadMode;
+
+/**
+ * Serves all shards of a logical RPC service with one server per shard.
+ * <p>
+ * The handler threads are divided evenly between the shards, so a busy shard
+ * can not starve the others, and every shard's receive engine adds pollers
+ * while its queue is busy and drops them again when it runs empty. Throughput
+ * therefore grows with the number of shards rather than being bound by the
+ * receives of a single queue.
+ * <p>
+ * Responses to reply queues on the endpoint of a shard are sent with that
+ * shard's client, see {@link #setReplySqs(Function)} for others.
+ */
+public class ShardedJsonRpcServer {
+	private final List<Shard> shards;
+	private final List<JsonRpcSqsServer> servers;
+	private final Map<String, AmazonSQS> shardClients = new HashMap<String, AmazonSQS>();
+	private volatile Function<String, AmazonSQS> replySqs;
+
+	/**
+	 * @param handlerThreads of all shards together, each shard gets an equal
+	 *        share but at least one
+	 */
+	public ShardedJsonRpcServer(List<Shard> shards, JsonRpcMapper mapper, int handlerThreads, ThreadMode threadMode) {
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException("No shards");
+		}
+		this.shards = Collections.unmodifiableList(new ArrayList<Shard>(shards));
+		List<JsonRpcSqsServer> servers = new ArrayList<JsonRpcSqsServer>(shards.size());
+		int threadsPerShard = Math.max(1, handlerThreads / shards.size());
+		for (final Shard shard : shards) {
+			shardClients.put(shard.getEndpoint(), shard.getSqs());
+			JsonRpcSqsServer server = new JsonRpcSqsServer(shard.getSqs(), shard.getQueueUrl(), mapper,
+					threadsPerShard, threadMode);
+			server.setReplySqs(replyTo -> replyClient(shard, replyTo));
+			servers.add(server);
+		}
+		this.servers = Collections.unmodifiableList(servers);
+	}
+
+	public ShardedJsonRpcServer register(String method, MethodHandler handler) {
+		for (JsonRpcSqsServer server : servers) {
+			server.register(method, handler);
+		}
+		return this;
+	}
+
+	/**
+	 * Picks the client for reply queues on endpoints without a shard, e.g.
+	 * {@code url -> factory.getClient(Shard.endpointOf(url))} of a
+	 * {@link com.bma.amazon.sqs.transport.SqsClientFactory}. Without it they
+	 * are sent with the client of the shard the request came from.
+	 */
+	public void setReplySqs(Function<String, AmazonSQS> replySqs) {
+		this.replySqs = replySqs;
+	}
+
+	/**
+	 * Gives access to the per shard servers, e.g. for metrics, receiver or
+	 * dedup settings. Change them before {@link #start()}.
+	 */
+	public List<JsonRpcSqsServer> getServers() {
+		return servers;
+	}
+
+	public List<Shard> getShards() {
+		return shards;
+	}
+
+	public void start() {
+		for (JsonRpcSqsServer server : servers) {
+			server.start();
+		}
+	}
+
+	public void stop() {
+		for (JsonRpcSqsServer server : servers) {
+			server.stop();
+		}
+	}
+
+	private AmazonSQS replyClient(Shard shard, String replyTo) {
+		AmazonSQS client = shardClients.get(Shard.endpointOf(replyTo));
+		if (client != null) {
+			return client;
+		}
+		Function<String, AmazonSQS> replySqs = this.replySqs;
+		return replySqs == null ? shard.getSqs() : replySqs.apply(replyTo);
+	}
+}
@@ -0,0 +1,199 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.bma.amazon.sqs.metrics.Counter;
+import com.bma.amazon.sqs.metrics.Gauge;
+import com.bma.amazon.sqs.metrics.MetricNames;
+import com.bma.amazon.sqs.metrics.MetricsRegistry;
+
+/**
+ * Adapts the rate of the calls of one API to one queue, additive increase
+ * and multiplicative decrease: each successful call raises the rate so that
+ * it grows by the increase per second, a throttled call or a server error
+ * cuts it by the decrease factor. Errors within a cool-down after a cut
+ * belong to the same overload and do not cut it again. The rate settles
+ * just below what the queue sustains instead of collapsing under retries.
+ * <p>
+ * It also keeps the retry budget of those calls: every call earns a fraction
+ * of a retry, so retried calls add at most that fraction to the load of a
+ * queue which is failing anyway, plus a few per second.
+ * <p>
+ * Calls are not blocked, {@link #reserve()} tells how long to delay one.
+ * Thread safe.
+ */
+public class AdaptiveRateLimiter {
+	public static final double DEFAULT_MAX_RATE = 1000;
+	public static final double DEFAULT_MIN_RATE = 1;
+	public static final double DEFAULT_INCREASE = 20;
+	public static final double DEFAULT_DECREASE = 0.5;
+	public static final double DEFAULT_RETRY_RATIO = 0.1;
+	static final long COOL_DOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	/** calls of a second not made may be made at once */
+	private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final double MIN_RETRIES_PER_SECOND = 5;
+	private static final double MAX_RETRY_TOKENS = 100;
+
+	private static final Set<String> THROTTLING_CODES = new HashSet<String>(Arrays.asList("RequestThrottled",
+			"Throttling", "ThrottlingException", "TooManyRequestsException", "RequestThrottledException",
+			"SlowDown"));
+
+	private final double minRate;
+	private final double maxRate;
+	private final double increase;
+	private final double decrease;
+	private final double retryRatio;
+	private double rate;
+	private long nextFreeNanos = System.nanoTime() - BURST_NANOS;
+	private long lastDecreaseNanos = System.nanoTime() - COOL_DOWN_NANOS;
+	private double retryTokens = MIN_RETRIES_PER_SECOND;
+	private long refilledNanos = System.nanoTime();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong retriesDenied = new AtomicLong();
+	private Counter throttledCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter retryCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter retryDeniedCounter = MetricsRegistry.NOOP.counter(null);
+
+	public AdaptiveRateLimiter() {
+		this(DEFAULT_MIN_RATE, DEFAULT_MAX_RATE, DEFAULT_INCREASE, DEFAULT_DECREASE, DEFAULT_RETRY_RATIO);
+	}
+
+	/**
+	 * @param minRate calls per second it is never cut below
+	 * @param maxRate calls per second it starts at and never exceeds
+	 * @param increase calls per second added per second of successful calls
+	 * @param decrease factor of the cut, between 0 and 1
+	 * @param retryRatio retries earned per call
+	 */
+	public AdaptiveRateLimiter(double minRate, double maxRate, double increase, double decrease, double retryRatio) {
+		if (minRate <= 0 || maxRate < minRate || decrease <= 0 || decrease >= 1) {
+			throw new IllegalArgumentException("Invalid rate limit " + minRate + ".." + maxRate + " * " + decrease);
+		}
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		this.increase = increase;
+		this.decrease = decrease;
+		this.retryRatio = retryRatio;
+		this.rate = maxRate;
+	}
+
+	/**
+	 * Reports the rate, the throttled calls and the retries granted and
+	 * denied, named after the prefix, see {@link MetricNames}.
+	 */
+	public void setMetrics(MetricsRegistry metrics, String prefix) {
+		throttledCounter = metrics.counter(prefix + MetricNames.THROTTLED);
+		retryCounter = metrics.counter(prefix + MetricNames.RETRIES);
+		retryDeniedCounter = metrics.counter(prefix + MetricNames.RETRIES_DENIED);
+		metrics.gauge(prefix + MetricNames.RATE, new Gauge() {
+			public long value() {
+				return (long) getRate();
+			}
+		});
+	}
+
+	/**
+	 * Takes the next free slot for a call.
+	 *
+	 * @return nanos to delay the call, 0 to make it now
+	 */
+	public synchronized long reserve() {
+		long now = System.nanoTime();
+		long start = Math.max(nextFreeNanos, now - BURST_NANOS);
+		nextFreeNanos = start + (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		return Math.max(0, start - now);
+	}
+
+	public synchronized void onSuccess() {
+		rate = Math.min(maxRate, rate + increase / rate);
+	}
+
+	/**
+	 * A call was throttled or failed on the server side.
+	 */
+	public void onOverload() {
+		throttled.incrementAndGet();
+		throttledCounter.increment();
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (now - lastDecreaseNanos >= COOL_DOWN_NANOS) {
+				rate = Math.max(minRate, rate * decrease);
+				lastDecreaseNanos = now;
+			}
+		}
+	}
+
+	/**
+	 * Earns a fraction of a retry for a call made.
+	 */
+	public synchronized void onCall() {
+		retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + retryRatio);
+	}
+
+	/**
+	 * @return false if the retry budget is spent, the call should fail
+	 */
+	public boolean tryRetry() {
+		boolean granted;
+		synchronized (this) {
+			long now = System.nanoTime();
+			retryTokens = Math.min(MAX_RETRY_TOKENS,
+					retryTokens + (now - refilledNanos) * MIN_RETRIES_PER_SECOND / TimeUnit.SECONDS.toNanos(1));
+			refilledNanos = now;
+			granted = retryTokens >= 1;
+			if (granted) {
+				retryTokens--;
+			}
+		}
+		if (granted) {
+			retries.incrementAndGet();
+			retryCounter.increment();
+		} else {
+			retriesDenied.incrementAndGet();
+			retryDeniedCounter.increment();
+		}
+		return granted;
+	}
+
+	/**
+	 * @return calls per second allowed now
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	public long getThrottledCount() {
+		return throttled.get();
+	}
+
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	public long getRetriesDeniedCount() {
+		return retriesDenied.get();
+	}
+
+	/**
+	 * @return true if the error means the queue or SQS is overloaded: a
+	 *         throttling error or a server error
+	 */
+	public static boolean isOverload(Throwable e) {
+		if (!(e instanceof AmazonServiceException)) {
+			return false;
+		}
+		AmazonServiceException serviceException = (AmazonServiceException) e;
+		return serviceException.getStatusCode() >= 500 || THROTTLING_CODES.contains(serviceException.getErrorCode());
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%.1f calls/s", getRate());
+	}
+}
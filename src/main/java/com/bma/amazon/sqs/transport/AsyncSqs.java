@@ -0,0 +1,25 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/**
+ * SQS batch calls which complete a future instead of blocking the caller.
+ * Batchers of an {@link com.amazonaws.services.sqs.AmazonSQS} which also
+ * implements this interface send through it, so no thread waits for a
+ * response, see {@link SendBatcher#create}.
+ */
+public interface AsyncSqs {
+	CompletableFuture<SendMessageBatchResult> sendMessageBatchAsync(SendMessageBatchRequest request);
+
+	CompletableFuture<DeleteMessageBatchResult> deleteMessageBatchAsync(DeleteMessageBatchRequest request);
+
+	CompletableFuture<ChangeMessageVisibilityBatchResult> changeMessageVisibilityBatchAsync(
+			ChangeMessageVisibilityBatchRequest request);
+}
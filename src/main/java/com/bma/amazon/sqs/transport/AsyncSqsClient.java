@@ -0,0 +1,64 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/**
+ * The SDK's async client with its batch calls completing
+ * {@link CompletableFuture}s from {@link AsyncHandler} callbacks. The SDK
+ * runs the HTTP calls on the given executor, so its size bounds the threads
+ * doing SQS I/O no matter how many calls are in flight.
+ */
+public class AsyncSqsClient extends AmazonSQSAsyncClient implements AsyncSqs {
+
+	public AsyncSqsClient(AWSCredentialsProvider credentials, ClientConfiguration configuration,
+			ExecutorService executor) {
+		super(credentials, configuration, executor);
+	}
+
+	@Override
+	public CompletableFuture<SendMessageBatchResult> sendMessageBatchAsync(SendMessageBatchRequest request) {
+		Callback<SendMessageBatchRequest, SendMessageBatchResult> callback = new Callback<SendMessageBatchRequest, SendMessageBatchResult>();
+		sendMessageBatchAsync(request, callback);
+		return callback;
+	}
+
+	@Override
+	public CompletableFuture<DeleteMessageBatchResult> deleteMessageBatchAsync(DeleteMessageBatchRequest request) {
+		Callback<DeleteMessageBatchRequest, DeleteMessageBatchResult> callback = new Callback<DeleteMessageBatchRequest, DeleteMessageBatchResult>();
+		deleteMessageBatchAsync(request, callback);
+		return callback;
+	}
+
+	@Override
+	public CompletableFuture<ChangeMessageVisibilityBatchResult> changeMessageVisibilityBatchAsync(
+			ChangeMessageVisibilityBatchRequest request) {
+		Callback<ChangeMessageVisibilityBatchRequest, ChangeMessageVisibilityBatchResult> callback = new Callback<ChangeMessageVisibilityBatchRequest, ChangeMessageVisibilityBatchResult>();
+		changeMessageVisibilityBatchAsync(request, callback);
+		return callback;
+	}
+
+	private static class Callback<Q extends AmazonWebServiceRequest, R> extends CompletableFuture<R> implements
+			AsyncHandler<Q, R> {
+
+		public void onSuccess(Q request, R result) {
+			complete(result);
+		}
+
+		public void onError(Exception e) {
+			completeExceptionally(e);
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter, so callers which failed together do not
+ * retry together.
+ */
+public final class Backoff {
+	private Backoff() {
+	}
+
+	/**
+	 * @param attempt failed attempts so far, from 1
+	 * @return half of the exponential delay plus a random part of the other
+	 *         half, at most maxMillis
+	 */
+	public static long delayMillis(int attempt, long baseMillis, long maxMillis) {
+		long delay = Math.min(maxMillis, baseMillis << Math.min(attempt - 1, 30));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+}
@@ -0,0 +1,478 @@
+package com.bma.amazon.sqs.transport;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.bma.amazon.sqs.metrics.MetricNames;
+import com.bma.amazon.sqs.metrics.MetricsRegistry;
+
+/**
+ * Collects single operations into SQS batch requests, or any other kind of
+ * batch with a limit of entries and bytes. A batch is sent when it is full,
+ * when it would exceed the byte limit with the next entry, or when the
+ * oldest entry has waited for the linger time.
+ * <p>
+ * Entries which failed on the service side, throttling included, are added
+ * to a later batch after a jittered exponential backoff until they run out of
+ * attempts or the retry budget is spent; entries rejected as the sender's
+ * fault fail immediately.
+ * <p>
+ * Batchers of SQS calls adapt their call rate with an
+ * {@link AdaptiveRateLimiter}, which also keeps the retry budget; batches
+ * over the rate are delayed on the scheduler. Throttled entries of a batch
+ * slow it down like a throttled call.
+ * <p>
+ * {@link #close()} sends the batches delayed by the rate and the entries
+ * waiting for a retry at once, so their futures complete even when the
+ * scheduler is shut down right after; entries failing after that are
+ * retried without a backoff.
+ * <p>
+ * At most {@link #setMaxInFlight(int) max in flight} batch calls run at a
+ * time, further batches wait in a queue rather than in threads. Blocking
+ * calls run on the executor, non-blocking ones (see {@link AsyncSqs}) are
+ * started by the thread which completed the batch and finish in callbacks.
+ *
+ * @param <T> entry value, e.g. a message body
+ * @param <R> per entry result
+ */
+public abstract class Batcher<T, R> implements Closeable {
+	public static final int MAX_BATCH_ENTRIES = 10;
+	public static final long DEFAULT_LINGER_MILLIS = 10;
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+	static final long RETRY_BASE_MILLIS = 50;
+	static final long RETRY_MAX_MILLIS = 5000;
+	protected static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+	protected final String queueUrl;
+	private final ScheduledExecutorService scheduler;
+	private final Executor executor;
+	private final int maxEntries;
+	private final long maxBatchBytes;
+	private final InFlightWindow window = new InFlightWindow(DEFAULT_MAX_IN_FLIGHT);
+	private volatile long lingerMillis = DEFAULT_LINGER_MILLIS;
+	private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private volatile AdaptiveRateLimiter limiter;
+
+	private final AtomicLong apiCalls = new AtomicLong();
+	private final AtomicLong entries = new AtomicLong();
+
+	private List<Entry<T, R>> batch;
+	private long batchBytes;
+	private ScheduledFuture<?> lingerTask;
+	private boolean closed;
+	/** retries and rate delayed batches waiting on the scheduler */
+	private final Set<Delayed> delayed = new HashSet<Delayed>();
+
+	/**
+	 * @param scheduler drives the linger timeout
+	 * @param executor sends the batches, should allow several concurrent
+	 *        requests; null if {@link #execute(List)} does not block
+	 */
+	protected Batcher(String queueUrl, ScheduledExecutorService scheduler, Executor executor, long maxBatchBytes) {
+		this(queueUrl, scheduler, executor, MAX_BATCH_ENTRIES, maxBatchBytes);
+	}
+
+	protected Batcher(String queueUrl, ScheduledExecutorService scheduler, Executor executor, int maxEntries,
+			long maxBatchBytes) {
+		this.queueUrl = queueUrl;
+		this.scheduler = scheduler;
+		this.executor = executor;
+		this.maxEntries = maxEntries;
+		this.maxBatchBytes = maxBatchBytes;
+		this.batch = newBatch();
+	}
+
+	public void setLingerMillis(long lingerMillis) {
+		this.lingerMillis = lingerMillis;
+	}
+
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Limits the batch calls running at the same time.
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		window.setLimit(maxInFlight);
+	}
+
+	/**
+	 * @return batch calls running now
+	 */
+	public int getInFlight() {
+		return window.getInFlight();
+	}
+
+	/**
+	 * @return batches waiting for room in the in-flight window
+	 */
+	public int getWaitingBatches() {
+		return window.getWaiting();
+	}
+
+	/**
+	 * Limits the call rate and retries, e.g. with a limiter shared by the
+	 * batchers of one queue; null for neither.
+	 */
+	public void setRateLimiter(AdaptiveRateLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	public AdaptiveRateLimiter getRateLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * Reports the state of the rate limiter as
+	 * {@code sqs.limit.<operation>.<queue name>}, see {@link MetricNames}.
+	 */
+	public void setMetrics(MetricsRegistry metrics) {
+		AdaptiveRateLimiter limiter = this.limiter;
+		if (limiter != null) {
+			limiter.setMetrics(metrics,
+					MetricNames.SQS_LIMIT + getOperation() + "." + queueUrl.substring(queueUrl.lastIndexOf('/') + 1));
+		}
+	}
+
+	/**
+	 * @return name of the batch call, e.g. SendMessageBatch
+	 */
+	protected String getOperation() {
+		return getClass().getSimpleName();
+	}
+
+	public String getQueueUrl() {
+		return queueUrl;
+	}
+
+	/**
+	 * @return number of batch requests sent to SQS
+	 */
+	public long getApiCallCount() {
+		return apiCalls.get();
+	}
+
+	/**
+	 * @return number of entries sent, retries included
+	 */
+	public long getEntryCount() {
+		return entries.get();
+	}
+
+	public CompletableFuture<R> add(T value) {
+		Entry<T, R> entry = new Entry<T, R>(value, sizeOf(value));
+		if (entry.size > maxBatchBytes) {
+			entry.future.completeExceptionally(new IllegalArgumentException("Entry of " + entry.size
+					+ " bytes does not fit into a batch of " + maxBatchBytes + " bytes"));
+			return entry.future;
+		}
+		enqueue(entry);
+		return entry.future;
+	}
+
+	/**
+	 * Sends whatever is collected without waiting for the linger time.
+	 */
+	public void flush() {
+		List<Entry<T, R>> ready;
+		synchronized (this) {
+			ready = takeBatch();
+		}
+		dispatch(ready);
+	}
+
+	/**
+	 * Sends the collected and the delayed entries; further entries fail.
+	 */
+	public void close() {
+		List<Delayed> pending;
+		synchronized (this) {
+			closed = true;
+			pending = new ArrayList<Delayed>(delayed);
+			delayed.clear();
+		}
+		for (Delayed task : pending) {
+			task.task.run();
+		}
+		flush();
+	}
+
+	private void enqueue(Entry<T, R> entry) {
+		List<Entry<T, R>> ready = null;
+		synchronized (this) {
+			if (closed && entry.attempts == 0) {
+				entry.future.completeExceptionally(new IllegalStateException("Batcher for " + queueUrl + " is closed"));
+				return;
+			}
+			if (batchBytes + entry.size > maxBatchBytes) {
+				ready = takeBatch();
+			}
+			batch.add(entry);
+			batchBytes += entry.size;
+			if (batch.size() >= maxEntries || closed) {
+				// a batch taken because of its size above leaves a single entry, so ready is still empty
+				ready = takeBatch();
+			} else if (lingerTask == null) {
+				lingerTask = scheduler.schedule(new Runnable() {
+					public void run() {
+						flush();
+					}
+				}, lingerMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		dispatch(ready);
+	}
+
+	private List<Entry<T, R>> takeBatch() {
+		if (lingerTask != null) {
+			lingerTask.cancel(false);
+			lingerTask = null;
+		}
+		if (batch.isEmpty()) {
+			return null;
+		}
+		List<Entry<T, R>> ready = batch;
+		batch = newBatch();
+		batchBytes = 0;
+		return ready;
+	}
+
+	private List<Entry<T, R>> newBatch() {
+		return new ArrayList<Entry<T, R>>(Math.min(maxEntries, MAX_BATCH_ENTRIES));
+	}
+
+	private void dispatch(final List<Entry<T, R>> ready) {
+		if (ready == null) {
+			return;
+		}
+		AdaptiveRateLimiter limiter = this.limiter;
+		long delayNanos = limiter == null ? 0 : limiter.reserve();
+		if (delayNanos > 0) {
+			schedule(() -> submit(ready), delayNanos, TimeUnit.NANOSECONDS);
+		} else {
+			submit(ready);
+		}
+	}
+
+	/**
+	 * Runs the task after the delay, or at once when the batcher is closed
+	 * or the scheduler shut down.
+	 */
+	private void schedule(Runnable task, long delay, TimeUnit unit) {
+		synchronized (this) {
+			if (!closed) {
+				Delayed entry = new Delayed(task);
+				delayed.add(entry);
+				try {
+					scheduler.schedule(entry, delay, unit);
+					return;
+				} catch (RejectedExecutionException e) {
+					delayed.remove(entry);
+				}
+			}
+		}
+		task.run();
+	}
+
+	private synchronized boolean undelay(Delayed entry) {
+		return delayed.remove(entry);
+	}
+
+	private void submit(final List<Entry<T, R>> ready) {
+		window.submit(new Runnable() {
+			public void run() {
+				if (executor == null) {
+					send(ready);
+					return;
+				}
+				try {
+					executor.execute(new Runnable() {
+						public void run() {
+							send(ready);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					window.release();
+					failAll(ready, e);
+				}
+			}
+		});
+	}
+
+	private void send(final List<Entry<T, R>> ready) {
+		apiCalls.incrementAndGet();
+		entries.addAndGet(ready.size());
+		for (Entry<T, R> entry : ready) {
+			entry.attempts++;
+		}
+		final AdaptiveRateLimiter limiter = this.limiter;
+		if (limiter != null) {
+			limiter.onCall();
+		}
+		CompletableFuture<?> done;
+		try {
+			done = execute(ready);
+		} catch (RuntimeException e) {
+			done = new CompletableFuture<Void>();
+			done.completeExceptionally(e);
+		}
+		done.whenComplete((result, e) -> {
+			window.release();
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			if (limiter != null) {
+				if (cause == null) {
+					limiter.onSuccess();
+				} else if (AdaptiveRateLimiter.isOverload(cause)) {
+					limiter.onOverload();
+				}
+			}
+			if (cause != null) {
+				callFailed(ready, cause);
+			}
+		});
+	}
+
+	private void callFailed(List<Entry<T, R>> ready, Throwable e) {
+		if (AdaptiveRateLimiter.isOverload(e)) {
+			retryAll(ready, (AmazonServiceException) e);
+		} else if (e instanceof AmazonServiceException) {
+			AmazonServiceException serviceException = (AmazonServiceException) e;
+			if (serviceException.getErrorType() == ErrorType.Client && serviceException.getStatusCode() < 500) {
+				failAll(ready, serviceException);
+			} else {
+				retryAll(ready, serviceException);
+			}
+		} else if (e instanceof AmazonClientException) {
+			retryAll(ready, (AmazonClientException) e);
+		} else {
+			failAll(ready, e);
+		}
+	}
+
+	/**
+	 * Sends one batch request and completes the futures of all entries,
+	 * either directly or through {@link #succeeded(Entry, Object)} and
+	 * {@link #failed(Entry, BatchResultErrorEntry)}.
+	 *
+	 * @param batch entries, the index of an entry is its batch entry id
+	 * @return completes when the call finished, {@link #DONE} after a
+	 *         blocking call; failing it (or throwing) fails or retries the
+	 *         whole batch
+	 */
+	protected abstract CompletableFuture<?> execute(List<Entry<T, R>> batch);
+
+	/**
+	 * @return size of the value counted against the byte limit of a batch
+	 */
+	protected abstract int sizeOf(T value);
+
+	protected void succeeded(Entry<T, R> entry, R result) {
+		entry.future.complete(result);
+	}
+
+	protected void failed(Entry<T, R> entry, BatchResultErrorEntry error) {
+		AmazonServiceException e = new AmazonServiceException(error.getMessage());
+		e.setErrorCode(error.getCode());
+		boolean senderFault = Boolean.TRUE.equals(error.getSenderFault());
+		e.setErrorType(senderFault ? ErrorType.Client : ErrorType.Service);
+		boolean overload = AdaptiveRateLimiter.isOverload(e);
+		AdaptiveRateLimiter limiter = this.limiter;
+		if (overload && limiter != null) {
+			limiter.onOverload();
+		}
+		if (senderFault && !overload) {
+			entry.future.completeExceptionally(e);
+		} else {
+			retry(entry, e);
+		}
+	}
+
+	/**
+	 * Retries the entries of a failed call, one retry of the budget.
+	 */
+	private void retryAll(List<Entry<T, R>> failed, Exception cause) {
+		if (!tryRetry()) {
+			failAll(failed, cause);
+			return;
+		}
+		for (Entry<T, R> entry : failed) {
+			backOff(entry, cause);
+		}
+	}
+
+	private void failAll(List<Entry<T, R>> failed, Throwable cause) {
+		for (Entry<T, R> entry : failed) {
+			entry.future.completeExceptionally(cause);
+		}
+	}
+
+	private void retry(Entry<T, R> entry, Exception cause) {
+		if (entry.attempts < maxAttempts && !tryRetry()) {
+			entry.future.completeExceptionally(cause);
+			return;
+		}
+		backOff(entry, cause);
+	}
+
+	private boolean tryRetry() {
+		AdaptiveRateLimiter limiter = this.limiter;
+		return limiter == null || limiter.tryRetry();
+	}
+
+	/**
+	 * Adds the entry to a later batch after a backoff, unless it ran out of
+	 * attempts.
+	 */
+	private void backOff(final Entry<T, R> entry, Exception cause) {
+		if (entry.attempts >= maxAttempts) {
+			entry.future.completeExceptionally(cause);
+			return;
+		}
+		schedule(() -> enqueue(entry), Backoff.delayMillis(entry.attempts, RETRY_BASE_MILLIS, RETRY_MAX_MILLIS),
+				TimeUnit.MILLISECONDS);
+	}
+
+	private class Delayed implements Runnable {
+		final Runnable task;
+
+		Delayed(Runnable task) {
+			this.task = task;
+		}
+
+		public void run() {
+			// close() may have run it already
+			if (undelay(this)) {
+				task.run();
+			}
+		}
+	}
+
+	protected static class Entry<T, R> {
+		public final T value;
+		final int size;
+		final CompletableFuture<R> future = new CompletableFuture<R>();
+		int attempts;
+
+		Entry(T value, int size) {
+			this.value = value;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package com.bma.amazon.sqs.transport;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.bma.amazon.sqs.metrics.Counter;
+import com.bma.amazon.sqs.metrics.Gauge;
+import com.bma.amazon.sqs.metrics.MetricNames;
+import com.bma.amazon.sqs.metrics.MetricsRegistry;
+
+/**
+ * Runs tasks of one kind, e.g. the requests of one method, on an executor of
+ * their own, at most maxConcurrent at the same time and maxQueued waiting.
+ * A slow kind then fills its own bulkhead instead of taking the threads of
+ * the others.
+ * <p>
+ * A caller takes a place with {@link #tryAcquire()} before it commits to a
+ * task, and sheds the task if there is none, rather than queueing it without
+ * bound. The place is given back when the task submitted with it finished,
+ * or with {@link #release()} if it is not submitted after all.
+ */
+public class Bulkhead implements Closeable {
+	public static final int DEFAULT_MAX_QUEUED = 100;
+
+	private final String name;
+	private final ExecutorService executor;
+	private final int maxConcurrent;
+	private final Semaphore places;
+	private final ArrayDeque<Task<?>> waiting = new ArrayDeque<Task<?>>();
+	private final AtomicLong rejected = new AtomicLong();
+	private int running;
+	private Counter rejectedCounter = MetricsRegistry.NOOP.counter(null);
+
+	public Bulkhead(String name, ExecutorService executor, int maxConcurrent, int maxQueued) {
+		if (maxConcurrent < 1 || maxQueued < 0) {
+			throw new IllegalArgumentException("Invalid bulkhead " + maxConcurrent + " + " + maxQueued);
+		}
+		this.name = name;
+		this.executor = executor;
+		this.maxConcurrent = maxConcurrent;
+		this.places = new Semaphore(maxConcurrent + maxQueued);
+	}
+
+	/**
+	 * Reports the rejections and gauges of running and queued tasks, named
+	 * after the prefix, see {@link MetricNames}.
+	 */
+	public void setMetrics(MetricsRegistry metrics, String prefix) {
+		rejectedCounter = metrics.counter(prefix + MetricNames.REJECTED);
+		metrics.gauge(prefix + MetricNames.RUNNING, new Gauge() {
+			public long value() {
+				return getRunning();
+			}
+		});
+		metrics.gauge(prefix + MetricNames.QUEUED, new Gauge() {
+			public long value() {
+				return getQueued();
+			}
+		});
+	}
+
+	/**
+	 * @return false if the bulkhead is full, the caller should shed the task
+	 */
+	public boolean tryAcquire() {
+		if (places.tryAcquire()) {
+			return true;
+		}
+		rejected.incrementAndGet();
+		rejectedCounter.increment();
+		return false;
+	}
+
+	/**
+	 * Gives back a place which was not used for a task.
+	 */
+	public void release() {
+		places.release();
+	}
+
+	/**
+	 * Runs a task in a place taken with {@link #tryAcquire()}.
+	 */
+	public <T> CompletableFuture<T> submit(Supplier<T> supplier) {
+		Task<T> task = new Task<T>(supplier);
+		synchronized (this) {
+			waiting.add(task);
+			if (running >= maxConcurrent) {
+				return task.future;
+			}
+			running++;
+		}
+		try {
+			executor.execute(this::drain);
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				running--;
+				failAll(e);
+			}
+		}
+		return task.future;
+	}
+
+	/**
+	 * Runs waiting tasks until there are none.
+	 */
+	private void drain() {
+		while (true) {
+			Task<?> task;
+			synchronized (this) {
+				task = waiting.poll();
+				if (task == null) {
+					running--;
+					return;
+				}
+			}
+			task.run();
+		}
+	}
+
+	private void failAll(Exception e) {
+		for (Task<?> task = waiting.poll(); task != null; task = waiting.poll()) {
+			task.future.completeExceptionally(e);
+			places.release();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	public synchronized int getQueued() {
+		return waiting.size();
+	}
+
+	/**
+	 * @return tasks shed because the bulkhead was full
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Stops the executor; tasks not started yet fail.
+	 */
+	public void close() {
+		executor.shutdown();
+		synchronized (this) {
+			failAll(new RejectedExecutionException("Bulkhead " + name + " is closed"));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Bulkhead " + name;
+	}
+
+	private class Task<T> {
+		final Supplier<T> supplier;
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		Task(Supplier<T> supplier) {
+			this.supplier = supplier;
+		}
+
+		void run() {
+			T result;
+			try {
+				result = supplier.get();
+			} catch (RuntimeException e) {
+				places.release();
+				future.completeExceptionally(e);
+				return;
+			}
+			places.release();
+			future.complete(result);
+		}
+	}
+}
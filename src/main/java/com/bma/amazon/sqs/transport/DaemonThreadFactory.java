@@ -0,0 +1,23 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names threads after the component which owns them. Threads are daemons so
+ * a client which was not closed does not keep the JVM alive.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+	private final String prefix;
+	private final AtomicInteger counter = new AtomicInteger();
+
+	public DaemonThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
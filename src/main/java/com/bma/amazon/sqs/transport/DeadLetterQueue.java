@@ -0,0 +1,310 @@
+package com.bma.amazon.sqs.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Where a {@link ReceiveEngine} moves messages which were received more than
+ * the maximum number of times, so a message which always fails does not loop
+ * through its queue forever. SQS counts the receives of a message, the
+ * ApproximateReceiveCount attribute.
+ * <p>
+ * A dead letter is the original body wrapped into a JSON envelope with its
+ * source queue, message id, receive count and the last error its receiver
+ * recorded, see {@link DeadLetter}. Errors are only known to the receiver
+ * which saw them, a message last failing in another process is moved
+ * without one. An error is forgotten after the failure TTL, e.g. because
+ * another process handled its message. {@link Redrive} sends the bodies
+ * back.
+ * <p>
+ * An envelope fits into an SQS message: the error is shortened or left out
+ * if it does not fit along with the body. A body which does not fit into an
+ * envelope even without the error, e.g. one full of characters JSON escapes,
+ * is moved as it is; a {@link Redrive} with a target queue replays it.
+ */
+public class DeadLetterQueue implements Closeable {
+	private static final Log log = LogFactory.getLog(DeadLetterQueue.class);
+
+	public static final int DEFAULT_MAX_RECEIVE_COUNT = 5;
+	public static final long DEFAULT_FAILURE_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+	static final String APPROXIMATE_RECEIVE_COUNT = "ApproximateReceiveCount";
+	/** errors remembered at most, of messages which may be received again */
+	private static final int MAX_FAILURES = 10000;
+	private static final long EXPIRY_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final int MAX_ERROR_LENGTH = 4096;
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final String queueUrl;
+	private final int maxReceiveCount;
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService executor;
+	private final SendBatcher sender;
+	private final ConcurrentHashMap<String, Failure> failures = new ConcurrentHashMap<String, Failure>();
+	private volatile long failureTtlMillis = DEFAULT_FAILURE_TTL_MILLIS;
+	private volatile boolean warnedFull;
+
+	public DeadLetterQueue(AmazonSQS sqs, String queueUrl) {
+		this(sqs, queueUrl, DEFAULT_MAX_RECEIVE_COUNT);
+	}
+
+	/**
+	 * @param maxReceiveCount receives of a message at most, it is moved when
+	 *        received once more
+	 */
+	public DeadLetterQueue(AmazonSQS sqs, String queueUrl, int maxReceiveCount) {
+		if (maxReceiveCount < 1) {
+			throw new IllegalArgumentException("Invalid max receive count " + maxReceiveCount);
+		}
+		this.queueUrl = queueUrl;
+		this.maxReceiveCount = maxReceiveCount;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("dead-letter-timer"));
+		this.executor = ThreadMode.getDefault().newExecutor("dead-letter-sqs");
+		this.sender = SendBatcher.create(sqs, queueUrl, scheduler, executor);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				expireFailures();
+			}
+		}, EXPIRY_INTERVAL_MILLIS, EXPIRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * How long the error of a message is remembered for its next receive.
+	 * Make it longer than the message takes to come back, its visibility
+	 * timeout or shed delay.
+	 */
+	public void setFailureTtlMillis(long failureTtlMillis) {
+		this.failureTtlMillis = failureTtlMillis;
+	}
+
+	public String getQueueUrl() {
+		return queueUrl;
+	}
+
+	public int getMaxReceiveCount() {
+		return maxReceiveCount;
+	}
+
+	public void close() {
+		sender.close();
+		scheduler.shutdownNow();
+		executor.shutdown();
+	}
+
+	/**
+	 * @return true if the message was received more than the maximum number
+	 *         of times; false if its receives were not counted
+	 */
+	boolean isPoison(Message message) {
+		return receiveCount(message) > maxReceiveCount;
+	}
+
+	/**
+	 * Remembers the last error of a message, to be moved along with it.
+	 */
+	void recordFailure(String messageId, Throwable cause) {
+		if (cause == null) {
+			return;
+		}
+		if (failures.size() >= MAX_FAILURES && !failures.containsKey(messageId)) {
+			expireFailures();
+			if (failures.size() >= MAX_FAILURES) {
+				if (!warnedFull) {
+					warnedFull = true;
+					log.warn("Remembering " + MAX_FAILURES + " errors already, not recording more for " + this);
+				}
+				return;
+			}
+		}
+		failures.put(messageId, new Failure(describe(cause)));
+	}
+
+	/**
+	 * The message was handled, its errors do not matter any more.
+	 */
+	void forget(String messageId) {
+		if (!failures.isEmpty()) {
+			failures.remove(messageId);
+		}
+	}
+
+	/**
+	 * Forgets the errors recorded longer than the failure TTL ago.
+	 */
+	void expireFailures() {
+		long now = System.nanoTime();
+		long ttlNanos = TimeUnit.MILLISECONDS.toNanos(failureTtlMillis);
+		for (Iterator<Failure> it = failures.values().iterator(); it.hasNext();) {
+			if (now - it.next().recordedNanos >= ttlNanos) {
+				it.remove();
+			}
+		}
+		if (failures.size() < MAX_FAILURES) {
+			warnedFull = false;
+		}
+	}
+
+	/**
+	 * @return errors remembered for messages which may be received again
+	 */
+	int getFailureCount() {
+		return failures.size();
+	}
+
+	/**
+	 * Sends the message wrapped into a dead letter, or as it is if it does
+	 * not fit into one.
+	 *
+	 * @return future of the dead letter's message id
+	 */
+	CompletableFuture<String> add(String sourceQueueUrl, Message message) {
+		Failure failure = failures.remove(message.getMessageId());
+		String error = failure == null ? null : failure.error;
+		ObjectNode envelope = mapper.createObjectNode();
+		envelope.put(DeadLetter.SOURCE, sourceQueueUrl);
+		envelope.put(DeadLetter.MESSAGE_ID, message.getMessageId());
+		envelope.put(DeadLetter.RECEIVE_COUNT, receiveCount(message));
+		envelope.put(DeadLetter.ERROR, error);
+		envelope.put(DeadLetter.FAILED_AT, System.currentTimeMillis());
+		envelope.put(DeadLetter.BODY, message.getBody());
+		String body = envelope.toString();
+		int excess = SendBatcher.utf8Length(body) - SendBatcher.MAX_BATCH_BYTES;
+		while (excess > 0 && error != null) {
+			// every char of the error takes a byte at least, so this converges
+			error = shorten(error, excess);
+			envelope.put(DeadLetter.ERROR, error);
+			body = envelope.toString();
+			excess = SendBatcher.utf8Length(body) - SendBatcher.MAX_BATCH_BYTES;
+		}
+		if (excess > 0) {
+			log.warn("Message " + message.getMessageId() + " does not fit into a dead letter, moving it as it is");
+			body = message.getBody();
+		}
+		return sender.add(body);
+	}
+
+	/**
+	 * @return the error without its last chars, null if nothing is left
+	 */
+	private static String shorten(String error, int chars) {
+		int length = error.length() - chars;
+		if (length > 0 && Character.isHighSurrogate(error.charAt(length - 1))) {
+			length--;
+		}
+		return length > 0 ? error.substring(0, length) : null;
+	}
+
+	private static int receiveCount(Message message) {
+		String count = message.getAttributes() == null ? null : message.getAttributes().get(APPROXIMATE_RECEIVE_COUNT);
+		return count == null ? 0 : Integer.parseInt(count);
+	}
+
+	private static String describe(Throwable cause) {
+		StringWriter trace = new StringWriter();
+		cause.printStackTrace(new PrintWriter(trace));
+		String described = trace.toString();
+		return described.length() <= MAX_ERROR_LENGTH ? described : described.substring(0, MAX_ERROR_LENGTH);
+	}
+
+	@Override
+	public String toString() {
+		return "DeadLetterQueue " + queueUrl + " after " + maxReceiveCount + " receives";
+	}
+
+	private static class Failure {
+		final String error;
+		final long recordedNanos = System.nanoTime();
+
+		Failure(String error) {
+			this.error = error;
+		}
+	}
+
+	/**
+	 * A message moved to a dead-letter queue.
+	 */
+	public static class DeadLetter {
+		static final String SOURCE = "source";
+		static final String MESSAGE_ID = "messageId";
+		static final String RECEIVE_COUNT = "receiveCount";
+		static final String ERROR = "error";
+		static final String FAILED_AT = "failedAt";
+		static final String BODY = "body";
+
+		private final String source;
+		private final String messageId;
+		private final int receiveCount;
+		private final String error;
+		private final long failedAt;
+		private final String body;
+
+		private DeadLetter(JsonNode envelope) {
+			this.source = envelope.path(SOURCE).getTextValue();
+			this.messageId = envelope.path(MESSAGE_ID).getTextValue();
+			this.receiveCount = envelope.path(RECEIVE_COUNT).getIntValue();
+			this.error = envelope.path(ERROR).getTextValue();
+			this.failedAt = envelope.path(FAILED_AT).getLongValue();
+			this.body = envelope.path(BODY).getTextValue();
+		}
+
+		/**
+		 * @return the dead letter of a message of a dead-letter queue, null if
+		 *         the body is no dead letter
+		 */
+		public static DeadLetter read(String body) {
+			try {
+				JsonNode envelope = mapper.readTree(body);
+				return envelope != null && envelope.path(BODY).isTextual() ? new DeadLetter(envelope) : null;
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * @return URL of the queue the message was received from
+		 */
+		public String getSource() {
+			return source;
+		}
+
+		public String getMessageId() {
+			return messageId;
+		}
+
+		public int getReceiveCount() {
+			return receiveCount;
+		}
+
+		/**
+		 * @return stack trace of the last error, null if it is not known
+		 */
+		public String getError() {
+			return error;
+		}
+
+		public long getFailedAt() {
+			return failedAt;
+		}
+
+		public String getBody() {
+			return body;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+
+/**
+ * Acknowledges received messages by collecting their receipt handles into
+ * {@link DeleteMessageBatchRequest}s.
+ */
+public class DeleteBatcher extends Batcher<String, Void> {
+	private final AmazonSQS sqs;
+	private final AsyncSqs async;
+
+	/**
+	 * Sends with blocking calls on the executor.
+	 */
+	public DeleteBatcher(AmazonSQS sqs, String queueUrl, ScheduledExecutorService scheduler, Executor executor) {
+		super(queueUrl, scheduler, executor, Long.MAX_VALUE);
+		setRateLimiter(new AdaptiveRateLimiter());
+		this.sqs = sqs;
+		this.async = null;
+	}
+
+	/**
+	 * Sends with non-blocking calls.
+	 */
+	public DeleteBatcher(AsyncSqs sqs, String queueUrl, ScheduledExecutorService scheduler) {
+		super(queueUrl, scheduler, null, Long.MAX_VALUE);
+		setRateLimiter(new AdaptiveRateLimiter());
+		this.sqs = null;
+		this.async = sqs;
+	}
+
+	/**
+	 * @return a non-blocking batcher if the client implements {@link AsyncSqs},
+	 *         a blocking one on the executor otherwise
+	 */
+	public static DeleteBatcher create(AmazonSQS sqs, String queueUrl, ScheduledExecutorService scheduler,
+			Executor executor) {
+		if (sqs instanceof AsyncSqs) {
+			return new DeleteBatcher((AsyncSqs) sqs, queueUrl, scheduler);
+		}
+		return new DeleteBatcher(sqs, queueUrl, scheduler, executor);
+	}
+
+	@Override
+	protected String getOperation() {
+		return "DeleteMessageBatch";
+	}
+
+	@Override
+	protected CompletableFuture<?> execute(final List<Entry<String, Void>> batch) {
+		List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), batch.get(i).value));
+		}
+		DeleteMessageBatchRequest request = new DeleteMessageBatchRequest(queueUrl, entries);
+		if (async != null) {
+			return async.deleteMessageBatchAsync(request).thenAccept(result -> completed(batch, result));
+		}
+		completed(batch, sqs.deleteMessageBatch(request));
+		return DONE;
+	}
+
+	private void completed(List<Entry<String, Void>> batch, DeleteMessageBatchResult result) {
+		for (DeleteMessageBatchResultEntry success : result.getSuccessful()) {
+			succeeded(batch.get(Integer.parseInt(success.getId())), null);
+		}
+		for (BatchResultErrorEntry failure : result.getFailed()) {
+			failed(batch.get(Integer.parseInt(failure.getId())), failure);
+		}
+	}
+
+	@Override
+	protected int sizeOf(String receiptHandle) {
+		return receiptHandle.length();
+	}
+}
@@ -0,0 +1,57 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Limits the calls in flight without blocking: a call over the limit is
+ * queued and started by the completion of an earlier one.
+ */
+class InFlightWindow {
+	private final Queue<Runnable> waiting = new ArrayDeque<Runnable>();
+	private int limit;
+	private int inFlight;
+
+	InFlightWindow(int limit) {
+		this.limit = limit;
+	}
+
+	synchronized void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Runs the call now if the window has room, later otherwise. The call
+	 * must lead to exactly one {@link #release()}.
+	 */
+	void submit(Runnable call) {
+		synchronized (this) {
+			if (inFlight >= limit) {
+				waiting.add(call);
+				return;
+			}
+			inFlight++;
+		}
+		call.run();
+	}
+
+	void release() {
+		Runnable next;
+		synchronized (this) {
+			if (inFlight > limit || waiting.isEmpty()) {
+				inFlight--;
+				return;
+			}
+			next = waiting.poll();
+		}
+		next.run();
+	}
+
+	synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	synchronized int getWaiting() {
+		return waiting.size();
+	}
+}
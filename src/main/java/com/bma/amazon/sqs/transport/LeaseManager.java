@@ -0,0 +1,285 @@
+package com.bma.amazon.sqs.transport;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.bma.amazon.sqs.metrics.Counter;
+import com.bma.amazon.sqs.metrics.Gauge;
+import com.bma.amazon.sqs.metrics.MetricNames;
+import com.bma.amazon.sqs.metrics.MetricsRegistry;
+import com.bma.amazon.sqs.metrics.Timer;
+
+/**
+ * Keeps received messages invisible while they are handled, however long
+ * that takes, so a slow handler does not get its message redelivered to
+ * another consumer.
+ * <p>
+ * Every receipt handle is leased when it is received. When two thirds of its
+ * visibility timeout have passed the timeout is extended again, in
+ * ChangeMessageVisibilityBatch calls per queue, until the lease is completed
+ * (the message was deleted) or released (visibility 0, the message is
+ * redelivered right away). SQS does not extend a message beyond 12 hours
+ * after its receive, such leases are dropped.
+ * <p>
+ * The leases are kept in a hashed timer wheel advanced by a single thread,
+ * which also drives the batchers; the SQS calls run on an executor of the
+ * given {@link ThreadMode}.
+ */
+public class LeaseManager implements Closeable {
+	private static final Log log = LogFactory.getLog(LeaseManager.class);
+
+	public static final long DEFAULT_TICK_MILLIS = 100;
+	public static final long MAX_LEASE_MILLIS = TimeUnit.HOURS.toMillis(12);
+	private static final int WHEEL_SIZE = 512;
+
+	private final AmazonSQS sqs;
+	private final long tickNanos;
+	private final ScheduledExecutorService wheelThread;
+	private final ExecutorService sqsExecutor;
+	private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+	private final ConcurrentHashMap<String, VisibilityBatcher> batchers = new ConcurrentHashMap<String, VisibilityBatcher>();
+	/** leases to put into the wheel on the next tick, the wheel itself belongs to the wheel thread */
+	private final ConcurrentLinkedQueue<Lease> scheduled = new ConcurrentLinkedQueue<Lease>();
+	private final List<List<Lease>> wheel = new ArrayList<List<Lease>>(WHEEL_SIZE);
+	private long tick;
+	private Timer ageTimer = MetricsRegistry.NOOP.timer(null);
+	private Counter extensionCounter = MetricsRegistry.NOOP.counter(null);
+	private Counter lostCounter = MetricsRegistry.NOOP.counter(null);
+
+	public LeaseManager(AmazonSQS sqs) {
+		this(sqs, DEFAULT_TICK_MILLIS, ThreadMode.getDefault());
+	}
+
+	/**
+	 * @param tickMillis resolution of the wheel, extensions are due up to one
+	 *        tick late
+	 */
+	public LeaseManager(AmazonSQS sqs, long tickMillis, ThreadMode threadMode) {
+		this.sqs = sqs;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			wheel.add(new ArrayList<Lease>());
+		}
+		this.wheelThread = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("sqs-lease-wheel"));
+		this.sqsExecutor = threadMode.newExecutor("sqs-lease");
+		wheelThread.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				tick();
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reports the age of leases when they end, the number of leases and the
+	 * age of the oldest one, extensions and leases lost before they ended,
+	 * see {@link MetricNames}.
+	 */
+	public void setMetrics(MetricsRegistry metrics) {
+		ageTimer = metrics.timer(MetricNames.LEASE_AGE);
+		extensionCounter = metrics.counter(MetricNames.LEASE_EXTENSIONS);
+		lostCounter = metrics.counter(MetricNames.LEASE_LOST);
+		metrics.gauge(MetricNames.LEASE_ACTIVE, new Gauge() {
+			public long value() {
+				return getActiveCount();
+			}
+		});
+		metrics.gauge(MetricNames.LEASE_OLDEST, new Gauge() {
+			public long value() {
+				return getOldestAgeMillis();
+			}
+		});
+	}
+
+	/**
+	 * Starts extending the visibility of a message which was just received.
+	 *
+	 * @param visibilitySeconds timeout the message was received with, it is
+	 *        extended by as much each time
+	 */
+	public void acquire(String queueUrl, String receiptHandle, int visibilitySeconds) {
+		if (visibilitySeconds < 1) {
+			throw new IllegalArgumentException("Invalid visibility timeout " + visibilitySeconds);
+		}
+		Lease lease = new Lease(queueUrl, receiptHandle, visibilitySeconds);
+		lease.dueNanos = lease.acquiredNanos + lease.extendAfterNanos();
+		leases.put(receiptHandle, lease);
+		scheduled.add(lease);
+	}
+
+	/**
+	 * Stops extending, the message was deleted or will become visible when
+	 * its current timeout expires.
+	 *
+	 * @return false if the message was not leased (any more)
+	 */
+	public boolean complete(String receiptHandle) {
+		return end(receiptHandle) != null;
+	}
+
+	/**
+	 * Stops extending and makes the message visible again at once, so it is
+	 * retried without waiting for its timeout.
+	 *
+	 * @return false if the message was not leased (any more)
+	 */
+	public boolean release(String receiptHandle) {
+		return release(receiptHandle, 0);
+	}
+
+	/**
+	 * Stops extending and makes the message visible again after the delay.
+	 *
+	 * @return false if the message was not leased (any more)
+	 */
+	public boolean release(String receiptHandle, int delaySeconds) {
+		final Lease lease = end(receiptHandle);
+		if (lease == null) {
+			return false;
+		}
+		batcher(lease.queueUrl).add(receiptHandle, delaySeconds).whenComplete((result, e) -> {
+			if (e != null) {
+				log.debug("Message " + receiptHandle + " stays invisible until its timeout", e);
+			}
+		});
+		return true;
+	}
+
+	public boolean isLeased(String receiptHandle) {
+		return leases.containsKey(receiptHandle);
+	}
+
+	public int getActiveCount() {
+		return leases.size();
+	}
+
+	public long getOldestAgeMillis() {
+		long oldest = Long.MAX_VALUE;
+		for (Lease lease : leases.values()) {
+			oldest = Math.min(oldest, lease.acquiredNanos);
+		}
+		return oldest == Long.MAX_VALUE ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+	}
+
+	/**
+	 * Stops extending. Leased messages become visible when their current
+	 * timeout expires.
+	 */
+	public void close() {
+		wheelThread.shutdownNow();
+		for (VisibilityBatcher batcher : batchers.values()) {
+			batcher.close();
+		}
+		sqsExecutor.shutdown();
+	}
+
+	private Lease end(String receiptHandle) {
+		Lease lease = leases.remove(receiptHandle);
+		if (lease == null) {
+			return null;
+		}
+		lease.ended = true;
+		ageTimer.recordSince(lease.acquiredNanos);
+		return lease;
+	}
+
+	private void tick() {
+		tick++;
+		long now = System.nanoTime();
+		Lease lease;
+		while ((lease = scheduled.poll()) != null) {
+			if (!lease.ended) {
+				long ticks = Math.max(1, (lease.dueNanos - now + tickNanos - 1) / tickNanos);
+				lease.dueTick = tick + ticks;
+				wheel.get((int) (lease.dueTick % WHEEL_SIZE)).add(lease);
+			}
+		}
+		List<Lease> due = null;
+		Iterator<Lease> slot = wheel.get((int) (tick % WHEEL_SIZE)).iterator();
+		while (slot.hasNext()) {
+			lease = slot.next();
+			if (lease.ended) {
+				slot.remove();
+			} else if (lease.dueTick <= tick) {
+				slot.remove();
+				if (due == null) {
+					due = new ArrayList<Lease>();
+				}
+				due.add(lease);
+			}
+		}
+		if (due != null) {
+			for (Lease expiring : due) {
+				extend(expiring, now);
+			}
+		}
+	}
+
+	private void extend(final Lease lease, long now) {
+		if (TimeUnit.NANOSECONDS.toMillis(now - lease.acquiredNanos) + lease.visibilitySeconds * 1000L > MAX_LEASE_MILLIS) {
+			if (leases.remove(lease.receiptHandle, lease)) {
+				lease.ended = true;
+				lostCounter.increment();
+				log.warn("Message " + lease.receiptHandle + " reached the maximum visibility, it may be redelivered");
+			}
+			return;
+		}
+		batcher(lease.queueUrl).add(lease.receiptHandle, lease.visibilitySeconds).whenComplete((result, e) -> {
+			if (e == null) {
+				extensionCounter.increment();
+				if (!lease.ended) {
+					lease.dueNanos = System.nanoTime() + lease.extendAfterNanos();
+					scheduled.add(lease);
+				}
+			} else if (leases.remove(lease.receiptHandle, lease)) {
+				lease.ended = true;
+				lostCounter.increment();
+				log.warn("Failed to extend the visibility of " + lease.receiptHandle + ", it may be redelivered", e);
+			}
+		});
+	}
+
+	private VisibilityBatcher batcher(String queueUrl) {
+		VisibilityBatcher batcher = batchers.get(queueUrl);
+		if (batcher == null) {
+			batcher = VisibilityBatcher.create(sqs, queueUrl, wheelThread, sqsExecutor);
+			VisibilityBatcher existing = batchers.putIfAbsent(queueUrl, batcher);
+			if (existing != null) {
+				batcher = existing;
+			}
+		}
+		return batcher;
+	}
+
+	private static class Lease {
+		final String queueUrl;
+		final String receiptHandle;
+		final int visibilitySeconds;
+		final long acquiredNanos = System.nanoTime();
+		volatile long dueNanos;
+		volatile boolean ended;
+		/** wheel thread only */
+		long dueTick;
+
+		Lease(String queueUrl, String receiptHandle, int visibilitySeconds) {
+			this.queueUrl = queueUrl;
+			this.receiptHandle = receiptHandle;
+			this.visibilitySeconds = visibilitySeconds;
+		}
+
+		long extendAfterNanos() {
+			return TimeUnit.SECONDS.toNanos(visibilitySeconds) * 2 / 3;
+		}
+	}
+}
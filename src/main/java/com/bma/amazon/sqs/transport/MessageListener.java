@@ -0,0 +1,11 @@
+package com.bma.amazon.sqs.transport;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Receives messages polled from a queue.
+ */
+public interface MessageListener {
+
+	void onMessage(Message message);
+}
@@ -0,0 +1,317 @@
+package com.bma.amazon.sqs.transport;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs the tasks of a message group one after the other, in the order of the
+ * sender's sequence numbers, and the tasks of different groups in parallel,
+ * so throughput grows with the number of active groups.
+ * <p>
+ * Every group has a lane of its own, locked on its own; there is no lock
+ * across groups. A task whose predecessors of the same sender have not
+ * arrived yet, e.g. because SQS delivered them out of order, is held back
+ * for up to the reorder time and then run anyway, skipping the gap. Lanes
+ * are dropped when they were idle for a while.
+ * <p>
+ * A task also tells up to which sequence the sender's tasks were answered.
+ * A lane does not wait for those, so a sender whose lane was dropped, or
+ * which was sending before the dispatcher started, is not held back for
+ * predecessors which ran long ago.
+ * <p>
+ * {@link #submit} blocks while maxPending tasks are waiting or running, so
+ * the receive engine does not prefetch more than that.
+ */
+public class OrderedDispatcher implements Closeable {
+	public static final long DEFAULT_REORDER_MILLIS = 1000;
+	public static final long DEFAULT_IDLE_MILLIS = 60000;
+
+	private final ExecutorService executor;
+	private final ScheduledExecutorService scheduler;
+	private final Semaphore pending;
+	private final long reorderMillis;
+	private final long idleMillis;
+	private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+	/**
+	 * @param executor runs the lanes, one thread per active group
+	 * @param scheduler times out held tasks and drops idle lanes
+	 */
+	public OrderedDispatcher(ExecutorService executor, ScheduledExecutorService scheduler, int maxPending,
+			long reorderMillis, long idleMillis) {
+		this.executor = executor;
+		this.scheduler = scheduler;
+		this.pending = new Semaphore(maxPending);
+		this.reorderMillis = reorderMillis;
+		this.idleMillis = idleMillis;
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				dropIdleLanes();
+			}
+		}, idleMillis, idleMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param sequence position among the sender's tasks of the group from 1,
+	 *        0 if unknown: the task is run in the order it was submitted
+	 */
+	public <T> CompletableFuture<T> submit(String group, String sender, long sequence, Supplier<T> task) {
+		return submit(group, sender, sequence, 0, task);
+	}
+
+	/**
+	 * @param acknowledged sequence up to which the sender's tasks of the
+	 *        group were answered, they are not waited for
+	 */
+	public <T> CompletableFuture<T> submit(String group, String sender, long sequence, long acknowledged,
+			Supplier<T> task) {
+		try {
+			pending.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for " + group, e);
+		}
+		Task<T> entry = new Task<T>(sender, sequence, acknowledged, task);
+		entry.future.whenComplete((result, e) -> pending.release());
+		while (true) {
+			Lane lane = lanes.computeIfAbsent(group, Lane::new);
+			synchronized (lane) {
+				if (!lane.dropped) {
+					lane.add(entry);
+					lane.start();
+					return entry.future;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return groups with tasks waiting or running
+	 */
+	public int getActiveGroups() {
+		int active = 0;
+		for (Lane lane : lanes.values()) {
+			synchronized (lane) {
+				if (!lane.isIdle()) {
+					active++;
+				}
+			}
+		}
+		return active;
+	}
+
+	/**
+	 * @return tasks waiting or running
+	 */
+	public int getPendingCount() {
+		int count = 0;
+		for (Lane lane : lanes.values()) {
+			synchronized (lane) {
+				count += lane.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Stops the lanes; tasks not started yet fail.
+	 */
+	public void close() {
+		executor.shutdown();
+		for (Lane lane : lanes.values()) {
+			synchronized (lane) {
+				lane.failAll(new RejectedExecutionException("Dispatcher is closed"));
+			}
+		}
+	}
+
+	private void dropIdleLanes() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Lane> it = lanes.values().iterator(); it.hasNext();) {
+			Lane lane = it.next();
+			synchronized (lane) {
+				if (lane.isIdle() && now - lane.idleSince >= idleMillis) {
+					lane.dropped = true;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private class Lane implements Runnable {
+		final String group;
+		final ArrayDeque<Task<?>> ready = new ArrayDeque<Task<?>>();
+		/** next expected sequence per sender */
+		final Map<String, Long> next = new HashMap<String, Long>();
+		/** tasks which came too early per sender, by sequence */
+		final Map<String, TreeMap<Long, Task<?>>> held = new HashMap<String, TreeMap<Long, Task<?>>>();
+		boolean running;
+		boolean dropped;
+		long idleSince = System.currentTimeMillis();
+
+		Lane(String group) {
+			this.group = group;
+		}
+
+		void add(Task<?> task) {
+			if (task.sequence <= 0 || task.sender == null) {
+				ready.add(task);
+				return;
+			}
+			// the answered ones may have run before the lane existed
+			long expected = Math.max(next.getOrDefault(task.sender, 1L), task.acknowledged + 1);
+			if (task.sequence <= expected) {
+				// in order, or late: a redelivery of one which ran already
+				ready.add(task);
+				next.put(task.sender, Math.max(expected, task.sequence + 1));
+			} else {
+				next.put(task.sender, expected);
+				hold(task);
+			}
+			promote(task.sender);
+		}
+
+		/**
+		 * Holds the task back until its predecessors arrived or the reorder
+		 * time is up; fails it if the scheduler is shut down.
+		 */
+		void hold(Task<?> task) {
+			try {
+				scheduler.schedule(() -> expire(task), reorderMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				task.future.completeExceptionally(e);
+				return;
+			}
+			held.computeIfAbsent(task.sender, sender -> new TreeMap<Long, Task<?>>()).put(task.sequence, task);
+		}
+
+		/**
+		 * Moves the held tasks which are next now to the ready ones.
+		 */
+		void promote(String sender) {
+			TreeMap<Long, Task<?>> early = held.get(sender);
+			if (early == null) {
+				return;
+			}
+			long expected = next.get(sender);
+			while (!early.isEmpty() && early.firstKey() <= expected) {
+				Map.Entry<Long, Task<?>> first = early.pollFirstEntry();
+				ready.add(first.getValue());
+				expected = Math.max(expected, first.getKey() + 1);
+			}
+			next.put(sender, expected);
+			if (early.isEmpty()) {
+				held.remove(sender);
+			}
+		}
+
+		/**
+		 * Gives up waiting for the predecessors of a held task.
+		 */
+		void expire(Task<?> task) {
+			synchronized (this) {
+				TreeMap<Long, Task<?>> early = held.get(task.sender);
+				if (early == null || early.get(task.sequence) != task) {
+					return;
+				}
+				next.put(task.sender, early.firstKey());
+				promote(task.sender);
+				start();
+			}
+		}
+
+		void start() {
+			if (running || ready.isEmpty()) {
+				return;
+			}
+			running = true;
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				running = false;
+				failAll(e);
+			}
+		}
+
+		public void run() {
+			while (true) {
+				Task<?> task;
+				synchronized (this) {
+					task = ready.poll();
+					if (task == null) {
+						running = false;
+						idleSince = System.currentTimeMillis();
+						return;
+					}
+				}
+				task.run();
+			}
+		}
+
+		boolean isIdle() {
+			return !running && ready.isEmpty() && held.isEmpty();
+		}
+
+		int size() {
+			int size = ready.size() + (running ? 1 : 0);
+			for (TreeMap<Long, Task<?>> early : held.values()) {
+				size += early.size();
+			}
+			return size;
+		}
+
+		void failAll(Exception e) {
+			for (Task<?> task : ready) {
+				task.future.completeExceptionally(e);
+			}
+			ready.clear();
+			for (TreeMap<Long, Task<?>> early : held.values()) {
+				for (Task<?> task : early.values()) {
+					task.future.completeExceptionally(e);
+				}
+			}
+			held.clear();
+		}
+
+		@Override
+		public String toString() {
+			return "Lane " + group;
+		}
+	}
+
+	private static class Task<T> {
+		final String sender;
+		final long sequence;
+		final long acknowledged;
+		final Supplier<T> supplier;
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		Task(String sender, long sequence, long acknowledged, Supplier<T> supplier) {
+			this.sender = sender;
+			this.sequence = sequence;
+			this.acknowledged = acknowledged;
+			this.supplier = supplier;
+		}
+
+		void run() {
+			try {
+				future.complete(supplier.get());
+			} catch (Throwable e) {
+				// an Error too, the lane has to go on
+				future.completeExceptionally(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+
+/**
+ * Resolves queue names to URLs once per TTL. Concurrent lookups of the same
+ * name wait for one SQS call, so workers starting together do not each call
+ * GetQueueUrl or CreateQueue. Failed lookups are not cached. Thread safe.
+ */
+public class QueueUrlCache {
+	public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	private final AmazonSQS sqs;
+	private final long ttlNanos;
+	private final ConcurrentMap<String, Lookup> lookups = new ConcurrentHashMap<String, Lookup>();
+
+	public QueueUrlCache(AmazonSQS sqs) {
+		this(sqs, DEFAULT_TTL_MILLIS);
+	}
+
+	public QueueUrlCache(AmazonSQS sqs, long ttlMillis) {
+		this.sqs = sqs;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+	}
+
+	public AmazonSQS getSqs() {
+		return sqs;
+	}
+
+	/**
+	 * @throws com.amazonaws.services.sqs.model.QueueDoesNotExistException
+	 */
+	public String getQueueUrl(String queueName) {
+		return lookup(queueName, false);
+	}
+
+	/**
+	 * Creates the queue unless it exists, which is what resolving an URL with
+	 * CreateQueue did, but only once per TTL.
+	 */
+	public String createQueue(String queueName) {
+		return lookup(queueName, true);
+	}
+
+	public void invalidate(String queueName) {
+		lookups.remove(queueName);
+	}
+
+	private String lookup(String queueName, boolean create) {
+		while (true) {
+			Lookup lookup = lookups.get(queueName);
+			if (lookup != null && !lookup.isExpired()) {
+				return urlOf(lookup);
+			}
+			Lookup started = new Lookup(System.nanoTime() + ttlNanos);
+			if (lookup == null ? lookups.putIfAbsent(queueName, started) == null
+					: lookups.replace(queueName, lookup, started)) {
+				load(queueName, create, started);
+				return urlOf(started);
+			}
+		}
+	}
+
+	private static String urlOf(Lookup lookup) {
+		try {
+			return lookup.url.join();
+		} catch (CompletionException e) {
+			throw (RuntimeException) e.getCause();
+		}
+	}
+
+	private void load(String queueName, boolean create, Lookup lookup) {
+		try {
+			lookup.url.complete(create ? sqs.createQueue(new CreateQueueRequest(queueName)).getQueueUrl()
+					: sqs.getQueueUrl(new GetQueueUrlRequest(queueName)).getQueueUrl());
+		} catch (RuntimeException e) {
+			lookups.remove(queueName, lookup);
+			lookup.url.completeExceptionally(e);
+		}
+	}
+
+	private static class Lookup {
+		final CompletableFuture<String> url = new CompletableFuture<String>();
+		final long expiresNanos;
+
+		Lookup(long expiresNanos) {
+			this.expiresNanos = expiresNanos;
+		}
+
+		boolean isExpired() {
+			return url.isDone() && System.nanoTime() - expiresNanos > 0;
+		}
+	}
+}
@@ -0,0 +1,618 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.bma.amazon.sqs.metrics.Counter;
+import com.bma.amazon.sqs.metrics.Gauge;
+import com.bma.amazon.sqs.metrics.MetricNames;
+import com.bma.amazon.sqs.metrics.MetricsRegistry;
+import com.bma.amazon.sqs.metrics.Timer;
+
+/**
+ * Receives messages with several concurrent long-pollers into a bounded
+ * prefetch buffer which is drained by handler threads calling the listener.
+ * <p>
+ * The number of pollers adapts to the load: a poll which returns a full batch
+ * while the buffer is nearly empty starts another poller, up to the maximum;
+ * an empty poll stops the poller, down to the minimum. A poller only asks for
+ * as many messages as there is free space in the buffer, so when handlers
+ * fall behind polling stops instead of taking messages nobody can process
+ * before their visibility timeout.
+ * <p>
+ * With {@link ThreadMode#VIRTUAL} pollers are virtual threads and every
+ * message is handled on a virtual thread of its own; the number of handler
+ * threads given to the constructor then limits how many messages of the queue
+ * are handled at the same time.
+ * <p>
+ * The listener is responsible for deleting the message. With a
+ * {@link LeaseManager} messages are received with a known visibility timeout
+ * which is extended until the listener calls {@link #complete(Message)} or
+ * {@link #release(Message)}.
+ * <p>
+ * With a {@link DeadLetterQueue} a message received more than its maximum
+ * number of times is moved there instead of being handed to the listener
+ * again, with the last error it failed with, and deleted through the
+ * listener's {@link #setDeleter(DeleteBatcher) delete batcher}.
+ */
+public class ReceiveEngine {
+	private static final Log log = LogFactory.getLog(ReceiveEngine.class);
+
+	public static final int MAX_NUMBER_OF_MESSAGES = 10;
+	public static final int WAIT_TIME_SECONDS = 20;
+	public static final int DEFAULT_MAX_POLLERS = 8;
+	public static final int DEFAULT_PREFETCH_CAPACITY = 100;
+	private static final long ERROR_BACKOFF_MILLIS = 200;
+	private static final long MAX_ERROR_BACKOFF_MILLIS = 20000;
+	private static final long HANDLER_POLL_MILLIS = 100;
+	/** a long poll is not interruptible, it returns within its wait time */
+	private static final long POLLER_JOIN_MILLIS = TimeUnit.SECONDS.toMillis(WAIT_TIME_SECONDS + 5);
+	private static final String SENT_TIMESTAMP = "SentTimestamp";
+
+	private final AmazonSQS sqs;
+	private final String queueUrl;
+	private final MessageListener listener;
+	private final int handlerThreads;
+	private int minPollers = 1;
+	private int maxPollers = DEFAULT_MAX_POLLERS;
+	private int prefetchCapacity = DEFAULT_PREFETCH_CAPACITY;
+	private Timer queueTimer = MetricsRegistry.NOOP.timer(null);
+	private Timer bufferTimer = MetricsRegistry.NOOP.timer(null);
+	private Counter deadLetterCounter = MetricsRegistry.NOOP.counter(null);
+	private ThreadMode threadMode = ThreadMode.getDefault();
+	private LeaseManager leases;
+	private int visibilitySeconds;
+	private volatile DeadLetterQueue deadLetterQueue;
+	private volatile DeleteBatcher deleter;
+
+	private final String name;
+	private ThreadFactory pollerThreads;
+	private ThreadFactory handlerThreadFactory;
+	private final List<Thread> pollers = new CopyOnWriteArrayList<Thread>();
+	private final List<Thread> handlers = new ArrayList<Thread>();
+	private final AtomicInteger activePollers = new AtomicInteger();
+	private final AtomicInteger activeHandlers = new AtomicInteger();
+	private BlockingQueue<Received> buffer;
+	private Semaphore freeSpace;
+	private Semaphore handlerPermits;
+	private volatile boolean running;
+
+	public ReceiveEngine(AmazonSQS sqs, String queueUrl, MessageListener listener, int handlerThreads) {
+		this.sqs = sqs;
+		this.queueUrl = queueUrl;
+		this.listener = listener;
+		this.handlerThreads = handlerThreads;
+		this.name = queueUrl.substring(queueUrl.lastIndexOf('/') + 1);
+	}
+
+	public void setPollers(int minPollers, int maxPollers) {
+		if (minPollers < 1 || maxPollers < minPollers) {
+			throw new IllegalArgumentException("Invalid pollers range " + minPollers + ".." + maxPollers);
+		}
+		this.minPollers = minPollers;
+		this.maxPollers = maxPollers;
+	}
+
+	public void setPrefetchCapacity(int prefetchCapacity) {
+		this.prefetchCapacity = prefetchCapacity;
+	}
+
+	/**
+	 * Threads of the pollers and handlers, set it before {@link #start()}.
+	 *
+	 * @throws UnsupportedOperationException if the runtime does not have them
+	 */
+	public void setThreadMode(ThreadMode threadMode) {
+		if (!threadMode.isSupported()) {
+			throw new UnsupportedOperationException(threadMode + " threads need Java 21");
+		}
+		this.threadMode = threadMode;
+	}
+
+	public ThreadMode getThreadMode() {
+		return threadMode;
+	}
+
+	/**
+	 * Leases every received message, set it before {@link #start()}.
+	 *
+	 * @param visibilitySeconds timeout to receive messages with, extended by
+	 *        as much while they are handled
+	 */
+	public void setLeaseManager(LeaseManager leases, int visibilitySeconds) {
+		this.leases = leases;
+		this.visibilitySeconds = visibilitySeconds;
+	}
+
+	public LeaseManager getLeaseManager() {
+		return leases;
+	}
+
+	/**
+	 * The batcher the listener deletes its messages with; messages moved to
+	 * the dead-letter queue are deleted through it as well.
+	 */
+	public void setDeleter(DeleteBatcher deleter) {
+		this.deleter = deleter;
+	}
+
+	public DeleteBatcher getDeleter() {
+		return deleter;
+	}
+
+	/**
+	 * Moves messages received too often to the dead-letter queue, null to
+	 * hand them to the listener however often they failed.
+	 *
+	 * @throws IllegalStateException if no deleter was set
+	 */
+	public void setDeadLetterQueue(DeadLetterQueue deadLetterQueue) {
+		if (deadLetterQueue != null && deleter == null) {
+			throw new IllegalStateException("Moved messages of " + queueUrl + " need a deleter");
+		}
+		this.deadLetterQueue = deadLetterQueue;
+	}
+
+	public DeadLetterQueue getDeadLetterQueue() {
+		return deadLetterQueue;
+	}
+
+	/**
+	 * The listener is done with the message: it was deleted or may reappear
+	 * after its visibility timeout.
+	 */
+	public void complete(Message message) {
+		DeadLetterQueue deadLetterQueue = this.deadLetterQueue;
+		if (deadLetterQueue != null) {
+			deadLetterQueue.forget(message.getMessageId());
+		}
+		if (leases != null) {
+			leases.complete(message.getReceiptHandle());
+		}
+	}
+
+	/**
+	 * The listener gave up on the message, with a lease manager it is made
+	 * visible again at once rather than after its timeout.
+	 */
+	public void release(Message message) {
+		if (leases != null) {
+			leases.release(message.getReceiptHandle());
+		}
+	}
+
+	/**
+	 * The listener failed on the message, it is made visible again and
+	 * moved to the dead-letter queue with the cause if it keeps failing.
+	 */
+	public void release(Message message, Throwable cause) {
+		DeadLetterQueue deadLetterQueue = this.deadLetterQueue;
+		if (deadLetterQueue != null) {
+			deadLetterQueue.recordFailure(message.getMessageId(), cause);
+		}
+		release(message);
+	}
+
+	/**
+	 * The listener sheds the message: it becomes visible again after the
+	 * delay, to be retried when the load went down, possibly by another
+	 * consumer.
+	 */
+	public void release(Message message, int delaySeconds) {
+		if (leases != null) {
+			leases.release(message.getReceiptHandle(), delaySeconds);
+			return;
+		}
+		try {
+			sqs.changeMessageVisibility(new ChangeMessageVisibilityRequest(queueUrl, message.getReceiptHandle(),
+					delaySeconds));
+		} catch (RuntimeException e) {
+			log.debug("Message " + message.getMessageId() + " stays invisible until its timeout", e);
+		}
+	}
+
+	/**
+	 * Reports the time messages spent in the queue and in the prefetch buffer
+	 * and gauges of buffered messages and active pollers, named after the
+	 * prefix, see {@link MetricNames}.
+	 */
+	public void setMetrics(MetricsRegistry metrics, String prefix) {
+		queueTimer = metrics.timer(prefix + MetricNames.QUEUE);
+		bufferTimer = metrics.timer(prefix + MetricNames.BUFFER);
+		deadLetterCounter = metrics.counter(prefix + MetricNames.DEAD_LETTERS);
+		metrics.gauge(prefix + MetricNames.BUFFERED, new Gauge() {
+			public long value() {
+				return getBufferedCount();
+			}
+		});
+		metrics.gauge(prefix + MetricNames.POLLERS, new Gauge() {
+			public long value() {
+				return getActivePollers();
+			}
+		});
+		metrics.gauge(prefix + MetricNames.HANDLERS, new Gauge() {
+			public long value() {
+				return getActiveHandlers();
+			}
+		});
+	}
+
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		buffer = new ArrayBlockingQueue<Received>(prefetchCapacity);
+		freeSpace = new Semaphore(prefetchCapacity);
+		pollerThreads = threadMode.newThreadFactory("sqs-poller-" + name);
+		handlerThreadFactory = threadMode.newThreadFactory("sqs-handler-" + name);
+		if (threadMode == ThreadMode.VIRTUAL) {
+			handlerPermits = new Semaphore(handlerThreads);
+			Thread dispatcher = handlerThreadFactory.newThread(new Runnable() {
+				public void run() {
+					dispatch();
+				}
+			});
+			handlers.add(dispatcher);
+			dispatcher.start();
+		} else {
+			handlerPermits = null;
+			for (int i = 0; i < handlerThreads; i++) {
+				Thread handler = handlerThreadFactory.newThread(new Runnable() {
+					public void run() {
+						handle();
+					}
+				});
+				handlers.add(handler);
+				handler.start();
+			}
+		}
+		for (int i = 0; i < minPollers; i++) {
+			startPoller();
+		}
+	}
+
+	/**
+	 * Stops polling, lets the handlers finish their current message and makes
+	 * the buffered messages visible again for other consumers. Waits for the
+	 * pollers, so messages of a receive still in flight are made visible
+	 * again as well and a later {@link #start()} does not poll along with
+	 * them.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		for (Thread poller : pollers) {
+			poller.interrupt();
+		}
+		for (Thread poller : pollers) {
+			try {
+				poller.join(POLLER_JOIN_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			if (poller.isAlive()) {
+				log.warn("Poller " + poller.getName() + " of " + queueUrl + " did not stop");
+			}
+		}
+		for (Thread handler : handlers) {
+			try {
+				handler.join(TimeUnit.SECONDS.toMillis(WAIT_TIME_SECONDS));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		handlers.clear();
+		awaitDispatched();
+		releaseBuffered();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public int getActivePollers() {
+		return activePollers.get();
+	}
+
+	/**
+	 * @return messages the listener is handling right now
+	 */
+	public int getActiveHandlers() {
+		return activeHandlers.get();
+	}
+
+	public int getBufferedCount() {
+		return buffer == null ? 0 : buffer.size();
+	}
+
+	private boolean startPoller() {
+		int active;
+		do {
+			active = activePollers.get();
+			if (active >= maxPollers) {
+				return false;
+			}
+		} while (!activePollers.compareAndSet(active, active + 1));
+
+		Thread poller = pollerThreads.newThread(new Runnable() {
+			public void run() {
+				try {
+					poll();
+				} finally {
+					pollers.remove(Thread.currentThread());
+				}
+			}
+		});
+		pollers.add(poller);
+		poller.start();
+		return true;
+	}
+
+	private boolean retirePoller() {
+		int active;
+		do {
+			active = activePollers.get();
+			if (active <= minPollers) {
+				return false;
+			}
+		} while (!activePollers.compareAndSet(active, active - 1));
+		return true;
+	}
+
+	private void poll() {
+		boolean retired = false;
+		int failures = 0;
+		try {
+			while (running && !retired) {
+				int requested = reserveSpace();
+				List<Message> messages;
+				ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+						.withMaxNumberOfMessages(requested)
+						.withWaitTimeSeconds(WAIT_TIME_SECONDS)
+						.withAttributeNames(SENT_TIMESTAMP, DeadLetterQueue.APPROXIMATE_RECEIVE_COUNT);
+				if (leases != null) {
+					request.setVisibilityTimeout(visibilitySeconds);
+				}
+				try {
+					messages = sqs.receiveMessage(request).getMessages();
+				} catch (RuntimeException e) {
+					freeSpace.release(requested);
+					if (!running) {
+						break;
+					}
+					log.warn("Failed to receive messages from " + queueUrl, e);
+					pause(++failures);
+					continue;
+				}
+				failures = 0;
+				if (!running) {
+					// received after stop(), nobody would handle them
+					freeSpace.release(requested);
+					for (Message message : messages) {
+						makeVisible(message);
+					}
+					break;
+				}
+				freeSpace.release(requested - messages.size());
+				// measured before the hand-off, a virtual poller may add the batch before any handler runs
+				boolean drained = buffer.size() < MAX_NUMBER_OF_MESSAGES;
+				long receivedNanos = System.nanoTime();
+				long receivedMillis = System.currentTimeMillis();
+				for (Message message : messages) {
+					recordQueueTime(message, receivedMillis);
+					if (leases != null) {
+						leases.acquire(queueUrl, message.getReceiptHandle(), visibilitySeconds);
+						if (!running) {
+							// the buffer may be released already, the lease would be extended for hours
+							leases.release(message.getReceiptHandle());
+							continue;
+						}
+					}
+					buffer.add(new Received(message, receivedNanos));
+				}
+
+				if (messages.isEmpty()) {
+					retired = retirePoller();
+				} else if (messages.size() == MAX_NUMBER_OF_MESSAGES && drained) {
+					// a full batch while the handlers keep up, the queue has a backlog they can take
+					startPoller();
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} finally {
+			if (!retired) {
+				activePollers.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Blocks until there is space for at least one message.
+	 *
+	 * @return number of messages the poller may receive
+	 */
+	private int reserveSpace() throws InterruptedException {
+		freeSpace.acquire();
+		int reserved = 1;
+		while (reserved < MAX_NUMBER_OF_MESSAGES && freeSpace.tryAcquire()) {
+			reserved++;
+		}
+		return reserved;
+	}
+
+	private void recordQueueTime(Message message, long receivedMillis) {
+		String sent = message.getAttributes() == null ? null : message.getAttributes().get(SENT_TIMESTAMP);
+		if (sent != null) {
+			queueTimer.record(TimeUnit.MILLISECONDS.toNanos(receivedMillis - Long.parseLong(sent)));
+		}
+	}
+
+	private void handle() {
+		while (running) {
+			Received received;
+			try {
+				received = buffer.poll(HANDLER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (received == null) {
+				continue;
+			}
+			freeSpace.release();
+			process(received);
+		}
+	}
+
+	/**
+	 * Starts a handler thread per message once the limit of concurrent
+	 * handlers allows it.
+	 */
+	private void dispatch() {
+		while (running) {
+			Received received;
+			try {
+				handlerPermits.acquire();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				received = buffer.poll(HANDLER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				handlerPermits.release();
+				return;
+			}
+			if (received == null) {
+				handlerPermits.release();
+				continue;
+			}
+			freeSpace.release();
+			final Received message = received;
+			handlerThreadFactory.newThread(new Runnable() {
+				public void run() {
+					try {
+						process(message);
+					} finally {
+						handlerPermits.release();
+					}
+				}
+			}).start();
+		}
+	}
+
+	private void process(Received received) {
+		bufferTimer.recordSince(received.receivedNanos);
+		DeadLetterQueue deadLetterQueue = this.deadLetterQueue;
+		if (deadLetterQueue != null && deadLetterQueue.isPoison(received.message)) {
+			moveToDeadLetterQueue(deadLetterQueue, received.message);
+			return;
+		}
+		activeHandlers.incrementAndGet();
+		try {
+			listener.onMessage(received.message);
+		} catch (RuntimeException e) {
+			log.warn("Listener failed on message " + received.message.getMessageId(), e);
+			release(received.message, e);
+		} finally {
+			activeHandlers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Deletes the message once its dead letter was sent. If that fails the
+	 * message stays leased until its timeout and is moved on its next
+	 * receive.
+	 */
+	private void moveToDeadLetterQueue(DeadLetterQueue deadLetterQueue, final Message message) {
+		final DeleteBatcher deleter = this.deleter;
+		log.warn("Moving message " + message.getMessageId() + " to " + deadLetterQueue);
+		deadLetterQueue.add(queueUrl, message).whenComplete((id, e) -> {
+			if (e != null) {
+				log.warn("Failed to move message " + message.getMessageId() + " to " + deadLetterQueue, e);
+				complete(message);
+				return;
+			}
+			deadLetterCounter.increment();
+			deleter.add(message.getReceiptHandle()).whenComplete((result, deleteFailed) -> {
+				if (deleteFailed != null) {
+					log.warn("Failed to delete message " + message.getMessageId() + " moved to " + deadLetterQueue
+							+ ", it may be moved twice", deleteFailed);
+				}
+				complete(message);
+			});
+		});
+	}
+
+	/**
+	 * Lets the handlers started by the dispatcher finish their message.
+	 */
+	private void awaitDispatched() {
+		if (handlerPermits == null) {
+			return;
+		}
+		try {
+			if (handlerPermits.tryAcquire(handlerThreads, WAIT_TIME_SECONDS, TimeUnit.SECONDS)) {
+				handlerPermits.release(handlerThreads);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void releaseBuffered() {
+		List<Received> unhandled = new ArrayList<Received>();
+		buffer.drainTo(unhandled);
+		for (Received received : unhandled) {
+			Message message = received.message;
+			if (leases != null) {
+				leases.release(message.getReceiptHandle());
+			} else {
+				makeVisible(message);
+			}
+		}
+	}
+
+	private void makeVisible(Message message) {
+		try {
+			sqs.changeMessageVisibility(new ChangeMessageVisibilityRequest(queueUrl, message.getReceiptHandle(), 0));
+		} catch (RuntimeException e) {
+			log.debug("Message " + message.getMessageId() + " stays invisible until its timeout", e);
+		}
+	}
+
+	/**
+	 * Backs off exponentially while receives keep failing, e.g. throttled.
+	 */
+	private void pause(int failures) throws InterruptedException {
+		Thread.sleep(Backoff.delayMillis(failures, ERROR_BACKOFF_MILLIS, MAX_ERROR_BACKOFF_MILLIS));
+	}
+
+	private static class Received {
+		final Message message;
+		final long receivedNanos;
+
+		Received(Message message, long receivedNanos) {
+			this.message = message;
+			this.receivedNanos = receivedNanos;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.bma.amazon.sqs.transport.DeadLetterQueue.DeadLetter;
+
+/**
+ * Sends the messages of a dead-letter queue back to the queues they came
+ * from, or to one target queue, e.g. after the bug which made them fail was
+ * fixed. Several workers receive batches of dead letters, send their bodies
+ * with SendMessageBatch and delete them with DeleteMessageBatch; the sends
+ * share one {@link AdaptiveRateLimiter} of a low maximum rate, so a replay
+ * does not swamp the live traffic of the queues.
+ * <p>
+ * A dead letter is deleted only after its body was sent, a failed send
+ * leaves it in the dead-letter queue to be replayed by the next run.
+ * Messages which are no dead letters are sent as they are, if there is a
+ * target queue, and left in place otherwise.
+ */
+public class Redrive {
+	private static final Log log = LogFactory.getLog(Redrive.class);
+
+	public static final int DEFAULT_PARALLELISM = 4;
+	/** SendMessageBatch calls per second, of up to 10 messages each */
+	public static final double DEFAULT_MAX_RATE = 10;
+	private static final int WAIT_TIME_SECONDS = 1;
+	private static final int VISIBILITY_SECONDS = 60;
+
+	private final AmazonSQS sqs;
+	private final String deadLetterQueueUrl;
+	private int parallelism = DEFAULT_PARALLELISM;
+	private double maxRate = DEFAULT_MAX_RATE;
+	private String targetQueueUrl;
+	private final AtomicLong replayed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+
+	public Redrive(AmazonSQS sqs, String deadLetterQueueUrl) {
+		this.sqs = sqs;
+		this.deadLetterQueueUrl = deadLetterQueueUrl;
+	}
+
+	/**
+	 * Workers receiving and sending at the same time.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Invalid parallelism " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * SendMessageBatch calls per second at most, of all workers. The rate is
+	 * cut further when SQS throttles.
+	 */
+	public void setMaxRate(double maxRate) {
+		this.maxRate = maxRate;
+	}
+
+	/**
+	 * Sends all messages to the queue instead of the ones they came from.
+	 */
+	public void setTargetQueueUrl(String targetQueueUrl) {
+		this.targetQueueUrl = targetQueueUrl;
+	}
+
+	/**
+	 * Replays the dead letters until the dead-letter queue is empty, or
+	 * holds only messages being replayed by others or left in place.
+	 *
+	 * @return messages sent back by this run
+	 */
+	public long run() throws InterruptedException {
+		long before = replayed.get();
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+				new DaemonThreadFactory("redrive-timer"));
+		ExecutorService sqsExecutor = ThreadMode.getDefault().newExecutor("redrive-sqs");
+		ExecutorService workers = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("redrive"));
+		// recovers from a cut within about ten seconds
+		double increase = Math.max(1, maxRate / 10);
+		final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(Math.min(1, maxRate), maxRate, increase,
+				AdaptiveRateLimiter.DEFAULT_DECREASE, AdaptiveRateLimiter.DEFAULT_RETRY_RATIO);
+		final ConcurrentHashMap<String, SendBatcher> senders = new ConcurrentHashMap<String, SendBatcher>();
+		final DeleteBatcher deleter = DeleteBatcher.create(sqs, deadLetterQueueUrl, scheduler, sqsExecutor);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int i = 0; i < parallelism; i++) {
+				tasks.add(() -> {
+					while (replayBatch(senders, deleter, limiter, scheduler, sqsExecutor)) {
+						// until a receive comes back empty
+					}
+					return null;
+				});
+			}
+			for (Future<Void> task : workers.invokeAll(tasks)) {
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					log.warn("Redrive of " + deadLetterQueueUrl + " failed", e.getCause());
+				}
+			}
+		} finally {
+			workers.shutdownNow();
+			for (SendBatcher sender : senders.values()) {
+				sender.close();
+			}
+			deleter.close();
+			scheduler.shutdownNow();
+			sqsExecutor.shutdown();
+		}
+		log.info("Replayed " + (replayed.get() - before) + " messages of " + deadLetterQueueUrl + ", rate " + limiter);
+		return replayed.get() - before;
+	}
+
+	/**
+	 * @return messages sent back, by all runs
+	 */
+	public long getReplayedCount() {
+		return replayed.get();
+	}
+
+	/**
+	 * @return messages whose send or delete failed, they are replayed again
+	 *         by the next run
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return messages left in place because they were no dead letters
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	/**
+	 * Receives a batch of dead letters and waits until they were sent and
+	 * deleted.
+	 *
+	 * @return false if there was nothing to receive
+	 */
+	private boolean replayBatch(ConcurrentHashMap<String, SendBatcher> senders, final DeleteBatcher deleter,
+			AdaptiveRateLimiter limiter, ScheduledExecutorService scheduler, ExecutorService sqsExecutor) {
+		List<Message> messages = sqs.receiveMessage(new ReceiveMessageRequest(deadLetterQueueUrl)
+				.withMaxNumberOfMessages(ReceiveEngine.MAX_NUMBER_OF_MESSAGES)
+				.withWaitTimeSeconds(WAIT_TIME_SECONDS)
+				.withVisibilityTimeout(VISIBILITY_SECONDS)).getMessages();
+		List<CompletableFuture<?>> replays = new ArrayList<CompletableFuture<?>>(messages.size());
+		for (final Message message : messages) {
+			DeadLetter deadLetter = DeadLetter.read(message.getBody());
+			String target = targetQueueUrl != null ? targetQueueUrl : deadLetter == null ? null : deadLetter.getSource();
+			if (target == null) {
+				log.warn("Leaving message " + message.getMessageId() + " in place, it is no dead letter");
+				skipped.incrementAndGet();
+				continue;
+			}
+			SendBatcher sender = senders.computeIfAbsent(target, url -> {
+				SendBatcher batcher = SendBatcher.create(sqs, url, scheduler, sqsExecutor);
+				batcher.setRateLimiter(limiter);
+				return batcher;
+			});
+			String body = deadLetter == null ? message.getBody() : deadLetter.getBody();
+			replays.add(sender.add(body)
+					.thenCompose(id -> deleter.add(message.getReceiptHandle()))
+					.whenComplete((result, e) -> {
+						if (e == null) {
+							replayed.incrementAndGet();
+						} else {
+							failed.incrementAndGet();
+							log.warn("Failed to replay message " + message.getMessageId(), e);
+						}
+					}));
+		}
+		try {
+			CompletableFuture.allOf(replays.toArray(new CompletableFuture<?>[replays.size()])).join();
+		} catch (RuntimeException e) {
+			// counted per message
+		}
+		return !messages.isEmpty();
+	}
+}
@@ -0,0 +1,104 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue of many producers and many consumers without locks. Each
+ * slot has a sequence telling whether it is free for the producer of a
+ * position or filled for its consumer; producers and consumers claim
+ * positions with a compare-and-set of the tail and the head. A full buffer
+ * does not wait, {@link #offer(Object)} fails at once.
+ */
+public class RingBuffer<E> {
+	private final int mask;
+	private final AtomicReferenceArray<E> slots;
+	private final AtomicLongArray sequences;
+	/** next position to fill */
+	private final AtomicLong tail = new AtomicLong();
+	/** next position to take */
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	public RingBuffer(int capacity) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(E element) {
+		if (element == null) {
+			throw new NullPointerException();
+		}
+		long position = tail.get();
+		for (;;) {
+			int index = (int) position & mask;
+			long lag = sequences.get(index) - position;
+			if (lag == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots.set(index, element);
+					sequences.lazySet(index, position + 1);
+					return true;
+				}
+			} else if (lag < 0) {
+				// the slot still holds the element of the previous round
+				return false;
+			}
+			position = tail.get();
+		}
+	}
+
+	/**
+	 * @return the oldest element, null if the buffer is empty
+	 */
+	public E poll() {
+		long position = head.get();
+		for (;;) {
+			int index = (int) position & mask;
+			long lag = sequences.get(index) - (position + 1);
+			if (lag == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					E element = slots.get(index);
+					slots.lazySet(index, null);
+					sequences.lazySet(index, position + mask + 1);
+					return element;
+				}
+			} else if (lag < 0) {
+				return null;
+			}
+			position = head.get();
+		}
+	}
+
+	/**
+	 * @return elements in the buffer, an estimate while it is being used
+	 */
+	public int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, mask + 1));
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+}
@@ -0,0 +1,112 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+
+/**
+ * Packs message bodies into {@link SendMessageBatchRequest}s of up to 10
+ * entries and 256 KB. The future of every body completes with its message
+ * id.
+ */
+public class SendBatcher extends Batcher<String, String> {
+	public static final int MAX_BATCH_BYTES = 262144;
+
+	private final AmazonSQS sqs;
+	private final AsyncSqs async;
+
+	/**
+	 * Sends with blocking calls on the executor.
+	 */
+	public SendBatcher(AmazonSQS sqs, String queueUrl, ScheduledExecutorService scheduler, Executor executor) {
+		super(queueUrl, scheduler, executor, MAX_BATCH_BYTES);
+		setRateLimiter(new AdaptiveRateLimiter());
+		this.sqs = sqs;
+		this.async = null;
+	}
+
+	/**
+	 * Sends with non-blocking calls.
+	 */
+	public SendBatcher(AsyncSqs sqs, String queueUrl, ScheduledExecutorService scheduler) {
+		super(queueUrl, scheduler, null, MAX_BATCH_BYTES);
+		setRateLimiter(new AdaptiveRateLimiter());
+		this.sqs = null;
+		this.async = sqs;
+	}
+
+	/**
+	 * @return a non-blocking batcher if the client implements {@link AsyncSqs},
+	 *         a blocking one on the executor otherwise
+	 */
+	public static SendBatcher create(AmazonSQS sqs, String queueUrl, ScheduledExecutorService scheduler,
+			Executor executor) {
+		if (sqs instanceof AsyncSqs) {
+			return new SendBatcher((AsyncSqs) sqs, queueUrl, scheduler);
+		}
+		return new SendBatcher(sqs, queueUrl, scheduler, executor);
+	}
+
+	@Override
+	protected String getOperation() {
+		return "SendMessageBatch";
+	}
+
+	@Override
+	protected CompletableFuture<?> execute(final List<Entry<String, String>> batch) {
+		List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			entries.add(new SendMessageBatchRequestEntry(String.valueOf(i), batch.get(i).value));
+		}
+		SendMessageBatchRequest request = new SendMessageBatchRequest(queueUrl, entries);
+		if (async != null) {
+			return async.sendMessageBatchAsync(request).thenAccept(result -> completed(batch, result));
+		}
+		completed(batch, sqs.sendMessageBatch(request));
+		return DONE;
+	}
+
+	private void completed(List<Entry<String, String>> batch, SendMessageBatchResult result) {
+		for (SendMessageBatchResultEntry success : result.getSuccessful()) {
+			succeeded(batch.get(Integer.parseInt(success.getId())), success.getMessageId());
+		}
+		for (BatchResultErrorEntry failure : result.getFailed()) {
+			failed(batch.get(Integer.parseInt(failure.getId())), failure);
+		}
+	}
+
+	@Override
+	protected int sizeOf(String body) {
+		return utf8Length(body);
+	}
+
+	/**
+	 * SQS limits are in bytes, count them without encoding the string.
+	 */
+	public static int utf8Length(CharSequence s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c)) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+}
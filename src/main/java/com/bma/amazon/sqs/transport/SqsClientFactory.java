@@ -0,0 +1,159 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+
+/**
+ * Hands out one shared, thread safe SQS client per endpoint, so all pollers,
+ * senders and RPC clients of a process share a single HTTP connection pool,
+ * and a {@link QueueUrlCache} per endpoint. Configure it before the first
+ * client is created.
+ * <p>
+ * A long poll holds its connection for up to {@link ReceiveEngine#WAIT_TIME_SECONDS},
+ * so the pool should have a connection for every poller of every receive
+ * engine plus the batch sends and deletes running at the same time, see
+ * {@link #connectionsFor(int, int)}. Connections are kept alive and reused
+ * by the SDK's pooled HTTP client.
+ */
+public class SqsClientFactory {
+	/** two receive engines (request and reply queue) and as many sends */
+	public static final int DEFAULT_MAX_CONNECTIONS = connectionsFor(2 * ReceiveEngine.DEFAULT_MAX_POLLERS,
+			2 * ReceiveEngine.DEFAULT_MAX_POLLERS);
+	public static final int DEFAULT_CONNECTION_TIMEOUT_MILLIS = 5000;
+	/** longer than a long poll */
+	public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = (ReceiveEngine.WAIT_TIME_SECONDS + 10) * 1000;
+
+	private final AWSCredentialsProvider credentials;
+	private final ConcurrentMap<String, AmazonSQS> clients = new ConcurrentHashMap<String, AmazonSQS>();
+	private final ConcurrentMap<String, QueueUrlCache> queueUrls = new ConcurrentHashMap<String, QueueUrlCache>();
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private int connectionTimeoutMillis = DEFAULT_CONNECTION_TIMEOUT_MILLIS;
+	private int socketTimeoutMillis = DEFAULT_SOCKET_TIMEOUT_MILLIS;
+	private int socketSendBufferSize;
+	private int socketReceiveBufferSize;
+	private int maxErrorRetry = -1;
+	private long queueUrlTtlMillis = QueueUrlCache.DEFAULT_TTL_MILLIS;
+	private int asyncThreads;
+
+	public SqsClientFactory(AWSCredentialsProvider credentials) {
+		this.credentials = credentials;
+	}
+
+	/**
+	 * @param pollers maximum pollers of all receive engines using the client
+	 * @param senders batch sends and deletes in flight at the same time
+	 */
+	public static int connectionsFor(int pollers, int senders) {
+		return pollers + senders;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public void setConnectionTimeout(int connectionTimeoutMillis) {
+		this.connectionTimeoutMillis = connectionTimeoutMillis;
+	}
+
+	/**
+	 * Must be longer than a long poll, otherwise polls of empty queues fail.
+	 */
+	public void setSocketTimeout(int socketTimeoutMillis) {
+		this.socketTimeoutMillis = socketTimeoutMillis;
+	}
+
+	/**
+	 * TCP send and receive buffer size hints, 0 leaves the OS defaults.
+	 */
+	public void setSocketBufferSizes(int sendBufferSize, int receiveBufferSize) {
+		this.socketSendBufferSize = sendBufferSize;
+		this.socketReceiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * Retries of the SDK itself, the batchers retry on their own.
+	 */
+	public void setMaxErrorRetry(int maxErrorRetry) {
+		this.maxErrorRetry = maxErrorRetry;
+	}
+
+	public void setQueueUrlTtl(long queueUrlTtlMillis) {
+		this.queueUrlTtlMillis = queueUrlTtlMillis;
+	}
+
+	/**
+	 * Makes the clients {@link AsyncSqsClient}s whose batch calls run on a
+	 * fixed pool of the given size, 0 for blocking clients.
+	 */
+	public void setAsyncThreads(int asyncThreads) {
+		this.asyncThreads = asyncThreads;
+	}
+
+	/**
+	 * @param endpoint e.g. sqs.eu-west-1.amazonaws.com
+	 */
+	public AmazonSQS getClient(String endpoint) {
+		AmazonSQS client = clients.get(endpoint);
+		if (client == null) {
+			AmazonSQSClient created = createClient();
+			created.setEndpoint(endpoint);
+			client = clients.putIfAbsent(endpoint, created);
+			if (client == null) {
+				client = created;
+			} else {
+				created.shutdown();
+			}
+		}
+		return client;
+	}
+
+	public QueueUrlCache getQueueUrls(String endpoint) {
+		QueueUrlCache cache = queueUrls.get(endpoint);
+		if (cache == null) {
+			QueueUrlCache created = new QueueUrlCache(getClient(endpoint), queueUrlTtlMillis);
+			cache = queueUrls.putIfAbsent(endpoint, created);
+			if (cache == null) {
+				cache = created;
+			}
+		}
+		return cache;
+	}
+
+	private AmazonSQSClient createClient() {
+		if (asyncThreads > 0) {
+			ExecutorService executor = Executors.newFixedThreadPool(asyncThreads, new DaemonThreadFactory("sqs-async"));
+			return new AsyncSqsClient(credentials, createConfiguration(), executor);
+		}
+		return new AmazonSQSClient(credentials, createConfiguration());
+	}
+
+	ClientConfiguration createConfiguration() {
+		ClientConfiguration configuration = new ClientConfiguration();
+		configuration.setMaxConnections(maxConnections);
+		configuration.setConnectionTimeout(connectionTimeoutMillis);
+		configuration.setSocketTimeout(socketTimeoutMillis);
+		configuration.setSocketBufferSizeHints(socketSendBufferSize, socketReceiveBufferSize);
+		if (maxErrorRetry >= 0) {
+			configuration.setMaxErrorRetry(maxErrorRetry);
+		}
+		return configuration;
+	}
+
+	/**
+	 * Closes the connection pools of all clients.
+	 */
+	public void shutdown() {
+		for (AmazonSQS client : clients.values()) {
+			client.shutdown();
+		}
+		clients.clear();
+		queueUrls.clear();
+	}
+}
@@ -0,0 +1,127 @@
+package com.bma.amazon.sqs.transport;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Kind of threads which run pollers, message handlers and blocking SQS calls.
+ * <p>
+ * Platform threads are pooled daemon threads. Virtual threads (Java 21+) are
+ * started per task; a long-poll or a slow handler then parks instead of
+ * holding an OS thread, so thousands of them can be in flight. The concurrency
+ * per queue is still bounded, see {@link ReceiveEngine}.
+ * <p>
+ * The default is read from the system property {@value #PROPERTY}
+ * ({@code platform} or {@code virtual}).
+ */
+public enum ThreadMode {
+	PLATFORM {
+		public ThreadFactory newThreadFactory(String prefix) {
+			return new DaemonThreadFactory(prefix);
+		}
+
+		public ExecutorService newExecutor(String prefix) {
+			return Executors.newCachedThreadPool(newThreadFactory(prefix));
+		}
+	},
+
+	VIRTUAL {
+		public ThreadFactory newThreadFactory(String prefix) {
+			return VirtualThreads.factory(prefix);
+		}
+
+		public ExecutorService newExecutor(String prefix) {
+			return VirtualThreads.executor(newThreadFactory(prefix));
+		}
+
+		@Override
+		public boolean isSupported() {
+			return VirtualThreads.SUPPORTED;
+		}
+	};
+
+	public static final String PROPERTY = "sqs.threads";
+
+	/**
+	 * Names threads after the prefix.
+	 *
+	 * @throws UnsupportedOperationException if the runtime has no such threads
+	 */
+	public abstract ThreadFactory newThreadFactory(String prefix);
+
+	/**
+	 * Executor of blocking calls, not bounded by itself.
+	 *
+	 * @throws UnsupportedOperationException if the runtime has no such threads
+	 */
+	public abstract ExecutorService newExecutor(String prefix);
+
+	public boolean isSupported() {
+		return true;
+	}
+
+	public static ThreadMode getDefault() {
+		return valueOf(System.getProperty(PROPERTY, "platform").trim().toUpperCase());
+	}
+
+	/**
+	 * Virtual threads are looked up reflectively, the library is compiled for
+	 * an older baseline.
+	 */
+	private static class VirtualThreads {
+		static final boolean SUPPORTED;
+		private static final Method OF_VIRTUAL;
+		private static final Method NAME;
+		private static final Method FACTORY;
+		private static final Method THREAD_PER_TASK_EXECUTOR;
+
+		static {
+			Method ofVirtual = null;
+			Method name = null;
+			Method factory = null;
+			Method executor = null;
+			try {
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+				name = builder.getMethod("name", String.class, long.class);
+				factory = builder.getMethod("factory");
+				executor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			} catch (ReflectiveOperationException e) {
+				ofVirtual = null;
+			}
+			SUPPORTED = ofVirtual != null;
+			OF_VIRTUAL = ofVirtual;
+			NAME = name;
+			FACTORY = factory;
+			THREAD_PER_TASK_EXECUTOR = executor;
+		}
+
+		static ThreadFactory factory(String prefix) {
+			checkSupported();
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix + "-", 1L);
+				return (ThreadFactory) FACTORY.invoke(builder);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Can not create virtual threads", e);
+			}
+		}
+
+		static ExecutorService executor(ThreadFactory factory) {
+			checkSupported();
+			try {
+				return (ExecutorService) THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Can not create virtual threads", e);
+			}
+		}
+
+		private static void checkSupported() {
+			if (!SUPPORTED) {
+				throw new UnsupportedOperationException("Virtual threads need Java 21, running on "
+						+ System.getProperty("java.version"));
+			}
+		}
+	}
+}
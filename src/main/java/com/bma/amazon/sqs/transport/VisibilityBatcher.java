@@ -0,0 +1,108 @@
+package com.bma.amazon.sqs.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+
+/**
+ * Extends or ends the visibility timeout of received messages with
+ * {@link ChangeMessageVisibilityBatchRequest}s.
+ */
+public class VisibilityBatcher extends Batcher<VisibilityBatcher.Change, Void> {
+	private final AmazonSQS sqs;
+	private final AsyncSqs async;
+
+	/**
+	 * Sends with blocking calls on the executor.
+	 */
+	public VisibilityBatcher(AmazonSQS sqs, String queueUrl, ScheduledExecutorService scheduler, Executor executor) {
+		super(queueUrl, scheduler, executor, Long.MAX_VALUE);
+		setRateLimiter(new AdaptiveRateLimiter());
+		this.sqs = sqs;
+		this.async = null;
+	}
+
+	/**
+	 * Sends with non-blocking calls.
+	 */
+	public VisibilityBatcher(AsyncSqs sqs, String queueUrl, ScheduledExecutorService scheduler) {
+		super(queueUrl, scheduler, null, Long.MAX_VALUE);
+		setRateLimiter(new AdaptiveRateLimiter());
+		this.sqs = null;
+		this.async = sqs;
+	}
+
+	/**
+	 * @return a non-blocking batcher if the client implements {@link AsyncSqs},
+	 *         a blocking one on the executor otherwise
+	 */
+	public static VisibilityBatcher create(AmazonSQS sqs, String queueUrl, ScheduledExecutorService scheduler,
+			Executor executor) {
+		if (sqs instanceof AsyncSqs) {
+			return new VisibilityBatcher((AsyncSqs) sqs, queueUrl, scheduler);
+		}
+		return new VisibilityBatcher(sqs, queueUrl, scheduler, executor);
+	}
+
+	/**
+	 * @param timeoutSeconds from now on, 0 makes the message visible again
+	 */
+	public CompletableFuture<Void> add(String receiptHandle, int timeoutSeconds) {
+		return add(new Change(receiptHandle, timeoutSeconds));
+	}
+
+	@Override
+	protected String getOperation() {
+		return "ChangeMessageVisibilityBatch";
+	}
+
+	@Override
+	protected CompletableFuture<?> execute(final List<Entry<Change, Void>> batch) {
+		List<ChangeMessageVisibilityBatchRequestEntry> entries =
+				new ArrayList<ChangeMessageVisibilityBatchRequestEntry>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			Change change = batch.get(i).value;
+			entries.add(new ChangeMessageVisibilityBatchRequestEntry(String.valueOf(i), change.receiptHandle)
+					.withVisibilityTimeout(change.timeoutSeconds));
+		}
+		ChangeMessageVisibilityBatchRequest request = new ChangeMessageVisibilityBatchRequest(queueUrl, entries);
+		if (async != null) {
+			return async.changeMessageVisibilityBatchAsync(request).thenAccept(result -> completed(batch, result));
+		}
+		completed(batch, sqs.changeMessageVisibilityBatch(request));
+		return DONE;
+	}
+
+	private void completed(List<Entry<Change, Void>> batch, ChangeMessageVisibilityBatchResult result) {
+		for (ChangeMessageVisibilityBatchResultEntry success : result.getSuccessful()) {
+			succeeded(batch.get(Integer.parseInt(success.getId())), null);
+		}
+		for (BatchResultErrorEntry failure : result.getFailed()) {
+			failed(batch.get(Integer.parseInt(failure.getId())), failure);
+		}
+	}
+
+	@Override
+	protected int sizeOf(Change change) {
+		return change.receiptHandle.length();
+	}
+
+	public static class Change {
+		final String receiptHandle;
+		final int timeoutSeconds;
+
+		public Change(String receiptHandle, int timeoutSeconds) {
+			this.receiptHandle = receiptHandle;
+			this.timeoutSeconds = timeoutSeconds;
+		}
+	}
+}
@@ -1,7 +1,6 @@
 package com.bma.amazon.sqs;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -13,8 +12,8 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.hamcrest.CoreMatchers;
 import org.junit.Assert;
@@ -23,15 +22,14 @@ import org.junit.Test;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.auth.PropertiesCredentials;
-import com.amazonaws.services.sqs.AmazonSQSClient;
-import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
-import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
 import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.bma.amazon.sqs.transport.AdaptiveRateLimiter;
+import com.bma.amazon.sqs.transport.Backoff;
 
 public class MessageLongPollingTest {
 	private static final String TOKYO_QUEUE_ENDPOINT = "sqs.ap-northeast-1.amazonaws.com";
@@ -55,7 +53,6 @@ public class MessageLongPollingTest {
 	private static final int MESSAGE_COUNT = 100;
 	private static final int MESSAGE_SIZE = 1024;
 	private Random rnd = new Random();
-	private InputStream sqsProps;
 
 	
 	@Before
@@ -63,7 +60,6 @@ public class MessageLongPollingTest {
 		sentMessages = new HashSet<String>();
 		receivedMessages = new HashSet<String>();
 		messagesToSend = new ArrayBlockingQueue<String>(MESSAGE_COUNT);
-		sqsProps = SimpleMessageTest.class.getResourceAsStream("/aws_my.properties");
 		
 		givenWeHaveAListOfMessages();
 		
@@ -101,7 +97,9 @@ public class MessageLongPollingTest {
 		queueEndpoint = endpoint;
 		System.out.println("Stating test for endpoint: " + queueEndpoint);
 		givenWeHaveAQueueName();
-		ExecutorService pool = Executors.newCachedThreadPool();
+		// a sender of the previous endpoint may still be waiting for its stop message
+		messagesToSend = new ArrayBlockingQueue<String>(MESSAGE_COUNT);
+		ExecutorService pool = SqsTestConfig.threadMode().newExecutor("test-worker");
 		
 		SqsSender sender = giwenWeHaveSender();
 		pool.execute(sender);
@@ -161,21 +159,18 @@ public class MessageLongPollingTest {
 	}
 
 	private SqsReceiver giwenWeHaveReceiver() throws IOException {
-		AmazonSQSClient sqsSenderClient = createNewSqsClient();
-		String queueUrl = sqsSenderClient.createQueue(new CreateQueueRequest(queueName)).getQueueUrl();
+		AmazonSQS sqsSenderClient = createNewSqsClient();
+		String queueUrl = SqsTestConfig.queueUrls(queueEndpoint).createQueue(queueName);
 		return new SqsReceiver(sqsSenderClient, queueUrl);
 	}
 
-	private AmazonSQSClient createNewSqsClient() throws IOException {
-		sqsProps = SimpleMessageTest.class.getResourceAsStream("/aws_my.properties");
-		AmazonSQSClient sqsSenderClient = new AmazonSQSClient(new PropertiesCredentials(sqsProps));
-		sqsSenderClient.setEndpoint(queueEndpoint);
-		return sqsSenderClient;
+	private AmazonSQS createNewSqsClient() throws IOException {
+		return SqsTestConfig.createClient(queueEndpoint);
 	}
 
 	private SqsSender giwenWeHaveSender() throws IOException {
-		AmazonSQSClient sqsSenderClient = createNewSqsClient();
-		String queueUrl = sqsSenderClient.createQueue(new CreateQueueRequest(queueName)).getQueueUrl();
+		AmazonSQS sqsSenderClient = createNewSqsClient();
+		String queueUrl = SqsTestConfig.queueUrls(queueEndpoint).createQueue(queueName);
 		return new SqsSender(sqsSenderClient, queueUrl, messagesToSend);
 	}
 	
@@ -183,15 +178,23 @@ public class MessageLongPollingTest {
 		queueName = "test_queue_" + System.currentTimeMillis();
 	}
 	
+	/**
+	 * Sends at the rate of an {@link AdaptiveRateLimiter} and retries
+	 * throttled or failed sends after a jittered backoff, within its retry
+	 * budget.
+	 */
 	private static class SqsSender implements Runnable {
+		private static final long BACKOFF_MILLIS = 50;
+		private static final long MAX_BACKOFF_MILLIS = 5000;
 		
-		private AmazonSQSClient sqsClient;
+		private AmazonSQS sqsClient;
+		private AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
 		private BlockingQueue<String> messagesToSend;
 		private String queueUrl;
 		private long timeSpentToSend = 0;
 		private List<MessageTimes> messageTimes = new ArrayList<MessageLongPollingTest.MessageTimes>();
 		
-		public SqsSender(AmazonSQSClient sqsClient, String queueUrl,
+		public SqsSender(AmazonSQS sqsClient, String queueUrl,
 				BlockingQueue<String> messagesToSend) {
 			this.sqsClient = sqsClient;
 			this.queueUrl = queueUrl;
@@ -211,13 +214,34 @@ public class MessageLongPollingTest {
 			while (!(message = messagesToSend.take()).equals(STOP_MSG)) {
 				MessageTimes times = MessageTimes.startSending(message);
 				messageTimes.add(times);
-				sqsClient.sendMessage(new SendMessageRequest(queueUrl, message));
+				send(message);
 				times.sent();
 				//System.out.println("Sent message: " + message);
 			}
 			System.out.println("Stop sending");
 		}
 
+		private void send(String message) throws InterruptedException {
+			for (int attempt = 1;; attempt++) {
+				TimeUnit.NANOSECONDS.sleep(limiter.reserve());
+				limiter.onCall();
+				try {
+					sqsClient.sendMessage(new SendMessageRequest(queueUrl, message));
+					limiter.onSuccess();
+					return;
+				} catch (AmazonClientException e) {
+					boolean overload = AdaptiveRateLimiter.isOverload(e);
+					if (overload) {
+						limiter.onOverload();
+					}
+					if (e instanceof AmazonServiceException && !overload || !limiter.tryRetry()) {
+						throw e;
+					}
+				}
+				Thread.sleep(Backoff.delayMillis(attempt, BACKOFF_MILLIS, MAX_BACKOFF_MILLIS));
+			}
+		}
+
 		public long getTimeSpentToSend() {
 			return timeSpentToSend;
 		}
@@ -225,12 +249,12 @@ public class MessageLongPollingTest {
 	}
 	
 	private static class SqsReceiver implements Callable<String> {
-		private AmazonSQSClient sqsClient;
+		private AmazonSQS sqsClient;
 		private String queueUrl;
 		private List<MessageTimes> messageTimes = new ArrayList<MessageLongPollingTest.MessageTimes>();
 		
 		
-		public SqsReceiver(AmazonSQSClient sqsClient, String queueUrl) {
+		public SqsReceiver(AmazonSQS sqsClient, String queueUrl) {
 			this.sqsClient = sqsClient;
 			this.queueUrl = queueUrl;
 		}
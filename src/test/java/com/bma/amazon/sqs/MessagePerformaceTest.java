@@ -1,7 +1,6 @@
 package com.bma.amazon.sqs;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -11,11 +10,14 @@ import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hamcrest.CoreMatchers;
 import org.junit.After;
@@ -23,13 +25,11 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
-import com.amazonaws.auth.PropertiesCredentials;
-import com.amazonaws.services.sqs.AmazonSQSClient;
-import com.amazonaws.services.sqs.model.CreateQueueRequest;
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.bma.amazon.sqs.transport.DeleteBatcher;
+import com.bma.amazon.sqs.transport.SendBatcher;
 
 public class MessagePerformaceTest {
 	
@@ -39,6 +39,10 @@ public class MessagePerformaceTest {
 	private Set<String> receivedMessages;
 	private BlockingQueue<String> messagesToSend;
 	private AtomicInteger sendersWhichStillRunning = new AtomicInteger(0);
+	private AtomicLong apiCalls = new AtomicLong(0);
+	private AtomicInteger receivedTotal = new AtomicInteger(0);
+	private ScheduledExecutorService batchScheduler;
+	private ExecutorService batchExecutor;
 	
 	private static final int SIZE = 100;
 	private static final int MESSAGE_SIZE = 1024;
@@ -58,6 +62,8 @@ public class MessagePerformaceTest {
 		givenWeHaveAListOfMessages();
 		
 		messagesToSend.addAll(sentMessages);
+		batchScheduler = Executors.newSingleThreadScheduledExecutor();
+		batchExecutor = SqsTestConfig.threadMode().newExecutor("test-batch");
 	}
 	
 	private void givenWeHaveAListOfMessages() {
@@ -77,7 +83,8 @@ public class MessagePerformaceTest {
 
 	@After
 	public void tearDown() {
-		
+		batchScheduler.shutdownNow();
+		batchExecutor.shutdownNow();
 	}
 	
 	@Test
@@ -85,7 +92,7 @@ public class MessagePerformaceTest {
 		givenWeHaveAQueueName();
 		givenWeHaveWorkers();
 
-		ExecutorService pool = Executors.newCachedThreadPool();
+		ExecutorService pool = SqsTestConfig.threadMode().newExecutor("test-worker");
 		whenSendMessages(pool);
 		whenReceiveMessages(pool);
 		
@@ -95,6 +102,7 @@ public class MessagePerformaceTest {
 			}
 		}
 		Assert.assertThat(receivedMessages.size(), CoreMatchers.is(sentMessages.size()));
+		System.out.println("API calls: " + apiCalls.get() + ", per message: " + (double) apiCalls.get() / SIZE);
 			
 		
 	}
@@ -145,10 +153,12 @@ public class MessagePerformaceTest {
 
 	public class SqsClient implements Callable<Long> {
 		private boolean receive;
-		private AmazonSQSClient sqsClient;
+		private AmazonSQS sqsClient;
 		private String queueUrl;
 		private List<String> receivedMessages;
 		private long startTime;
+		private SendBatcher sendBatcher;
+		private DeleteBatcher deleteBatcher;
 		
 		public SqsClient(boolean receive) throws IOException {
 			this.receive = receive;
@@ -158,17 +168,17 @@ public class MessagePerformaceTest {
 			receivedMessages = new LinkedList<String>();
 			createSqsClient();
 			resolveQueueUrl();
+			sendBatcher = new SendBatcher(sqsClient, queueUrl, batchScheduler, batchExecutor);
+			deleteBatcher = new DeleteBatcher(sqsClient, queueUrl, batchScheduler, batchExecutor);
 		}
 
-		private void resolveQueueUrl() {
+		private void resolveQueueUrl() throws IOException {
 			System.out.println("Creating/Resolving queue: " + queueName);
-			queueUrl = sqsClient.createQueue(new CreateQueueRequest().withQueueName(queueName)).getQueueUrl();
+			queueUrl = SqsTestConfig.queueUrls("sqs.eu-west-1.amazonaws.com").createQueue(queueName);
 		}
 
 		private void createSqsClient() throws IOException {
-			InputStream properties = SimpleMessageTest.class.getResourceAsStream("/aws_my.properties");
-			sqsClient = new AmazonSQSClient(new PropertiesCredentials(properties));
-			sqsClient.setEndpoint("sqs.eu-west-1.amazonaws.com");
+			sqsClient = SqsTestConfig.createClient("sqs.eu-west-1.amazonaws.com");
 		}
 
 		public Long call() throws Exception {
@@ -176,27 +186,36 @@ public class MessagePerformaceTest {
 			if (receive) {
 				System.out.println("Start Receiving");
 				List<Message> messages = null;
-				ReceiveMessageRequest receiveRequest = new ReceiveMessageRequest().withQueueUrl(queueUrl).withWaitTimeSeconds(20);
-				while (!(messages = sqsClient.receiveMessage(receiveRequest).getMessages()).isEmpty()) {
+				ReceiveMessageRequest receiveRequest = new ReceiveMessageRequest().withQueueUrl(queueUrl)
+						.withWaitTimeSeconds(20).withMaxNumberOfMessages(SendBatcher.MAX_BATCH_ENTRIES);
+				List<CompletableFuture<Void>> deleted = new ArrayList<CompletableFuture<Void>>();
+				// stop once everything arrived instead of waiting for a last empty long-poll
+				while (receivedTotal.get() < SIZE && !(messages = receiveMessages(receiveRequest)).isEmpty()) {
 					if (!messages.isEmpty()) {
 						for (Message message : messages) {
 							registerReceivedMessage(message);
-							deleteMessageFromAQueue(message);
+							deleted.add(deleteMessageFromAQueue(message));
 						}
 					} else {
 						System.out.println("Received empty messsage");
 					}
 				}
+				deleteBatcher.flush();
+				CompletableFuture.allOf(deleted.toArray(new CompletableFuture<?>[0])).get();
+				apiCalls.addAndGet(deleteBatcher.getApiCallCount());
 				System.out.println("Stop reading");
 			} 
 			else {
 				System.out.println("Start Sending");
 				String nextMessageText = null;
+				List<CompletableFuture<String>> sent = new ArrayList<CompletableFuture<String>>();
 				while((nextMessageText = messagesToSend.poll()) != null) {
 					//System.out.println("Sending message: " + nextMessageText);
-					SendMessageRequest message = new SendMessageRequest().withMessageBody(nextMessageText).withQueueUrl(queueUrl);
-					sqsClient.sendMessage(message);
+					sent.add(sendBatcher.add(nextMessageText));
 				}
+				sendBatcher.flush();
+				CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).get();
+				apiCalls.addAndGet(sendBatcher.getApiCallCount());
 				sendersWhichStillRunning.decrementAndGet();
 			}
 			return System.currentTimeMillis() - startTime;
@@ -204,11 +223,17 @@ public class MessagePerformaceTest {
 
 		private void registerReceivedMessage(Message message) {
 			receivedMessages.add(message.getBody());
+			receivedTotal.incrementAndGet();
 			//System.out.println("Received message: " + message.getBody());
 		}
 
-		private void deleteMessageFromAQueue(Message message) {
-			sqsClient.deleteMessage(new DeleteMessageRequest().withQueueUrl(queueUrl).withReceiptHandle(message.getReceiptHandle()));
+		private List<Message> receiveMessages(ReceiveMessageRequest receiveRequest) {
+			apiCalls.incrementAndGet();
+			return sqsClient.receiveMessage(receiveRequest).getMessages();
+		}
+
+		private CompletableFuture<Void> deleteMessageFromAQueue(Message message) {
+			return deleteBatcher.add(message.getReceiptHandle());
 		}
 
 		public boolean isReceive() {
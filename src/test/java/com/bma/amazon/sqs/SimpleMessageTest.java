@@ -4,15 +4,13 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.List;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 
-import com.amazonaws.auth.PropertiesCredentials;
-import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.model.CreateQueueRequest;
 import com.amazonaws.services.sqs.model.CreateQueueResult;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
@@ -25,8 +23,8 @@ import com.amazonaws.services.sqs.model.SendMessageRequest;
 
 public class SimpleMessageTest {
 	
-	private AmazonSQSClient sqsClient;
-	private AmazonSQSClient sqsSerive;
+	private AmazonSQS sqsClient;
+	private AmazonSQS sqsSerive;
 	private String queueName;
 	private String queueUrl;
 
@@ -120,9 +118,7 @@ public class SimpleMessageTest {
 	}
 
 	private void givenWeHaveSqsService() throws IOException {
-		InputStream properties = SimpleMessageTest.class.getResourceAsStream("/aws.properties");
-		sqsSerive = new AmazonSQSClient(new PropertiesCredentials(properties));
-		sqsSerive.setEndpoint("sqs.eu-west-1.amazonaws.com");
+		sqsSerive = SqsTestConfig.createClient("/aws.properties", "sqs.eu-west-1.amazonaws.com");
 	}
 
 	private void whenSendAMessage(String text) {
@@ -131,8 +127,6 @@ public class SimpleMessageTest {
 	}
 
 	private void givenWeHaveSqsClient() throws IOException {
-		InputStream properties = SimpleMessageTest.class.getResourceAsStream("/aws_my.properties");
-		sqsClient = new AmazonSQSClient(new PropertiesCredentials(properties));
-		sqsClient.setEndpoint("sqs.eu-west-1.amazonaws.com");
+		sqsClient = SqsTestConfig.createClient("sqs.eu-west-1.amazonaws.com");
 	}
 }
@@ -0,0 +1,115 @@
+package com.bma.amazon.sqs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.auth.ClasspathPropertiesFileCredentialsProvider;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.local.LocalAmazonSQSAsync;
+import com.bma.amazon.sqs.transport.QueueUrlCache;
+import com.bma.amazon.sqs.transport.SqsClientFactory;
+import com.bma.amazon.sqs.transport.ThreadMode;
+
+/**
+ * Creates SQS clients for the target configured in /sqs_test.properties or
+ * system properties: the in-memory stand-in or real SQS. Clients of real SQS
+ * are shared per credentials and endpoint.
+ */
+public class SqsTestConfig {
+	private static final Properties config = load();
+	private static final ConcurrentHashMap<String, LocalAmazonSQS> localEndpoints =
+			new ConcurrentHashMap<String, LocalAmazonSQS>();
+	private static final ConcurrentHashMap<String, SqsClientFactory> factories =
+			new ConcurrentHashMap<String, SqsClientFactory>();
+	private static final ConcurrentHashMap<String, QueueUrlCache> localQueueUrls =
+			new ConcurrentHashMap<String, QueueUrlCache>();
+
+	public static boolean isLocal() {
+		return "local".equals(get("sqs.target"));
+	}
+
+	public static AmazonSQS createClient(String endpoint) throws IOException {
+		return createClient(get("sqs.credentials"), endpoint);
+	}
+
+	/**
+	 * Local clients of the same endpoint share their queues, like clients of
+	 * the same region do.
+	 */
+	public static AmazonSQS createClient(String credentials, String endpoint) throws IOException {
+		if (isLocal()) {
+			return localEndpoint(endpoint);
+		}
+		return factory(credentials).getClient(endpoint);
+	}
+
+	/**
+	 * Threads the tests run their senders and receivers on.
+	 */
+	public static ThreadMode threadMode() {
+		return ThreadMode.valueOf(get(ThreadMode.PROPERTY).trim().toUpperCase());
+	}
+
+	/**
+	 * Queue URLs of the endpoint, queues are created on first use.
+	 */
+	public static QueueUrlCache queueUrls(String endpoint) throws IOException {
+		if (isLocal()) {
+			QueueUrlCache cache = localQueueUrls.get(endpoint);
+			if (cache == null) {
+				localQueueUrls.putIfAbsent(endpoint, new QueueUrlCache(localEndpoint(endpoint)));
+				cache = localQueueUrls.get(endpoint);
+			}
+			return cache;
+		}
+		return factory(get("sqs.credentials")).getQueueUrls(endpoint);
+	}
+
+	private static SqsClientFactory factory(String credentials) throws IOException {
+		SqsClientFactory factory = factories.get(credentials);
+		if (factory == null) {
+			if (SqsTestConfig.class.getResource(credentials) == null) {
+				throw new IOException("No credentials " + credentials + " for sqs.target=" + get("sqs.target"));
+			}
+			factories.putIfAbsent(credentials, new SqsClientFactory(new ClasspathPropertiesFileCredentialsProvider(credentials)));
+			factory = factories.get(credentials);
+		}
+		return factory;
+	}
+
+	private static LocalAmazonSQS localEndpoint(String endpoint) {
+		LocalAmazonSQS sqs = localEndpoints.get(endpoint);
+		if (sqs == null) {
+			sqs = Boolean.parseBoolean(get("sqs.local.async")) ? new LocalAmazonSQSAsync(endpoint)
+					: new LocalAmazonSQS(endpoint);
+			sqs.setLatency(Long.parseLong(get("sqs.local.latency")), Long.parseLong(get("sqs.local.latencyJitter")));
+			sqs.setErrorRate(Double.parseDouble(get("sqs.local.errorRate")));
+			LocalAmazonSQS existing = localEndpoints.putIfAbsent(endpoint, sqs);
+			if (existing != null) {
+				sqs = existing;
+			}
+		}
+		return sqs;
+	}
+
+	private static String get(String name) {
+		return System.getProperty(name, config.getProperty(name));
+	}
+
+	private static Properties load() {
+		Properties properties = new Properties();
+		InputStream in = SqsTestConfig.class.getResourceAsStream("/sqs_test.properties");
+		if (in != null) {
+			try {
+				properties.load(in);
+				in.close();
+			} catch (IOException e) {
+				throw new IllegalStateException("Can not read /sqs_test.properties", e);
+			}
+		}
+		return properties;
+	}
+}
@@ -0,0 +1,211 @@
+package com.bma.amazon.sqs.blob;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsClient;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsServer;
+import com.bma.amazon.sqs.rpc.MethodHandler;
+
+public class ClaimCheckTest {
+	private static final int LARGE = 300 * 1024;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void verifyThatSmallBodyIsSentInline() throws Exception {
+		InMemoryBlobStore store = new InMemoryBlobStore();
+		ClaimCheck claimCheck = new ClaimCheck(store, executor);
+
+		String body = claimCheck.checkIn("{\"jsonrpc\":\"2.0\"}").get();
+
+		assertThat(body, is("{\"jsonrpc\":\"2.0\"}"));
+		assertThat(store.size(), is(0));
+	}
+
+	@Test
+	public void verifyThatLargeBodyIsReplacedByReference() throws Exception {
+		InMemoryBlobStore store = new InMemoryBlobStore();
+		ClaimCheck claimCheck = new ClaimCheck(store, executor);
+		String large = givenText(LARGE);
+
+		String reference = claimCheck.checkIn(large).get();
+
+		assertTrue(claimCheck.isReference(reference));
+		assertThat(read(claimCheck.open(reference)), is(large));
+		claimCheck.release(reference);
+		assertThat(store.size(), is(0));
+	}
+
+	@Test
+	public void verifyThatLargeCallsGoThroughBlobStore() throws Exception {
+		AmazonSQS sqs = new LocalAmazonSQS("blob.local");
+		String queueName = "blob_queue_" + System.currentTimeMillis();
+		String queueUrl = sqs.createQueue(new CreateQueueRequest(queueName)).getQueueUrl();
+		InMemoryBlobStore store = new InMemoryBlobStore();
+		JsonRpcSqsServer server = new JsonRpcSqsServer(sqs, queueUrl);
+		server.setClaimCheck(new ClaimCheck(store, executor));
+		server.register("echo", new MethodHandler() {
+			public Object handle(JsonNode params) {
+				return params;
+			}
+		});
+		server.start();
+		JsonRpcSqsClient client = JsonRpcSqsClient.create(sqs, queueName);
+		client.setClaimCheck(new ClaimCheck(store, executor));
+		String large = givenText(LARGE);
+		try {
+			assertThat(client.call("echo", large, String.class).get(10, TimeUnit.SECONDS), is(large));
+			thenBlobsAreDeleted(store);
+		} finally {
+			client.close();
+			server.stop();
+			sqs.deleteQueue(new DeleteQueueRequest(queueUrl));
+		}
+	}
+
+	@Test
+	public void verifyThatFileBlobStoreKeepsBlobsUntilDeleted() throws IOException {
+		File directory = new File("target/blobs-" + System.currentTimeMillis());
+		FileBlobStore store = new FileBlobStore(directory);
+
+		store.put("key", "content".getBytes("UTF-8"));
+		assertThat(read(store.open("key")), is("content"));
+		store.delete("key");
+
+		try {
+			store.open("key");
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		throw new AssertionError("Blob should be deleted");
+	}
+
+	@Test
+	public void verifyThatS3UploadsPartsInParallel() throws IOException {
+		RecordingS3 s3 = new RecordingS3();
+		S3BlobStore store = new S3BlobStore(s3, "bucket", "rpc/", executor);
+
+		store.put("key", new byte[S3BlobStore.MIN_PART_SIZE * 2 + 1]);
+
+		assertThat(s3.partSizes, is(Arrays.asList((long) S3BlobStore.MIN_PART_SIZE, (long) S3BlobStore.MIN_PART_SIZE, 1L)));
+		assertThat(s3.completedParts, is(3));
+		assertTrue("parts were uploaded one after another", s3.maxConcurrent > 1);
+	}
+
+	@Test(expected = FileNotFoundException.class)
+	public void verifyThatMissingBlobFails() throws IOException {
+		new InMemoryBlobStore().open("missing");
+	}
+
+	private void thenBlobsAreDeleted(InMemoryBlobStore store) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (store.size() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(store.size(), is(0));
+	}
+
+	private static String givenText(int size) {
+		char[] text = new char[size];
+		for (int i = 0; i < size; i++) {
+			text[i] = (char) ('a' + i % 26);
+		}
+		return new String(text);
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int read; (read = in.read(buffer)) != -1;) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	private static class RecordingS3 extends AmazonS3Client {
+		final List<Long> partSizes = Collections.synchronizedList(new ArrayList<Long>());
+		volatile int completedParts;
+		volatile int maxConcurrent;
+		private int concurrent;
+
+		RecordingS3() {
+			super(new BasicAWSCredentials("access", "secret"));
+		}
+
+		@Override
+		public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+			InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+			result.setUploadId("upload-1");
+			return result;
+		}
+
+		@Override
+		public UploadPartResult uploadPart(UploadPartRequest request) {
+			synchronized (this) {
+				maxConcurrent = Math.max(maxConcurrent, ++concurrent);
+			}
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (this) {
+				concurrent--;
+				while (partSizes.size() < request.getPartNumber()) {
+					partSizes.add(null);
+				}
+				partSizes.set(request.getPartNumber() - 1, request.getPartSize());
+			}
+			UploadPartResult result = new UploadPartResult();
+			result.setPartNumber(request.getPartNumber());
+			result.setETag("etag-" + request.getPartNumber());
+			return result;
+		}
+
+		@Override
+		public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+			List<PartETag> parts = request.getPartETags();
+			completedParts = parts.size();
+			return new CompleteMultipartUploadResult();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.bma.amazon.sqs.codec;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.Test;
+
+public class MessageCodecsTest {
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final MessageCodecs codecs = new MessageCodecs();
+
+	@Test
+	public void verifyThatEveryCodecCanBeReadBack() throws IOException {
+		JsonNode envelope = givenEnvelope(100);
+
+		for (MessageCodec codec : new MessageCodec[] { new JsonCodec(), new GzipCodec(0), new SmileCodec() }) {
+			String body = codec.encode(envelope);
+			assertThat(codec.getId(), codecs.decode(body), is(envelope));
+		}
+	}
+
+	@Test
+	public void verifyThatCompressedBodiesAreSmaller() throws IOException {
+		JsonNode envelope = givenEnvelope(100);
+		int json = new JsonCodec().encode(envelope).length();
+
+		String gzip = new GzipCodec().encode(envelope);
+		String smile = new SmileCodec().encode(envelope);
+		System.out.println("json: " + json + ", gzip: " + gzip.length() + ", smile: " + smile.length());
+
+		assertTrue(gzip.startsWith("gzip:"));
+		assertTrue(gzip.length() < json / 2);
+		assertTrue(smile.startsWith("smile:"));
+		assertTrue(smile.length() < json);
+	}
+
+	@Test
+	public void verifyThatSmallEnvelopeIsNotCompressed() throws IOException {
+		JsonNode envelope = givenEnvelope(1);
+
+		String body = new GzipCodec(1024).encode(envelope);
+
+		assertThat(body, is(new JsonCodec().encode(envelope)));
+		assertThat(codecs.decode(body), is(envelope));
+	}
+
+	@Test(expected = IOException.class)
+	public void verifyThatUnknownCodecFails() throws IOException {
+		codecs.decode("lz4:AAAA");
+	}
+
+	@Test
+	public void verifyThatPlainJsonHasNoCodecId() {
+		assertThat(MessageCodecs.idOf("{\"jsonrpc\":\"2.0\"}"), is((String) null));
+		assertThat(MessageCodecs.idOf("[1,2]"), is((String) null));
+		assertThat(MessageCodecs.idOf("gzip:H4sI"), is("gzip"));
+	}
+
+	private JsonNode givenEnvelope(int records) {
+		ObjectNode envelope = mapper.createObjectNode();
+		envelope.put("jsonrpc", "2.0");
+		envelope.put("method", "store");
+		ArrayNode params = envelope.putArray("params");
+		for (int i = 0; i < records; i++) {
+			ObjectNode record = params.addObject();
+			record.put("id", i);
+			record.put("name", "customer-" + i);
+			record.put("country", i % 2 == 0 ? "DE" : "US");
+			record.put("balance", i * 10.5);
+			record.put("active", true);
+		}
+		envelope.put("id", "client-1");
+		return envelope;
+	}
+}
@@ -0,0 +1,70 @@
+package com.bma.amazon.sqs.dedup;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.bma.amazon.sqs.dedup.DedupCache.State;
+
+public class DedupCacheTest {
+
+	@Test
+	public void verifyThatRedeliveryIsRecognized() {
+		DedupCache cache = new DedupCache(1000, DedupCache.DEFAULT_TTL_MILLIS, 1000);
+
+		assertThat(cache.begin("1@reply"), is(State.NEW));
+		assertThat(cache.begin("1@reply"), is(State.IN_PROGRESS));
+		cache.complete("1@reply", "response 1");
+		assertThat(cache.begin("1@reply"), is(State.DONE));
+		assertThat(cache.getResponse("1@reply"), is("response 1"));
+		assertThat(cache.begin("2@reply"), is(State.NEW));
+		assertThat(cache.getResponse("2@reply"), is(nullValue()));
+
+		cache.remove("1@reply");
+		assertThat(cache.begin("1@reply"), is(State.NEW));
+		assertThat(cache.getResponse("1@reply"), is(nullValue()));
+	}
+
+	@Test
+	public void verifyThatKeysExpire() throws Exception {
+		DedupCache cache = new DedupCache(1000, 300, 0);
+		cache.begin("expiring");
+		cache.complete("expiring", "not cached");
+		assertThat(cache.getResponse("expiring"), is(nullValue()));
+
+		Thread.sleep(100);
+		assertThat(cache.begin("expiring"), is(State.DONE));
+		Thread.sleep(500);
+		assertThat(cache.begin("expiring"), is(State.NEW));
+	}
+
+	@Test
+	public void verifyThatCapacityIsBounded() {
+		int capacity = 100000;
+		DedupCache cache = new DedupCache(capacity, DedupCache.DEFAULT_TTL_MILLIS, 0);
+		long bytes = cache.getTableBytes();
+
+		for (int i = 0; i < 10 * capacity; i++) {
+			assertThat(cache.begin("request-" + i), is(State.NEW));
+		}
+
+		System.out.println(cache.size() + " of " + 10 * capacity + " keys remembered in " + bytes + " bytes");
+		assertThat(cache.getTableBytes(), is(bytes));
+		assertTrue(cache.size() >= capacity);
+		assertTrue(cache.size() <= 2 * capacity);
+		for (int i = 9 * capacity; i < 10 * capacity; i++) {
+			assertThat(cache.begin("request-" + i), is(State.IN_PROGRESS));
+		}
+	}
+
+	@Test
+	public void verifyThatDefaultTablesAreSmall() {
+		DedupCache cache = new DedupCache();
+
+		// every server with dedup allocates them
+		assertThat(cache.getTableBytes(), is(4L * 1024 * 1024));
+	}
+}
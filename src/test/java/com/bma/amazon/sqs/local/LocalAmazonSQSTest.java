@@ -0,0 +1,118 @@
+package com.bma.amazon.sqs.local;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+public class LocalAmazonSQSTest {
+	private LocalAmazonSQS sqs;
+	private String queueUrl;
+
+	@Before
+	public void setUp() {
+		sqs = new LocalAmazonSQS();
+		queueUrl = sqs.createQueue(new CreateQueueRequest("test_queue_" + System.currentTimeMillis())).getQueueUrl();
+	}
+
+	@Test
+	public void verifyThatBatchIsReceivedAndDeleted() {
+		whenSendABatchOf(10);
+
+		List<Message> messages = receive(10, 0, null);
+		assertThat(messages.size(), is(10));
+
+		List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+		for (Message message : messages) {
+			entries.add(new DeleteMessageBatchRequestEntry(message.getMessageId(), message.getReceiptHandle()));
+		}
+		sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries));
+
+		assertThat(sqs.getQueueSize(queueUrl), is(0));
+		assertThat(sqs.getApiCallCount("SendMessageBatch"), is(1L));
+	}
+
+	@Test
+	public void verifyThatLongPollReturnsAMessageSentWhileWaiting() throws Exception {
+		new Thread() {
+			public void run() {
+				pause(200);
+				sqs.sendMessage(new SendMessageRequest(queueUrl, "Hello SQS"));
+			}
+		}.start();
+
+		long started = System.currentTimeMillis();
+		List<Message> messages = receive(1, 5, null);
+
+		assertThat(messages.size(), is(1));
+		assertTrue(System.currentTimeMillis() - started < 5000);
+	}
+
+	@Test
+	public void verifyThatMessageReappearsAfterVisibilityTimeout() throws Exception {
+		sqs.sendMessage(new SendMessageRequest(queueUrl, "Hello SQS"));
+
+		Message first = receive(1, 0, 1).get(0);
+		assertThat(receive(1, 0, null).size(), is(0));
+		Thread.sleep(1100);
+		List<Message> messages = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl)
+				.withAttributeNames("ApproximateReceiveCount")).getMessages();
+
+		assertThat(messages.get(0).getMessageId(), is(first.getMessageId()));
+		assertThat(messages.get(0).getAttributes().get("ApproximateReceiveCount"), is("2"));
+	}
+
+	@Test
+	public void verifyThatZeroVisibilityReleasesMessage() {
+		sqs.sendMessage(new SendMessageRequest(queueUrl, "Hello SQS"));
+		Message message = receive(1, 0, null).get(0);
+
+		sqs.changeMessageVisibility(new ChangeMessageVisibilityRequest(queueUrl, message.getReceiptHandle(), 0));
+
+		assertThat(receive(1, 0, null).size(), is(1));
+	}
+
+	@Test(expected = AmazonServiceException.class)
+	public void verifyThatInjectedErrorsFailCalls() {
+		sqs.setErrorRate(1);
+
+		sqs.sendMessage(new SendMessageRequest(queueUrl, "Hello SQS"));
+	}
+
+	private void whenSendABatchOf(int count) {
+		List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+		for (int i = 0; i < count; i++) {
+			entries.add(new SendMessageBatchRequestEntry(String.valueOf(i), "message " + i));
+		}
+		sqs.sendMessageBatch(new SendMessageBatchRequest(queueUrl, entries));
+	}
+
+	private List<Message> receive(int max, int waitSeconds, Integer visibilityTimeout) {
+		return sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(max)
+				.withWaitTimeSeconds(waitSeconds).withVisibilityTimeout(visibilityTimeout)).getMessages();
+	}
+
+	private static void pause(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
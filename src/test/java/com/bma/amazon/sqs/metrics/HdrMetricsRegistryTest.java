@@ -0,0 +1,101 @@
+package com.bma.amazon.sqs.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsClient;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsServer;
+import com.bma.amazon.sqs.rpc.MethodHandler;
+
+public class HdrMetricsRegistryTest {
+	private static final int CALLS = 100;
+
+	private final HdrMetricsRegistry metrics = new HdrMetricsRegistry();
+
+	@Test
+	public void verifyThatTimerReportsPercentiles() {
+		HdrTimer timer = metrics.timer("test");
+		for (int i = 1; i <= 1000; i++) {
+			timer.record(TimeUnit.MICROSECONDS.toNanos(i));
+		}
+
+		TimerSnapshot snapshot = metrics.timers().get("test");
+		assertThat(snapshot.getCount(), is(1000L));
+		assertWithinPercent(snapshot.getP50(), TimeUnit.MICROSECONDS.toNanos(500));
+		assertWithinPercent(snapshot.getP99(), TimeUnit.MICROSECONDS.toNanos(990));
+		assertWithinPercent(snapshot.getMax(), TimeUnit.MICROSECONDS.toNanos(1000));
+
+		metrics.reset();
+		assertThat(metrics.timers().get("test").getCount(), is(0L));
+	}
+
+	@Test
+	public void verifyThatCountersAndGaugesAreReported() {
+		metrics.counter("calls").increment();
+		metrics.counter("calls").add(2);
+		metrics.gauge("answer", new Gauge() {
+			public long value() {
+				return 42;
+			}
+		});
+
+		Map<String, Long> values = metrics.values();
+		assertThat(values.get("calls"), is(3L));
+		assertThat(values.get("answer"), is(42L));
+	}
+
+	@Test
+	public void verifyThatEveryStageOfCallIsTimed() throws Exception {
+		AmazonSQS sqs = new MeteredAmazonSQS(new LocalAmazonSQS("metrics.local"), metrics);
+		String queueName = "metrics_queue_" + System.currentTimeMillis();
+		String queueUrl = sqs.createQueue(new CreateQueueRequest(queueName)).getQueueUrl();
+		JsonRpcSqsServer server = new JsonRpcSqsServer(sqs, queueUrl);
+		server.setMetrics(metrics);
+		server.register("echo", new MethodHandler() {
+			public Object handle(JsonNode params) {
+				return params;
+			}
+		});
+		server.start();
+		JsonRpcSqsClient client = JsonRpcSqsClient.create(sqs, queueName);
+		client.setMetrics(metrics);
+		try {
+			for (int i = 0; i < CALLS; i++) {
+				client.call("echo", i, Integer.class).get(10, TimeUnit.SECONDS);
+			}
+		} finally {
+			client.close();
+			server.stop();
+			sqs.deleteQueue(new DeleteQueueRequest(queueUrl));
+		}
+		System.out.println(metrics.report());
+
+		Map<String, TimerSnapshot> timers = metrics.timers();
+		assertThat(timers.get(MetricNames.CLIENT_SEND).getCount(), is((long) CALLS));
+		assertThat(timers.get(MetricNames.CLIENT_ROUND_TRIP).getCount(), is((long) CALLS));
+		assertThat(timers.get(MetricNames.SERVER + MetricNames.QUEUE).getCount(), is((long) CALLS));
+		assertThat(timers.get(MetricNames.SERVER + MetricNames.BUFFER).getCount(), is((long) CALLS));
+		assertThat(timers.get(MetricNames.SERVER_HANDLE).getCount(), is((long) CALLS));
+		assertThat(timers.get(MetricNames.SERVER_RESPOND).getCount(), is((long) CALLS));
+		assertThat(timers.get(MetricNames.CLIENT_REPLY + MetricNames.QUEUE).getCount(), is((long) CALLS));
+		assertTrue(timers.get(MetricNames.SQS_PREFIX + "SendMessageBatch").getCount() > 0);
+		assertThat(metrics.values().get(MetricNames.CLIENT_CALLS), is((long) CALLS));
+		assertThat(metrics.values().get(MetricNames.CLIENT_ERRORS), is(0L));
+		assertThat(metrics.values().get(MetricNames.CLIENT_IN_FLIGHT), is(0L));
+	}
+
+	private static void assertWithinPercent(long actual, long expected) {
+		assertTrue(actual + " is not close to " + expected, Math.abs(actual - expected) <= expected / 100);
+	}
+}
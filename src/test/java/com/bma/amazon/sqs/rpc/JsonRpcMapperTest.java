@@ -0,0 +1,161 @@
+package com.bma.amazon.sqs.rpc;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.bma.amazon.sqs.codec.GzipCodec;
+
+public class JsonRpcMapperTest {
+	private JsonRpcMapper mapper = new JsonRpcMapper();
+
+	@Test
+	public void verifyThatRequestCanBeReadBack() {
+		String body = mapper.writeRequest(new JsonRpcRequest("42", "sum", mapper.toTree(Arrays.asList(1, 2)),
+				"https://sqs.local/000000000000/reply"));
+
+		JsonRpcRequest request = mapper.readRequest(body);
+
+		assertThat(request.getId(), is("42"));
+		assertThat(request.getMethod(), is("sum"));
+		assertThat(request.getParams().get(1).getIntValue(), is(2));
+		assertThat(request.getReplyTo(), is("https://sqs.local/000000000000/reply"));
+	}
+
+	@Test
+	public void verifyThatNotificationHasNoId() {
+		String body = mapper.writeRequest(JsonRpcRequest.notification("ping", null));
+
+		assertThat(mapper.readRequest(body).isNotification(), is(true));
+	}
+
+	@Test
+	public void verifyThatErrorResponseCanBeReadBack() {
+		String body = mapper.writeResponse(JsonRpcResponse.failure("7",
+				new JsonRpcError(JsonRpcError.METHOD_NOT_FOUND, "Method not found: foo")));
+
+		JsonRpcResponse response = mapper.readResponse(body);
+
+		assertThat(response.getId(), is("7"));
+		assertThat(response.getResult(), is(nullValue()));
+		assertThat(response.getError().getCode(), is(JsonRpcError.METHOD_NOT_FOUND));
+	}
+
+	@Test
+	public void verifyThatBatchCanBeReadBack() {
+		String body = mapper.writeRequests(Arrays.asList(
+				new JsonRpcRequest("1", "sum", mapper.toTree(Arrays.asList(1, 2)), "reply"),
+				JsonRpcRequest.notification("ping", null)));
+		System.out.println("Batch: " + body);
+
+		List<JsonRpcRequest> requests = mapper.readRequests(body);
+
+		assertThat(requests.size(), is(2));
+		assertThat(requests.get(0).getMethod(), is("sum"));
+		assertThat(requests.get(1).isNotification(), is(true));
+		assertThat(mapper.readResponses(mapper.writeResponses(Arrays.asList(
+				JsonRpcResponse.success("1", mapper.toTree(3)),
+				JsonRpcResponse.failure("2", new JsonRpcError(JsonRpcError.INTERNAL_ERROR, "failed")))))
+				.get(1).getError().getCode(), is(JsonRpcError.INTERNAL_ERROR));
+		assertThat(mapper.readRequests(mapper.writeRequest(requests.get(0))).size(), is(1));
+	}
+
+	@Test
+	public void verifyThatStreamedParamsAreReadAsTheyWere() {
+		String body = "[{\"jsonrpc\":\"2.0\",\"params\":{\"name\":\"a } ] \\\" b\",\"tags\":[[1],{}]},"
+				+ "\"method\":\"store\",\"extra\":{\"id\":\"not this\"},\"id\":7,\"group\":\"orders\","
+				+ "\"sender\":\"client-1\",\"seq\":3,\"acked\":2},{\"method\":\"ping\",\"params\":null}]";
+
+		List<JsonRpcRequest> requests = mapper.readRequests(body);
+
+		JsonRpcRequest request = requests.get(0);
+		assertThat(request.getId(), is("7"));
+		assertThat(request.getMethod(), is("store"));
+		assertThat(request.getGroup(), is("orders"));
+		assertThat(request.getSequence(), is(3L));
+		assertThat(request.getAcknowledged(), is(2L));
+		assertThat(request.getRawParams().toString(), is("{\"name\":\"a } ] \\\" b\",\"tags\":[[1],{}]}"));
+		assertThat(request.getParams().get("name").getTextValue(), is("a } ] \" b"));
+		assertThat(request.getRawParams(), is(nullValue()));
+		assertThat(requests.get(1).isNotification(), is(true));
+		assertThat(requests.get(1).getParams().isNull(), is(true));
+
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			large.append(i % 10);
+		}
+		request = mapper.readRequest("{ \"id\" : \"8\" ,\n \"method\":\"store\", \"params\" :\t[ \"" + large + "\" ] }");
+		assertThat(request.getParams().get(0).getTextValue(), is(large.toString()));
+	}
+
+	@Test
+	public void verifyThatParamsAreBoundToTheirType() {
+		String body = mapper.writeRequest(new JsonRpcRequest("1", "move", mapper.toTree(new Point(3, 4)), "reply"));
+
+		JsonRpcRequest request = mapper.readRequest(body);
+		Point point = mapper.readParams(request, Point.class);
+
+		assertThat(point.x, is(3));
+		assertThat(point.y, is(4));
+		assertThat(mapper.readParams(new JsonRpcRequest("2", "move", mapper.toTree(point), null), Point.class).y,
+				is(4));
+		try {
+			mapper.readParams(mapper.readRequest("{\"method\":\"move\",\"params\":[1]}"), Point.class);
+		} catch (JsonRpcException e) {
+			assertThat(e.getError().getCode(), is(JsonRpcError.INVALID_PARAMS));
+			return;
+		}
+		throw new AssertionError("Invalid params expected");
+	}
+
+	@Test
+	public void verifyThatEmptyBatchIsInvalid() {
+		try {
+			mapper.readRequests("[]");
+		} catch (JsonRpcException e) {
+			assertThat(e.getError().getCode(), is(JsonRpcError.INVALID_REQUEST));
+			return;
+		}
+		throw new AssertionError("Invalid request expected");
+	}
+
+	@Test
+	public void verifyThatMalformedBodyIsAParseError() {
+		try {
+			mapper.readRequest("{not json");
+		} catch (JsonRpcException e) {
+			assertThat(e.getError().getCode(), is(JsonRpcError.PARSE_ERROR));
+			return;
+		}
+		throw new AssertionError("Parse error expected");
+	}
+
+	@Test
+	public void verifyThatBodyOfAnyCodecCanBeRead() {
+		JsonRpcMapper gzip = new JsonRpcMapper(new GzipCodec(0));
+		String body = gzip.writeResponse(JsonRpcResponse.success("7", mapper.toTree(Arrays.asList(1, 2))));
+
+		JsonRpcResponse response = mapper.readResponse(body);
+
+		assertThat(body.startsWith("gzip:"), is(true));
+		assertThat(response.getResult().get(1).getIntValue(), is(2));
+	}
+
+	public static class Point {
+		public int x;
+		public int y;
+
+		public Point() {
+		}
+
+		Point(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package com.bma.amazon.sqs.rpc;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.bma.amazon.sqs.SqsTestConfig;
+import com.bma.amazon.sqs.dedup.DedupCache;
+
+public class JsonRpcSqsClientServerTest {
+	private static final int CALLS = 1000;
+
+	private AmazonSQS sqs;
+	private String queueName;
+	private String queueUrl;
+	private JsonRpcSqsServer server;
+	private JsonRpcSqsClient client;
+
+	@Before
+	public void setUp() throws IOException {
+		sqs = SqsTestConfig.createClient("sqs.eu-west-1.amazonaws.com");
+		queueName = "test_queue_" + System.currentTimeMillis();
+		queueUrl = sqs.createQueue(new CreateQueueRequest(queueName)).getQueueUrl();
+		server = new JsonRpcSqsServer(sqs, queueUrl);
+		server.register("sum", new MethodHandler() {
+			public Object handle(JsonNode params) {
+				return params.get(0).getIntValue() + params.get(1).getIntValue();
+			}
+		});
+		server.start();
+		client = JsonRpcSqsClient.create(sqs, queueName);
+	}
+
+	@After
+	public void tearDown() {
+		client.close();
+		server.stop();
+		sqs.deleteQueue(new DeleteQueueRequest(queueUrl));
+	}
+
+	@Test
+	public void verifyThatManyCallsCanBeInFlight() throws Exception {
+		List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < CALLS; i++) {
+			results.add(client.call("sum", new int[] { i, 1 }, Integer.class));
+		}
+
+		for (int i = 0; i < CALLS; i++) {
+			assertThat(results.get(i).get(10, TimeUnit.SECONDS), is(i + 1));
+		}
+		assertThat(client.getPendingCount(), is(0));
+	}
+
+	@Test
+	public void verifyThatCoalescedCallsShareMessages() throws Exception {
+		client.setCoalescing(CallCoalescer.DEFAULT_MAX_CALLS, 10);
+		List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < CALLS; i++) {
+			results.add(client.call("sum", new int[] { i, 1 }, Integer.class));
+		}
+		CompletableFuture<JsonNode> unknown = client.call("unknown", null);
+
+		for (int i = 0; i < CALLS; i++) {
+			assertThat(results.get(i).get(10, TimeUnit.SECONDS), is(i + 1));
+		}
+		try {
+			unknown.get(10, TimeUnit.SECONDS);
+			throw new AssertionError("Call should fail");
+		} catch (ExecutionException e) {
+			assertThat(((JsonRpcException) e.getCause()).getError().getCode(), is(JsonRpcError.METHOD_NOT_FOUND));
+		}
+		System.out.println("API calls for " + CALLS + " coalesced calls: " + client.getApiCallCount());
+		assertTrue("Calls should share messages", client.getApiCallCount() < CALLS / 20);
+	}
+
+	@Test
+	public void verifyThatTypedHandlerGetsBoundParams() throws Exception {
+		server.register("product", int[].class, new TypedMethodHandler<int[]>() {
+			public Object handle(int[] params) {
+				return params[0] * params[1];
+			}
+		});
+
+		assertThat(client.call("product", new int[] { 6, 7 }, Integer.class).get(10, TimeUnit.SECONDS), is(42));
+	}
+
+	@Test
+	public void verifyThatRedeliveredRequestIsAnsweredFromTheCache() throws Exception {
+		final AtomicInteger handled = new AtomicInteger();
+		server.register("count", new MethodHandler() {
+			public Object handle(JsonNode params) {
+				return handled.incrementAndGet();
+			}
+		});
+		server.setDedupCache(new DedupCache(1000, DedupCache.DEFAULT_TTL_MILLIS, 1000));
+		String replyQueueUrl = sqs.createQueue(new CreateQueueRequest(queueName + "_replies")).getQueueUrl();
+		try {
+			String body = new JsonRpcMapper().writeRequest(new JsonRpcRequest("dup-1", "count", null, replyQueueUrl));
+			List<JsonRpcResponse> responses = new ArrayList<JsonRpcResponse>();
+			sqs.sendMessage(new SendMessageRequest(queueUrl, body));
+			responses.addAll(whenWeReceiveResponses(replyQueueUrl, 1));
+			// redelivered after it was handled, a concurrent one would wait for its visibility timeout
+			sqs.sendMessage(new SendMessageRequest(queueUrl, body));
+			responses.addAll(whenWeReceiveResponses(replyQueueUrl, 1));
+
+			assertThat(handled.get(), is(1));
+			for (JsonRpcResponse response : responses) {
+				assertThat(response.getId(), is("dup-1"));
+				assertThat(response.getResult().getIntValue(), is(1));
+			}
+		} finally {
+			sqs.deleteQueue(new DeleteQueueRequest(replyQueueUrl));
+		}
+	}
+
+	@Test
+	public void verifyThatGroupedCallsAreHandledInOrder() throws Exception {
+		final int accounts = 4;
+		final ConcurrentHashMap<String, List<Integer>> handled = new ConcurrentHashMap<String, List<Integer>>();
+		server.register("append", new MethodHandler() {
+			public Object handle(JsonNode params) throws Exception {
+				Thread.sleep(1);
+				handled.computeIfAbsent(params.get("account").getTextValue(),
+						account -> Collections.synchronizedList(new ArrayList<Integer>()))
+						.add(params.get("value").getIntValue());
+				return null;
+			}
+		});
+		server.setOrderedDispatch(1000, 1000);
+		client.setMessageGroups(request -> request.getParams().get("account").getTextValue());
+		client.setCoalescing(10, 5);
+
+		List<CompletableFuture<JsonNode>> results = new ArrayList<CompletableFuture<JsonNode>>();
+		for (int i = 0; i < CALLS / 4; i++) {
+			ObjectNode params = new ObjectMapper().createObjectNode();
+			params.put("account", "account" + (i % accounts));
+			params.put("value", i);
+			results.add(client.call("append", params));
+		}
+		for (CompletableFuture<JsonNode> result : results) {
+			result.get(10, TimeUnit.SECONDS);
+		}
+
+		assertThat(handled.size(), is(accounts));
+		for (List<Integer> values : handled.values()) {
+			List<Integer> sorted = new ArrayList<Integer>(values);
+			Collections.sort(sorted);
+			assertThat(values, is(sorted));
+		}
+	}
+
+	@Test
+	public void verifyThatSlowMethodIsShedWithoutStallingOthers() throws Exception {
+		server.register("slow", new MethodHandler() {
+			public Object handle(JsonNode params) throws InterruptedException {
+				Thread.sleep(200);
+				return params.get(0).getIntValue();
+			}
+		});
+		server.setBulkhead("slow", 1, 1);
+		server.setShedDelay(1);
+		List<CompletableFuture<Integer>> slow = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < 6; i++) {
+			slow.add(client.call("slow", new int[] { i }, Integer.class));
+		}
+		Thread.sleep(100);
+
+		long started = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			assertThat(client.call("sum", new int[] { i, 1 }, Integer.class).get(10, TimeUnit.SECONDS), is(i + 1));
+		}
+		long fastMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+		for (int i = 0; i < 6; i++) {
+			assertThat(slow.get(i).get(30, TimeUnit.SECONDS), is(i));
+		}
+		long rejected = server.getBulkhead("slow").getRejectedCount();
+		System.out.println("10 fast calls took " + fastMillis + " ms, slow requests shed " + rejected + " times");
+		assertTrue("Slow requests should be shed", rejected > 0);
+		assertTrue("Fast calls should not wait for slow ones", fastMillis < 1000);
+	}
+
+	@Test
+	public void verifyThatUnknownMethodFailsTheCall() throws Exception {
+		try {
+			client.call("unknown", null).get(10, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			JsonRpcException error = (JsonRpcException) e.getCause();
+			assertThat(error.getError().getCode(), is(JsonRpcError.METHOD_NOT_FOUND));
+			return;
+		}
+		throw new AssertionError("Call should fail");
+	}
+
+	private List<JsonRpcResponse> whenWeReceiveResponses(String replyQueueUrl, int count) {
+		JsonRpcMapper mapper = new JsonRpcMapper();
+		List<JsonRpcResponse> responses = new ArrayList<JsonRpcResponse>();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (responses.size() < count && System.currentTimeMillis() < deadline) {
+			for (Message message : sqs.receiveMessage(new ReceiveMessageRequest(replyQueueUrl).withWaitTimeSeconds(1))
+					.getMessages()) {
+				responses.add(mapper.readResponse(message.getBody()));
+			}
+		}
+		assertThat(responses.size(), is(count));
+		return responses;
+	}
+}
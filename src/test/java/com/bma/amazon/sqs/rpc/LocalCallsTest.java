@@ -0,0 +1,128 @@
+package com.bma.amazon.sqs.rpc;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.bma.amazon.sqs.SqsTestConfig;
+import com.bma.amazon.sqs.metrics.HdrMetricsRegistry;
+import com.bma.amazon.sqs.metrics.MetricNames;
+import com.bma.amazon.sqs.transport.QueueUrlCache;
+
+public class LocalCallsTest {
+	private static final int CALLS = 100;
+
+	private QueueUrlCache queueUrls;
+	private AmazonSQS sqs;
+	private String queueName;
+	private String queueUrl;
+	private List<JsonRpcSqsServer> servers = new ArrayList<JsonRpcSqsServer>();
+	private JsonRpcSqsClient client;
+	private HdrMetricsRegistry metrics;
+
+	@Before
+	public void setUp() throws IOException {
+		queueUrls = SqsTestConfig.queueUrls("sqs.eu-west-1.amazonaws.com");
+		sqs = queueUrls.getSqs();
+		queueName = "test_queue_" + System.currentTimeMillis();
+		queueUrl = queueUrls.createQueue(queueName);
+		metrics = new HdrMetricsRegistry();
+	}
+
+	@After
+	public void tearDown() {
+		if (client != null) {
+			client.close();
+		}
+		for (JsonRpcSqsServer server : servers) {
+			server.stop();
+		}
+		sqs.deleteQueue(new DeleteQueueRequest(queueUrl));
+	}
+
+	@Test
+	public void verifyThatServerOfTheSameJvmIsCalledInProcess() throws Exception {
+		givenServer(16, 0, JsonRpcSqsServer.DEFAULT_LOCAL_CAPACITY);
+		givenClient();
+
+		whenCallsAreAnswered();
+
+		assertThat(metrics.counter(MetricNames.CLIENT_LOCAL_CALLS).count(), is((long) CALLS));
+		assertThat(metrics.counter(MetricNames.SERVER_LOCAL_REQUESTS).count(), is((long) CALLS));
+		assertThat(metrics.counter(MetricNames.SERVER_REQUESTS).count(), is((long) CALLS));
+		assertThat(client.getApiCallCount(), is(0L));
+		assertThat(servers.get(0).getApiCallCount(), is(0L));
+	}
+
+	@Test
+	public void verifyThatCallsFallBackToSqsWhenServerIsSaturated() throws Exception {
+		givenServer(1, 20, 4);
+		givenClient();
+
+		whenCallsAreAnswered();
+
+		long local = metrics.counter(MetricNames.CLIENT_LOCAL_CALLS).count();
+		System.out.println(local + " of " + CALLS + " calls were handled in process, the others went through SQS");
+		assertTrue("Some calls should be handled in process", local > 0);
+		assertTrue("Calls beyond the buffer should go through SQS", local < CALLS);
+		assertThat(metrics.counter(MetricNames.SERVER_REQUESTS).count(), is((long) CALLS));
+	}
+
+	@Test
+	public void verifyThatCallsFallBackToSqsWhenServerIsGone() throws Exception {
+		givenServer(16, 0, JsonRpcSqsServer.DEFAULT_LOCAL_CAPACITY).stop();
+		servers.clear();
+		givenServer(16, 0, 0);
+		givenClient();
+
+		whenCallsAreAnswered();
+
+		assertThat(metrics.counter(MetricNames.CLIENT_LOCAL_CALLS).count(), is(0L));
+		assertThat(metrics.counter(MetricNames.SERVER_REQUESTS).count(), is((long) CALLS));
+	}
+
+	private JsonRpcSqsServer givenServer(int handlerThreads, final long sleepMillis, int localCapacity) {
+		JsonRpcSqsServer server = new JsonRpcSqsServer(sqs, queueUrl, new JsonRpcMapper(), handlerThreads);
+		server.register("sum", new MethodHandler() {
+			public Object handle(JsonNode params) throws Exception {
+				Thread.sleep(sleepMillis);
+				return params.get(0).getIntValue() + params.get(1).getIntValue();
+			}
+		});
+		server.setLocalCapacity(localCapacity);
+		server.setMetrics(metrics);
+		server.start();
+		servers.add(server);
+		return server;
+	}
+
+	private void givenClient() {
+		client = JsonRpcSqsClient.create(queueUrls, queueName, new JsonRpcMapper());
+		client.setMetrics(metrics);
+		client.setLocalCalls(true);
+	}
+
+	private void whenCallsAreAnswered() throws Exception {
+		List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < CALLS; i++) {
+			results.add(client.call("sum", new int[] { i, 1 }, Integer.class));
+		}
+		for (int i = 0; i < CALLS; i++) {
+			assertThat(results.get(i).get(30, TimeUnit.SECONDS), is(i + 1));
+		}
+		assertThat(client.getPendingCount(), is(0));
+	}
+}
@@ -0,0 +1,88 @@
+package com.bma.amazon.sqs.rpc;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.codehaus.jackson.node.IntNode;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PendingRequestsTest {
+	private static final int CALLS = 1000;
+
+	private PendingRequests pending;
+	private List<CompletableFuture<JsonRpcResponse>> futures;
+
+	@Before
+	public void setUp() {
+		pending = new PendingRequests();
+		futures = new ArrayList<CompletableFuture<JsonRpcResponse>>();
+	}
+
+	@Test
+	public void verifyThatResponsesAreRoutedById() throws Exception {
+		givenWeHavePendingCalls();
+
+		whenResponsesArriveInRandomOrder();
+
+		thenEveryCallGetsItsOwnResponse();
+		assertThat(pending.size(), is(0));
+	}
+
+	@Test
+	public void verifyThatUnknownResponseIsIgnored() {
+		givenWeHavePendingCalls();
+
+		boolean completed = pending.complete(JsonRpcResponse.success("unknown", IntNode.valueOf(1)));
+
+		assertThat(completed, is(false));
+		assertThat(pending.size(), is(CALLS));
+	}
+
+	@Test
+	public void verifyThatFailAllCompletesEveryCall() {
+		givenWeHavePendingCalls();
+
+		pending.failAll(new IllegalStateException("closed"));
+
+		for (CompletableFuture<JsonRpcResponse> future : futures) {
+			assertThat(future.isCompletedExceptionally(), is(true));
+		}
+		assertThat(pending.size(), is(0));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void verifyThatIdCanNotBeRegisteredTwice() {
+		pending.register("1");
+		pending.register("1");
+	}
+
+	private void givenWeHavePendingCalls() {
+		for (int i = 0; i < CALLS; i++) {
+			futures.add(pending.register(String.valueOf(i)));
+		}
+	}
+
+	private void whenResponsesArriveInRandomOrder() {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int i = 0; i < CALLS; i++) {
+			ids.add(i);
+		}
+		Collections.shuffle(ids);
+		for (Integer id : ids) {
+			pending.complete(JsonRpcResponse.success(String.valueOf(id), IntNode.valueOf(id)));
+		}
+	}
+
+	private void thenEveryCallGetsItsOwnResponse() throws InterruptedException, ExecutionException {
+		for (int i = 0; i < CALLS; i++) {
+			assertThat(futures.get(i).get().getResult().getIntValue(), is(i));
+		}
+	}
+}
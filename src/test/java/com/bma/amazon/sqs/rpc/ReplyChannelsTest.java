@@ -0,0 +1,127 @@
+package com.bma.amazon.sqs.rpc;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.ListQueuesRequest;
+import com.bma.amazon.sqs.SqsTestConfig;
+import com.bma.amazon.sqs.metrics.HdrMetricsRegistry;
+import com.bma.amazon.sqs.metrics.MetricNames;
+import com.bma.amazon.sqs.transport.QueueUrlCache;
+
+public class ReplyChannelsTest {
+	private static final int CLIENTS = 10;
+
+	private AmazonSQS sqs;
+	private String queueName;
+	private String queueUrl;
+	private JsonRpcSqsServer server;
+	private ReplyChannels channels;
+	private HdrMetricsRegistry metrics;
+
+	@Before
+	public void setUp() throws IOException {
+		QueueUrlCache queueUrls = SqsTestConfig.queueUrls("sqs.eu-west-1.amazonaws.com");
+		sqs = queueUrls.getSqs();
+		queueName = "test_queue_" + System.currentTimeMillis();
+		queueUrl = queueUrls.createQueue(queueName);
+		server = new JsonRpcSqsServer(sqs, queueUrl);
+		server.register("sum", new MethodHandler() {
+			public Object handle(JsonNode params) {
+				return params.get(0).getIntValue() + params.get(1).getIntValue();
+			}
+		});
+		metrics = new HdrMetricsRegistry();
+		server.setMetrics(metrics);
+		server.start();
+		channels = new ReplyChannels(queueUrls, queueName);
+	}
+
+	@After
+	public void tearDown() {
+		channels.close();
+		server.stop();
+		sqs.deleteQueue(new DeleteQueueRequest(queueUrl));
+	}
+
+	@Test
+	public void verifyThatClientsShareTheReplyQueues() throws Exception {
+		List<JsonRpcSqsClient> clients = whenClientsCallTheServer();
+
+		assertThat(channels.getChannelCount(), is(ReplyChannels.DEFAULT_MAX_CHANNELS));
+		assertThat(replyQueues(), is(ReplyChannels.DEFAULT_MAX_CHANNELS));
+		assertThat(metrics.counter(MetricNames.SERVER_LOCAL_REPLIES).count(), is(0L));
+		close(clients);
+	}
+
+	@Test
+	public void verifyThatLocalServerRepliesInMemory() throws Exception {
+		server.setLocalReplies(true);
+
+		List<JsonRpcSqsClient> clients = whenClientsCallTheServer();
+
+		assertThat(metrics.counter(MetricNames.SERVER_LOCAL_REPLIES).count(), is((long) CLIENTS * 10));
+		close(clients);
+	}
+
+	@Test
+	public void verifyThatIdleAndOrphanedQueuesAreReclaimed() throws Exception {
+		close(whenClientsCallTheServer());
+		String orphan = sqs.createQueue(new CreateQueueRequest(queueName + "_replies_crashed")).getQueueUrl();
+		Thread.sleep(1100);
+
+		assertThat(channels.reclaimOrphans(0), is(1));
+		channels.setIdleMillis(0);
+		assertThat(channels.reclaimIdle(), is(ReplyChannels.DEFAULT_MAX_CHANNELS));
+
+		assertThat(replyQueues(), is(0));
+		System.out.println("Reclaimed " + orphan + " and the idle reply queues");
+		JsonRpcSqsClient client = JsonRpcSqsClient.create(channels, queueName);
+		assertThat(client.call("sum", new int[] { 1, 2 }, Integer.class).get(10, TimeUnit.SECONDS), is(3));
+		assertThat(replyQueues(), is(1));
+		client.close();
+	}
+
+	private List<JsonRpcSqsClient> whenClientsCallTheServer() throws Exception {
+		List<JsonRpcSqsClient> clients = new ArrayList<JsonRpcSqsClient>();
+		List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+		for (int c = 0; c < CLIENTS; c++) {
+			JsonRpcSqsClient client = JsonRpcSqsClient.create(channels, queueName);
+			clients.add(client);
+			for (int i = 0; i < 10; i++) {
+				results.add(client.call("sum", new int[] { c, i }, Integer.class));
+			}
+		}
+		for (int c = 0; c < CLIENTS; c++) {
+			for (int i = 0; i < 10; i++) {
+				assertThat(results.get(c * 10 + i).get(10, TimeUnit.SECONDS), is(c + i));
+			}
+			assertThat(clients.get(c).getPendingCount(), is(0));
+		}
+		return clients;
+	}
+
+	private int replyQueues() {
+		return sqs.listQueues(new ListQueuesRequest(queueName + "_replies_")).getQueueUrls().size();
+	}
+
+	private static void close(List<JsonRpcSqsClient> clients) {
+		for (JsonRpcSqsClient client : clients) {
+			client.close();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.bma.amazon.sqs.rpc;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.bma.amazon.sqs.SqsTestConfig;
+import com.bma.amazon.sqs.metrics.HdrMetricsRegistry;
+import com.bma.amazon.sqs.metrics.MetricNames;
+import com.bma.amazon.sqs.transport.QueueUrlCache;
+
+public class ResultCacheTest {
+	private AmazonSQS sqs;
+	private String queueUrl;
+	private JsonRpcSqsServer server;
+	private JsonRpcSqsClient client;
+	private HdrMetricsRegistry metrics;
+	private final AtomicInteger invocations = new AtomicInteger();
+
+	@Before
+	public void setUp() throws IOException {
+		QueueUrlCache queueUrls = SqsTestConfig.queueUrls("sqs.eu-west-1.amazonaws.com");
+		sqs = queueUrls.getSqs();
+		String queueName = "test_queue_" + System.currentTimeMillis();
+		queueUrl = queueUrls.createQueue(queueName);
+		server = new JsonRpcSqsServer(sqs, queueUrl);
+		server.register("square", new MethodHandler() {
+			public Object handle(JsonNode params) throws Exception {
+				invocations.incrementAndGet();
+				Thread.sleep(50);
+				int value = params.get(0).getIntValue();
+				if (value < 0) {
+					throw new IllegalArgumentException("Negative " + value);
+				}
+				return value * value;
+			}
+		});
+		server.start();
+		metrics = new HdrMetricsRegistry();
+		client = JsonRpcSqsClient.create(queueUrls, queueName, new JsonRpcMapper());
+		client.setMetrics(metrics);
+	}
+
+	@After
+	public void tearDown() {
+		client.close();
+		server.stop();
+		sqs.deleteQueue(new DeleteQueueRequest(queueUrl));
+	}
+
+	@Test
+	public void verifyThatRepeatedCallsAreAnsweredFromTheCache() throws Exception {
+		client.cacheResults("square", 1, TimeUnit.MINUTES);
+
+		for (int i = 0; i < 10; i++) {
+			assertThat(square(3), is(9));
+			assertThat(square(4), is(16));
+		}
+
+		System.out.println("Cache hits saved " + metrics.timer(MetricNames.CLIENT_CACHE_SAVED).snapshot());
+		assertThat(invocations.get(), is(2));
+		assertThat(metrics.counter(MetricNames.CLIENT_CACHE_HITS).count(), is(18L));
+		assertThat(metrics.counter(MetricNames.CLIENT_CACHE_MISSES).count(), is(2L));
+		assertThat(metrics.counter(MetricNames.CLIENT_CALLS).count(), is(2L));
+	}
+
+	@Test
+	public void verifyThatCallsInFlightAreCoalesced() throws Exception {
+		client.cacheResults("square", 1, TimeUnit.MINUTES);
+
+		List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < 20; i++) {
+			results.add(client.call("square", new int[] { 5 }, Integer.class));
+		}
+		for (CompletableFuture<Integer> result : results) {
+			assertThat(result.get(10, TimeUnit.SECONDS), is(25));
+		}
+
+		assertThat(invocations.get(), is(1));
+		assertThat(metrics.counter(MetricNames.CLIENT_CACHE_COALESCED).count(), is(19L));
+	}
+
+	@Test
+	public void verifyThatExpiredResultsAndErrorsAreNotCached() throws Exception {
+		client.cacheResults("square", 100, TimeUnit.MILLISECONDS);
+
+		assertThat(square(3), is(9));
+		Thread.sleep(150);
+		assertThat(square(3), is(9));
+		for (int i = 0; i < 2; i++) {
+			try {
+				square(-1);
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof JsonRpcException);
+			}
+		}
+
+		assertThat(invocations.get(), is(4));
+		assertThat(metrics.counter(MetricNames.CLIENT_CACHE_HITS).count(), is(0L));
+	}
+
+	@Test
+	public void verifyThatLeastRecentlyUsedResultsAreEvicted() throws Exception {
+		ResultCache cache = new ResultCache(16 * 1024);
+		JsonNodeFactory nodes = JsonNodeFactory.instance;
+		JsonNode first = nodes.numberNode(0);
+		JsonNode firstResult = nodes.textNode("result 0");
+
+		for (int i = 0; i < 1000; i++) {
+			final JsonNode result = i == 0 ? firstResult : nodes.textNode("result " + i);
+			cache.get("m", nodes.numberNode(i), 60000, () -> CompletableFuture.completedFuture(result));
+			// keeps the first one recently used
+			assertThat(cache.get("m", first, 60000, () -> null).get(), is(firstResult));
+		}
+
+		System.out.println(cache.size() + " results cached in " + cache.getWeight() + " bytes");
+		assertTrue("Weight should be bounded", cache.getWeight() <= 16 * 1024);
+		assertTrue("Old results should be evicted", cache.size() < 1000);
+		assertThat(cache.get("m", first, 60000, () -> null).get(), is(firstResult));
+	}
+
+	@Test
+	public void verifyThatResultInFlightIsNotCachedAfterInvalidation() throws Exception {
+		ResultCache cache = new ResultCache();
+		JsonNodeFactory nodes = JsonNodeFactory.instance;
+		JsonNode params = nodes.numberNode(1);
+		CompletableFuture<JsonNode> readBeforeWrite = new CompletableFuture<JsonNode>();
+		CompletableFuture<JsonNode> stale = cache.get("m", params, 60000, () -> readBeforeWrite);
+
+		cache.invalidate("m", params);
+		readBeforeWrite.complete(nodes.textNode("old"));
+		JsonNode fresh = cache.get("m", params, 60000,
+				() -> CompletableFuture.completedFuture(nodes.textNode("new"))).get();
+
+		assertThat(stale.get().getTextValue(), is("old"));
+		assertThat(fresh.getTextValue(), is("new"));
+		assertThat(cache.get("m", params, 60000, () -> null).get().getTextValue(), is("new"));
+	}
+
+	private int square(int value) throws Exception {
+		return client.call("square", new int[] { value }, Integer.class).get(10, TimeUnit.SECONDS);
+	}
+}
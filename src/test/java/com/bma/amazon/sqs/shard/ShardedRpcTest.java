@@ -0,0 +1,151 @@
+package com.bma.amazon.sqs.shard;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.rpc.JsonRpcMapper;
+import com.bma.amazon.sqs.rpc.JsonRpcRequest;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsClient;
+import com.bma.amazon.sqs.rpc.JsonRpcSqsServer;
+import com.bma.amazon.sqs.rpc.MethodHandler;
+import com.bma.amazon.sqs.transport.ThreadMode;
+
+public class ShardedRpcTest {
+	private static final int CALLS = 200;
+
+	private LocalAmazonSQS near;
+	private LocalAmazonSQS far;
+	private List<Shard> shards;
+	private ShardedJsonRpcServer server;
+	private JsonRpcSqsClient client;
+
+	@Before
+	public void setUp() {
+		near = new LocalAmazonSQS("sqs.near.local");
+		far = new LocalAmazonSQS("sqs.far.local");
+		shards = Arrays.asList(
+				new Shard(near, near.createQueue(new CreateQueueRequest("service_0")).getQueueUrl()),
+				new Shard(near, near.createQueue(new CreateQueueRequest("service_1")).getQueueUrl()),
+				new Shard(far, far.createQueue(new CreateQueueRequest("service_2")).getQueueUrl()));
+		server = new ShardedJsonRpcServer(shards, new JsonRpcMapper(), 12, ThreadMode.PLATFORM);
+		server.register("sum", new MethodHandler() {
+			public Object handle(JsonNode params) {
+				return params.get(0).getIntValue() + params.get(1).getIntValue();
+			}
+		});
+		server.start();
+		String replyQueueUrl = near.createQueue(new CreateQueueRequest("service_reply")).getQueueUrl();
+		client = new JsonRpcSqsClient(near, shards.get(0).getQueueUrl(), replyQueueUrl);
+		client.start();
+	}
+
+	@After
+	public void tearDown() {
+		client.close();
+		server.stop();
+	}
+
+	@Test
+	public void verifyThatRoundRobinUsesAllShards() throws Exception {
+		client.setShards(shards, new RoundRobinPartitioner());
+
+		whenWeCallSum(CALLS);
+
+		for (JsonRpcSqsServer shardServer : server.getServers()) {
+			System.out.println(shardServer.getRequestQueueUrl() + ": " + shardServer.getApiCallCount() + " API calls");
+			assertTrue("Every shard should have served calls", shardServer.getApiCallCount() > 0);
+		}
+	}
+
+	@Test
+	public void verifyThatKeyHashKeepsAKeyOnOneShard() {
+		KeyHashPartitioner partitioner = KeyHashPartitioner.byMethod();
+		int[] used = new int[shards.size()];
+		for (int i = 0; i < 100; i++) {
+			String method = "method" + i;
+			int shard = partitioner.select(new JsonRpcRequest("1", method, null, null), shards);
+			assertThat(partitioner.select(new JsonRpcRequest("2", method, null, null), shards), is(shard));
+			used[shard]++;
+		}
+		for (int count : used) {
+			assertTrue("Keys should be spread over all shards", count > 10);
+		}
+	}
+
+	@Test
+	public void verifyThatLeastLatencyPrefersTheCloseRegion() throws Exception {
+		far.setLatency(50, 0);
+		client.setShards(shards, new LeastLatencyPartitioner(20));
+
+		for (int i = 0; i < 10; i++) {
+			whenWeCallSum(CALLS / 10);
+		}
+
+		System.out.println(client.getShards());
+		long farCalls = server.getServers().get(2).getApiCallCount();
+		long nearCalls = server.getServers().get(0).getApiCallCount() + server.getServers().get(1).getApiCallCount();
+		assertTrue("Far shard should get few calls: " + farCalls + " vs " + nearCalls, farCalls * 4 < nearCalls);
+	}
+
+	@Test
+	public void verifyThatProberFindsShardsWithoutServer() throws Exception {
+		far.setLatency(50, 0);
+		Shard orphan = new Shard(near, near.createQueue(new CreateQueueRequest("service_orphan")).getQueueUrl());
+		List<Shard> all = new ArrayList<Shard>(shards);
+		all.add(orphan);
+		client.setShards(all, new LeastLatencyPartitioner());
+
+		LatencyProber prober = new LatencyProber(client, 100, 300, 2);
+		try {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (orphan.isHealthy() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(100);
+			}
+		} finally {
+			prober.close();
+		}
+
+		System.out.println(client.getShards());
+		assertThat(orphan.isHealthy(), is(false));
+		assertThat(shards.get(2).isHealthy(), is(true));
+		assertTrue("Far shard should be slower", shards.get(2).getRoundTripNanos() > shards.get(0).getRoundTripNanos());
+		assertThat(LeastLatencyPartitioner.fastest(all, -1) < 2, is(true));
+	}
+
+	@Test
+	public void verifyThatHedgedCallsAreAnsweredByAnotherShard() throws Exception {
+		Shard orphan = new Shard(near, near.createQueue(new CreateQueueRequest("service_orphan")).getQueueUrl());
+		List<Shard> all = new ArrayList<Shard>(shards);
+		all.add(orphan);
+		client.setShards(all, (request, candidates) -> candidates.indexOf(orphan));
+		client.setHedging(100);
+
+		whenWeCallSum(10);
+
+		assertThat(orphan.getRoundTripNanos(), is(0L));
+	}
+
+	private void whenWeCallSum(int calls) throws Exception {
+		List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < calls; i++) {
+			results.add(client.call("sum", new int[] { i, 1 }, Integer.class));
+		}
+		for (int i = 0; i < calls; i++) {
+			assertThat(results.get(i).get(10, TimeUnit.SECONDS), is(i + 1));
+		}
+	}
+}
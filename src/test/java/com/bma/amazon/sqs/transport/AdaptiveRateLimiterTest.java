@@ -0,0 +1,151 @@
+package com.bma.amazon.sqs.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+
+public class AdaptiveRateLimiterTest {
+	private ScheduledExecutorService scheduler;
+	private ExecutorService executor;
+	private LocalAmazonSQS sqs;
+	private String queueUrl;
+	private SendBatcher batcher;
+
+	@Before
+	public void setUp() {
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void verifyThatRateIsCutOnOverloadAndRaisedOnSuccess() throws Exception {
+		AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(1, 100, 10, 0.5, 0.1);
+
+		limiter.onOverload();
+		limiter.onOverload();
+		assertThat(limiter.getRate(), is(50.0));
+		Thread.sleep(TimeUnit.NANOSECONDS.toMillis(AdaptiveRateLimiter.COOL_DOWN_NANOS) + 10);
+		limiter.onOverload();
+		assertThat(limiter.getRate(), is(25.0));
+
+		for (int i = 0; i < 25; i++) {
+			limiter.onSuccess();
+		}
+		System.out.println("Rate after 25 successful calls: " + limiter);
+		assertTrue("Rate should grow by about 10 per 25 calls", limiter.getRate() > 33 && limiter.getRate() < 35);
+		assertThat(limiter.getThrottledCount(), is(3L));
+	}
+
+	@Test
+	public void verifyThatCallsOverTheRateAreDelayed() {
+		AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(1, 10, 1, 0.5, 0.1);
+
+		long delayed = 0;
+		for (int i = 0; i < 20; i++) {
+			if (limiter.reserve() > 0) {
+				delayed++;
+			}
+		}
+
+		System.out.println("Calls delayed: " + delayed);
+		assertTrue("A burst of a second should pass, the rest wait", delayed >= 9 && delayed <= 11);
+	}
+
+	@Test
+	public void verifyThatRetryBudgetRunsOut() {
+		AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(1, 100, 10, 0.5, 0.1);
+		for (int i = 0; i < 100; i++) {
+			limiter.onCall();
+		}
+
+		int granted = 0;
+		while (limiter.tryRetry()) {
+			granted++;
+		}
+
+		System.out.println("Retries granted: " + granted);
+		assertThat(granted, is(15));
+		assertThat(limiter.getRetriesDeniedCount(), is(1L));
+	}
+
+	@Test
+	public void verifyThatThrottledBatchesAreRetried() throws Exception {
+		givenThrottledQueue(0.2);
+		batcher.setRateLimiter(new AdaptiveRateLimiter(1, 1000, 20, 0.5, 0.5));
+
+		// enough calls that some are throttled for sure
+		int failed = whenSendMessages(1000);
+
+		AdaptiveRateLimiter limiter = batcher.getRateLimiter();
+		System.out.println("Throttled " + limiter.getThrottledCount() + " calls, retried " + limiter.getRetryCount()
+				+ ", failed " + failed + ", rate now " + limiter);
+		assertTrue("Calls should be throttled", limiter.getThrottledCount() > 0);
+		assertTrue("Rate should be cut", limiter.getRate() < AdaptiveRateLimiter.DEFAULT_MAX_RATE);
+		assertThat(failed, is(0));
+		assertThat(sqs.getQueueSize(queueUrl), is(1000));
+	}
+
+	@Test
+	public void verifyThatRetryBudgetStopsRetryStorm() throws Exception {
+		givenThrottledQueue(1);
+		batcher.setRateLimiter(new AdaptiveRateLimiter(50, 1000, 20, 0.5, 0.1));
+
+		int failed = whenSendMessages(200);
+
+		AdaptiveRateLimiter limiter = batcher.getRateLimiter();
+		System.out.println("Retried " + limiter.getRetryCount() + ", denied " + limiter.getRetriesDeniedCount()
+				+ " retries in " + batcher.getApiCallCount() + " calls, rate now " + limiter);
+		assertThat(failed, is(200));
+		assertTrue("Retries should be denied", limiter.getRetriesDeniedCount() > 0);
+		assertTrue("Retries should be limited by the budget, not by the attempts", batcher.getApiCallCount() < 20 * 3);
+		assertTrue("Rate should be cut", limiter.getRate() <= 500);
+	}
+
+	private void givenThrottledQueue(double throttleRate) {
+		sqs = new LocalAmazonSQS();
+		queueUrl = sqs.createQueue(new CreateQueueRequest("test_queue_throttled")).getQueueUrl();
+		sqs.setThrottleRate(throttleRate);
+		batcher = new SendBatcher(sqs, queueUrl, scheduler, executor);
+		batcher.setMaxAttempts(10);
+	}
+
+	private int whenSendMessages(int count) throws Exception {
+		List<CompletableFuture<String>> sent = new ArrayList<CompletableFuture<String>>();
+		for (int i = 0; i < count; i++) {
+			sent.add(batcher.add("message " + i));
+		}
+		int failed = 0;
+		for (CompletableFuture<String> future : sent) {
+			try {
+				future.get(30, TimeUnit.SECONDS);
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof AmazonServiceException);
+				failed++;
+			}
+		}
+		return failed;
+	}
+}
@@ -0,0 +1,91 @@
+package com.bma.amazon.sqs.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkheadTest {
+	private Bulkhead bulkhead;
+
+	@Before
+	public void setUp() {
+		bulkhead = new Bulkhead("test", ThreadMode.PLATFORM.newExecutor("test-bulkhead"), 2, 3);
+	}
+
+	@After
+	public void tearDown() {
+		bulkhead.close();
+	}
+
+	@Test
+	public void verifyThatTasksBeyondThePlacesAreRejected() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		List<CompletableFuture<Integer>> done = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < 5; i++) {
+			assertTrue("Place " + i + " should be free", bulkhead.tryAcquire());
+			final int task = i;
+			done.add(bulkhead.submit(() -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				await(blocked);
+				running.decrementAndGet();
+				return task;
+			}));
+		}
+
+		assertThat(bulkhead.tryAcquire(), is(false));
+		assertThat(bulkhead.getRejectedCount(), is(1L));
+		long deadline = System.currentTimeMillis() + 1000;
+		while (bulkhead.getQueued() > 3 || running.get() < 2) {
+			assertTrue("Tasks should start", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		assertThat(bulkhead.getQueued(), is(3));
+		blocked.countDown();
+		for (int i = 0; i < 5; i++) {
+			assertThat(done.get(i).get(10, TimeUnit.SECONDS), is(i));
+		}
+		System.out.println("Most tasks running at once: " + maxRunning.get());
+		assertThat(maxRunning.get(), is(2));
+		assertTrue("Places should be given back", bulkhead.tryAcquire());
+		bulkhead.release();
+	}
+
+	@Test
+	public void verifyThatFailedTaskGivesBackItsPlace() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			assertTrue("Place " + i + " should be free", bulkhead.tryAcquire());
+			CompletableFuture<Object> done = bulkhead.submit(() -> {
+				throw new IllegalStateException("failed");
+			});
+			try {
+				done.get(10, TimeUnit.SECONDS);
+				throw new AssertionError("Task should fail");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+		}
+		assertThat(bulkhead.getRejectedCount(), is(0L));
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package com.bma.amazon.sqs.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.metrics.HdrMetricsRegistry;
+import com.bma.amazon.sqs.metrics.MetricNames;
+import com.bma.amazon.sqs.transport.DeadLetterQueue.DeadLetter;
+
+public class DeadLetterQueueTest {
+	private static final int MAX_RECEIVE_COUNT = 3;
+
+	private LocalAmazonSQS sqs;
+	private String queueUrl;
+	private String deadLetterQueueUrl;
+	private DeadLetterQueue deadLetterQueue;
+	private LeaseManager leases;
+	private ScheduledExecutorService scheduler;
+	private ExecutorService executor;
+	private DeleteBatcher deleter;
+
+	@Before
+	public void setUp() {
+		sqs = new LocalAmazonSQS("dlq.local");
+		queueUrl = sqs.createQueue(new CreateQueueRequest("work_queue")).getQueueUrl();
+		deadLetterQueueUrl = sqs.createQueue(new CreateQueueRequest("work_queue_dlq")).getQueueUrl();
+		deadLetterQueue = new DeadLetterQueue(sqs, deadLetterQueueUrl, MAX_RECEIVE_COUNT);
+		leases = new LeaseManager(sqs, 10, ThreadMode.PLATFORM);
+		scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("test-timer"));
+		executor = ThreadMode.PLATFORM.newExecutor("test-sqs");
+		deleter = new DeleteBatcher(sqs, queueUrl, scheduler, executor);
+	}
+
+	@After
+	public void tearDown() {
+		deadLetterQueue.close();
+		leases.close();
+		deleter.close();
+		scheduler.shutdownNow();
+		executor.shutdown();
+	}
+
+	@Test
+	public void verifyThatPoisonMessageIsMovedWithItsError() throws Exception {
+		sqs.sendMessage(new SendMessageRequest(queueUrl, "poison"));
+		for (int i = 0; i < 5; i++) {
+			sqs.sendMessage(new SendMessageRequest(queueUrl, "work " + i));
+		}
+		final ConcurrentHashMap<String, AtomicInteger> handled = new ConcurrentHashMap<String, AtomicInteger>();
+		final ReceiveEngine[] engine = new ReceiveEngine[1];
+		engine[0] = new ReceiveEngine(sqs, queueUrl, new MessageListener() {
+			public void onMessage(Message message) {
+				handled.computeIfAbsent(message.getBody(), body -> new AtomicInteger()).incrementAndGet();
+				if (message.getBody().equals("poison")) {
+					throw new IllegalStateException("Can not handle poison");
+				}
+				sqs.deleteMessage(new DeleteMessageRequest(queueUrl, message.getReceiptHandle()));
+				engine[0].complete(message);
+			}
+		}, 4);
+		HdrMetricsRegistry metrics = new HdrMetricsRegistry();
+		engine[0].setMetrics(metrics, MetricNames.SERVER);
+		engine[0].setLeaseManager(leases, 30);
+		engine[0].setDeleter(deleter);
+		engine[0].setDeadLetterQueue(deadLetterQueue);
+		engine[0].start();
+		try {
+			awaitQueueSize(deadLetterQueueUrl, 1);
+			awaitQueueSize(queueUrl, 0);
+		} finally {
+			engine[0].stop();
+		}
+
+		assertThat(handled.get("poison").get(), is(MAX_RECEIVE_COUNT));
+		assertThat(handled.get("work 0").get(), is(1));
+		assertThat(metrics.counter(MetricNames.SERVER + MetricNames.DEAD_LETTERS).count(), is(1L));
+		// the listener deletes on its own, the moved message went through the batcher
+		assertThat(deleter.getEntryCount(), is(1L));
+		List<Message> moved = sqs.receiveMessage(new ReceiveMessageRequest(deadLetterQueueUrl)).getMessages();
+		DeadLetter deadLetter = DeadLetter.read(moved.get(0).getBody());
+		System.out.println("Dead letter of " + deadLetter.getMessageId() + " after " + deadLetter.getReceiveCount()
+				+ " receives: " + deadLetter.getError().split("\n")[0]);
+		assertThat(deadLetter.getBody(), is("poison"));
+		assertThat(deadLetter.getSource(), is(queueUrl));
+		assertThat(deadLetter.getReceiveCount(), is(MAX_RECEIVE_COUNT + 1));
+		assertTrue(deadLetter.getError().startsWith("java.lang.IllegalStateException: Can not handle poison"));
+	}
+
+	@Test
+	public void verifyThatLargePoisonMessageIsMovedWithAShortenedError() throws Exception {
+		// about 255.6 KB, a dead letter of it has no room for the whole stack trace
+		char[] chars = new char[261700];
+		Arrays.fill(chars, 'x');
+		final String large = new String(chars);
+		sqs.sendMessage(new SendMessageRequest(queueUrl, large));
+		ReceiveEngine engine = new ReceiveEngine(sqs, queueUrl, new MessageListener() {
+			public void onMessage(Message message) {
+				throw new IllegalStateException("Can not handle a large poison");
+			}
+		}, 1);
+		engine.setLeaseManager(leases, 30);
+		engine.setDeleter(deleter);
+		engine.setDeadLetterQueue(deadLetterQueue);
+		engine.start();
+		try {
+			awaitQueueSize(deadLetterQueueUrl, 1);
+			awaitQueueSize(queueUrl, 0);
+		} finally {
+			engine.stop();
+		}
+
+		String moved = sqs.receiveMessage(new ReceiveMessageRequest(deadLetterQueueUrl)).getMessages().get(0).getBody();
+		DeadLetter deadLetter = DeadLetter.read(moved);
+		System.out.println("Dead letter of " + moved.length() + " chars, error cut to "
+				+ deadLetter.getError().length());
+		assertTrue(SendBatcher.utf8Length(moved) <= SendBatcher.MAX_BATCH_BYTES);
+		assertThat(deadLetter.getBody(), is(large));
+		assertTrue(deadLetter.getError().startsWith("java.lang.IllegalStateException: Can not handle a large poison"));
+	}
+
+	@Test
+	public void verifyThatBodyTooLargeForAnEnvelopeIsMovedAsItIs() throws Exception {
+		char[] chars = new char[200 * 1024];
+		// each quote is escaped into two chars in the envelope
+		Arrays.fill(chars, '"');
+		String quotes = new String(chars);
+		deadLetterQueue.recordFailure("id-quotes", new IllegalStateException("Can not handle quotes"));
+
+		deadLetterQueue.add(queueUrl, new Message().withMessageId("id-quotes").withBody(quotes))
+				.get(10, TimeUnit.SECONDS);
+
+		String moved = sqs.receiveMessage(new ReceiveMessageRequest(deadLetterQueueUrl)).getMessages().get(0).getBody();
+		assertThat(moved, is(quotes));
+		assertNull(DeadLetter.read(moved));
+	}
+
+	@Test
+	public void verifyThatErrorsOfMessagesHandledElsewhereExpire() throws Exception {
+		deadLetterQueue.setFailureTtlMillis(200);
+		deadLetterQueue.recordFailure("handled elsewhere", new IllegalStateException("Failed here"));
+		Thread.sleep(150);
+		deadLetterQueue.recordFailure("failed lately", new IllegalStateException("Failed here"));
+		Thread.sleep(100);
+
+		deadLetterQueue.expireFailures();
+
+		assertThat(deadLetterQueue.getFailureCount(), is(1));
+		deadLetterQueue.add(queueUrl, new Message().withMessageId("failed lately").withBody("body"))
+				.get(10, TimeUnit.SECONDS);
+		assertThat(deadLetterQueue.getFailureCount(), is(0));
+	}
+
+	@Test
+	public void verifyThatRedriveReplaysDeadLetters() throws Exception {
+		final int count = 250;
+		for (int i = 0; i < count; i++) {
+			Message message = new Message().withMessageId("id-" + i).withBody("work " + i)
+					.withAttributes(Collections.singletonMap(DeadLetterQueue.APPROXIMATE_RECEIVE_COUNT, "4"));
+			deadLetterQueue.add(queueUrl, message);
+		}
+		sqs.sendMessage(new SendMessageRequest(deadLetterQueueUrl, "not a dead letter"));
+		CompletableFuture<String> last = deadLetterQueue.add(queueUrl,
+				new Message().withMessageId("id-last").withBody("last"));
+		last.get(10, TimeUnit.SECONDS);
+		awaitQueueSize(deadLetterQueueUrl, count + 2);
+
+		Redrive redrive = new Redrive(sqs, deadLetterQueueUrl);
+		redrive.setParallelism(4);
+		redrive.setMaxRate(20);
+		long sendsBefore = sqs.getApiCallCount("SendMessageBatch");
+		long started = System.nanoTime();
+		long replayed = redrive.run();
+
+		System.out.println("Replayed " + replayed + " messages in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+		assertThat(replayed, is((long) count + 1));
+		assertThat(redrive.getFailedCount(), is(0L));
+		assertThat(redrive.getSkippedCount(), is(1L));
+		assertThat(sqs.getQueueSize(queueUrl), is(count + 1));
+		assertThat(sqs.getQueueSize(deadLetterQueueUrl), is(1));
+		assertTrue("Sends should be batched", sqs.getApiCallCount("SendMessageBatch") - sendsBefore < count / 5);
+	}
+
+	private void awaitQueueSize(String url, int size) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (sqs.getQueueSize(url) != size && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertThat(sqs.getQueueSize(url), is(size));
+	}
+}
@@ -0,0 +1,130 @@
+package com.bma.amazon.sqs.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+import com.bma.amazon.sqs.metrics.HdrMetricsRegistry;
+import com.bma.amazon.sqs.metrics.MetricNames;
+
+public class LeaseManagerTest {
+	private static final int VISIBILITY_SECONDS = 1;
+	private static final long TICK_MILLIS = 10;
+
+	private LocalAmazonSQS sqs;
+	private String queueUrl;
+	private LeaseManager leases;
+	private HdrMetricsRegistry metrics;
+
+	@Before
+	public void setUp() {
+		sqs = new LocalAmazonSQS("lease.local");
+		queueUrl = sqs.createQueue(new CreateQueueRequest("lease_queue")).getQueueUrl();
+		leases = new LeaseManager(sqs, TICK_MILLIS, ThreadMode.PLATFORM);
+		metrics = new HdrMetricsRegistry();
+		leases.setMetrics(metrics);
+	}
+
+	@After
+	public void tearDown() {
+		leases.close();
+	}
+
+	@Test
+	public void verifyThatLeasedMessageStaysInvisible() throws Exception {
+		Message message = givenWeHaveReceivedAMessage();
+
+		leases.acquire(queueUrl, message.getReceiptHandle(), VISIBILITY_SECONDS);
+		Thread.sleep(3 * VISIBILITY_SECONDS * 1000);
+
+		assertThat(receive().size(), is(0));
+		assertTrue("Lease should have been extended", metrics.values().get(MetricNames.LEASE_EXTENSIONS) >= 3);
+		assertThat(leases.getActiveCount(), is(1));
+		assertTrue(leases.complete(message.getReceiptHandle()));
+		assertThat(leases.getActiveCount(), is(0));
+		System.out.println(metrics.report());
+	}
+
+	@Test
+	public void verifyThatReleasedMessageIsRedeliveredAtOnce() throws Exception {
+		Message message = givenWeHaveReceivedAMessage();
+		leases.acquire(queueUrl, message.getReceiptHandle(), 30);
+
+		assertTrue(leases.release(message.getReceiptHandle()));
+
+		long deadline = System.currentTimeMillis() + 2000;
+		List<Message> redelivered = receive();
+		while (redelivered.isEmpty() && System.currentTimeMillis() < deadline) {
+			redelivered = receive();
+		}
+		assertThat(redelivered.size(), is(1));
+		assertThat(leases.isLeased(message.getReceiptHandle()), is(false));
+	}
+
+	@Test
+	public void verifyThatSlowHandlerDoesNotGetItsMessageRedelivered() throws Exception {
+		final int count = 20;
+		for (int i = 0; i < count; i++) {
+			sqs.sendMessage(new SendMessageRequest(queueUrl, "message " + i));
+		}
+		final ConcurrentHashMap<String, AtomicInteger> handled = new ConcurrentHashMap<String, AtomicInteger>();
+		final CountDownLatch done = new CountDownLatch(count);
+		final ReceiveEngine[] engine = new ReceiveEngine[1];
+		engine[0] = new ReceiveEngine(sqs, queueUrl, new MessageListener() {
+			public void onMessage(Message message) {
+				handled.computeIfAbsent(message.getBody(), body -> new AtomicInteger()).incrementAndGet();
+				try {
+					Thread.sleep(2500);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				sqs.deleteMessage(new DeleteMessageRequest(queueUrl, message.getReceiptHandle()));
+				engine[0].complete(message);
+				done.countDown();
+			}
+		}, count);
+		engine[0].setLeaseManager(leases, VISIBILITY_SECONDS);
+		engine[0].setPollers(2, 2);
+		engine[0].start();
+		try {
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			Thread.sleep(500);
+		} finally {
+			engine[0].stop();
+		}
+
+		assertThat(handled.size(), is(count));
+		for (AtomicInteger times : handled.values()) {
+			assertThat(times.get(), is(1));
+		}
+		assertThat(leases.getActiveCount(), is(0));
+	}
+
+	private Message givenWeHaveReceivedAMessage() {
+		sqs.sendMessage(new SendMessageRequest(queueUrl, "slow work"));
+		List<Message> messages = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl)
+				.withVisibilityTimeout(VISIBILITY_SECONDS)).getMessages();
+		assertThat(messages.size(), is(1));
+		return messages.get(0);
+	}
+
+	private List<Message> receive() {
+		return sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withWaitTimeSeconds(0)).getMessages();
+	}
+}
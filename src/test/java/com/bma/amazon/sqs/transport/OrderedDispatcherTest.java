@@ -0,0 +1,176 @@
+package com.bma.amazon.sqs.transport;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OrderedDispatcherTest {
+	private ScheduledExecutorService scheduler;
+	private OrderedDispatcher dispatcher;
+
+	@Before
+	public void setUp() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("test-timer"));
+		dispatcher = new OrderedDispatcher(ThreadMode.PLATFORM.newExecutor("test-group"), scheduler, 1000, 200,
+				OrderedDispatcher.DEFAULT_IDLE_MILLIS);
+	}
+
+	@After
+	public void tearDown() {
+		dispatcher.close();
+		scheduler.shutdownNow();
+	}
+
+	@Test
+	public void verifyThatGroupsRunSeriallyAndInParallel() throws Exception {
+		final int groups = 8;
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final List<List<Long>> order = new ArrayList<List<Long>>();
+		List<CompletableFuture<?>> done = new ArrayList<CompletableFuture<?>>();
+		for (int g = 0; g < groups; g++) {
+			order.add(Collections.synchronizedList(new ArrayList<Long>()));
+		}
+		long started = System.nanoTime();
+		for (long sequence = 1; sequence <= 10; sequence++) {
+			for (int g = 0; g < groups; g++) {
+				final List<Long> groupOrder = order.get(g);
+				final long position = sequence;
+				done.add(dispatcher.submit("group" + g, "sender", sequence, () -> {
+					maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					groupOrder.add(position);
+					sleep(10);
+					running.decrementAndGet();
+					return null;
+				}));
+			}
+		}
+		CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[done.size()])).get(10, TimeUnit.SECONDS);
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+		System.out.println(groups + " groups of 10 tasks of 10 ms in " + millis + " ms, " + maxRunning + " in parallel");
+		for (List<Long> groupOrder : order) {
+			assertThat(groupOrder, is(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L)));
+		}
+		assertThat(maxRunning.get() <= groups, is(true));
+		assertTrue("Groups should run in parallel", maxRunning.get() > 1);
+		assertTrue("Groups should run in parallel: " + millis + " ms", millis < groups * 10 * 10);
+	}
+
+	@Test
+	public void verifyThatTasksAreReordered() throws Exception {
+		List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+
+		CompletableFuture<?> third = dispatcher.submit("group", "sender", 3, () -> order.add(3L));
+		CompletableFuture<?> second = dispatcher.submit("group", "sender", 2, () -> order.add(2L));
+		Thread.sleep(50);
+		assertThat(order.isEmpty(), is(true));
+		CompletableFuture<?> first = dispatcher.submit("group", "sender", 1, () -> order.add(1L));
+		CompletableFuture.allOf(first, second, third).get(1, TimeUnit.SECONDS);
+
+		assertThat(order, is(Arrays.asList(1L, 2L, 3L)));
+	}
+
+	@Test
+	public void verifyThatAnsweredTasksAreNotWaitedFor() throws Exception {
+		OrderedDispatcher dropping = new OrderedDispatcher(ThreadMode.PLATFORM.newExecutor("test-group"), scheduler,
+				1000, 1000, 50);
+		try {
+			for (long sequence = 1; sequence <= 3; sequence++) {
+				dropping.submit("group", "sender", sequence, sequence - 1, () -> null).get(1, TimeUnit.SECONDS);
+			}
+			// the lane is dropped along with the sequence it expects next
+			Thread.sleep(300);
+			long started = System.nanoTime();
+
+			dropping.submit("group", "sender", 4, 3, () -> null).get(2, TimeUnit.SECONDS);
+			// a sender which was sending before the dispatcher started
+			dropping.submit("other group", "sender", 7, 6, () -> null).get(2, TimeUnit.SECONDS);
+
+			long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+			assertTrue("Should not wait for the reorder time: " + waited + " ms", waited < 500);
+			List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+			// 8 is not answered yet, 9 waits for it
+			CompletableFuture<?> ninth = dropping.submit("other group", "sender", 9, 7, () -> order.add(9L));
+			Thread.sleep(50);
+			dropping.submit("other group", "sender", 8, 7, () -> order.add(8L)).get(1, TimeUnit.SECONDS);
+			ninth.get(1, TimeUnit.SECONDS);
+			assertThat(order, is(Arrays.asList(8L, 9L)));
+		} finally {
+			dropping.close();
+		}
+	}
+
+	@Test
+	public void verifyThatGapIsSkippedAfterReorderTime() throws Exception {
+		dispatcher.submit("group", "sender", 1, () -> null).get(1, TimeUnit.SECONDS);
+		long started = System.nanoTime();
+
+		dispatcher.submit("group", "sender", 3, () -> null).get(1, TimeUnit.SECONDS);
+
+		long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+		assertTrue("Should have waited for the gap: " + waited + " ms", waited >= 150);
+		// the future completes before the lane goes idle
+		for (int i = 0; i < 100 && dispatcher.getPendingCount() > 0; i++) {
+			sleep(10);
+		}
+		assertThat(dispatcher.getPendingCount(), is(0));
+	}
+
+	@Test
+	public void verifyThatErrorOfATaskDoesNotStopTheLane() throws Exception {
+		CompletableFuture<?> failing = dispatcher.submit("group", "sender", 1, () -> {
+			throw new AssertionError("handler failed");
+		});
+
+		assertThat(dispatcher.submit("group", "sender", 2, () -> true).get(1, TimeUnit.SECONDS), is(true));
+		assertTrue(failing.isCompletedExceptionally());
+	}
+
+	@Test
+	public void verifyThatTaskWhichCannotBeHeldFails() throws Exception {
+		OrderedDispatcher single = new OrderedDispatcher(ThreadMode.PLATFORM.newExecutor("test-group"), scheduler, 1,
+				200, OrderedDispatcher.DEFAULT_IDLE_MILLIS);
+		try {
+			scheduler.shutdownNow();
+
+			CompletableFuture<?> early = single.submit("group", "sender", 3, () -> null);
+
+			try {
+				early.get(1, TimeUnit.SECONDS);
+				throw new AssertionError("Held task should fail");
+			} catch (ExecutionException e) {
+				assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+			}
+			// its pending slot was given back
+			assertThat(single.submit("group", "sender", 1, () -> true).get(1, TimeUnit.SECONDS), is(true));
+		} finally {
+			single.close();
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
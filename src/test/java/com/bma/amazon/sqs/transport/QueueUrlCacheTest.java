@@ -0,0 +1,95 @@
+package com.bma.amazon.sqs.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.bma.amazon.sqs.local.LocalAmazonSQS;
+
+public class QueueUrlCacheTest {
+	private static final int WORKERS = 50;
+
+	private final LocalAmazonSQS sqs = new LocalAmazonSQS("cache.local");
+	private final ExecutorService pool = Executors.newFixedThreadPool(WORKERS);
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Test
+	public void verifyThatConcurrentLookupsMakeOneCall() throws Exception {
+		sqs.setLatency(50, 0);
+		final QueueUrlCache cache = new QueueUrlCache(sqs);
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Future<String>> urls = new ArrayList<Future<String>>();
+		for (int i = 0; i < WORKERS; i++) {
+			urls.add(pool.submit(() -> {
+				start.await();
+				return cache.createQueue("workers");
+			}));
+		}
+		start.countDown();
+
+		for (Future<String> url : urls) {
+			assertThat(url.get(), is("https://cache.local/000000000000/workers"));
+		}
+		assertThat(sqs.getApiCallCount("CreateQueue"), is(1L));
+	}
+
+	@Test
+	public void verifyThatUrlIsResolvedAgainAfterTtl() throws Exception {
+		sqs.createQueue(new CreateQueueRequest("expiring"));
+		QueueUrlCache cache = new QueueUrlCache(sqs, 50);
+
+		cache.getQueueUrl("expiring");
+		cache.getQueueUrl("expiring");
+		Thread.sleep(100);
+		cache.getQueueUrl("expiring");
+
+		assertThat(sqs.getApiCallCount("GetQueueUrl"), is(2L));
+	}
+
+	@Test
+	public void verifyThatMissingQueueIsNotCached() {
+		QueueUrlCache cache = new QueueUrlCache(sqs);
+		try {
+			cache.getQueueUrl("late");
+			throw new AssertionError("Queue should not exist");
+		} catch (QueueDoesNotExistException e) {
+			// expected
+		}
+		sqs.createQueue(new CreateQueueRequest("late"));
+
+		assertThat(cache.getQueueUrl("late"), is("https://cache.local/000000000000/late"));
+	}
+
+	@Test
+	public void verifyThatFactorySharesClientsPerEndpoint() {
+		SqsClientFactory factory = new SqsClientFactory(new StaticCredentialsProvider(new BasicAWSCredentials("access", "secret")));
+		factory.setMaxConnections(SqsClientFactory.connectionsFor(16, 32));
+
+		ClientConfiguration configuration = factory.createConfiguration();
+
+		assertThat(configuration.getMaxConnections(), is(48));
+		assertThat(factory.getClient("sqs.eu-west-1.amazonaws.com") == factory.getClient("sqs.eu-west-1.amazonaws.com"), is(true));
+		assertThat(factory.getClient("sqs.eu-west-1.amazonaws.com") == factory.getClient("sqs.us-east-1.amazonaws.com"), is(false));
+		assertThat(factory.getQueueUrls("sqs.eu-west-1.amazonaws.com").getSqs() == factory.getClient("sqs.eu-west-1.amazonaws.com"), is(true));
+		factory.shutdown();
+	}
+}
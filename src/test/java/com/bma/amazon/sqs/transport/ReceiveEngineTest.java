@@ -0,0 +1,281 @@
+package com.bma.amazon.sqs.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+
+public class ReceiveEngineTest {
+	private static final String QUEUE_URL = "https://sqs.local/000000000000/test_queue";
+	private static final int MESSAGE_COUNT = 2000;
+	private static final int PREFETCH_CAPACITY = 20;
+	private static final int HANDLER_THREADS = 4;
+
+	private StubSqs sqs;
+	private volatile ReceiveEngine engine;
+
+	@Before
+	public void setUp() {
+		sqs = new StubSqs();
+	}
+
+	@After
+	public void tearDown() {
+		if (engine != null) {
+			engine.stop();
+		}
+	}
+
+	@Test
+	public void verifyThatEveryMessageIsHandledOnce() throws Exception {
+		givenWeHaveMessagesInTheQueue(MESSAGE_COUNT);
+		final Set<String> handled = ConcurrentHashMap.newKeySet();
+		final CountDownLatch done = new CountDownLatch(MESSAGE_COUNT);
+
+		whenEngineIsStarted(new MessageListener() {
+			public void onMessage(Message message) {
+				handled.add(message.getMessageId());
+				done.countDown();
+			}
+		});
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertThat(handled.size(), is(MESSAGE_COUNT));
+		assertTrue("Every poll should ask for a batch", sqs.maxRequested.get() == ReceiveEngine.MAX_NUMBER_OF_MESSAGES);
+	}
+
+	@Test
+	public void verifyThatPollersGrowUnderBacklogAndShrinkWhenIdle() throws Exception {
+		givenWeHaveMessagesInTheQueue(MESSAGE_COUNT);
+		final CountDownLatch done = new CountDownLatch(MESSAGE_COUNT);
+
+		whenEngineIsStarted(new MessageListener() {
+			public void onMessage(Message message) {
+				done.countDown();
+			}
+		});
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue("Pollers should have grown", sqs.maxConcurrentPolls.get() > 1);
+		thenPollersShrinkTo(1);
+	}
+
+	@Test
+	public void verifyThatPollingStopsWhenHandlersFallBehind() throws Exception {
+		givenWeHaveMessagesInTheQueue(MESSAGE_COUNT);
+		final CountDownLatch blocked = new CountDownLatch(1);
+
+		whenEngineIsStarted(new MessageListener() {
+			public void onMessage(Message message) {
+				try {
+					blocked.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		Thread.sleep(500);
+
+		assertThat(sqs.received.get(), is(PREFETCH_CAPACITY + HANDLER_THREADS));
+		blocked.countDown();
+	}
+
+	@Test
+	public void verifyThatVirtualHandlersStayWithinTheQueueLimit() throws Exception {
+		Assume.assumeTrue(ThreadMode.VIRTUAL.isSupported());
+		givenWeHaveMessagesInTheQueue(MESSAGE_COUNT);
+		final CountDownLatch done = new CountDownLatch(MESSAGE_COUNT);
+		final AtomicInteger concurrent = new AtomicInteger();
+		final AtomicInteger maxConcurrent = new AtomicInteger();
+
+		whenEngineIsStarted(ThreadMode.VIRTUAL, new MessageListener() {
+			public void onMessage(Message message) {
+				int handling = concurrent.incrementAndGet();
+				maxConcurrent.accumulateAndGet(handling, Math::max);
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				concurrent.decrementAndGet();
+				done.countDown();
+			}
+		});
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		System.out.println("Max concurrent virtual handlers: " + maxConcurrent.get());
+		assertTrue("Handlers should run in parallel", maxConcurrent.get() > 1);
+		assertTrue("Handlers should stay within the limit", maxConcurrent.get() <= HANDLER_THREADS);
+	}
+
+	@Test
+	public void verifyThatMessagesReceivedWhileStoppingAreMadeVisible() throws Exception {
+		givenWeHaveMessagesInTheQueue(5);
+		final AtomicInteger handled = new AtomicInteger();
+		// like an SDK long poll, the receive returns only after stop() despite the interrupt
+		sqs.holdWhile = () -> engine == null || engine.isRunning();
+
+		whenEngineIsStarted(new MessageListener() {
+			public void onMessage(Message message) {
+				handled.incrementAndGet();
+			}
+		});
+		awaitReceived(5);
+		engine.stop();
+
+		assertThat(handled.get(), is(0));
+		assertThat(engine.getActivePollers(), is(0));
+		assertThat(engine.getBufferedCount(), is(0));
+		assertThat(sqs.madeVisible.size(), is(5));
+	}
+
+	@Test
+	public void verifyThatMessagesReceivedWhileStoppingAreNotLeased() throws Exception {
+		givenWeHaveMessagesInTheQueue(5);
+		sqs.holdWhile = () -> engine == null || engine.isRunning();
+		LeaseManager leases = new LeaseManager(sqs, 10, ThreadMode.PLATFORM);
+		try {
+			engine = new ReceiveEngine(sqs, QUEUE_URL, new MessageListener() {
+				public void onMessage(Message message) {
+				}
+			}, HANDLER_THREADS);
+			engine.setLeaseManager(leases, 30);
+			engine.start();
+			awaitReceived(5);
+			engine.stop();
+
+			assertThat(leases.getActiveCount(), is(0));
+			assertThat(sqs.madeVisible.size(), is(5));
+		} finally {
+			leases.close();
+		}
+	}
+
+	private void givenWeHaveMessagesInTheQueue(int count) {
+		for (int i = 0; i < count; i++) {
+			Message message = new Message();
+			message.setMessageId(String.valueOf(i));
+			message.setReceiptHandle("handle-" + i);
+			message.setBody("message " + i);
+			sqs.messages.add(message);
+		}
+	}
+
+	private void whenEngineIsStarted(MessageListener listener) {
+		whenEngineIsStarted(ThreadMode.PLATFORM, listener);
+	}
+
+	private void whenEngineIsStarted(ThreadMode threadMode, MessageListener listener) {
+		engine = new ReceiveEngine(sqs, QUEUE_URL, listener, HANDLER_THREADS);
+		engine.setThreadMode(threadMode);
+		engine.setPollers(1, 4);
+		engine.setPrefetchCapacity(PREFETCH_CAPACITY);
+		engine.start();
+	}
+
+	private void awaitReceived(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (sqs.received.get() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(sqs.received.get(), is(count));
+	}
+
+	private void thenPollersShrinkTo(int pollers) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (engine.getActivePollers() > pollers && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(engine.getActivePollers(), is(pollers));
+	}
+
+	/**
+	 * Hands out queued messages; an empty receive returns after a short wait
+	 * instead of the full long-poll. A receive of messages returns only when
+	 * holdWhile is false, if it is set.
+	 */
+	private static class StubSqs extends AmazonSQSClient {
+		final ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<Message>();
+		final AtomicInteger received = new AtomicInteger();
+		final AtomicInteger maxRequested = new AtomicInteger();
+		final AtomicInteger concurrentPolls = new AtomicInteger();
+		final AtomicInteger maxConcurrentPolls = new AtomicInteger();
+		final Set<String> madeVisible = ConcurrentHashMap.newKeySet();
+		volatile BooleanSupplier holdWhile;
+
+		StubSqs() {
+			super(new BasicAWSCredentials("access", "secret"));
+		}
+
+		@Override
+		public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+			int polls = concurrentPolls.incrementAndGet();
+			maxConcurrentPolls.set(Math.max(maxConcurrentPolls.get(), polls));
+			maxRequested.set(Math.max(maxRequested.get(), request.getMaxNumberOfMessages()));
+			try {
+				Thread.sleep(5);
+				List<Message> batch = new ArrayList<Message>();
+				Message message;
+				while (batch.size() < request.getMaxNumberOfMessages() && (message = messages.poll()) != null) {
+					batch.add(message);
+				}
+				if (batch.isEmpty()) {
+					Thread.sleep(50);
+				}
+				received.addAndGet(batch.size());
+				if (!batch.isEmpty()) {
+					hold();
+				}
+				return new ReceiveMessageResult().withMessages(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new ReceiveMessageResult();
+			} finally {
+				concurrentPolls.decrementAndGet();
+			}
+		}
+
+		private void hold() {
+			BooleanSupplier holdWhile = this.holdWhile;
+			boolean interrupted = false;
+			while (holdWhile != null && holdWhile.getAsBoolean()) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void changeMessageVisibility(ChangeMessageVisibilityRequest request) {
+			if (request.getVisibilityTimeout() == 0) {
+				madeVisible.add(request.getReceiptHandle());
+			}
+		}
+	}
+}
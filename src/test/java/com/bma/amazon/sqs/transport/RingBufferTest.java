@@ -0,0 +1,82 @@
+package com.bma.amazon.sqs.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+	@Test
+	public void verifyThatFullBufferRejectsOffers() {
+		RingBuffer<Integer> buffer = new RingBuffer<Integer>(3);
+		assertThat(buffer.capacity(), is(4));
+
+		for (int i = 0; i < 4; i++) {
+			assertThat(buffer.offer(i), is(true));
+		}
+		assertThat(buffer.offer(4), is(false));
+		assertThat(buffer.poll(), is(0));
+		assertThat(buffer.offer(4), is(true));
+
+		for (int i = 1; i <= 4; i++) {
+			assertThat(buffer.poll(), is(i));
+		}
+		assertThat(buffer.poll(), nullValue());
+		assertThat(buffer.isEmpty(), is(true));
+	}
+
+	@Test
+	public void verifyThatEveryElementIsTakenOnce() throws Exception {
+		final int producers = 4;
+		final int perProducer = 100000;
+		final RingBuffer<Integer> buffer = new RingBuffer<Integer>(64);
+		final AtomicIntegerArray taken = new AtomicIntegerArray(producers * perProducer);
+		final AtomicLong remaining = new AtomicLong(producers * perProducer);
+		final CountDownLatch done = new CountDownLatch(producers * 2);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int first = p * perProducer;
+			threads.add(new Thread(() -> {
+				for (int i = first; i < first + perProducer; i++) {
+					while (!buffer.offer(i)) {
+						Thread.yield();
+					}
+				}
+				done.countDown();
+			}));
+			threads.add(new Thread(() -> {
+				while (remaining.get() > 0) {
+					Integer element = buffer.poll();
+					if (element == null) {
+						Thread.yield();
+					} else {
+						taken.incrementAndGet(element);
+						remaining.decrementAndGet();
+					}
+				}
+				done.countDown();
+			}));
+		}
+
+		long started = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		done.await();
+
+		System.out.println("Passed " + taken.length() + " elements in "
+				+ (System.nanoTime() - started) / 1000000 + " ms");
+		for (int i = 0; i < taken.length(); i++) {
+			assertThat("Element " + i, taken.get(i), is(1));
+		}
+		assertThat(buffer.isEmpty(), is(true));
+	}
+}
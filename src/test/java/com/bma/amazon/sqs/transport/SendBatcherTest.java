@@ -0,0 +1,239 @@
+package com.bma.amazon.sqs.transport;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.bma.amazon.sqs.local.LocalAmazonSQSAsync;
+
+public class SendBatcherTest {
+	private static final String QUEUE_URL = "https://sqs.local/000000000000/test_queue";
+
+	private ScheduledExecutorService scheduler;
+	private ExecutorService executor;
+	private RecordingSqs sqs;
+	private SendBatcher batcher;
+
+	@Before
+	public void setUp() {
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		executor = Executors.newCachedThreadPool();
+		sqs = new RecordingSqs();
+		batcher = new SendBatcher(sqs, QUEUE_URL, scheduler, executor);
+		batcher.setLingerMillis(50);
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void verifyThatMessagesArePackedIntoBatchesOfTen() throws Exception {
+		List<CompletableFuture<String>> sent = whenSendMessages(25, 100);
+
+		thenAllMessagesAreSent(sent);
+		assertThat(sqs.batchSizes, is(Arrays.asList(10, 10, 5)));
+		assertThat(batcher.getApiCallCount(), is(3L));
+	}
+
+	@Test
+	public void verifyThatBatchDoesNotExceedByteLimit() throws Exception {
+		List<CompletableFuture<String>> sent = whenSendMessages(4, 100 * 1024);
+
+		thenAllMessagesAreSent(sent);
+		assertThat(sqs.batchSizes, is(Arrays.asList(2, 2)));
+	}
+
+	@Test
+	public void verifyThatServiceFailureOfAnEntryIsRetried() throws Exception {
+		sqs.failFirstEntry("InternalError", false);
+
+		List<CompletableFuture<String>> sent = whenSendMessages(3, 10);
+
+		thenAllMessagesAreSent(sent);
+		assertThat(sqs.batchSizes, is(Arrays.asList(3, 1)));
+	}
+
+	@Test
+	public void verifyThatSenderFaultFailsTheEntry() throws Exception {
+		sqs.failFirstEntry("InvalidMessageContents", true);
+
+		List<CompletableFuture<String>> sent = whenSendMessages(3, 10);
+
+		try {
+			sent.get(0).get(5, TimeUnit.SECONDS);
+			throw new AssertionError("First message should fail");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), instanceOf(AmazonServiceException.class));
+		}
+		thenAllMessagesAreSent(sent.subList(1, 3));
+	}
+
+	@Test
+	public void verifyThatThrottledEntrySlowsDownTheBatcher() throws Exception {
+		AdaptiveRateLimiter limiter = new AdaptiveRateLimiter();
+		batcher.setRateLimiter(limiter);
+		sqs.failFirstEntry("RequestThrottled", true);
+
+		List<CompletableFuture<String>> sent = whenSendMessages(3, 10);
+
+		thenAllMessagesAreSent(sent);
+		assertThat(sqs.batchSizes, is(Arrays.asList(3, 1)));
+		assertThat(limiter.getThrottledCount(), is(1L));
+	}
+
+	@Test
+	public void verifyThatEntryWaitingForARetryIsSentOnClose() throws Exception {
+		sqs.failFirstEntry("InternalError", false);
+		List<CompletableFuture<String>> sent = whenSendMessages(1, 10);
+		batcher.flush();
+		while (sqs.batchSizes.isEmpty() || batcher.getInFlight() > 0) {
+			Thread.sleep(1);
+		}
+
+		batcher.close();
+		scheduler.shutdownNow();
+
+		thenAllMessagesAreSent(sent);
+		assertThat(sqs.batchSizes, is(Arrays.asList(1, 1)));
+	}
+
+	@Test
+	public void verifyThatBatchDelayedByTheRateIsSentOnClose() throws Exception {
+		// one call per 10 s: the second batch waits on the scheduler
+		batcher.setRateLimiter(new AdaptiveRateLimiter(0.1, 0.1, 0, 0.5, 0.1));
+		List<CompletableFuture<String>> sent = whenSendMessages(10, 10);
+		thenAllMessagesAreSent(sent);
+		sent = whenSendMessages(1, 10);
+		batcher.flush();
+
+		batcher.close();
+		scheduler.shutdownNow();
+
+		thenAllMessagesAreSent(sent);
+		assertThat(sqs.batchSizes, is(Arrays.asList(10, 1)));
+	}
+
+	@Test
+	public void verifyThatCallsInFlightAreBounded() throws Exception {
+		sqs.delayMillis = 20;
+		batcher.setMaxInFlight(2);
+
+		List<CompletableFuture<String>> sent = whenSendMessages(100, 10);
+
+		thenAllMessagesAreSent(sent);
+		assertThat(sqs.batchSizes.size(), is(10));
+		assertThat(sqs.maxConcurrent, is(2));
+	}
+
+	@Test
+	public void verifyThatAsyncBatcherKeepsManyCallsInFlight() throws Exception {
+		LocalAmazonSQSAsync async = new LocalAmazonSQSAsync("async.local", 1);
+		async.setLatency(100, 0);
+		String queueUrl = async.createQueue(new CreateQueueRequest("async_queue")).getQueueUrl();
+		batcher = new SendBatcher(async, queueUrl, scheduler);
+		batcher.setMaxInFlight(100);
+
+		long started = System.currentTimeMillis();
+		List<CompletableFuture<String>> sent = whenSendMessages(1000, 10);
+		thenAllMessagesAreSent(sent);
+
+		// 100 batches of 100 ms on one thread: far less than 10 s when they overlap
+		assertThat(System.currentTimeMillis() - started < 2000, is(true));
+		assertThat(async.getQueueSize(queueUrl), is(1000));
+		async.shutdown();
+	}
+
+	private List<CompletableFuture<String>> whenSendMessages(int count, int size) {
+		char[] body = new char[size];
+		Arrays.fill(body, 'x');
+		List<CompletableFuture<String>> sent = new ArrayList<CompletableFuture<String>>();
+		for (int i = 0; i < count; i++) {
+			sent.add(batcher.add(new String(body)));
+		}
+		return sent;
+	}
+
+	private void thenAllMessagesAreSent(List<CompletableFuture<String>> sent) throws Exception {
+		for (CompletableFuture<String> future : sent) {
+			future.get(5, TimeUnit.SECONDS);
+		}
+	}
+
+	private static class RecordingSqs extends AmazonSQSClient {
+		final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+		private String failureCode;
+		private boolean senderFault;
+		volatile long delayMillis;
+		volatile int maxConcurrent;
+		private int concurrent;
+
+		RecordingSqs() {
+			super(new BasicAWSCredentials("access", "secret"));
+		}
+
+		synchronized void failFirstEntry(String code, boolean senderFault) {
+			this.failureCode = code;
+			this.senderFault = senderFault;
+		}
+
+		@Override
+		public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+			batchSizes.add(request.getEntries().size());
+			synchronized (this) {
+				maxConcurrent = Math.max(maxConcurrent, ++concurrent);
+			}
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (this) {
+				concurrent--;
+			}
+			SendMessageBatchResult result = new SendMessageBatchResult();
+			List<SendMessageBatchResultEntry> successful = new ArrayList<SendMessageBatchResultEntry>();
+			List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+			for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+				synchronized (this) {
+					if (failureCode != null) {
+						failed.add(new BatchResultErrorEntry().withId(entry.getId()).withCode(failureCode)
+								.withSenderFault(senderFault));
+						failureCode = null;
+						continue;
+					}
+				}
+				successful.add(new SendMessageBatchResultEntry().withId(entry.getId()).withMessageId("m" + entry.getId()));
+			}
+			result.setSuccessful(successful);
+			result.setFailed(failed);
+			return result;
+		}
+	}
+}